@@ -18,18 +18,381 @@
 
 package org.plutext.msgraph.convert;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.commons.io.FileUtils;
+import org.plutext.msgraph.convert.auth.TokenProvider;
+import org.plutext.msgraph.convert.batch.BatchConverter;
+import org.plutext.msgraph.convert.batch.BatchResult;
+import org.plutext.msgraph.convert.buffer.BufferPipe;
+import org.plutext.msgraph.convert.buffer.BufferPool;
+import org.plutext.msgraph.convert.buffer.PooledBytes;
+import org.plutext.msgraph.convert.cleanup.CleanupQueue;
+import org.plutext.msgraph.convert.retry.Deadline;
+import org.plutext.msgraph.convert.retry.RetryListener;
+import org.plutext.msgraph.convert.retry.RetryPolicy;
+import org.plutext.msgraph.convert.throttle.AdaptiveLimiter;
+import org.plutext.msgraph.convert.throttle.ThrottledException;
+import org.plutext.msgraph.convert.upload.StreamingUploader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public abstract class AbstractOpenXmlToPDF implements OpenXmlToPDF {
+public abstract class AbstractOpenXmlToPDF implements OpenXmlToPDF, AutoCloseable {
 	
 	private static final Logger log = LoggerFactory.getLogger(AbstractOpenXmlToPDF.class);
 	
 	public AbstractOpenXmlToPDF(AuthConfig authConfig) {
 		 this.authConfig = authConfig;
+		 this.limiter = AdaptiveLimiter.shared(authConfig);
+		 this.sharedIoExecutor = acquireSharedIoExecutor();
+		 this.ioExecutor = sharedIoExecutor;
 	}
 	
 	protected AuthConfig authConfig;
+	
+	private CleanupQueue cleanupQueue;
+	
+	/**
+	 * Uploaded items are deleted in the background, via this queue.  
+	 * You can use it to wait for pending deletes, eg before shutting down.
+	 */
+	public CleanupQueue getCleanupQueue() {
+		return cleanupQueue;
+	}
+	
+	/**
+	 * Backends set this up in their constructor.
+	 */
+	protected void setCleanupQueue(CleanupQueue cleanupQueue) {
+		this.cleanupQueue = cleanupQueue;
+	}
+	
+	private TokenProvider tokenProvider;
+	
+	/**
+	 * The (shared) source of this converter's access tokens.
+	 */
+	public TokenProvider getTokenProvider() {
+		return tokenProvider;
+	}
+	
+	/**
+	 * Backends set this up in their constructor.
+	 */
+	protected void setTokenProvider(TokenProvider tokenProvider) {
+		this.tokenProvider = tokenProvider;
+	}
+	
+	private volatile AdaptiveLimiter limiter;
+	
+	/**
+	 * By default, all converters for a site (and app registration) share one limiter, 
+	 * so together they back off when Graph throttles.
+	 */
+	public AdaptiveLimiter getLimiter() {
+		return limiter;
+	}
+	
+	/**
+	 * @param limiter or null to run conversions without admission control
+	 */
+	public void setLimiter(AdaptiveLimiter limiter) {
+		this.limiter = limiter;
+	}
+	
+	private volatile RetryPolicy retryPolicy = new RetryPolicy();
+	
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+	
+	/**
+	 * @param retryPolicy for throttled phases; RetryPolicy.NONE not to retry
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+	
+	private final List<Consumer<ThrottledException>> throttleListeners 
+		= new CopyOnWriteArrayList<Consumer<ThrottledException>>();
+	
+	/**
+	 * @param listener told each time Graph throttles a phase which is then retried 
+	 * (eg by a ShardedConverter, to drain this converter's shard)
+	 */
+	public void addThrottleListener(Consumer<ThrottledException> listener) {
+		throttleListeners.add(listener);
+	}
+	
+	/**
+	 * @return the deadline for a conversion (or phase) starting now, outside limited(), for use with retry()
+	 */
+	protected Deadline deadline() {
+		return retryPolicy.deadline(new ThrottleReporter(null));
+	}
+	
+	/**
+	 * Run a single phase (eg the upload, or the download), retrying just that phase 
+	 * if Graph throttles it.
+	 */
+	protected <T> CompletableFuture<T> retry(String phase, Supplier<CompletableFuture<T>> attempt, Deadline deadline) {
+		return retryPolicy.execute(phase, attempt, deadline, this::executeIo);
+	}
+	
+	/**
+	 * Tells the throttle listeners, and the limiter (via the conversion's permit, if it has one), 
+	 * about each throttled phase which is to be retried.
+	 */
+	private class ThrottleReporter implements RetryListener {
+		
+		ThrottleReporter(AdaptiveLimiter.Permit permit) {
+			this.permit = permit;
+		}
+		
+		private final AdaptiveLimiter.Permit permit;
+
+		@Override
+		public void throttled(ThrottledException throttled, long delayMillis) {
+			
+			for (Consumer<ThrottledException> listener : throttleListeners) {
+				listener.accept(throttled);
+			}
+			if (permit != null) {
+				permit.pause(throttled);
+			}
+		}
+
+		@Override
+		public CompletableFuture<Void> retrying() {
+			return permit == null ? CompletableFuture.completedFuture(null) : permit.resume();
+		}
+	}
+	
+	private volatile int singlePutThreshold = StreamingUploader.SINGLE_PUT_LIMIT;
+	
+	public int getSinglePutThreshold() {
+		return singlePutThreshold;
+	}
+	
+	/**
+	 * Where a backend supports upload sessions, documents up to this size are uploaded 
+	 * in a single PUT, and bigger ones via an upload session (which costs an extra round trip).  
+	 * 
+	 * @param singlePutThreshold at most 4MB (the default), which is as much as Graph accepts in one PUT
+	 */
+	public void setSinglePutThreshold(int singlePutThreshold) {
+		
+		if (singlePutThreshold < 0 || singlePutThreshold > StreamingUploader.SINGLE_PUT_LIMIT) {
+			throw new IllegalArgumentException("Threshold must be between 0 and 4MB, not " + singlePutThreshold);
+		}
+		this.singlePutThreshold = singlePutThreshold;
+	}
+	
+	/**
+	 * The most threads the default I/O executor runs
+	 */
+	public static final int DEFAULT_IO_THREADS = 64;
+	
+	/**
+	 * The default I/O executor, shared by all converters which haven't been given one of 
+	 * their own, so that wrapping converters (eg in a ShardedConverter) doesn't multiply 
+	 * threads.  Each such converter holds a reference until it is closed; once none do, 
+	 * it is shut down (and a new one is created for the next converter).
+	 */
+	private static ExecutorService sharedIo; // guarded by AbstractOpenXmlToPDF.class
+	private static int sharedIoReferences;
+	
+	private static synchronized ExecutorService acquireSharedIoExecutor() {
+		
+		if (sharedIo == null) {
+			sharedIo = newIoExecutor(DEFAULT_IO_THREADS);
+		}
+		sharedIoReferences++;
+		return sharedIo;
+	}
+	
+	private static synchronized void releaseSharedIoExecutor(ExecutorService executor) {
+		
+		if (executor == sharedIo && --sharedIoReferences == 0) {
+			sharedIo.shutdown();
+			sharedIo = null;
+		}
+	}
+	
+	/**
+	 * The shared executor this converter holds a reference to, or null
+	 */
+	private ExecutorService sharedIoExecutor; // guarded by this
+	
+	private volatile Executor ioExecutor;
+	
+	/**
+	 * Where this converter makes blocking http calls (eg with a synchronous http client, 
+	 * or HttpURLConnection), and fetches tokens and retries throttled phases, so they 
+	 * neither hold up the caller of an async method, nor tie up the common ForkJoinPool.
+	 */
+	public Executor getIoExecutor() {
+		return ioExecutor;
+	}
+	
+	/**
+	 * Run the command on the I/O executor; as an Executor (this::executeIo), 
+	 * for the backend's components, so they follow setIoExecutor.
+	 */
+	protected void executeIo(Runnable command) {
+		ioExecutor.execute(command);
+	}
+	
+	/**
+	 * @param ioExecutor by default, one newIoExecutor(DEFAULT_IO_THREADS) shared by all converters;
+	 * one you set is yours to shut down (close() doesn't)
+	 */
+	public void setIoExecutor(Executor ioExecutor) {
+		
+		this.ioExecutor = ioExecutor;
+		releaseIoExecutor();
+	}
+	
+	private synchronized void releaseIoExecutor() {
+		
+		if (sharedIoExecutor != null) {
+			releaseSharedIoExecutor(sharedIoExecutor);
+			sharedIoExecutor = null;
+		}
+	}
+	
+	/**
+	 * Finish pending deletes (waiting up to CLOSE_TIMEOUT_SECONDS), then let go of the 
+	 * shared I/O executor, which is shut down once no converter uses it.
+	 * Don't convert with this converter after closing it.
+	 */
+	@Override
+	public void close() {
+		
+		try {
+			if (cleanupQueue != null && !cleanupQueue.shutdown(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				log.warn(cleanupQueue.pending() + " deletes still pending on close");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			releaseIoExecutor();
+		}
+	}
+	
+	/**
+	 * How long close() waits for pending deletes
+	 */
+	public static final long CLOSE_TIMEOUT_SECONDS = 30;
+	
+	private static final AtomicInteger ioThreadNumber = new AtomicInteger();
+	
+	/**
+	 * @return a pool of at most threads daemon threads, which go away when idle; 
+	 * calls beyond that many wait their turn
+	 */
+	public static ExecutorService newIoExecutor(int threads) {
+		
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, 
+				new LinkedBlockingQueue<Runnable>(), 
+				r -> {
+					Thread t = new Thread(r, "graph-io-" + ioThreadNumber.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	private volatile BufferPool bufferPool = BufferPool.shared();
+	
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	/**
+	 * @param bufferPool for reading bodies of unknown length (eg a document from an InputStream, 
+	 * or the PDF for convertPooled); by default, BufferPool.shared()
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+	
+	/**
+	 * Convert, passing the PDF to the handler as it is downloaded.
+	 */
+	public abstract <T> CompletableFuture<T> convertAsync(byte[] bytes, String ext, DownloadHandler<T> handler);
+	
+	/**
+	 * Convert the file (whose extension says what it is), passing the PDF to the handler.
+	 * The backends override this to stream the file up, rather than reading it into memory.
+	 */
+	public <T> CompletableFuture<T> convertAsync(File in, DownloadHandler<T> handler) {
+		
+		try {
+			return convertAsync(FileUtils.readFileToByteArray(in), extension(in), handler);
+		} catch (ConversionException | IOException e) {
+			return failed(e);
+		}
+	}
+	
+	/**
+	 * Convert, reading the PDF into buffers from this converter's BufferPool rather than a byte[].
+	 * Release the result when you are done with it, so the buffers can be reused.
+	 */
+	public PooledBytes convertPooled(byte[] bytes, String ext) throws ConversionException {
+		return await(convertPooledAsync(bytes, ext));
+	}
+	
+	public CompletableFuture<PooledBytes> convertPooledAsync(byte[] bytes, String ext) {
+		return convertAsync(bytes, ext, DownloadHandler.toPooled(bufferPool));
+	}
+	
+	/**
+	 * Start the conversion when the limiter admits it, passing it its deadline (which runs 
+	 * from now, so includes any wait for admission).  While one of its phases waits to be 
+	 * retried, the conversion gives up its slot.
+	 */
+	protected <T> CompletableFuture<T> limited(Function<Deadline, CompletableFuture<T>> conversion) {
+		
+		Deadline deadline = deadline();
+		AdaptiveLimiter l = limiter;
+		return l == null ? conversion.apply(deadline) 
+				: l.submit(permit -> conversion.apply(deadline.withListener(new ThrottleReporter(permit))));
+	}
+
+	/**
+	 * Convert many documents, with up to depth in flight at once, blocking until all are done.
+	 * See BatchConverter. 
+	 * 
+	 * @return the number of conversions which failed
+	 */
+	public int convertAll(Iterable<Path> inputs, int depth, Consumer<BatchResult> callback) throws InterruptedException {
+		return new BatchConverter(this, depth).convertAll(inputs, callback);
+	}
 
 	protected static final String DOCX_MIME_TYPE = "application/vnd.openxmlformats-officedocument.wordprocessingml.document";
 	protected static final String PPTX_MIME_TYPE = "application/vnd.openxmlformats-officedocument.presentationml.presentation"; 
@@ -54,4 +417,136 @@ public abstract class AbstractOpenXmlToPDF implements OpenXmlToPDF {
 		return ".docx";
 	}
 	
+	protected String extToMimeType(String ext) {
+		
+		if (ext.startsWith(".pptx")) {
+			return PPTX_MIME_TYPE;
+		} else if  (ext.startsWith(".xlsx")) {
+			return XLSX_MIME_TYPE;
+		} else if (!ext.startsWith(".docx")) {
+			log.error("Unknown extension " + ext);
+		}
+		return DOCX_MIME_TYPE;
+	}
+	
+	@Override
+	public long convert(byte[] bytes, String ext, WritableByteChannel sink) throws ConversionException {
+		// Channels.newOutputStream wraps rather than copies each buffer
+		return convert(bytes, ext, Channels.newOutputStream(sink));
+	}
+
+	@Override
+	public long convert(InputStream is, String ext, WritableByteChannel sink) throws ConversionException, IOException {
+		return convert(is, ext, Channels.newOutputStream(sink));
+	}
+	
+	/**
+	 * Streams the file up, and the PDF down to the output file through its channel.  
+	 * The backends override this, to resume a download whose connection drops. 
+	 */
+	@Override
+	public long convert(File in, File out) throws ConversionException, IOException {
+		
+		String ext = extension(in);
+		try (
+				InputStream is = new FileInputStream(in);
+				FileChannel channel = openOutput(out)
+		) {
+			return convert(is, ext, channel);
+		} catch (ConversionException | IOException | RuntimeException e) {
+			FileUtils.deleteQuietly(out);
+			throw e;
+		}
+	}
+	
+	/**
+	 * The document is piped through buffers from this converter's BufferPool to 
+	 * convert(InputStream, String), which (except in the core-only backend) uploads 
+	 * a stream bigger than the single PUT threshold a slice at a time.
+	 */
+	@Override
+	public byte[] convert(IOConsumer<OutputStream> writer, String ext) throws ConversionException, IOException {
+		return BufferPipe.feed(writer, bufferPool, is -> convert(is, ext));
+	}
+	
+	/**
+	 * @return eg ".docx"
+	 * @throws ConversionException if the file's name has no extension, so we can't tell what it is
+	 */
+	public static String extension(File file) throws ConversionException {
+		
+		String filename = file.getName();
+		int dot = filename.lastIndexOf('.');
+		if (dot < 0 || dot == filename.length() - 1) {
+			throw new ConversionException("Can't tell what " + filename + " is; its name has no extension (eg .docx)");
+		}
+		return filename.substring(dot);
+	}
+	
+	/**
+	 * Open (or create, or truncate) the file the PDF is to be written to
+	 */
+	protected static FileChannel openOutput(File out) throws IOException {
+		return FileChannel.open(out.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+	
+	/**
+	 * For convert(File, File): don't leave part of a PDF behind if the conversion fails 
+	 */
+	protected static <T> CompletableFuture<T> deleteOnFailure(CompletableFuture<T> conversion, File out) {
+		
+		return conversion.whenComplete((result, e) -> {
+			if (e != null) {
+				FileUtils.deleteQuietly(out);
+			}
+		});
+	}
+	
+	/**
+	 * Wait for an asynchronous conversion; this is how the blocking convert methods
+	 * are implemented on top of convertAsync (here, and in the wrapping converters).
+	 * 
+	 * @param future
+	 * @return
+	 * @throws ConversionException
+	 */
+	public static <T> T await(CompletableFuture<T> future) throws ConversionException {
+		
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConversionException("Interrupted waiting for conversion", e);
+		} catch (ExecutionException e) {
+			Throwable cause = unwrap(e);
+			if (cause instanceof ConversionException) {
+				throw (ConversionException)cause;
+			}
+			throw new ConversionException(cause.getMessage(), cause);
+		}
+	}
+	
+	/**
+	 * @return the underlying cause of a failed future 
+	 */
+	public static Throwable unwrap(Throwable t) {
+		
+		while ((t instanceof CompletionException || t instanceof ExecutionException)
+				&& t.getCause()!=null) {
+			t = t.getCause();
+		}
+		return t;
+	}
+	
+	/**
+	 * CompletableFuture.failedFuture is Java 9+
+	 */
+	protected static <T> CompletableFuture<T> failed(Throwable t) {
+		
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(t);
+		return future;
+	}
+	
 }
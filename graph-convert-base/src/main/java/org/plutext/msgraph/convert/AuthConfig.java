@@ -32,6 +32,10 @@ package org.plutext.msgraph.convert;
  */
 public interface AuthConfig  {
 	
+	public static final String GRAPH_ENDPOINT = "https://graph.microsoft.com/v1.0";
+	
+	public static final String LOGIN_ENDPOINT = "https://login.microsoftonline.com";
+	
 	
 	/**
 	 * Application (client) ID
@@ -52,6 +56,21 @@ public interface AuthConfig  {
 	 * Site ID
 	 */
 	public String site();
+	
+	/**
+	 * Graph's base url, up to and including the version.  Override this 
+	 * to point at a stand-in server (eg for offline tests and benchmarks).
+	 */
+	public default String graphEndpoint() {
+		return GRAPH_ENDPOINT;
+	}
+	
+	/**
+	 * Base url of the token endpoint (which is followed by /TENANT/oauth2/..)
+	 */
+	public default String loginEndpoint() {
+		return LOGIN_ENDPOINT;
+	}
 
 }
 
@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.plutext.msgraph.convert.buffer.BufferPool;
+import org.plutext.msgraph.convert.buffer.PooledBytes;
+
+/**
+ * What to do with the body of the ?format=pdf download.  
+ * 
+ * Each backend hands the response stream to one of these, so the same
+ * upload/convert/delete sequence can produce a byte[], or copy the PDF
+ * straight to a sink without holding it on the heap.
+ * 
+ * The handler must not close the stream; the backend does that.
+ * 
+ * @author jharrop
+ *
+ */
+public interface DownloadHandler<T> {
+	
+	/**
+	 * Size of the buffer used to copy the PDF to a sink
+	 */
+	public static final int BUFFER_SIZE = 8 * 1024;
+
+	public abstract T handle(InputStream pdf) throws IOException;
+	
+	/**
+	 * Read the whole PDF into a byte[].  It is read into the shared BufferPool's
+	 * buffers first, so the only array allocated is the result.
+	 */
+	public static DownloadHandler<byte[]> toByteArray() {
+		
+		return pdf -> {
+			try (PooledBytes bytes = BufferPool.shared().read(pdf)) {
+				return bytes.toByteArray();
+			}
+		};
+	}
+	
+	/**
+	 * Read the whole PDF into buffers from the pool, without copying it 
+	 * into an array; the caller must release the result.
+	 */
+	public static DownloadHandler<PooledBytes> toPooled(BufferPool pool) {
+		return pool::read;
+	}
+	
+	/**
+	 * Copy the PDF to the sink through a fixed-size buffer; the sink is not closed.
+	 * @return the number of bytes written
+	 */
+	public static DownloadHandler<Long> to(OutputStream sink) {
+		return pdf -> IOUtils.copyLarge(pdf, sink, new byte[BUFFER_SIZE]);
+	}
+	
+}
@@ -0,0 +1,126 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection pool and dispatcher settings for the long-lived HTTP client
+ * each converter owns (in the backends which use OkHttp), and timeouts, which 
+ * also apply to the JDK connections used for upload slices and downloads. 
+ * 
+ * Defaults are OkHttp's own, except maxRequestsPerHost: since every request 
+ * goes to graph.microsoft.com, OkHttp's default of 5 would limit us to 5 
+ * concurrent conversions.  The timeouts are the Graph SDK's (30 seconds); 
+ * HttpURLConnection's own default is to wait forever.
+ * 
+ * @author jharrop
+ *
+ */
+public class HttpClientConfig {
+	
+	private int maxIdleConnections = 5;
+	private long keepAliveMillis = TimeUnit.MINUTES.toMillis(5);
+	private int maxRequests = 64;
+	private int maxRequestsPerHost = 64;
+	private int connectTimeoutMillis = 30 * 1000;
+	private int readTimeoutMillis = 30 * 1000;
+	
+	public int getMaxIdleConnections() {
+		return maxIdleConnections;
+	}
+	
+	/**
+	 * Idle connections kept in the pool
+	 */
+	public HttpClientConfig setMaxIdleConnections(int maxIdleConnections) {
+		this.maxIdleConnections = maxIdleConnections;
+		return this;
+	}
+	
+	public long getKeepAliveMillis() {
+		return keepAliveMillis;
+	}
+	
+	/**
+	 * How long an idle connection is kept in the pool
+	 */
+	public HttpClientConfig setKeepAlive(long duration, TimeUnit unit) {
+		this.keepAliveMillis = unit.toMillis(duration);
+		return this;
+	}
+	
+	public int getMaxRequests() {
+		return maxRequests;
+	}
+	
+	/**
+	 * Maximum concurrent asynchronous requests 
+	 */
+	public HttpClientConfig setMaxRequests(int maxRequests) {
+		this.maxRequests = maxRequests;
+		return this;
+	}
+	
+	public int getMaxRequestsPerHost() {
+		return maxRequestsPerHost;
+	}
+	
+	/**
+	 * Maximum concurrent asynchronous requests per host
+	 */
+	public HttpClientConfig setMaxRequestsPerHost(int maxRequestsPerHost) {
+		this.maxRequestsPerHost = maxRequestsPerHost;
+		return this;
+	}
+	
+	public int getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+	
+	/**
+	 * How long to wait for a connection to be made
+	 */
+	public HttpClientConfig setConnectTimeout(long duration, TimeUnit unit) {
+		this.connectTimeoutMillis = (int)unit.toMillis(duration);
+		return this;
+	}
+	
+	public int getReadTimeoutMillis() {
+		return readTimeoutMillis;
+	}
+	
+	/**
+	 * How long to wait for each read of a response (not the whole response)
+	 */
+	public HttpClientConfig setReadTimeout(long duration, TimeUnit unit) {
+		this.readTimeoutMillis = (int)unit.toMillis(duration);
+		return this;
+	}
+	
+	/**
+	 * Apply the timeouts to a JDK connection
+	 */
+	public void configure(HttpURLConnection conn) {
+		conn.setConnectTimeout(connectTimeoutMillis);
+		conn.setReadTimeout(readTimeoutMillis);
+	}
+	
+}
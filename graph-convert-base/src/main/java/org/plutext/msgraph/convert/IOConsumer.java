@@ -0,0 +1,37 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert;
+
+import java.io.IOException;
+
+/**
+ * A Consumer which may throw IOException; eg something which writes 
+ * a document to an OutputStream (see OpenXmlToPDF.convert(IOConsumer, String)).
+ * 
+ * (commons-io 2.7 has one of these, but we're on 2.6)
+ * 
+ * @author jharrop
+ *
+ */
+@FunctionalInterface
+public interface IOConsumer<T> {
+
+	public abstract void accept(T t) throws IOException;
+	
+}
@@ -21,6 +21,9 @@ package org.plutext.msgraph.convert;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The Microsoft Graph API supports conversion to PDF only.
@@ -31,6 +34,9 @@ import java.io.InputStream;
  * So our interface uses the file extension, rather than
  * mime type or content type.
  * 
+ * The implementations in this project are thread safe: share one converter 
+ * (and so its connections and token) between threads.
+ * 
  * @author jharrop
  *
  */
@@ -41,5 +47,67 @@ public interface OpenXmlToPDF {
 //	public abstract byte[] convert(File docx) throws ConversionException, IOException;  
 
 	public abstract byte[] convert(InputStream is, String ext) throws ConversionException, IOException;  
+
+	/**
+	 * Non-blocking variant of convert(byte[], String).  The upload, convert and delete
+	 * phases are chained, so no caller thread waits on Graph while the conversion runs.
+	 * 
+	 * The returned future completes exceptionally (typically with a ConversionException) 
+	 * if any phase fails.
+	 * 
+	 * @param bytes
+	 * @param ext
+	 * @return
+	 */
+	public abstract CompletableFuture<byte[]> convertAsync(byte[] bytes, String ext);  
+
+	/**
+	 * Copy the PDF straight from the download to the sink through a fixed-size buffer, 
+	 * rather than building a byte[].  The sink is not closed.
+	 * 
+	 * @param bytes
+	 * @param ext
+	 * @param sink
+	 * @return the number of bytes written to the sink
+	 * @throws ConversionException
+	 */
+	public abstract long convert(byte[] bytes, String ext, OutputStream sink) throws ConversionException;  
+
+	public abstract long convert(InputStream is, String ext, OutputStream sink) throws ConversionException, IOException;  
+
+	public abstract long convert(byte[] bytes, String ext, WritableByteChannel sink) throws ConversionException;  
+
+	public abstract long convert(InputStream is, String ext, WritableByteChannel sink) throws ConversionException, IOException;  
+	
+	/**
+	 * Convert a file (whose extension says what it is), writing the PDF straight to 
+	 * the output file, rather than building a byte[].  The backends resume a download 
+	 * whose connection drops part way (see ResumableDownload), rather than converting again.
+	 * 
+	 * If the conversion fails, the output file is deleted.
+	 * 
+	 * @param in eg a .docx
+	 * @param out created, or overwritten
+	 * @return the size of the PDF
+	 * @throws ConversionException
+	 * @throws IOException
+	 */
+	public abstract long convert(File in, File out) throws ConversionException, IOException;  
+	
+	/**
+	 * Convert a document as it is generated: the writer writes it to the OutputStream 
+	 * (which it need not close), while the backend reads it from a bounded pipe on 
+	 * another thread and uploads it a slice at a time, so generation and upload overlap, 
+	 * and the whole document is never held.
+	 * 
+	 * If the writer throws, the conversion is abandoned and its exception is rethrown.
+	 * 
+	 * @param writer eg docx -> wordMLPackage.save(docx)
+	 * @param ext eg ".docx"
+	 * @return the PDF
+	 * @throws ConversionException
+	 * @throws IOException
+	 */
+	public abstract byte[] convert(IOConsumer<OutputStream> writer, String ext) throws ConversionException, IOException;  
 	
 }
@@ -21,6 +21,7 @@ package org.plutext.msgraph.convert;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 public interface PptxToPdfConverter {
 	
@@ -43,5 +44,24 @@ public interface PptxToPdfConverter {
 	public abstract byte[] convert(InputStream pptx) throws ConversionException, IOException;  
 
 	public abstract byte[] convert(File pptx) throws ConversionException, IOException;  
+
+	/**
+	 * Write the PDF straight to out; see OpenXmlToPDF.convert(File, File)
+	 * @param pptx
+	 * @param out created, or overwritten
+	 * @return the size of the PDF
+	 * @throws ConversionException
+	 * @throws IOException
+	 */
+	public abstract long convert(File pptx, File out) throws ConversionException, IOException;  
+
+	/**
+	 * Non-blocking variant of convert(byte[]); assume extension ".pptx"
+	 * @param pptx
+	 * @return a future which completes with the PDF
+	 */
+	public abstract CompletableFuture<byte[]> convertAsync(byte[] pptx);  
+
+	public abstract CompletableFuture<byte[]> convertAsync(File pptx);  
 	
 }
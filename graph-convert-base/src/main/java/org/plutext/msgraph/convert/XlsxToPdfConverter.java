@@ -21,6 +21,7 @@ package org.plutext.msgraph.convert;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 public interface XlsxToPdfConverter {
 	
@@ -43,5 +44,24 @@ public interface XlsxToPdfConverter {
 	public abstract byte[] convert(InputStream xlsx) throws ConversionException, IOException;  
 
 	public abstract byte[] convert(File xlsx) throws ConversionException, IOException;  
+
+	/**
+	 * Write the PDF straight to out; see OpenXmlToPDF.convert(File, File)
+	 * @param xlsx
+	 * @param out created, or overwritten
+	 * @return the size of the PDF
+	 * @throws ConversionException
+	 * @throws IOException
+	 */
+	public abstract long convert(File xlsx, File out) throws ConversionException, IOException;  
+
+	/**
+	 * Non-blocking variant of convert(byte[]); assume extension ".xlsx"
+	 * @param xlsx
+	 * @return a future which completes with the PDF
+	 */
+	public abstract CompletableFuture<byte[]> convertAsync(byte[] xlsx);  
+
+	public abstract CompletableFuture<byte[]> convertAsync(File xlsx);  
 	
 }
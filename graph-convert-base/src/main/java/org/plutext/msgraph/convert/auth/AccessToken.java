@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.auth;
+
+/**
+ * A bearer token, and when it expires.
+ * 
+ * @author jharrop
+ *
+ */
+public class AccessToken {
+	
+	public AccessToken(String token, long expiresAt) {
+		this.token = token;
+		this.expiresAt = expiresAt;
+	}
+	
+	/**
+	 * @param token
+	 * @param expiresInSeconds as per the expires_in of the token response
+	 */
+	public static AccessToken expiringIn(String token, long expiresInSeconds) {
+		return new AccessToken(token, System.currentTimeMillis() + expiresInSeconds * 1000);
+	}
+	
+	private final String token;
+	private final long expiresAt;
+
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * @return expiry, in epoch millis
+	 */
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+	
+}
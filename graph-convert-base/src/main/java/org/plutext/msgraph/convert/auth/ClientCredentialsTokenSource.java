@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.auth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.io.IOUtils;
+import org.plutext.msgraph.convert.AuthConfig;
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.HttpClientConfig;
+
+/**
+ * Client credentials grant against the v2.0 token endpoint, using HttpURLConnection,
+ * for backends which don't bring their own OAuth library.  The token response is read
+ * by a ResponseParser, since each backend has its own JSON library.
+ * 
+ * @author jharrop
+ *
+ */
+public class ClientCredentialsTokenSource implements TokenSource {
+	
+	/**
+	 * Reads access_token and expires_in from the token endpoint's JSON response.
+	 */
+	@FunctionalInterface
+	public interface ResponseParser {
+		
+		/**
+		 * @throws IOException if the response isn't JSON, or lacks either field
+		 */
+		public AccessToken parse(String json) throws IOException;
+	}
+
+	/**
+	 * @param authConfig
+	 * @param parser
+	 * @param executor where the (blocking) token request is made; typically the converter's I/O executor
+	 */
+	public ClientCredentialsTokenSource(AuthConfig authConfig, ResponseParser parser, Executor executor) {
+		this(authConfig, parser, executor, new HttpClientConfig());
+	}
+	
+	/**
+	 * @param httpClientConfig for the token request's connect and read timeouts
+	 */
+	public ClientCredentialsTokenSource(AuthConfig authConfig, ResponseParser parser, Executor executor, 
+			HttpClientConfig httpClientConfig) {
+		this.authConfig = authConfig;
+		this.parser = parser;
+		this.executor = executor;
+		this.httpClientConfig = httpClientConfig;
+	}
+	
+	private final AuthConfig authConfig;
+	private final ResponseParser parser;
+	private final Executor executor;
+	private final HttpClientConfig httpClientConfig;
+	
+	@Override
+	public CompletableFuture<AccessToken> fetch() {
+		
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return fetchSync();
+			} catch (ConversionException | IOException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+	
+	protected AccessToken fetchSync() throws ConversionException, IOException {
+		
+		String endpoint = authConfig.loginEndpoint() + "/" + authConfig.tenant() + "/oauth2/v2.0/token";
+		String form = "grant_type=client_credentials"
+				+ "&client_id=" + URLEncoder.encode(authConfig.apiKey(), "UTF-8")
+				+ "&client_secret=" + URLEncoder.encode(authConfig.apiSecret(), "UTF-8")
+				+ "&scope=" + URLEncoder.encode("https://graph.microsoft.com/.default", "UTF-8");
+		byte[] body = form.getBytes("UTF-8");
+		
+		HttpURLConnection conn = (HttpURLConnection)new URL(endpoint).openConnection();
+		httpClientConfig.configure(conn);
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		conn.setFixedLengthStreamingMode(body.length);
+		conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+		try (OutputStream os = conn.getOutputStream()) {
+			os.write(body);
+		}
+		
+		int code = conn.getResponseCode();
+		String json;
+		try (InputStream is = code < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+			json = is == null ? "" : IOUtils.toString(is, "UTF-8");
+		}
+		if (code != 200) {
+			throw new ConversionException("Token request failed with HTTP " + code + ": " + json);
+		}
+		
+		try {
+			return parser.parse(json);
+		} catch (IOException e) {
+			// not the response itself, which would usually hold a token
+			throw new ConversionException("Unexpected token response", e);
+		}
+	}
+
+}
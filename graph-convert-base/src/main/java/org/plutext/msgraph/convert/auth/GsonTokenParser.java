@@ -0,0 +1,58 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.auth;
+
+import java.io.IOException;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Reads a token endpoint response with Gson, for the backends built on graph-core 
+ * (which brings Gson with it).  Gson is an optional dependency of this module, 
+ * so only use this from a backend which has it.
+ * 
+ * @author jharrop
+ *
+ */
+public class GsonTokenParser {
+	
+	private GsonTokenParser() {}
+
+	/**
+	 * A ClientCredentialsTokenSource.ResponseParser (as GsonTokenParser::parse)
+	 */
+	public static AccessToken parse(String json) throws IOException {
+		
+		try {
+			JsonObject response = new JsonParser().parse(json).getAsJsonObject();
+			JsonElement token = response.get("access_token");
+			JsonElement expiresIn = response.get("expires_in");
+			if (token == null || expiresIn == null) {
+				throw new IOException("No access_token or expires_in");
+			}
+			return AccessToken.expiringIn(token.getAsString(), expiresIn.getAsLong());
+		} catch (JsonParseException | IllegalStateException | UnsupportedOperationException | NumberFormatException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+}
@@ -0,0 +1,282 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.auth;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.plutext.msgraph.convert.AuthConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the access token, and refreshes it in the background shortly before it expires.
+ * 
+ * However many threads ask for a token at once, only one request is made to the 
+ * identity platform; the others wait on the same future.
+ * 
+ * Use shared(..) so that all converters for a given tenant and client id 
+ * (whichever backend they use) share a token.  A shared provider fetches on an executor
+ * of its own, since it outlives the converter which happened to create it.
+ * 
+ * @author jharrop
+ *
+ */
+public class TokenProvider {
+	
+	private static final Logger log = LoggerFactory.getLogger(TokenProvider.class);
+	
+	/**
+	 * Default time before expiry at which we refresh
+	 */
+	public static final long DEFAULT_REFRESH_SKEW_MILLIS = 5 * 60 * 1000;
+	
+	/**
+	 * Default time a fetch may take before it is given up on, so a later request can try again
+	 */
+	public static final long DEFAULT_FETCH_TIMEOUT_MILLIS = 60 * 1000;
+	
+	private static final ConcurrentMap<String, TokenProvider> SHARED = new ConcurrentHashMap<String, TokenProvider>();
+	
+	private static final AtomicInteger FETCHER_THREAD_NUMBER = new AtomicInteger();
+	
+	/**
+	 * Where shared providers' sources make their (blocking) token requests.
+	 * Tokens are fetched rarely, so idle threads soon go away.
+	 */
+	private static final ExecutorService FETCHER = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "graph-token-fetch-" + FETCHER_THREAD_NUMBER.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	});
+	
+	private static final ScheduledExecutorService REFRESHER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "graph-token-refresh");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	/**
+	 * The TokenProvider for this tenant and client id.  It is created (with a source 
+	 * from the factory) if this is the first request for it, or if the secret has 
+	 * changed, in which case it replaces the provider for the old secret.  
+	 * 
+	 * @param sourceFactory given the executor the source is to fetch on
+	 */
+	public static TokenProvider shared(AuthConfig authConfig, Function<Executor, ? extends TokenSource> sourceFactory) {
+		
+		String key = authConfig.loginEndpoint() + "/" + authConfig.tenant() + "/" + authConfig.apiKey();
+		String secret = authConfig.apiSecret();
+		return SHARED.compute(key, (k, existing) -> {
+			
+			if (existing != null) {
+				if (Objects.equals(existing.secret, secret)) {
+					return existing;
+				}
+				log.info("Secret for " + authConfig.apiKey() + " has changed; replacing its token provider");
+				// converters still using it can fetch on demand, but it no longer refreshes itself
+				existing.cancelRefresh();
+			}
+			return new TokenProvider(sourceFactory.apply(FETCHER), secret);
+		});
+	}
+	
+	public TokenProvider(TokenSource source) {
+		this(source, null);
+	}
+	
+	private TokenProvider(TokenSource source, String secret) {
+		this.source = source;
+		this.secret = secret;
+	}
+	
+	private final TokenSource source;
+	
+	/**
+	 * For a shared provider, the secret its source was created with
+	 */
+	private final String secret;
+	
+	private volatile AccessToken current;
+	
+	// guarded by this
+	private CompletableFuture<AccessToken> inFlight;
+	private ScheduledFuture<?> scheduled;
+	private boolean retired;
+	
+	private volatile long refreshSkewMillis = DEFAULT_REFRESH_SKEW_MILLIS;
+	private volatile long fetchTimeoutMillis = DEFAULT_FETCH_TIMEOUT_MILLIS;
+	
+	/**
+	 * How long before expiry to refresh the token.
+	 */
+	public void setRefreshSkew(long duration, TimeUnit unit) {
+		this.refreshSkewMillis = unit.toMillis(duration);
+	}
+	
+	/**
+	 * How long a fetch may take; after that, whoever is waiting for it gets a TimeoutException,
+	 * and the next request starts another.
+	 */
+	public void setFetchTimeout(long duration, TimeUnit unit) {
+		this.fetchTimeoutMillis = unit.toMillis(duration);
+	}
+	
+	/**
+	 * @return a valid bearer token
+	 */
+	public CompletableFuture<String> getAccessToken() {
+		
+		AccessToken token = current;
+		long now = System.currentTimeMillis();
+		if (token != null && now < token.getExpiresAt()) {
+			
+			if (now >= token.getExpiresAt() - refreshSkewMillis) {
+				// still good, but the scheduled refresh hasn't happened (or failed)
+				refresh();
+			}
+			return CompletableFuture.completedFuture(token.getToken());
+		}
+		return refresh().thenApply(AccessToken::getToken);
+	}
+	
+	/**
+	 * Discard the cached token after Graph refused it (a 401), unless it has already 
+	 * been replaced; other requests sent with the same token get 401s too, and 
+	 * shouldn't throw away the one fetched after the first.
+	 * 
+	 * @param rejectedToken the bearer token the request was sent with
+	 */
+	public synchronized void invalidate(String rejectedToken) {
+		
+		AccessToken token = current;
+		if (token != null && token.getToken().equals(rejectedToken)) {
+			current = null;
+		}
+	}
+	
+	/**
+	 * @param authorization the request's Authorization header, eg "Bearer eyJ0..."
+	 * @return the token it carries, or null if it has none
+	 */
+	public static String bearerToken(String authorization) {
+		
+		String bearer = "Bearer ";
+		return authorization != null && authorization.startsWith(bearer) ? authorization.substring(bearer.length()) : null;
+	}
+	
+	/**
+	 * Fetch a new token, unless a fetch is already in progress, in which case
+	 * its result is returned.
+	 */
+	public synchronized CompletableFuture<AccessToken> refresh() {
+		
+		if (inFlight != null) {
+			return inFlight;
+		}
+		
+		CompletableFuture<AccessToken> future = new CompletableFuture<AccessToken>();
+		inFlight = future;
+		
+		CompletableFuture<AccessToken> fetched;
+		try {
+			fetched = source.fetch();
+		} catch (RuntimeException e) {
+			fetched = new CompletableFuture<AccessToken>();
+			fetched.completeExceptionally(e);
+		}
+		ScheduledFuture<?> timeout = REFRESHER.schedule(() -> timeout(future), fetchTimeoutMillis, TimeUnit.MILLISECONDS);
+		fetched.whenComplete((token, e) -> {
+			
+			timeout.cancel(false);
+			synchronized (this) {
+				if (inFlight == future) {
+					inFlight = null;
+				}
+				if (e == null) {
+					current = token;
+					schedule(token);
+				}
+			}
+			if (e == null) {
+				log.debug("Token refreshed; expires at " + token.getExpiresAt());
+				future.complete(token);
+			} else {
+				log.error("Token refresh failed: " + e.getMessage());
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * The fetch is taking too long (eg the token endpoint accepted the connection, 
+	 * but never answered); stop waiting for it, so the next request can try again.
+	 * If it does finish, its token is still used.
+	 */
+	private void timeout(CompletableFuture<AccessToken> future) {
+		
+		synchronized (this) {
+			if (inFlight != future) {
+				return;
+			}
+			inFlight = null;
+		}
+		log.error("Token refresh timed out after " + fetchTimeoutMillis + "ms");
+		future.completeExceptionally(new TimeoutException("Token refresh timed out after " + fetchTimeoutMillis + "ms"));
+	}
+	
+	private synchronized void cancelRefresh() {
+		
+		retired = true;
+		if (scheduled != null) {
+			scheduled.cancel(false);
+		}
+	}
+	
+	// guarded by this
+	private void schedule(AccessToken token) {
+		
+		if (scheduled != null) {
+			scheduled.cancel(false);
+		}
+		if (retired) {
+			return;
+		}
+		long lifetime = token.getExpiresAt() - System.currentTimeMillis();
+		long delay = lifetime - refreshSkewMillis;
+		if (delay <= 0) {
+			// skew is longer than the token lives; don't refresh continuously
+			delay = Math.max(lifetime / 2, 1000);
+		}
+		scheduled = REFRESHER.schedule(() -> { refresh(); }, delay, TimeUnit.MILLISECONDS);
+	}
+
+}
@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.auth;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Fetches a new token from the identity platform; each backend supplies 
+ * its own (scribe, msal4j, or ClientCredentialsTokenSource). 
+ * 
+ * TokenProvider takes care of caching and refreshing.
+ * 
+ * @author jharrop
+ *
+ */
+public interface TokenSource {
+
+	public abstract CompletableFuture<AccessToken> fetch();
+	
+}
@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.auth;
+
+import org.plutext.msgraph.convert.ConversionException;
+
+/**
+ * Graph said 401 (Unauthorized): the token was refused, eg because the client 
+ * secret was rotated or the token revoked.  The backend which sees it invalidates its
+ * TokenProvider, so a retry fetches a new token.
+ * 
+ * @author jharrop
+ *
+ */
+@SuppressWarnings("serial")
+public class UnauthorizedException extends ConversionException {
+
+	public UnauthorizedException(String msg) {
+		super(msg);
+	}
+	
+	public UnauthorizedException(String msg, Throwable cause) {
+		super(msg, cause);
+	}
+	
+	/**
+	 * @return the UnauthorizedException in t's cause chain (eg under a CompletionException), or null
+	 */
+	public static UnauthorizedException in(Throwable t) {
+		
+		while (t != null) {
+			if (t instanceof UnauthorizedException) {
+				return (UnauthorizedException)t;
+			}
+			t = t.getCause();
+		}
+		return null;
+	}
+	
+}
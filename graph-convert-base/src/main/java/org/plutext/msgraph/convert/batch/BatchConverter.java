@@ -0,0 +1,269 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.batch;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.plutext.msgraph.convert.AbstractOpenXmlToPDF;
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.DownloadHandler;
+import org.plutext.msgraph.convert.OpenXmlToPDF;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts many documents, keeping up to depth of them in flight at once, so that 
+ * reading one, uploading another, waiting for Graph to convert a third and 
+ * downloading a fourth all overlap.
+ * 
+ * Results are delivered in the order the conversions complete, 
+ * not the order of the input.
+ * 
+ * The converters in this project are thread safe, so a single one (or a 
+ * ShardedConverter) can be shared by the whole batch.
+ * 
+ * @author jharrop
+ *
+ */
+public class BatchConverter {
+	
+	private static final Logger log = LoggerFactory.getLogger(BatchConverter.class);
+	
+	private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+	
+	public static final int DEFAULT_DEPTH = 16;
+	
+	public BatchConverter(OpenXmlToPDF converter) {
+		this(converter, DEFAULT_DEPTH);
+	}
+
+	/**
+	 * @param converter
+	 * @param depth how many documents to have in flight at once
+	 */
+	public BatchConverter(OpenXmlToPDF converter, int depth) {
+		
+		if (depth <= 0) {
+			throw new IllegalArgumentException("Depth must be positive, not " + depth);
+		}
+		this.converter = converter;
+		this.depth = depth;
+	}
+	
+	private final OpenXmlToPDF converter;
+	private final int depth;
+	
+	/**
+	 * Convert each input (whose extension, eg .docx, says what it is), 
+	 * blocking until all are done.
+	 * 
+	 * @param inputs read lazily, so can be a large directory listing
+	 * @param callback called with each result as it completes; one at a time, 
+	 * so it needn't be thread safe
+	 * @return the number of conversions which failed
+	 * @throws InterruptedException
+	 */
+	public int convertAll(Iterable<Path> inputs, Consumer<BatchResult> callback) throws InterruptedException {
+		return convertAll(inputs, null, callback);
+	}
+	
+	/**
+	 * As above, but each PDF is written straight to its output file, with the converter's 
+	 * convert(File, File), so neither the document nor the PDF is held in memory.
+	 * 
+	 * @param outputs where to write each input's PDF; its directory is created if need be
+	 */
+	public int convertAll(Iterable<Path> inputs, Function<Path, Path> outputs, Consumer<BatchResult> callback) 
+			throws InterruptedException {
+		
+		ExecutorService workers = newWorkers();
+		Semaphore window = new Semaphore(depth);
+		Semaphore done = new Semaphore(0);
+		AtomicInteger failures = new AtomicInteger();
+		Object callbackLock = new Object();
+		int submitted = 0;
+		
+		try {
+			for (Path input : inputs) {
+				
+				window.acquire();
+				submitted++;
+				convert(input, outputs == null ? null : outputs.apply(input), workers).thenAccept(result -> {
+					
+					try {
+						if (!result.isSuccess()) {
+							failures.incrementAndGet();
+						}
+						synchronized (callbackLock) {
+							callback.accept(result);
+						}
+					} catch (RuntimeException re) {
+						log.error("Batch callback failed for " + input, re);
+					} finally {
+						window.release();
+						done.release();
+					}
+				});
+			}
+			done.acquire(submitted);
+			
+		} finally {
+			workers.shutdown();
+		}
+		log.debug("Converted " + (submitted - failures.get()) + " of " + submitted);
+		return failures.get();
+	}
+	
+	/**
+	 * As convertAll, but the results are returned through an iterator (in completion order), 
+	 * with the batch running in the background.  A conversion is only started once there 
+	 * is room for its result, so at most depth are in flight or waiting to be taken; 
+	 * conversions never wait on the iterator.  
+	 * 
+	 * Close the iterator if you stop before the end, so the batch stops too.
+	 */
+	public BatchResults results(Iterable<Path> inputs) {
+		
+		ExecutorService workers = newWorkers();
+		Semaphore window = new Semaphore(depth);
+		BatchResults results = new BatchResults(window);
+		
+		Thread driver = new Thread(() -> {
+			
+			Semaphore done = new Semaphore(0);
+			int submitted = 0;
+			try {
+				for (Path input : inputs) {
+					
+					window.acquire();
+					if (results.isClosed()) {
+						break;
+					}
+					submitted++;
+					convert(input, null, workers).thenAccept(result -> {
+						results.add(result);
+						done.release();
+					});
+				}
+				done.acquire(submitted);
+				
+			} catch (InterruptedException e) {
+				// closed
+			} catch (RuntimeException e) {
+				log.error("Batch stopped: " + e.getMessage(), e);
+			} finally {
+				workers.shutdown();
+				results.end();
+			}
+		}, "graph-batch-driver");
+		driver.setDaemon(true);
+		results.setDriver(driver);
+		driver.start();
+		
+		return results;
+	}
+	
+	private ExecutorService newWorkers() {
+		
+		// Starting a conversion can block (eg reading a small file for a single PUT, or with 
+		// a synchronous http client, the whole conversion); one thread per slot means 
+		// the pipeline stays full either way.  
+		String prefix = "graph-batch-" + POOL_NUMBER.incrementAndGet() + "-";
+		AtomicInteger threadNumber = new AtomicInteger();
+		return Executors.newFixedThreadPool(depth, r -> {
+			Thread t = new Thread(r, prefix + threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+	
+	/**
+	 * @param output or null to convert into memory
+	 * @return the outcome, whether or not the conversion worked
+	 */
+	private CompletableFuture<BatchResult> convert(Path input, Path output, Executor workers) {
+		
+		long start = System.nanoTime();
+		CompletableFuture<byte[]> conversion = output == null 
+				? CompletableFuture.supplyAsync(() -> start(input), workers).thenCompose(pdf -> pdf)
+				: CompletableFuture.supplyAsync(() -> convertFile(input, output), workers);
+		return conversion.handle((pdf, e) -> {
+			Throwable failure = AbstractOpenXmlToPDF.unwrap(e);
+			if (failure != null) {
+				log.debug(input + " failed: " + failure.getMessage());
+			}
+			return new BatchResult(input, output, pdf, failure, System.nanoTime() - start);
+		});
+	}
+	
+	/**
+	 * Disk to disk, on a worker thread
+	 * 
+	 * @return null, since the PDF is in the output file
+	 */
+	private byte[] convertFile(Path input, Path output) {
+		
+		try {
+			if (output.getParent() != null) {
+				Files.createDirectories(output.getParent());
+			}
+			converter.convert(input.toFile(), output.toFile());
+			return null;
+		} catch (ConversionException | IOException e) {
+			throw new CompletionException(e);
+		}
+	}
+	
+	/**
+	 * Our converters stream the file up; others get it as a byte[].
+	 */
+	private CompletableFuture<byte[]> start(Path input) {
+		
+		if (converter instanceof AbstractOpenXmlToPDF) {
+			return ((AbstractOpenXmlToPDF)converter).convertAsync(input.toFile(), DownloadHandler.toByteArray());
+		}
+		String ext;
+		try {
+			ext = AbstractOpenXmlToPDF.extension(input.toFile());
+		} catch (ConversionException e) {
+			throw new CompletionException(e);
+		}
+		return converter.convertAsync(read(input), ext);
+	}
+	
+	private static byte[] read(Path input) {
+		try {
+			return Files.readAllBytes(input);
+		} catch (IOException e) {
+			throw new CompletionException(e);
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.batch;
+
+import java.nio.file.Path;
+
+/**
+ * The outcome of converting one document in a batch.
+ * 
+ * @author jharrop
+ *
+ */
+public class BatchResult {
+	
+	BatchResult(Path input, Path output, byte[] pdf, Throwable failure, long elapsedNanos) {
+		this.input = input;
+		this.output = output;
+		this.pdf = pdf;
+		this.failure = failure;
+		this.elapsedNanos = elapsedNanos;
+	}
+	
+	private final Path input;
+	private final Path output;
+	private final byte[] pdf;
+	private final Throwable failure;
+	private final long elapsedNanos;
+	
+	public Path getInput() {
+		return input;
+	}
+	
+	/**
+	 * @return where the PDF was written, or null if it was converted into memory
+	 */
+	public Path getOutput() {
+		return output;
+	}
+	
+	/**
+	 * @return the PDF, or null if the conversion failed (or the PDF was written to the output file)
+	 */
+	public byte[] getPdf() {
+		return pdf;
+	}
+	
+	/**
+	 * @return why the conversion failed, or null if it succeeded
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+	
+	/**
+	 * @return how long this document took, from reading it to having its PDF 
+	 * (not counting time spent waiting for a slot in the batch)
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+	
+	public boolean isSuccess() {
+		return failure == null;
+	}
+	
+	@Override
+	public String toString() {
+		if (failure != null) {
+			return input + " failed: " + failure.getMessage();
+		}
+		return input + " -> " + (output == null ? pdf.length + " bytes" : output.toString());
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.batch;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The results of BatchConverter.results(), in the order the conversions complete.
+ * 
+ * Taking a result makes room for the batch to start another conversion.  
+ * Close this if you stop before the end: the batch starts no more conversions 
+ * (those in flight finish, but their results are dropped).
+ * 
+ * @author jharrop
+ *
+ */
+public class BatchResults implements Iterator<BatchResult>, AutoCloseable {
+	
+	private static final Object END = new Object();
+	
+	BatchResults(Semaphore window) {
+		this.window = window;
+	}
+	
+	private final Semaphore window;
+	
+	// never full: the window bounds how many results there can be
+	private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+	
+	private volatile Thread driver;
+	private volatile boolean closed;
+	
+	private Object next;
+	
+	void setDriver(Thread driver) {
+		this.driver = driver;
+	}
+	
+	void add(BatchResult result) {
+		queue.add(result);
+	}
+	
+	/**
+	 * No more results are coming
+	 */
+	void end() {
+		queue.add(END);
+	}
+	
+	boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public boolean hasNext() {
+		
+		if (closed) {
+			return false;
+		}
+		if (next == null) {
+			try {
+				next = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return next != END;
+	}
+
+	@Override
+	public BatchResult next() {
+		
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		BatchResult result = (BatchResult)next;
+		next = null;
+		window.release();
+		return result;
+	}
+
+	/**
+	 * Stop the batch.
+	 */
+	@Override
+	public void close() {
+		
+		closed = true;
+		Thread d = driver;
+		if (d != null) {
+			d.interrupt();
+		}
+	}
+
+}
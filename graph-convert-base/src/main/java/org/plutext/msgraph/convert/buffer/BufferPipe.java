@@ -0,0 +1,397 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.buffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.IOConsumer;
+
+/**
+ * A bounded pipe from one thread writing a document to another reading it, 
+ * eg to upload it a slice at a time as it is generated.
+ * 
+ * The writer fills buffers from a BufferPool, handing each over as it fills; 
+ * once depth full buffers are waiting, the writer blocks until the reader 
+ * catches up.  The reader returns each buffer to the pool once it has read it.
+ * So at most about depth buffers of the document are ever held.
+ * 
+ * Unlike PipedInputStream, either side may close (or fail) first without
+ * leaving the other blocked.
+ * 
+ * @author jharrop
+ *
+ */
+public class BufferPipe {
+
+	/**
+	 * Full buffers the writer may get ahead of the reader by
+	 */
+	public static final int DEFAULT_DEPTH = 16;
+	
+	/**
+	 * Handed over when the writer closes (or fails)
+	 */
+	private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+	
+	private final BufferPool pool;
+	private final BlockingQueue<ByteBuffer> full;
+	
+	private volatile boolean readerClosed;
+	private volatile Throwable writerFailure;
+	
+	private final Sink sink = new Sink();
+	private final Source source = new Source();
+	
+	public BufferPipe(BufferPool pool, int depth) {
+		
+		this.pool = pool;
+		// room for EOF as well
+		this.full = new ArrayBlockingQueue<ByteBuffer>(depth + 1);
+	}
+	
+	/**
+	 * For the writer.  Close it once the document is complete.  
+	 * Writes fail once the reader has closed.
+	 */
+	public OutputStream sink() {
+		return sink;
+	}
+	
+	/**
+	 * For the reader.  It reaches EOF once the writer closes; if the writer fails, 
+	 * it throws an IOException instead.
+	 */
+	public InputStream source() {
+		return source;
+	}
+	
+	/**
+	 * Tell the reader the document won't be completed 
+	 */
+	public void fail(Throwable t) {
+		
+		writerFailure = t;
+		sink.discard();
+		try {
+			hand(EOF);
+		} catch (IOException e) {
+			// the reader has gone anyway
+		}
+	}
+	
+	private void hand(ByteBuffer buffer) throws IOException {
+		
+		if (readerClosed) {
+			pool.release(buffer);
+			throw new IOException("Pipe closed by reader");
+		}
+		try {
+			full.put(buffer);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			pool.release(buffer);
+			throw new InterruptedIOException("Interrupted writing to pipe");
+		}
+	}
+	
+	private class Sink extends OutputStream {
+		
+		private ByteBuffer current;
+		private boolean closed;
+		
+		@Override
+		public void write(int b) throws IOException {
+			
+			checkOpen();
+			if (current == null) {
+				current = pool.acquire();
+			}
+			current.put((byte)b);
+			if (!current.hasRemaining()) {
+				handCurrent();
+			}
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			
+			checkOpen();
+			while (len > 0) {
+				if (current == null) {
+					current = pool.acquire();
+				}
+				int n = Math.min(len, current.remaining());
+				current.put(b, off, n);
+				off += n;
+				len -= n;
+				if (!current.hasRemaining()) {
+					handCurrent();
+				}
+			}
+		}
+		
+		/**
+		 * Buffers are handed over as they fill, not on flush, so the reader 
+		 * always gets full ones.
+		 */
+		@Override
+		public void flush() throws IOException {
+			checkOpen();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			
+			if (closed) {
+				return;
+			}
+			if (current != null && current.position() > 0) {
+				handCurrent();
+			}
+			discard();
+			hand(EOF);
+		}
+		
+		private void handCurrent() throws IOException {
+			
+			ByteBuffer buffer = current;
+			current = null;
+			buffer.flip();
+			hand(buffer);
+		}
+		
+		void discard() {
+			
+			closed = true;
+			if (current != null) {
+				pool.release(current);
+				current = null;
+			}
+		}
+		
+		private void checkOpen() throws IOException {
+			
+			if (closed) {
+				throw new IOException("Pipe closed");
+			}
+			if (readerClosed) {
+				throw new IOException("Pipe closed by reader");
+			}
+		}
+	}
+	
+	private class Source extends InputStream {
+		
+		private ByteBuffer current;
+		private boolean eof;
+		
+		/**
+		 * @return a buffer with something left to read, or null at EOF
+		 */
+		private ByteBuffer next() throws IOException {
+			
+			if (current != null) {
+				if (current.hasRemaining()) {
+					return current;
+				}
+				pool.release(current);
+				current = null;
+			}
+			if (eof) {
+				return null;
+			}
+			if (readerClosed) {
+				throw new IOException("Pipe closed");
+			}
+			ByteBuffer buffer;
+			try {
+				buffer = full.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted reading from pipe");
+			}
+			if (buffer == EOF) {
+				eof = true;
+				Throwable failure = writerFailure;
+				if (failure != null) {
+					throw new IOException("Writing the document failed: " + failure.getMessage(), failure);
+				}
+				return null;
+			}
+			current = buffer;
+			return buffer;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			
+			ByteBuffer buffer = next();
+			return buffer == null ? -1 : buffer.get() & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			
+			if (len == 0) {
+				return 0;
+			}
+			ByteBuffer buffer = next();
+			if (buffer == null) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+		
+		@Override
+		public int available() {
+			
+			ByteBuffer buffer = current;
+			return buffer == null ? 0 : buffer.remaining();
+		}
+		
+		/**
+		 * Also releases anything the writer has handed over but which hasn't been read
+		 */
+		@Override
+		public void close() {
+			
+			readerClosed = true;
+			if (current != null) {
+				pool.release(current);
+				current = null;
+			}
+			ByteBuffer buffer;
+			while ((buffer = full.poll()) != null) {
+				if (buffer != EOF) {
+					pool.release(buffer);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * What reads the pipe; typically a conversion of a stream
+	 */
+	@FunctionalInterface
+	public interface Reader<T> {
+		
+		public abstract T read(InputStream is) throws ConversionException, IOException;
+	}
+	
+	private static final AtomicInteger readers = new AtomicInteger();
+	
+	/**
+	 * The reader blocks on the pipe, so it gets a thread of its own 
+	 * (rather than one from the common pool)
+	 */
+	private static final ExecutorService READERS = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "buffer-pipe-reader-" + readers.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	});
+	
+	/**
+	 * Run writer on this thread, while reader reads what it writes on another,
+	 * through a pipe of DEFAULT_DEPTH buffers from the pool.
+	 * 
+	 * If the writer fails, so does the reader, and the writer's exception is thrown. 
+	 * If the reader fails (so the writer's next write does too), the reader's exception is thrown. 
+	 * 
+	 * @return what the reader returns
+	 */
+	public static <T> T feed(IOConsumer<OutputStream> writer, BufferPool pool, Reader<T> reader) 
+			throws ConversionException, IOException {
+		
+		BufferPipe pipe = new BufferPipe(pool, DEFAULT_DEPTH);
+		CompletableFuture<T> reading = CompletableFuture.supplyAsync(() -> {
+			
+			try (InputStream is = pipe.source()) {
+				return reader.read(is);
+			} catch (ConversionException | IOException e) {
+				throw new CompletionException(e);
+			}
+		}, READERS);
+		
+		try {
+			writer.accept(pipe.sink());
+			pipe.sink().close();
+		} catch (IOException | RuntimeException | Error e) {
+			
+			pipe.fail(e);
+			try {
+				join(reading);
+			} catch (ConversionException | IOException readerFailure) {
+				if (!causedBy(readerFailure, e)) {
+					// the reader failed first
+					throw readerFailure;
+				}
+			}
+			throw e;
+		}
+		return join(reading);
+	}
+	
+	private static boolean causedBy(Throwable t, Throwable cause) {
+		
+		for (; t != null; t = t.getCause()) {
+			if (t == cause) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static <T> T join(CompletableFuture<T> reading) throws ConversionException, IOException {
+		
+		try {
+			return reading.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConversionException("Interrupted waiting for conversion", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			while (cause instanceof CompletionException && cause.getCause() != null) {
+				cause = cause.getCause();
+			}
+			if (cause instanceof ConversionException) {
+				throw (ConversionException)cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}
+			throw new ConversionException(cause.getMessage(), cause);
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.buffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of fixed-size buffers, for reading request and response bodies.
+ *
+ * A body is read into a list of these (see read), rather than into a
+ * growing ByteArrayOutputStream, whose arrays are garbage as soon as the body
+ * has been copied out of them; once released, the buffers are reused by the
+ * next body, so a busy converter doesn't churn through short-lived arrays.
+ *
+ * At most maxPooled buffers are kept; beyond that, acquire allocates
+ * a new one, and release leaves it to the garbage collector.  So the pool
+ * never holds more than bufferSize * maxPooled bytes.
+ *
+ * @author jharrop
+ *
+ */
+public class BufferPool {
+
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * 16MB of 64KB buffers
+	 */
+	public static final int DEFAULT_MAX_POOLED = 256;
+
+	private static final BufferPool SHARED = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED, false);
+
+	/**
+	 * The pool converters use unless you set another.
+	 */
+	public static BufferPool shared() {
+		return SHARED;
+	}
+
+	private final int bufferSize;
+	private final boolean direct;
+	private final BlockingQueue<ByteBuffer> free;
+
+	private final AtomicLong allocated = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+
+	/**
+	 * @param bufferSize
+	 * @param maxPooled the most buffers kept for reuse
+	 * @param direct whether to allocate direct buffers (off heap, which suits
+	 * writing to a channel; reading from a stream copies through a small array)
+	 */
+	public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+
+		if (bufferSize <= 0 || maxPooled <= 0) {
+			throw new IllegalArgumentException("bufferSize and maxPooled must be positive");
+		}
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+		this.free = new ArrayBlockingQueue<ByteBuffer>(maxPooled);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * @return a cleared buffer, pooled if there is one
+	 */
+	public ByteBuffer acquire() {
+
+		ByteBuffer buffer = free.poll();
+		if (buffer == null) {
+			allocated.incrementAndGet();
+			return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		}
+		reused.incrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer to the pool; it must not be used after this.
+	 * A buffer which didn't come from this pool (or one too many) is dropped.
+	 */
+	public void release(ByteBuffer buffer) {
+
+		if (buffer.capacity() == bufferSize && buffer.isDirect() == direct) {
+			free.offer(buffer);
+		}
+	}
+
+	/**
+	 * Read the stream to EOF into pooled buffers; the stream is not closed.
+	 *
+	 * @return the bytes read, which the caller must release
+	 */
+	public PooledBytes read(InputStream is) throws IOException {
+
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		ReadableByteChannel channel = direct ? Channels.newChannel(is) : null;
+		long size = 0;
+		try {
+			while (true) {
+				ByteBuffer buffer = acquire();
+				buffers.add(buffer);
+				int n = direct ? fill(channel, buffer) : fill(is, buffer);
+				size += n;
+				buffer.flip();
+				if (n < bufferSize) {
+					// EOF before the buffer was full
+					break;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			buffers.forEach(this::release);
+			throw e;
+		}
+		// an empty last buffer is no use to the result
+		ByteBuffer last = buffers.get(buffers.size() - 1);
+		if (last.limit() == 0) {
+			buffers.remove(buffers.size() - 1);
+			release(last);
+		}
+		return new PooledBytes(this, buffers, size);
+	}
+
+	/**
+	 * Read straight into the buffer's array
+	 */
+	private static int fill(InputStream is, ByteBuffer buffer) throws IOException {
+
+		int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			int n = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			if (n < 0) {
+				break;
+			}
+			buffer.position(buffer.position() + n);
+		}
+		return buffer.position() - start;
+	}
+
+	private static int fill(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+
+		int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				break;
+			}
+		}
+		return buffer.position() - start;
+	}
+
+	/**
+	 * @return buffers currently in the pool
+	 */
+	public int getPooledCount() {
+		return free.size();
+	}
+
+	/**
+	 * @return buffers allocated since the pool was created (ie not satisfied from the pool)
+	 */
+	public long getAllocatedCount() {
+		return allocated.get();
+	}
+
+	/**
+	 * @return acquisitions satisfied from the pool
+	 */
+	public long getReusedCount() {
+		return reused.get();
+	}
+
+	@Override
+	public String toString() {
+		return "BufferPool " + bufferSize + (direct ? " direct" : "") + ": " + free.size() + " pooled, "
+				+ allocated.get() + " allocated, " + reused.get() + " reused";
+	}
+
+}
@@ -0,0 +1,206 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.buffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A body (eg a PDF) held in buffers borrowed from a BufferPool.
+ *
+ * Use it, via the buffer views, a stream, or by writing it somewhere,
+ * then release it (or close it, eg with try-with-resources) so the buffers
+ * go back to the pool.  Nothing may be used after that.
+ *
+ * Views and streams don't share position, so the bytes can be read
+ * more than once (eg if a request body is resent).
+ *
+ * @author jharrop
+ *
+ */
+public class PooledBytes implements Closeable {
+
+	private final BufferPool pool;
+	private final List<ByteBuffer> buffers;
+	private final long size;
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	/**
+	 * @param buffers ready to read (ie flipped)
+	 */
+	PooledBytes(BufferPool pool, List<ByteBuffer> buffers, long size) {
+		this.pool = pool;
+		this.buffers = buffers;
+		this.size = size;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return read-only views of the buffers, in order, each positioned at its start;
+	 * valid until release
+	 */
+	public ByteBuffer[] buffers() {
+
+		checkNotReleased();
+		ByteBuffer[] views = new ByteBuffer[buffers.size()];
+		for (int i = 0; i < views.length; i++) {
+			views[i] = buffers.get(i).asReadOnlyBuffer();
+		}
+		return views;
+	}
+
+	/**
+	 * @return the bytes in a new array, copied once
+	 * @throws IllegalStateException if there are more than fit in an array
+	 */
+	public byte[] toByteArray() {
+
+		checkNotReleased();
+		if (size > Integer.MAX_VALUE - 8) {
+			throw new IllegalStateException(size + " bytes is too big for an array");
+		}
+		byte[] bytes = new byte[(int)size];
+		int offset = 0;
+		for (ByteBuffer buffer : buffers) {
+			ByteBuffer view = buffer.duplicate();
+			int n = view.remaining();
+			view.get(bytes, offset, n);
+			offset += n;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Write the bytes to the channel, which is not closed.
+	 * @return the number of bytes written
+	 */
+	public long writeTo(WritableByteChannel channel) throws IOException {
+
+		checkNotReleased();
+		for (ByteBuffer buffer : buffers) {
+			ByteBuffer view = buffer.duplicate();
+			while (view.hasRemaining()) {
+				channel.write(view);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Write the bytes to the stream, which is not closed.
+	 * @return the number of bytes written
+	 */
+	public long writeTo(OutputStream os) throws IOException {
+
+		checkNotReleased();
+		if (pool.isDirect()) {
+			return writeTo(Channels.newChannel(os));
+		}
+		for (ByteBuffer buffer : buffers) {
+			os.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
+		}
+		return size;
+	}
+
+	/**
+	 * @return a stream over the bytes; valid until release
+	 */
+	public InputStream newInputStream() {
+
+		checkNotReleased();
+		ByteBuffer[] views = buffers();
+		return new InputStream() {
+
+			private int current;
+
+			private ByteBuffer next() {
+				while (current < views.length && !views[current].hasRemaining()) {
+					current++;
+				}
+				return current < views.length ? views[current] : null;
+			}
+
+			@Override
+			public int read() {
+				ByteBuffer view = next();
+				return view == null ? -1 : view.get() & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (len == 0) {
+					return 0;
+				}
+				ByteBuffer view = next();
+				if (view == null) {
+					return -1;
+				}
+				int n = Math.min(len, view.remaining());
+				view.get(b, off, n);
+				return n;
+			}
+
+			@Override
+			public int available() {
+				ByteBuffer view = next();
+				return view == null ? 0 : view.remaining();
+			}
+		};
+	}
+
+	/**
+	 * Return the buffers to the pool.  Safe to call more than once.
+	 */
+	public void release() {
+
+		if (released.compareAndSet(false, true)) {
+			buffers.forEach(pool::release);
+		}
+	}
+
+	/**
+	 * Same as release
+	 */
+	@Override
+	public void close() {
+		release();
+	}
+
+	public boolean isReleased() {
+		return released.get();
+	}
+
+	private void checkNotReleased() {
+
+		if (released.get()) {
+			throw new IllegalStateException("Buffers have been released");
+		}
+	}
+
+}
@@ -0,0 +1,248 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.commons.io.IOUtils;
+import org.plutext.msgraph.convert.AbstractOpenXmlToPDF;
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.IOConsumer;
+import org.plutext.msgraph.convert.OpenXmlToPDF;
+
+/**
+ * Wraps any OpenXmlToPDF, so that converting byte-identical input 
+ * (with the same extension) again is answered from a PdfCache, 
+ * without going to Graph.
+ * 
+ * InputStream input is read fully, since we need its hash before deciding
+ * whether to convert.
+ * 
+ * @author jharrop
+ *
+ */
+public class CachingConverter implements OpenXmlToPDF {
+	
+	/**
+	 * @param delegate
+	 * @param maxBytes total size of PDFs to cache
+	 * @param offHeap whether to hold cached PDFs in direct buffers
+	 */
+	public CachingConverter(OpenXmlToPDF delegate, long maxBytes, boolean offHeap) {
+		this(delegate, new PdfCache(maxBytes, offHeap));
+	}
+	
+	/**
+	 * @param delegate
+	 * @param maxBytes total size of PDFs to cache
+	 * @param maxEntryBytes size of the biggest PDF to cache; bigger ones are streamed but not kept
+	 * @param offHeap whether to hold cached PDFs in direct buffers
+	 */
+	public CachingConverter(OpenXmlToPDF delegate, long maxBytes, long maxEntryBytes, boolean offHeap) {
+		this(delegate, new PdfCache(maxBytes, maxEntryBytes, offHeap));
+	}
+	
+	public CachingConverter(OpenXmlToPDF delegate, PdfCache cache) {
+		this.delegate = delegate;
+		this.cache = cache;
+	}
+	
+	private final OpenXmlToPDF delegate;
+	private final PdfCache cache;
+	
+	public PdfCache getCache() {
+		return cache;
+	}
+
+	@Override
+	public byte[] convert(byte[] bytes, String ext) throws ConversionException {
+		
+		ContentKey key = ContentKey.of(bytes, ext);
+		byte[] pdf = cache.getBytes(key);
+		if (pdf == null) {
+			pdf = delegate.convert(bytes, ext);
+			cache.put(key, pdf);
+		}
+		return pdf;
+	}
+
+	@Override
+	public byte[] convert(InputStream is, String ext) throws ConversionException, IOException {
+		return convert(IOUtils.toByteArray(is), ext);
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] bytes, String ext) {
+		
+		ContentKey key = ContentKey.of(bytes, ext);
+		byte[] pdf = cache.getBytes(key);
+		if (pdf != null) {
+			return CompletableFuture.completedFuture(pdf);
+		}
+		return delegate.convertAsync(bytes, ext).thenApply(converted -> {
+			cache.put(key, converted);
+			return converted;
+		});
+	}
+
+	@Override
+	public long convert(byte[] bytes, String ext, OutputStream sink) throws ConversionException {
+		
+		ContentKey key = ContentKey.of(bytes, ext);
+		try {
+			long written = cache.writeTo(key, sink);
+			if (written >= 0) {
+				return written;
+			}
+		} catch (IOException e) {
+			throw new ConversionException(e.getMessage(), e);
+		}
+		
+		// Stream to the sink as usual, keeping a copy to cache (unless it is too big to cache anyway)
+		CapturingOutputStream tee = new CapturingOutputStream(sink, cache.maxEntryBytes());
+		long written = delegate.convert(bytes, ext, tee);
+		tee.putInto(cache, key);
+		return written;
+	}
+
+	@Override
+	public long convert(InputStream is, String ext, OutputStream sink) throws ConversionException, IOException {
+		return convert(IOUtils.toByteArray(is), ext, sink);
+	}
+
+	@Override
+	public long convert(byte[] bytes, String ext, WritableByteChannel sink) throws ConversionException {
+		return convert(bytes, ext, Channels.newOutputStream(sink));
+	}
+
+	@Override
+	public long convert(InputStream is, String ext, WritableByteChannel sink) throws ConversionException, IOException {
+		return convert(is, ext, Channels.newOutputStream(sink));
+	}
+	
+	/**
+	 * The file is hashed from disk.  On a miss, the delegate writes the PDF to out, 
+	 * and it is read back to cache it (unless it is bigger than the cache's maxEntryBytes).
+	 */
+	@Override
+	public long convert(File in, File out) throws ConversionException, IOException {
+		
+		ContentKey key = ContentKey.of(in, AbstractOpenXmlToPDF.extension(in));
+		ByteBuffer pdf = cache.get(key);
+		if (pdf != null) {
+			try (FileChannel channel = FileChannel.open(out.toPath(), StandardOpenOption.CREATE, 
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				long written = pdf.remaining();
+				while (pdf.hasRemaining()) {
+					channel.write(pdf);
+				}
+				return written;
+			}
+		}
+		
+		long written = delegate.convert(in, out);
+		if (written <= cache.maxEntryBytes()) {
+			cache.put(key, Files.readAllBytes(out.toPath()));
+		}
+		return written;
+	}
+	
+	/**
+	 * The document has to be complete before it can be looked up, so it is 
+	 * generated into memory first.
+	 */
+	@Override
+	public byte[] convert(IOConsumer<OutputStream> writer, String ext) throws ConversionException, IOException {
+		
+		ByteArrayOutputStream doc = new ByteArrayOutputStream();
+		writer.accept(doc);
+		return convert(doc.toByteArray(), ext);
+	}
+	
+	/**
+	 * Passes writes through to the sink, and keeps a copy of up to limit bytes
+	 * (the cache's maxEntryBytes); beyond that, the copy is dropped.
+	 */
+	private static class CapturingOutputStream extends OutputStream {
+		
+		CapturingOutputStream(OutputStream sink, long limit) {
+			this.sink = sink;
+			this.limit = limit;
+		}
+		
+		private final OutputStream sink;
+		private final long limit;
+		private Copy copy = new Copy();
+		
+		/**
+		 * Hands its array straight to the cache, rather than copying it first
+		 */
+		private static class Copy extends ByteArrayOutputStream {
+			
+			void putInto(PdfCache cache, ContentKey key) {
+				cache.put(key, buf, 0, count);
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			sink.write(b);
+			if (room(1)) copy.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			sink.write(b, off, len);
+			if (room(len)) copy.write(b, off, len);
+		}
+		
+		private boolean room(int len) {
+			if (copy != null && copy.size() + len > limit) {
+				// too big to cache; stop copying
+				copy = null;
+			}
+			return copy != null;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			sink.flush();
+		}
+		
+		// not closed; the sink belongs to our caller
+		
+		void putInto(PdfCache cache, ContentKey key) {
+			if (copy != null) {
+				copy.putInto(cache, key);
+			}
+		}
+	}
+
+}
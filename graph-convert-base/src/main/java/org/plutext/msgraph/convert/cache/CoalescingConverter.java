@@ -0,0 +1,207 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.plutext.msgraph.convert.AbstractOpenXmlToPDF;
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.IOConsumer;
+import org.plutext.msgraph.convert.OpenXmlToPDF;
+
+/**
+ * Wraps any OpenXmlToPDF, so that concurrent requests to convert 
+ * byte-identical input (with the same extension) share a single
+ * conversion, rather than each uploading its own copy.
+ * 
+ * Only in-flight conversions are shared; combine with CachingConverter 
+ * to keep results.  Since a result may be shared, the OutputStream variants
+ * buffer the PDF rather than streaming it.
+ * 
+ * @author jharrop
+ *
+ */
+public class CoalescingConverter implements OpenXmlToPDF {
+	
+	public CoalescingConverter(OpenXmlToPDF delegate) {
+		this.delegate = delegate;
+	}
+	
+	private final OpenXmlToPDF delegate;
+	
+	private final ConcurrentMap<ContentKey, Flight> inFlight = new ConcurrentHashMap<ContentKey, Flight>();
+	
+	private final AtomicLong coalesced = new AtomicLong();
+	
+	/**
+	 * @return how many requests were answered by joining a conversion already in flight
+	 */
+	public long coalesced() {
+		return coalesced.get();
+	}
+	
+	/**
+	 * A conversion in progress.  The caller which started it gets the PDF itself; 
+	 * each caller which joined it gets its own copy, taken before the originator 
+	 * is handed the PDF (and so before it could change it).
+	 */
+	private static final class Flight {
+		
+		private final CompletableFuture<byte[]> origin = new CompletableFuture<byte[]>();
+		
+		private final List<CompletableFuture<byte[]>> joiners = new ArrayList<CompletableFuture<byte[]>>(); // guarded by this
+		
+		private boolean landed; // guarded by this
+		
+		/**
+		 * @return null if the conversion has already finished, so can't be joined
+		 */
+		synchronized CompletableFuture<byte[]> join() {
+			
+			if (landed) {
+				return null;
+			}
+			CompletableFuture<byte[]> joiner = new CompletableFuture<byte[]>();
+			joiners.add(joiner);
+			return joiner;
+		}
+		
+		void land(byte[] pdf, Throwable e) {
+			
+			synchronized (this) {
+				landed = true;
+			}
+			for (CompletableFuture<byte[]> joiner : joiners) {
+				if (e == null) {
+					joiner.complete(pdf.clone());
+				} else {
+					joiner.completeExceptionally(e);
+				}
+			}
+			if (e == null) {
+				origin.complete(pdf);
+			} else {
+				origin.completeExceptionally(e);
+			}
+		}
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] bytes, String ext) {
+		
+		ContentKey key = ContentKey.of(bytes, ext);
+		
+		Flight mine = new Flight();
+		Flight existing;
+		while ((existing = inFlight.putIfAbsent(key, mine)) != null) {
+			CompletableFuture<byte[]> joined = existing.join();
+			if (joined != null) {
+				coalesced.incrementAndGet();
+				return joined;
+			}
+			// it finished as we got to it; it'll be gone from inFlight now
+		}
+		
+		CompletableFuture<byte[]> converted;
+		try {
+			converted = delegate.convertAsync(bytes, ext);
+		} catch (RuntimeException e) {
+			converted = new CompletableFuture<byte[]>();
+			converted.completeExceptionally(e);
+		}
+		converted.whenComplete((pdf, e) -> {
+			// later requests start a new conversion
+			inFlight.remove(key, mine);
+			mine.land(pdf, e);
+		});
+		return mine.origin;
+	}
+
+	@Override
+	public byte[] convert(byte[] bytes, String ext) throws ConversionException {
+		
+		return AbstractOpenXmlToPDF.await(convertAsync(bytes, ext));
+	}
+
+	@Override
+	public byte[] convert(InputStream is, String ext) throws ConversionException, IOException {
+		return convert(IOUtils.toByteArray(is), ext);
+	}
+
+	@Override
+	public long convert(byte[] bytes, String ext, OutputStream sink) throws ConversionException {
+		
+		byte[] pdf = convert(bytes, ext);
+		try {
+			sink.write(pdf);
+		} catch (IOException e) {
+			throw new ConversionException(e.getMessage(), e);
+		}
+		return pdf.length;
+	}
+
+	@Override
+	public long convert(InputStream is, String ext, OutputStream sink) throws ConversionException, IOException {
+		return convert(IOUtils.toByteArray(is), ext, sink);
+	}
+
+	@Override
+	public long convert(byte[] bytes, String ext, WritableByteChannel sink) throws ConversionException {
+		return convert(bytes, ext, Channels.newOutputStream(sink));
+	}
+
+	@Override
+	public long convert(InputStream is, String ext, WritableByteChannel sink) throws ConversionException, IOException {
+		return convert(is, ext, Channels.newOutputStream(sink));
+	}
+
+	/**
+	 * Not coalesced: the PDF goes straight to each caller's file, so there's no result to share.
+	 */
+	@Override
+	public long convert(File in, File out) throws ConversionException, IOException {
+		return delegate.convert(in, out);
+	}
+	
+	/**
+	 * The document has to be complete to tell whether it is already being converted, 
+	 * so it is generated into memory first.
+	 */
+	@Override
+	public byte[] convert(IOConsumer<OutputStream> writer, String ext) throws ConversionException, IOException {
+		
+		ByteArrayOutputStream doc = new ByteArrayOutputStream();
+		writer.accept(doc);
+		return convert(doc.toByteArray(), ext);
+	}
+
+}
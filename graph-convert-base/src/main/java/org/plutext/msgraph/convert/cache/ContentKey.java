@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.plutext.msgraph.convert.buffer.BufferPool;
+
+/**
+ * Identifies a conversion by the SHA-256 of its input, plus the extension
+ * (since Graph converts according to the extension).
+ * 
+ * @author jharrop
+ *
+ */
+public final class ContentKey {
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	public static ContentKey of(byte[] bytes, String ext) {
+		return ofHash(sha256().digest(bytes), ext);
+	}
+	
+	/**
+	 * Hash the file through a buffer borrowed from the shared pool, rather than reading it into memory.
+	 */
+	public static ContentKey of(File file, String ext) throws IOException {
+		
+		MessageDigest digest = sha256();
+		BufferPool pool = BufferPool.shared();
+		ByteBuffer buf = pool.acquire();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			while (channel.read(buf) != -1) {
+				buf.flip();
+				digest.update(buf);
+				buf.clear();
+			}
+		} finally {
+			pool.release(buf);
+		}
+		return ofHash(digest.digest(), ext);
+	}
+	
+	private static MessageDigest sha256() {
+		
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every JRE has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static ContentKey ofHash(byte[] hash, String ext) {
+		
+		StringBuilder sb = new StringBuilder(hash.length * 2 + ext.length());
+		for (byte b : hash) {
+			sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+		}
+		sb.append(ext.toLowerCase());
+		return new ContentKey(sb.toString());
+	}
+	
+	private ContentKey(String key) {
+		this.key = key;
+	}
+	
+	private final String key;
+
+	@Override
+	public int hashCode() {
+		return key.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof ContentKey && ((ContentKey)obj).key.equals(key);
+	}
+
+	@Override
+	public String toString() {
+		return key;
+	}
+	
+}
@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.cache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converted PDFs, keyed by ContentKey, bounded by their total size 
+ * rather than the number of entries; least recently used are evicted first.
+ * 
+ * Off-heap, each PDF is held in a direct ByteBuffer, so big PDFs 
+ * don't end up in the old generation.
+ * 
+ * A PDF bigger than maxEntryBytes isn't cached, so one big PDF can't evict 
+ * everything else (and converters needn't buffer it to find that out).
+ * 
+ * @author jharrop
+ *
+ */
+public class PdfCache {
+	
+	private static final Logger log = LoggerFactory.getLogger(PdfCache.class);
+	
+	/**
+	 * By default, a single PDF may take up to this fraction of the cache
+	 */
+	public static final int DEFAULT_ENTRY_FRACTION = 16;
+	
+	/**
+	 * @param maxBytes total size of the PDFs to hold
+	 * @param offHeap whether to hold the PDFs in direct buffers
+	 */
+	public PdfCache(long maxBytes, boolean offHeap) {
+		this(maxBytes, maxBytes / DEFAULT_ENTRY_FRACTION, offHeap);
+	}
+	
+	/**
+	 * @param maxBytes total size of the PDFs to hold
+	 * @param maxEntryBytes size of the biggest PDF to hold (at most maxBytes, and Integer.MAX_VALUE)
+	 * @param offHeap whether to hold the PDFs in direct buffers
+	 */
+	public PdfCache(long maxBytes, long maxEntryBytes, boolean offHeap) {
+		
+		if (maxEntryBytes < 0 || maxEntryBytes > maxBytes) {
+			throw new IllegalArgumentException("Need 0 <= maxEntryBytes <= maxBytes");
+		}
+		this.maxBytes = maxBytes;
+		this.maxEntryBytes = Math.min(maxEntryBytes, Integer.MAX_VALUE);
+		this.offHeap = offHeap;
+	}
+	
+	private final long maxBytes;
+	private final long maxEntryBytes;
+	private final boolean offHeap;
+	
+	// guarded by this; access order, so iteration starts at the least recently used
+	private final LinkedHashMap<ContentKey, ByteBuffer> entries = new LinkedHashMap<ContentKey, ByteBuffer>(16, 0.75f, true);
+	private long size;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * @return the PDF, or null if it isn't cached.  The buffer is read-only, 
+	 * and positioned at the start of the PDF.
+	 */
+	public ByteBuffer get(ContentKey key) {
+		
+		ByteBuffer pdf;
+		synchronized (this) {
+			pdf = entries.get(key);
+		}
+		if (pdf == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		// a view, so concurrent readers don't share a position
+		return pdf.duplicate();
+	}
+	
+	public byte[] getBytes(ContentKey key) {
+		
+		ByteBuffer pdf = get(key);
+		if (pdf == null) return null;
+		byte[] bytes = new byte[pdf.remaining()];
+		pdf.get(bytes);
+		return bytes;
+	}
+	
+	/**
+	 * Write the cached PDF to the sink.
+	 * @return the number of bytes written, or -1 if it isn't cached
+	 */
+	public long writeTo(ContentKey key, OutputStream sink) throws IOException {
+		
+		ByteBuffer pdf = get(key);
+		if (pdf == null) return -1;
+		long written = pdf.remaining();
+		// read-only buffers don't expose their array, so copy through a small buffer
+		byte[] buf = new byte[(int)Math.min(8 * 1024, Math.max(1, written))];
+		while (pdf.hasRemaining()) {
+			int n = Math.min(buf.length, pdf.remaining());
+			pdf.get(buf, 0, n);
+			sink.write(buf, 0, n);
+		}
+		return written;
+	}
+	
+	public void put(ContentKey key, byte[] pdf) {
+		put(key, pdf, 0, pdf.length);
+	}
+	
+	public void put(ContentKey key, byte[] pdf, int off, int len) {
+		
+		if (len > maxEntryBytes) {
+			log.debug("Not caching " + len + " byte PDF; bigger than maxEntryBytes " + maxEntryBytes);
+			return;
+		}
+		ByteBuffer buffer;
+		if (offHeap) {
+			buffer = ByteBuffer.allocateDirect(len);
+			buffer.put(pdf, off, len);
+			buffer.flip();
+		} else {
+			byte[] copy = new byte[len];
+			System.arraycopy(pdf, off, copy, 0, len);
+			buffer = ByteBuffer.wrap(copy);
+		}
+		buffer = buffer.asReadOnlyBuffer();
+		
+		synchronized (this) {
+			ByteBuffer previous = entries.put(key, buffer);
+			if (previous != null) {
+				size -= previous.capacity();
+			}
+			size += len;
+			
+			Iterator<Map.Entry<ContentKey, ByteBuffer>> it = entries.entrySet().iterator();
+			while (size > maxBytes && it.hasNext()) {
+				Map.Entry<ContentKey, ByteBuffer> eldest = it.next();
+				size -= eldest.getValue().capacity();
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * @return the most the cache holds
+	 */
+	public long maxBytes() {
+		return maxBytes;
+	}
+	
+	/**
+	 * @return the biggest PDF the cache holds; a bigger one isn't cached at all
+	 */
+	public long maxEntryBytes() {
+		return maxEntryBytes;
+	}
+	
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+	
+	/**
+	 * @return total size of the cached PDFs
+	 */
+	public synchronized long size() {
+		return size;
+	}
+	
+	public synchronized int entryCount() {
+		return entries.size();
+	}
+	
+	public long hits() {
+		return hits.get();
+	}
+	
+	public long misses() {
+		return misses.get();
+	}
+	
+}
@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.cleanup;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends a JSON $batch of DELETE requests to Graph; implemented by each backend,
+ * using its own http client and JSON library.
+ * 
+ * @author jharrop
+ *
+ */
+public interface BatchSender {
+	
+	/**
+	 * Graph accepts at most 20 requests in a $batch
+	 */
+	public static final int MAX_BATCH_SIZE = 20;
+	
+	public static String batchUrl(String graphEndpoint) {
+		return graphEndpoint + "/$batch";
+	}
+
+	/**
+	 * @param items at most MAX_BATCH_SIZE items to delete 
+	 * @return the HTTP status (and any Retry-After) for each item, in the same order;
+	 * or a ThrottledException if the $batch itself was throttled 
+	 */
+	public abstract CompletableFuture<List<DeleteStatus>> deleteAll(List<String> items);
+	
+	/**
+	 * $batch request urls are relative to the version, eg "/sites/..".
+	 */
+	public static String relativeUrl(String graphEndpoint, String item) {
+		return item.startsWith(graphEndpoint) ? item.substring(graphEndpoint.length()) : item;
+	}
+	
+	/**
+	 * 404 means the item is already gone, which is as good as deleted.
+	 */
+	public static boolean isDeleted(int status) {
+		return (status >= 200 && status < 300) || status == 404;
+	}
+	
+}
@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.cleanup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.plutext.msgraph.convert.throttle.ThrottledException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups deletes into JSON $batch requests of up to 20 items, 
+ * so cleanup costs one request per 20 documents rather than one each.
+ * 
+ * A batch is sent as soon as it is full, or maxDelay after its first item
+ * was added.  Each item's future completes with that item's own result, 
+ * so the CleanupQueue retries just the items which failed.
+ * 
+ * @author jharrop
+ *
+ */
+public class BatchingDeleter implements ItemDeleter {
+	
+	private static final Logger log = LoggerFactory.getLogger(BatchingDeleter.class);
+	
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 500;
+	
+	public BatchingDeleter(BatchSender sender) {
+		this(sender, BatchSender.MAX_BATCH_SIZE, DEFAULT_MAX_DELAY_MILLIS);
+	}
+
+	public BatchingDeleter(BatchSender sender, int maxBatchSize, long maxDelayMillis) {
+		
+		if (maxBatchSize < 1 || maxBatchSize > BatchSender.MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException("Batch size must be between 1 and " + BatchSender.MAX_BATCH_SIZE);
+		}
+		this.sender = sender;
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelayMillis = maxDelayMillis;
+		
+		// not a daemon, so a pending batch is sent before the JVM exits
+		timer = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, "graph-cleanup-batch"));
+		timer.setKeepAliveTime(maxDelayMillis + 1000, TimeUnit.MILLISECONDS);
+		timer.allowCoreThreadTimeOut(true);
+	}
+	
+	private final BatchSender sender;
+	private final int maxBatchSize;
+	private final long maxDelayMillis;
+	private final ScheduledThreadPoolExecutor timer;
+	
+	// guarded by this
+	private List<String> items = new ArrayList<String>();
+	private List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+	private ScheduledFuture<?> scheduledFlush;
+
+	@Override
+	public CompletableFuture<Integer> delete(String item) {
+		
+		CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+		boolean full;
+		synchronized (this) {
+			items.add(item);
+			futures.add(future);
+			full = items.size() >= maxBatchSize;
+			if (!full && scheduledFlush == null) {
+				scheduledFlush = timer.schedule(this::flush, maxDelayMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (full) {
+			flush();
+		}
+		return future;
+	}
+	
+	/**
+	 * Send whatever is pending now.
+	 */
+	public void flush() {
+		
+		List<String> batch;
+		List<CompletableFuture<Integer>> batchFutures;
+		synchronized (this) {
+			if (items.isEmpty()) {
+				return;
+			}
+			batch = items;
+			batchFutures = futures;
+			items = new ArrayList<String>();
+			futures = new ArrayList<CompletableFuture<Integer>>();
+			if (scheduledFlush != null) {
+				scheduledFlush.cancel(false);
+				scheduledFlush = null;
+			}
+		}
+		
+		log.debug("Sending batch of " + batch.size() + " deletes");
+		CompletableFuture<List<DeleteStatus>> sent;
+		try {
+			sent = sender.deleteAll(batch);
+		} catch (RuntimeException e) {
+			sent = new CompletableFuture<List<DeleteStatus>>();
+			sent.completeExceptionally(e);
+		}
+		
+		sent.whenComplete((statuses, e) -> {
+			
+			for (int i = 0; i < batchFutures.size(); i++) {
+				
+				CompletableFuture<Integer> future = batchFutures.get(i);
+				if (e != null) {
+					future.completeExceptionally(e);
+				} else if (statuses == null || i >= statuses.size() || statuses.get(i) == null) {
+					future.completeExceptionally(new IOException("No result in batch for " + batch.get(i)));
+				} else {
+					DeleteStatus status = statuses.get(i);
+					if (BatchSender.isDeleted(status.getStatus())) {
+						future.complete(status.getStatus());
+					} else if (ThrottledException.isThrottled(status.getStatus())) {
+						// so the CleanupQueue waits as long as Graph asked
+						future.completeExceptionally(new ThrottledException(status.getStatus(), 
+								status.getRetryAfterMillis(), "Delete throttled with HTTP " + status.getStatus()));
+					} else {
+						future.completeExceptionally(new IOException("Delete failed with HTTP " + status.getStatus()));
+					}
+				}
+			}
+		});
+	}
+
+}
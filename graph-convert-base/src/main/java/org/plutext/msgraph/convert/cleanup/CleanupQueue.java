@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.cleanup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.plutext.msgraph.convert.throttle.ThrottledException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes uploaded items in the background, so a conversion can 
+ * return as soon as the PDF has arrived.
+ * 
+ * At most maxConcurrent deletes are in flight at once; a failed delete is retried 
+ * with exponential backoff (or after Graph's Retry-After, if that's longer), up to maxAttempts in all.  With a BatchingDeleter,
+ * allow a few batches' worth in flight, so batches can fill.
+ * 
+ * The worker threads aren't daemons, so pending deletes finish before 
+ * the JVM exits; they time out once the queue is idle. 
+ * 
+ * @author jharrop
+ *
+ */
+public class CleanupQueue {
+	
+	private static final Logger log = LoggerFactory.getLogger(CleanupQueue.class);
+	
+	private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+	
+	public static final int DEFAULT_MAX_CONCURRENT = 4;
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	
+	private static final long INITIAL_BACKOFF_MILLIS = 1000;
+	private static final long IDLE_TIMEOUT_MILLIS = 2000;
+	
+	public CleanupQueue(ItemDeleter deleter) {
+		this(deleter, DEFAULT_MAX_CONCURRENT, DEFAULT_MAX_ATTEMPTS);
+	}
+
+	public CleanupQueue(ItemDeleter deleter, int maxConcurrent, int maxAttempts) {
+		
+		this.deleter = deleter;
+		this.maxAttempts = maxAttempts;
+		
+		this.permits = new Semaphore(maxConcurrent);
+		
+		String prefix = "graph-cleanup-" + POOL_NUMBER.incrementAndGet() + "-";
+		AtomicInteger threadNumber = new AtomicInteger();
+		int threads = Math.min(maxConcurrent, DEFAULT_MAX_CONCURRENT);
+		executor = new ScheduledThreadPoolExecutor(threads, r -> new Thread(r, prefix + threadNumber.incrementAndGet()));
+		executor.setKeepAliveTime(IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	private final ItemDeleter deleter;
+	private final int maxAttempts;
+	private final ScheduledThreadPoolExecutor executor;
+	private final Semaphore permits;
+	
+	private final AtomicInteger pending = new AtomicInteger();
+	
+	/**
+	 * Queue the item for deletion.  Once the queue is shut down, the item is 
+	 * logged and dropped (this doesn't throw, since it is called as a conversion completes).
+	 * 
+	 * @return completes when the item is deleted, or exceptionally once we give up
+	 */
+	public CompletableFuture<Void> submit(String item) {
+		
+		CompletableFuture<Void> result = new CompletableFuture<Void>();
+		pending.incrementAndGet();
+		try {
+			executor.execute(() -> attempt(item, 1, result));
+		} catch (RejectedExecutionException e) {
+			drop(item, result, e);
+		}
+		return result;
+	}
+	
+	private void drop(String item, CompletableFuture<Void> done, RejectedExecutionException e) {
+		
+		log.warn("Cleanup queue is shut down; not deleting " + item);
+		pending.decrementAndGet();
+		done.completeExceptionally(e);
+	}
+	
+	/**
+	 * @return the number of items not yet deleted (or given up on)
+	 */
+	public int pending() {
+		return pending.get();
+	}
+	
+	private void attempt(String item, int attempt, CompletableFuture<Void> done) {
+		
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.warn("Interrupted; not deleted: " + item);
+			pending.decrementAndGet();
+			done.completeExceptionally(e);
+			return;
+		}
+		
+		CompletableFuture<?> deleted;
+		try {
+			// with a synchronous http client, this blocks the worker 
+			deleted = deleter.delete(item);
+		} catch (RuntimeException e) {
+			deleted = new CompletableFuture<Object>();
+			deleted.completeExceptionally(e);
+		}
+		
+		deleted.whenComplete((result, e) -> {
+			
+			permits.release();
+			if (e == null) {
+				log.debug("Deleted " + item);
+				pending.decrementAndGet();
+				done.complete(null);
+				return;
+			}
+			
+			Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			if (attempt < maxAttempts && !executor.isShutdown()) {
+				long backoff = INITIAL_BACKOFF_MILLIS << (attempt - 1);
+				ThrottledException throttled = ThrottledException.in(cause);
+				if (throttled != null) {
+					backoff = Math.max(backoff, throttled.getRetryAfterMillis());
+				}
+				log.info("Delete of " + item + " failed (" + cause.getMessage() + "); retrying in " + backoff + "ms");
+				try {
+					executor.schedule(() -> attempt(item, attempt + 1, done), backoff, TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException re) {
+					drop(item, done, re);
+				}
+			} else {
+				log.error("Giving up deleting " + item + " after " + attempt + " attempts: " + cause.getMessage());
+				pending.decrementAndGet();
+				done.completeExceptionally(cause);
+			}
+		});
+	}
+	
+	/**
+	 * Stop accepting items, and wait for queued deletes to finish.
+	 * 
+	 * @return true if all finished within the timeout
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		// retries are scheduled by running tasks, so wait for those before shutting down
+		while (pending.get() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(50);
+		}
+		executor.shutdown();
+		return executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+				&& pending.get() == 0;
+	}
+
+}
@@ -0,0 +1,59 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.cleanup;
+
+import org.plutext.msgraph.convert.throttle.ThrottledException;
+
+/**
+ * The outcome of one DELETE in a $batch: its status, and (if Graph throttled it) 
+ * the Retry-After from its headers.
+ * 
+ * @author jharrop
+ *
+ */
+public class DeleteStatus {
+	
+	/**
+	 * @param status
+	 * @param retryAfter the response's Retry-After header, or null
+	 */
+	public static DeleteStatus of(int status, String retryAfter) {
+		return new DeleteStatus(status, ThrottledException.parseRetryAfter(retryAfter));
+	}
+
+	public DeleteStatus(int status, long retryAfterMillis) {
+		this.status = status;
+		this.retryAfterMillis = retryAfterMillis;
+	}
+	
+	private final int status;
+	private final long retryAfterMillis;
+	
+	public int getStatus() {
+		return status;
+	}
+	
+	/**
+	 * @return how long Graph asked us to wait, or -1 if it didn't say
+	 */
+	public long getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+
+}
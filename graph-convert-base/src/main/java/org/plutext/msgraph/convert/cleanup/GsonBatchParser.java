@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.cleanup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Reads a $batch response with Gson, for the backends built on graph-core 
+ * (which brings Gson with it).  Gson is an optional dependency of this module, 
+ * so only use this from a backend which has it.
+ * 
+ * @author jharrop
+ *
+ */
+public class GsonBatchParser {
+	
+	private GsonBatchParser() {}
+
+	/**
+	 * @param json the $batch response
+	 * @param size the number of requests in the batch, whose ids are 0..size-1
+	 * @return each request's status (and any Retry-After), in request order
+	 */
+	public static List<DeleteStatus> parse(JsonObject json, int size) {
+		
+		// responses may come back in any order
+		DeleteStatus[] statuses = new DeleteStatus[size];
+		for (JsonElement e : json.getAsJsonArray("responses")) {
+			JsonObject r = e.getAsJsonObject();
+			int id = Integer.parseInt(r.get("id").getAsString());
+			if (id >= 0 && id < size) {
+				statuses[id] = DeleteStatus.of(r.get("status").getAsInt(), retryAfter(r.getAsJsonObject("headers")));
+			}
+		}
+		return Arrays.asList(statuses);
+	}
+	
+	/**
+	 * @return the Retry-After in a $batch item's headers (whatever its case), or null
+	 */
+	private static String retryAfter(JsonObject headers) {
+		
+		if (headers == null) {
+			return null;
+		}
+		for (Map.Entry<String, JsonElement> header : headers.entrySet()) {
+			if ("Retry-After".equalsIgnoreCase(header.getKey())) {
+				return header.getValue().getAsString();
+			}
+		}
+		return null;
+	}
+
+}
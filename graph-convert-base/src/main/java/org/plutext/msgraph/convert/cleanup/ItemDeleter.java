@@ -0,0 +1,37 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.cleanup;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Deletes (ie moves to the recycle bin) an uploaded item.
+ * 
+ * @author jharrop
+ *
+ */
+public interface ItemDeleter {
+
+	/**
+	 * @param item as understood by the backend; typically its path
+	 * @return a future which completes exceptionally if the item wasn't deleted
+	 */
+	public abstract CompletableFuture<?> delete(String item);
+	
+}
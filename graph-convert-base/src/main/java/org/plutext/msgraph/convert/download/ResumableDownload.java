@@ -0,0 +1,319 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package org.plutext.msgraph.convert.download;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.HttpClientConfig;
+import org.plutext.msgraph.convert.auth.UnauthorizedException;
+import org.plutext.msgraph.convert.throttle.ThrottledException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a PDF straight to a FileChannel (with FileChannel.transferFrom, so it 
+ * isn't built up in a byte[]).
+ * 
+ * Graph answers ?format=pdf with a 302 to a pre-authenticated download URL.  
+ * If the connection drops part way through the download, we ask that URL 
+ * for the rest (with a Range request), rather than converting again.
+ * 
+ * Each backend asks for ?format=pdf without following the redirect, and 
+ * hands the Location to from(String); or if its http client followed the redirect, 
+ * the body and where it came from to from(InputStream, long, String); or if Graph sends 
+ * the PDF itself, its body to from(InputStream), which can't be resumed.
+ * 
+ * @author jharrop
+ *
+ */
+public class ResumableDownload {
+	
+	private static final Logger log = LoggerFactory.getLogger(ResumableDownload.class);
+	
+	/**
+	 * How much is transferred between updates of our position; after a dropped 
+	 * connection, at most this much is fetched again.
+	 */
+	private static final long CHUNK = 256 * 1024;
+	
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-\\d+/(\\d+|\\*)");
+
+	/**
+	 * @param out the PDF is written from position 0, and the channel truncated to its length; 
+	 * the channel is not closed
+	 */
+	public ResumableDownload(FileChannel out) {
+		this(out, new HttpClientConfig());
+	}
+	
+	/**
+	 * @param out as above
+	 * @param httpClientConfig for the connect and read timeouts of the download (and its resumes)
+	 */
+	public ResumableDownload(FileChannel out, HttpClientConfig httpClientConfig) {
+		this.out = out;
+		this.httpClientConfig = httpClientConfig;
+	}
+	
+	private final FileChannel out;
+	private final HttpClientConfig httpClientConfig;
+	private long position;
+	
+	private int maxResumes = 3;
+	
+	/**
+	 * How many times to resume a download whose connection failed; default 3.
+	 */
+	public void setMaxResumes(int maxResumes) {
+		this.maxResumes = maxResumes;
+	}
+	
+	/**
+	 * Write the PDF from the body of the ?format=pdf response itself (Graph didn't redirect);
+	 * the stream is read to EOF but not closed.
+	 * 
+	 * @return the size of the PDF
+	 * @throws IOException
+	 */
+	public long from(InputStream pdf) throws IOException {
+		
+		position = 0;
+		transfer(pdf, -1);
+		out.truncate(position);
+		return position;
+	}
+	
+	/**
+	 * Fetch the PDF from the pre-authenticated download URL (so no bearer token is sent), 
+	 * resuming with a Range request if the connection drops part way.
+	 * 
+	 * @param downloadUrl the Location Graph redirected ?format=pdf to
+	 * @return the size of the PDF
+	 * @throws IOException if the download fails, and can't be resumed
+	 */
+	public long from(String downloadUrl) throws IOException {
+		
+		position = 0;
+		return fetch(downloadUrl, 0);
+	}
+	
+	/**
+	 * Write the PDF from the body of a response the http client got by following 
+	 * Graph's redirect, resuming from the download URL with a Range request if the 
+	 * connection drops part way.  The stream is read to EOF (or the failure) but not closed.
+	 * 
+	 * @param pdf the body
+	 * @param contentLength of the body, or -1 if unknown
+	 * @param downloadUrl where the redirect led
+	 * @return the size of the PDF
+	 * @throws IOException if the download fails, and can't be resumed
+	 */
+	public long from(InputStream pdf, long contentLength, String downloadUrl) throws IOException {
+		
+		position = 0;
+		try {
+			transfer(pdf, contentLength);
+			out.truncate(position);
+			return position;
+		} catch (IOException e) {
+			if (maxResumes < 1) {
+				throw e;
+			}
+			log.info("Resuming download at " + position + " after: " + e.getMessage());
+			return fetch(downloadUrl, 1);
+		}
+	}
+	
+	/**
+	 * Fetch the rest of the PDF, from our position.
+	 * 
+	 * @param resumes made so far
+	 */
+	private long fetch(String downloadUrl, int resumes) throws IOException {
+		
+		for (; ; resumes++) {
+			
+			HttpURLConnection conn = (HttpURLConnection)new URL(downloadUrl).openConnection();
+			httpClientConfig.configure(conn);
+			try {
+				if (position > 0) {
+					conn.setRequestProperty("Range", "bytes=" + position + "-");
+				}
+				long end = open(conn);
+				try (InputStream is = conn.getInputStream()) {
+					transfer(is, end);
+				}
+				out.truncate(position);
+				return position;
+				
+			} catch (IOException e) {
+				
+				conn.disconnect();
+				if (e instanceof DownloadFailedException || resumes >= maxResumes) {
+					throw e;
+				}
+				log.info("Resuming download at " + position + " after: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Check the response, and move to where it starts.
+	 * 
+	 * @return the expected length of the whole PDF, or -1 if unknown
+	 */
+	private long open(HttpURLConnection conn) throws IOException {
+		
+		int code = conn.getResponseCode();
+		if (code == 206) {
+			Matcher m = CONTENT_RANGE.matcher(String.valueOf(conn.getHeaderField("Content-Range")));
+			if (!m.lookingAt() || Long.parseLong(m.group(1)) != position) {
+				throw new DownloadFailedException("Unexpected Content-Range " + conn.getHeaderField("Content-Range") 
+						+ " resuming at " + position);
+			}
+			return "*".equals(m.group(2)) ? -1 : Long.parseLong(m.group(2));
+		}
+		if (code == 200) {
+			if (position > 0) {
+				log.info("Download doesn't support Range; starting again");
+				position = 0;
+			}
+			return conn.getContentLengthLong();
+		}
+		
+		InputStream es = conn.getErrorStream();
+		if (es != null) {
+			log.warn(IOUtils.toString(es, "UTF-8"));
+			es.close();
+		}
+		throw new DownloadFailedException("Download failed with HTTP " + code);
+	}
+	
+	/**
+	 * Copy the rest of the body to the channel, from our position.
+	 * 
+	 * @param end the expected length of the whole PDF, or -1 if unknown
+	 * @throws EOFException if the body ended before end
+	 */
+	private void transfer(InputStream is, long end) throws IOException {
+		
+		ReadableByteChannel source = Channels.newChannel(is);
+		long n;
+		while ((n = out.transferFrom(source, position, CHUNK)) > 0) {
+			position += n;
+		}
+		if (end >= 0 && position < end) {
+			throw new EOFException("Download ended at " + position + " of " + end + " bytes");
+		}
+	}
+	
+	/**
+	 * GET ?format=pdf with the access token, without following the redirect, then 
+	 * download the PDF from where it points; for backends whose HTTP library 
+	 * can't hand us the Location.
+	 * 
+	 * @param requestUrl eg https://graph.microsoft.com/v1.0/sites/SITE/drive/items/root:/FILENAME:/content?format=pdf
+	 * @param accessToken
+	 * @param out as for the constructor
+	 * @return the size of the PDF
+	 * @throws ThrottledException if the conversion was throttled, so it can be retried
+	 * @throws UnauthorizedException if the access token was refused
+	 * @throws ConversionException if it failed
+	 * @throws IOException
+	 */
+	public static long fromConversion(String requestUrl, String accessToken, FileChannel out) 
+			throws ConversionException, IOException {
+		return fromConversion(requestUrl, accessToken, out, new HttpClientConfig());
+	}
+	
+	/**
+	 * As above, with the connect and read timeouts from httpClientConfig 
+	 */
+	public static long fromConversion(String requestUrl, String accessToken, FileChannel out, 
+			HttpClientConfig httpClientConfig) throws ConversionException, IOException {
+		
+		HttpURLConnection conn = (HttpURLConnection)new URL(requestUrl).openConnection();
+		httpClientConfig.configure(conn);
+		try {
+			conn.setInstanceFollowRedirects(false);
+			conn.setRequestProperty("Authorization", "Bearer " + accessToken);
+			
+			int code = conn.getResponseCode();
+			log.debug(requestUrl + " --> " + code);
+			ResumableDownload download = new ResumableDownload(out, httpClientConfig);
+			if (code >= 300 && code < 400 && conn.getHeaderField("Location") != null) {
+				String location = conn.getHeaderField("Location");
+				try {
+					// so the connection can be reused
+					conn.getInputStream().close();
+				} catch (IOException e) {
+					// only the redirect's body; the download is a request of its own
+					log.debug("Closing the redirect: " + e.getMessage());
+				}
+				return download.from(location);
+			}
+			if (code == 200) {
+				try (InputStream is = conn.getInputStream()) {
+					return download.from(is);
+				}
+			}
+			
+			InputStream es = conn.getErrorStream();
+			if (es != null) {
+				log.warn(IOUtils.toString(es, "UTF-8"));
+				es.close();
+			}
+			if (ThrottledException.isThrottled(code)) {
+				throw new ThrottledException(code, ThrottledException.parseRetryAfter(conn.getHeaderField("Retry-After")), 
+						"convert throttled with HTTP " + code);
+			}
+			if (code == 401) {
+				throw new UnauthorizedException("convert unauthorized");
+			}
+			throw new ConversionException("convert failed with HTTP " + code);
+			
+		} catch (IOException e) {
+			conn.disconnect();
+			throw e;
+		}
+	}
+	
+	/**
+	 * The download URL answered with an error, so there's no point resuming
+	 */
+	private static class DownloadFailedException extends IOException {
+		
+		private static final long serialVersionUID = 1L;
+
+		DownloadFailedException(String message) {
+			super(message);
+		}
+	}
+
+}
@@ -0,0 +1,65 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.retry;
+
+/**
+ * When a conversion has to be done by (in System.nanoTime() terms), for its RetryPolicy; 
+ * and who, if anyone, to tell when one of its phases is throttled.
+ * 
+ * @author jharrop
+ *
+ */
+public final class Deadline {
+	
+	/**
+	 * No deadline, and no one to tell
+	 */
+	public static final Deadline NONE = new Deadline(RetryPolicy.NO_DEADLINE, null);
+	
+	/**
+	 * @param nanos or RetryPolicy.NO_DEADLINE
+	 * @param listener or null
+	 */
+	public Deadline(long nanos, RetryListener listener) {
+		this.nanos = nanos;
+		this.listener = listener;
+	}
+	
+	private final long nanos;
+	private final RetryListener listener;
+	
+	public long getNanos() {
+		return nanos;
+	}
+	
+	/**
+	 * @return null if there is no one to tell
+	 */
+	public RetryListener getListener() {
+		return listener;
+	}
+	
+	/**
+	 * @return the same deadline, telling listener instead
+	 */
+	public Deadline withListener(RetryListener listener) {
+		return new Deadline(nanos, listener);
+	}
+
+}
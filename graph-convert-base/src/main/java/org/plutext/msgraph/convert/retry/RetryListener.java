@@ -0,0 +1,51 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.retry;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.plutext.msgraph.convert.throttle.ThrottledException;
+
+/**
+ * Told each time one of a conversion's phases is throttled and is to be retried, 
+ * eg so the AdaptiveLimiter can back off straight away, and give up the conversion's 
+ * slot while it waits out the Retry-After.
+ * 
+ * (A throttled phase which isn't retried fails the conversion, which tells whoever 
+ * is waiting on it anyway.)
+ * 
+ * @author jharrop
+ *
+ */
+public interface RetryListener {
+	
+	/**
+	 * @param throttled the attempt's failure
+	 * @param delayMillis how long until the retry
+	 */
+	void throttled(ThrottledException throttled, long delayMillis);
+	
+	/**
+	 * Called once the delay has passed.
+	 * 
+	 * @return completes when the retry may start
+	 */
+	CompletableFuture<Void> retrying();
+
+}
@@ -0,0 +1,244 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.retry;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.plutext.msgraph.convert.auth.UnauthorizedException;
+import org.plutext.msgraph.convert.throttle.ThrottledException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * When and whether to retry a phase of a conversion (upload, convert/download, delete) 
+ * which Graph throttled.
+ * 
+ * The delay before each retry is the larger of Graph's Retry-After, and an exponential 
+ * backoff with jitter (so conversions throttled together don't all come back together).
+ * No retry is made which would start after the deadline.
+ * 
+ * Only ThrottledException is retried: a throttled request was refused before anything
+ * was read or written, so it is safe to repeat, even if the PDF is going to a sink.
+ * 
+ * Whatever the policy, a phase refused with 401 (UnauthorizedException) is retried 
+ * once, straight away: the backend has invalidated the token, so the retry gets a new one.
+ * 
+ * Retries are started on the executor the caller passes (typically the converter's 
+ * I/O executor), since with a synchronous http client an attempt blocks; the delay 
+ * itself holds no thread.  The deadline's RetryListener, if any, is told about each
+ * throttled attempt which is to be retried, and can hold the retry back (eg until 
+ * the AdaptiveLimiter has a slot for it again).
+ * 
+ * @author jharrop
+ *
+ */
+public class RetryPolicy {
+	
+	private static final Logger log = LoggerFactory.getLogger(RetryPolicy.class);
+	
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "graph-retry-timer");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	public static final long NO_DEADLINE = Long.MAX_VALUE;
+	
+	/**
+	 * Don't retry.
+	 */
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0);
+
+	/**
+	 * 4 attempts, backing off from 1 second, within 5 minutes.
+	 */
+	public RetryPolicy() {
+		this(4, 1000, 30000, TimeUnit.MINUTES.toMillis(5));
+	}
+	
+	/**
+	 * @param maxAttempts including the first
+	 * @param baseDelayMillis backoff before the first retry; doubled for each one after
+	 * @param maxDelayMillis cap on the backoff (but not on Retry-After)
+	 * @param timeoutMillis overall budget for a conversion, or 0 for none
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, long timeoutMillis) {
+		this.maxAttempts = maxAttempts;
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.timeoutMillis = timeoutMillis;
+	}
+	
+	private final int maxAttempts;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+	private final long timeoutMillis;
+	
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @param listener to tell when a phase is throttled, or null
+	 * @return a deadline timeoutMillis from now
+	 */
+	public Deadline deadline(RetryListener listener) {
+		return new Deadline(timeoutMillis <= 0 ? NO_DEADLINE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis), 
+				listener);
+	}
+	
+	/**
+	 * @param attempts made so far
+	 * @param failure of the last attempt
+	 * @param deadlineNanos
+	 * @return millis to wait before trying again, or -1 to give up
+	 */
+	public long delayBeforeRetry(int attempts, Throwable failure, long deadlineNanos) {
+		
+		ThrottledException throttled = ThrottledException.in(failure);
+		if (throttled == null || attempts >= maxAttempts) {
+			return -1;
+		}
+		
+		long backoff = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempts - 1, 30));
+		// "equal jitter": between half and all of the backoff
+		long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+		delay = Math.max(delay, throttled.getRetryAfterMillis());
+		
+		if (deadlineNanos != NO_DEADLINE
+				&& System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) - deadlineNanos > 0) {
+			log.debug("Not retrying; a retry in " + delay + "ms would pass the deadline");
+			return -1;
+		}
+		return delay;
+	}
+	
+	/**
+	 * @return a future completed on the executor once delayMillis have passed, 
+	 * or exceptionally if the executor refuses it
+	 */
+	public static CompletableFuture<Void> delay(long delayMillis, Executor executor) {
+		
+		CompletableFuture<Void> delayed = new CompletableFuture<Void>();
+		TIMER.schedule(() -> completeOn(executor, delayed), delayMillis, TimeUnit.MILLISECONDS);
+		return delayed;
+	}
+	
+	/**
+	 * Wait to retry a throttled phase: tell the deadline's listener, if any, 
+	 * and once delayMillis have passed, wait for it to let the retry go ahead.
+	 * 
+	 * @return a future completed on the executor when the retry may start, 
+	 * or exceptionally if the executor refuses it
+	 */
+	public static CompletableFuture<Void> delay(long delayMillis, ThrottledException throttled, Deadline deadline, 
+			Executor executor) {
+		
+		RetryListener listener = deadline.getListener();
+		if (listener == null) {
+			return delay(delayMillis, executor);
+		}
+		listener.throttled(throttled, delayMillis);
+		
+		CompletableFuture<Void> delayed = new CompletableFuture<Void>();
+		TIMER.schedule(() -> listener.retrying().whenComplete((v, e) -> {
+			if (e == null) {
+				completeOn(executor, delayed);
+			} else {
+				delayed.completeExceptionally(e);
+			}
+		}), delayMillis, TimeUnit.MILLISECONDS);
+		return delayed;
+	}
+	
+	private static void completeOn(Executor executor, CompletableFuture<Void> future) {
+		
+		try {
+			executor.execute(() -> future.complete(null));
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+	}
+	
+	/**
+	 * Run the phase, retrying it per this policy.
+	 * 
+	 * @param phase for logging
+	 * @param attempt starts the phase afresh each time it is called
+	 * @param deadline
+	 * @param executor where retries are started
+	 * @return
+	 */
+	public <T> CompletableFuture<T> execute(String phase, Supplier<CompletableFuture<T>> attempt, Deadline deadline, 
+			Executor executor) {
+		
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		execute(phase, attempt, deadline, executor, 1, false, result);
+		return result;
+	}
+	
+	/**
+	 * @param reauthenticated whether a 401 has been retried already
+	 */
+	private <T> void execute(String phase, Supplier<CompletableFuture<T>> attempt, Deadline deadline, Executor executor,
+			int attempts, boolean reauthenticated, CompletableFuture<T> result) {
+		
+		CompletableFuture<T> running;
+		try {
+			running = attempt.get();
+		} catch (RuntimeException e) {
+			running = new CompletableFuture<T>();
+			running.completeExceptionally(e);
+		}
+		
+		running.whenComplete((value, e) -> {
+			
+			if (e == null) {
+				result.complete(value);
+				return;
+			}
+			if (!reauthenticated && UnauthorizedException.in(e) != null) {
+				log.info(phase + " unauthorized; retrying with a new token");
+				execute(phase, attempt, deadline, executor, attempts, true, result);
+				return;
+			}
+			long delay = delayBeforeRetry(attempts, e, deadline.getNanos());
+			if (delay < 0) {
+				result.completeExceptionally(e);
+				return;
+			}
+			log.info(phase + " throttled; retry " + attempts + " in " + delay + "ms");
+			delay(delay, ThrottledException.in(e), deadline, executor).whenComplete((v, rejected) -> {
+				if (rejected != null) {
+					result.completeExceptionally(rejected);
+				} else {
+					execute(phase, attempt, deadline, executor, attempts + 1, reauthenticated, result);
+				}
+			});
+		});
+	}
+
+}
@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.shard;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.plutext.msgraph.convert.OpenXmlToPDF;
+import org.plutext.msgraph.convert.throttle.ThrottledException;
+
+/**
+ * One of a ShardedConverter's converters (typically, one app registration and site), 
+ * with its weight and state.
+ * 
+ * @author jharrop
+ *
+ */
+public class Shard {
+	
+	/**
+	 * A throttled shard is drained for Graph's Retry-After, or this (doubling 
+	 * each time it is throttled again), whichever is longer.
+	 */
+	private static final long BASE_DRAIN_MILLIS = 5000;
+	private static final long MAX_DRAIN_MILLIS = 60000;
+	
+	Shard(OpenXmlToPDF converter, int weight) {
+		
+		if (weight <= 0) {
+			throw new IllegalArgumentException("Weight must be positive, not " + weight);
+		}
+		this.converter = converter;
+		this.weight = weight;
+	}
+	
+	private final OpenXmlToPDF converter;
+	private final int weight;
+	
+	private final AtomicInteger outstanding = new AtomicInteger();
+	
+	private volatile long drainedUntil; // System.currentTimeMillis()
+	private volatile int consecutiveThrottles;
+	
+	public OpenXmlToPDF getConverter() {
+		return converter;
+	}
+	
+	public int getWeight() {
+		return weight;
+	}
+	
+	/**
+	 * @return conversions in progress on this shard
+	 */
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+	
+	/**
+	 * @return whether new conversions are being kept off this shard, because Graph throttled it
+	 */
+	public boolean isDrained() {
+		return System.currentTimeMillis() < drainedUntil;
+	}
+	
+	long getDrainedUntil() {
+		return drainedUntil;
+	}
+	
+	/**
+	 * Outstanding conversions per unit of weight; lower is better.
+	 */
+	double load() {
+		return outstanding.get() / (double)weight;
+	}
+	
+	void started() {
+		outstanding.incrementAndGet();
+	}
+	
+	/**
+	 * @param failure or null
+	 */
+	void finished(Throwable failure) {
+		
+		outstanding.decrementAndGet();
+		
+		ThrottledException throttled = ThrottledException.in(failure);
+		if (throttled != null) {
+			throttled(throttled);
+		} else if (failure == null) {
+			consecutiveThrottles = 0;
+		}
+	}
+	
+	/**
+	 * Graph throttled one of this shard's requests (whether or not the conversion 
+	 * goes on to retry it), so drain the shard.
+	 */
+	void throttled(ThrottledException throttled) {
+		
+		int n = ++consecutiveThrottles;
+		long drain = Math.min(MAX_DRAIN_MILLIS, BASE_DRAIN_MILLIS << Math.min(n - 1, 10));
+		drain = Math.max(drain, throttled.getRetryAfterMillis());
+		drainedUntil = System.currentTimeMillis() + drain;
+	}
+
+}
@@ -0,0 +1,299 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.shard;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.plutext.msgraph.convert.AbstractOpenXmlToPDF;
+import org.plutext.msgraph.convert.AuthConfig;
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.IOConsumer;
+import org.plutext.msgraph.convert.OpenXmlToPDF;
+import org.plutext.msgraph.convert.throttle.ThrottledException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads conversions across several converters, typically one per app registration 
+ * and/or site (AuthConfig), since Graph's throttling limits are per app and per site.
+ * 
+ * Each conversion goes to the shard with the fewest outstanding conversions 
+ * for its weight.  A shard which Graph throttles is drained (given no new conversions)
+ * for a while (from the first throttled request, even if the converter retries it); 
+ * a throttled conversion of byte[] input is tried again on another shard.
+ * (InputStream input can't be replayed, so isn't.)
+ * 
+ * @author jharrop
+ *
+ */
+public class ShardedConverter implements OpenXmlToPDF, AutoCloseable {
+	
+	private static final Logger log = LoggerFactory.getLogger(ShardedConverter.class);
+	
+	/**
+	 * @param authConfigs one per shard
+	 * @param factory creates the converter for each, eg PdfConverterLarge::new
+	 */
+	public ShardedConverter(List<? extends AuthConfig> authConfigs, Function<AuthConfig, ? extends OpenXmlToPDF> factory) {
+		this(create(authConfigs, factory));
+	}
+	
+	private static List<OpenXmlToPDF> create(List<? extends AuthConfig> authConfigs, 
+			Function<AuthConfig, ? extends OpenXmlToPDF> factory) {
+		
+		List<OpenXmlToPDF> converters = new ArrayList<OpenXmlToPDF>();
+		for (AuthConfig authConfig : authConfigs) {
+			converters.add(factory.apply(authConfig));
+		}
+		return converters;
+	}
+	
+	/**
+	 * Shards of equal weight.
+	 */
+	public ShardedConverter(List<? extends OpenXmlToPDF> converters) {
+		this(converters, null);
+	}
+
+	/**
+	 * @param converters
+	 * @param weights relative capacity of each shard (eg a higher weight for an app with 
+	 * a bigger quota), or null for equal weights
+	 */
+	public ShardedConverter(List<? extends OpenXmlToPDF> converters, int[] weights) {
+		
+		if (converters.isEmpty()) {
+			throw new IllegalArgumentException("Need at least one converter");
+		}
+		if (weights != null && weights.length != converters.size()) {
+			throw new IllegalArgumentException("Need one weight per converter");
+		}
+		List<Shard> list = new ArrayList<Shard>();
+		for (int i = 0; i < converters.size(); i++) {
+			Shard shard = new Shard(converters.get(i), weights == null ? 1 : weights[i]);
+			if (shard.getConverter() instanceof AbstractOpenXmlToPDF) {
+				// drain as soon as a phase is throttled, rather than once its retries are exhausted
+				((AbstractOpenXmlToPDF)shard.getConverter()).addThrottleListener(shard::throttled);
+			}
+			list.add(shard);
+		}
+		shards = Collections.unmodifiableList(list);
+	}
+	
+	private final List<Shard> shards;
+	
+	public List<Shard> getShards() {
+		return shards;
+	}
+	
+	/**
+	 * The least loaded (per unit of weight) shard not yet tried, preferring those not drained;
+	 * if all are drained, the one which will be available soonest.
+	 */
+	Shard pick(Set<Shard> tried) {
+		
+		Shard best = null;
+		Shard soonest = null;
+		for (Shard shard : shards) {
+			if (tried.contains(shard)) {
+				continue;
+			}
+			if (shard.isDrained()) {
+				if (soonest == null || shard.getDrainedUntil() < soonest.getDrainedUntil()) {
+					soonest = shard;
+				}
+			} else if (best == null || shard.load() < best.load()) {
+				best = shard;
+			}
+		}
+		return best != null ? best : soonest;
+	}
+	
+	@FunctionalInterface
+	private interface ShardCall<T> {
+		T call(OpenXmlToPDF converter) throws ConversionException, IOException;
+	}
+	
+	private <T> T call(ShardCall<T> call, boolean replayable) throws ConversionException, IOException {
+		
+		Set<Shard> tried = new HashSet<Shard>();
+		while (true) {
+			
+			Shard shard = pick(tried);
+			tried.add(shard);
+			shard.started();
+			try {
+				T result = call.call(shard.getConverter());
+				shard.finished(null);
+				return result;
+				
+			} catch (ConversionException | IOException | RuntimeException e) {
+				shard.finished(e);
+				if (replayable && ThrottledException.in(e) != null && tried.size() < shards.size()) {
+					log.info("Shard throttled; trying another: " + e.getMessage());
+					continue;
+				}
+				throw e;
+			}
+		}
+	}
+	
+	private <T> CompletableFuture<T> callAsync(Function<OpenXmlToPDF, CompletableFuture<T>> call, Set<Shard> tried) {
+		
+		Shard shard = pick(tried);
+		tried.add(shard);
+		shard.started();
+		
+		CompletableFuture<T> running;
+		try {
+			running = call.apply(shard.getConverter());
+		} catch (RuntimeException e) {
+			running = new CompletableFuture<T>();
+			running.completeExceptionally(e);
+		}
+		
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		running.whenComplete((value, e) -> {
+			
+			shard.finished(e);
+			if (e == null) {
+				result.complete(value);
+			} else if (ThrottledException.in(e) != null && tried.size() < shards.size()) {
+				log.info("Shard throttled; trying another: " + e.getMessage());
+				callAsync(call, tried).whenComplete((v, e2) -> {
+					if (e2 == null) {
+						result.complete(v);
+					} else {
+						result.completeExceptionally(e2);
+					}
+				});
+			} else {
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public byte[] convert(byte[] bytes, String ext) throws ConversionException {
+		try {
+			return call(converter -> converter.convert(bytes, ext), true);
+		} catch (IOException e) {
+			// not thrown by convert(byte[], String)
+			throw new ConversionException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public byte[] convert(InputStream is, String ext) throws ConversionException, IOException {
+		return call(converter -> converter.convert(is, ext), false);
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] bytes, String ext) {
+		return callAsync(converter -> converter.convertAsync(bytes, ext), new HashSet<Shard>());
+	}
+
+	/**
+	 * A throttled conversion fails before anything is written to the sink, 
+	 * so it too can be tried on another shard.
+	 */
+	@Override
+	public long convert(byte[] bytes, String ext, OutputStream sink) throws ConversionException {
+		try {
+			return call(converter -> converter.convert(bytes, ext, sink), true);
+		} catch (IOException e) {
+			// not thrown by convert(byte[], String, OutputStream)
+			throw new ConversionException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public long convert(InputStream is, String ext, OutputStream sink) throws ConversionException, IOException {
+		return call(converter -> converter.convert(is, ext, sink), false);
+	}
+
+	@Override
+	public long convert(byte[] bytes, String ext, WritableByteChannel sink) throws ConversionException {
+		return convert(bytes, ext, Channels.newOutputStream(sink));
+	}
+
+	@Override
+	public long convert(InputStream is, String ext, WritableByteChannel sink) throws ConversionException, IOException {
+		return convert(is, ext, Channels.newOutputStream(sink));
+	}
+
+	/**
+	 * The file can be read again, and the output is only written once the 
+	 * conversion has succeeded, so this too can be tried on another shard.
+	 */
+	@Override
+	public long convert(File in, File out) throws ConversionException, IOException {
+		return call(converter -> converter.convert(in, out), true);
+	}
+	
+	/**
+	 * The writer can only be run once, so this isn't tried on another shard.
+	 */
+	@Override
+	public byte[] convert(IOConsumer<OutputStream> writer, String ext) throws ConversionException, IOException {
+		return call(converter -> converter.convert(writer, ext), false);
+	}
+	
+	/**
+	 * Close each shard's converter (those which can be closed), even if closing 
+	 * an earlier one fails.
+	 * 
+	 * @throws ConversionException if any failed to close, with the rest suppressed
+	 */
+	@Override
+	public void close() throws ConversionException {
+		
+		ConversionException failed = null;
+		for (Shard shard : shards) {
+			if (shard.getConverter() instanceof AutoCloseable) {
+				try {
+					((AutoCloseable)shard.getConverter()).close();
+				} catch (Exception e) {
+					if (failed == null) {
+						failed = new ConversionException("Closing shard: " + e.getMessage(), e);
+					} else {
+						failed.addSuppressed(e);
+					}
+				}
+			}
+		}
+		if (failed != null) {
+			throw failed;
+		}
+	}
+
+}
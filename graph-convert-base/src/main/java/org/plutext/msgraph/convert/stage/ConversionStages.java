@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.stage;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+
+import org.plutext.msgraph.convert.DownloadHandler;
+
+/**
+ * A backend's implementation of each phase of a conversion, for StagedEngine.
+ * 
+ * Each method starts its phase and returns at once (or, with a synchronous http 
+ * client, when the phase is done); the engine runs each phase on its own stage.
+ * 
+ * The upload and convert phases still go through the backend's AdaptiveLimiter 
+ * (each taking a slot just while it runs), so staged conversions back off with 
+ * the rest when Graph throttles.
+ * 
+ * @param <U> how the backend identifies an uploaded document (eg its item path)
+ * 
+ * @author jharrop
+ *
+ */
+public interface ConversionStages<U> {
+	
+	/**
+	 * Make sure there is a valid access token, so the upload doesn't wait for one.
+	 */
+	public abstract CompletableFuture<?> token();
+	
+	/**
+	 * Upload the document.
+	 * 
+	 * @param bytes
+	 * @param ext eg .docx
+	 * @return the uploaded document
+	 */
+	public abstract CompletableFuture<U> upload(byte[] bytes, String ext);
+	
+	/**
+	 * Upload the document from the file, without reading it into memory.
+	 * 
+	 * @param file
+	 * @param ext eg .docx
+	 * @return the uploaded document
+	 */
+	public abstract CompletableFuture<U> upload(File file, String ext);
+	
+	/**
+	 * Have Graph convert the uploaded document, and pass the PDF to the handler.
+	 */
+	public abstract <T> CompletableFuture<T> convert(U uploaded, DownloadHandler<T> handler);
+	
+	/**
+	 * Delete the uploaded document.
+	 */
+	public abstract CompletableFuture<?> cleanup(U uploaded);
+
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.stage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * One phase of a conversion, with its own bounded queue, worker threads and metrics.
+ * 
+ * Workers start tasks; a task counts as in flight until its future completes, 
+ * and at most maxInFlight are, so an async backend needs few threads.  
+ * When maxInFlight is reached, tasks wait in the queue.  A task submitted when 
+ * that is full (or once the stage is shut down) fails with a RejectedExecutionException; 
+ * StagedEngine admits no more conversions than its stages can queue, so pushes back 
+ * on its callers instead (rather than blocking the thread completing the stage before).
+ * 
+ * @author jharrop
+ *
+ */
+public class Stage {
+	
+	/**
+	 * @param name
+	 * @param threads worker threads
+	 * @param queueCapacity tasks which can wait
+	 * @param maxInFlight tasks which can be in progress at once
+	 */
+	public Stage(String name, int threads, int queueCapacity, int maxInFlight) {
+		
+		this.name = name;
+		this.permits = new Semaphore(maxInFlight);
+		this.maxInFlight = maxInFlight;
+		this.queueCapacity = queueCapacity;
+		
+		AtomicInteger threadNumber = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, 
+				new ArrayBlockingQueue<Runnable>(queueCapacity), 
+				r -> {
+					Thread t = new Thread(r, "stage-" + name + "-" + threadNumber.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				},
+				(r, pool) -> {
+					throw new RejectedExecutionException(pool.isShutdown() ? "Stage " + name + " is shut down" 
+							: "Stage " + name + " has " + queueCapacity + " tasks waiting already");
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	private final String name;
+	private final ThreadPoolExecutor executor;
+	private final Semaphore permits;
+	private final int maxInFlight;
+	private final int queueCapacity;
+	
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+	
+	/**
+	 * Run the task on this stage.
+	 */
+	public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+		
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		try {
+			executor.execute(() -> run(task, result));
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+	
+	private <T> void run(Supplier<CompletableFuture<T>> task, CompletableFuture<T> result) {
+		
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result.completeExceptionally(e);
+			return;
+		}
+		
+		long start = System.nanoTime();
+		CompletableFuture<T> running;
+		try {
+			running = task.get();
+		} catch (RuntimeException e) {
+			running = new CompletableFuture<T>();
+			running.completeExceptionally(e);
+		}
+		
+		running.whenComplete((value, e) -> {
+			
+			permits.release();
+			totalNanos.addAndGet(System.nanoTime() - start);
+			if (e == null) {
+				completed.incrementAndGet();
+				result.complete(value);
+			} else {
+				failed.incrementAndGet();
+				result.completeExceptionally(e);
+			}
+		});
+	}
+	
+	public StageMetrics metrics() {
+		return new StageMetrics(name, executor.getQueue().size(), maxInFlight - permits.availablePermits(), 
+				completed.get(), failed.get(), totalNanos.get());
+	}
+	
+	/**
+	 * Stop accepting tasks; those already queued still run.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+}
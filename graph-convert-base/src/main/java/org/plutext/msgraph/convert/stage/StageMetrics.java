@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.stage;
+
+/**
+ * A snapshot of a Stage's counters.
+ * 
+ * @author jharrop
+ *
+ */
+public class StageMetrics {
+	
+	StageMetrics(String name, int queued, int inFlight, long completed, long failed, long totalNanos) {
+		this.name = name;
+		this.queued = queued;
+		this.inFlight = inFlight;
+		this.completed = completed;
+		this.failed = failed;
+		this.totalNanos = totalNanos;
+	}
+	
+	private final String name;
+	private final int queued;
+	private final int inFlight;
+	private final long completed;
+	private final long failed;
+	private final long totalNanos;
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return tasks waiting for this stage; a stage whose queue keeps growing is the bottleneck
+	 */
+	public int getQueued() {
+		return queued;
+	}
+	
+	public int getInFlight() {
+		return inFlight;
+	}
+	
+	public long getCompleted() {
+		return completed;
+	}
+	
+	public long getFailed() {
+		return failed;
+	}
+	
+	/**
+	 * @return mean time from starting a task to its completion, over all tasks so far
+	 */
+	public double getMeanMillis() {
+		long n = completed + failed;
+		return n == 0 ? 0 : totalNanos / 1e6 / n;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s: queued=%d inFlight=%d completed=%d failed=%d mean=%.1fms", 
+				name, queued, inFlight, completed, failed, getMeanMillis());
+	}
+
+}
@@ -0,0 +1,236 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.stage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.plutext.msgraph.convert.AbstractOpenXmlToPDF;
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.DownloadHandler;
+import org.plutext.msgraph.convert.IOConsumer;
+import org.plutext.msgraph.convert.OpenXmlToPDF;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs conversions as a pipeline of stages (token, upload, convert/download, cleanup), 
+ * each with its own queue, threads and limit on work in flight, so a slow phase
+ * backs up its own queue rather than starving the others.  metrics() shows 
+ * where the bottleneck is.
+ * 
+ * No more conversions are admitted than the stages can queue: convertAsync blocks 
+ * its caller until a conversion already in the pipeline (including its cleanup) is done.
+ * 
+ * Each backend provides its phases via stages(), eg
+ * 
+ *   new StagedEngine<>(new PdfConverterLarge(authConfig).stages())
+ * 
+ * @param <U> how the backend identifies an uploaded document
+ * 
+ * @author jharrop
+ *
+ */
+public class StagedEngine<U> implements OpenXmlToPDF {
+	
+	private static final Logger log = LoggerFactory.getLogger(StagedEngine.class);
+	
+	/**
+	 * Default stages: 16 uploads and 16 conversions in flight, and up to 40 deletes
+	 * (two $batch requests' worth).
+	 */
+	public StagedEngine(ConversionStages<U> backend) {
+		this(backend, 
+				new Stage("token", 1, 1000, 4),
+				new Stage("upload", 8, 1000, 16),
+				new Stage("convert", 8, 1000, 16),
+				new Stage("cleanup", 2, 10000, 40));
+	}
+	
+	public StagedEngine(ConversionStages<U> backend, Stage token, Stage upload, Stage convert, Stage cleanup) {
+		this.backend = backend;
+		this.token = token;
+		this.upload = upload;
+		this.convert = convert;
+		this.cleanup = cleanup;
+		this.admission = new Semaphore(Math.min(Math.min(token.getQueueCapacity(), upload.getQueueCapacity()), 
+				Math.min(convert.getQueueCapacity(), cleanup.getQueueCapacity())));
+	}
+	
+	private final ConversionStages<U> backend;
+	private final Stage token;
+	private final Stage upload;
+	private final Stage convert;
+	private final Stage cleanup;
+	
+	/**
+	 * A conversion holds a permit from when it is admitted until its cleanup is done, 
+	 * so no stage's queue can overflow.
+	 */
+	private final Semaphore admission;
+	
+	private volatile boolean shutdown;
+	
+	/**
+	 * @return a snapshot for each stage, in pipeline order
+	 */
+	public List<StageMetrics> metrics() {
+		return Arrays.asList(token.metrics(), upload.metrics(), convert.metrics(), cleanup.metrics());
+	}
+	
+	public <T> CompletableFuture<T> convertAsync(byte[] bytes, String ext, DownloadHandler<T> handler) {
+		return convertAsync(() -> backend.upload(bytes, ext), handler);
+	}
+	
+	/**
+	 * Convert the file, uploading it from disk.
+	 */
+	public <T> CompletableFuture<T> convertAsync(File in, String ext, DownloadHandler<T> handler) {
+		return convertAsync(() -> backend.upload(in, ext), handler);
+	}
+	
+	/**
+	 * Blocks until the conversion is admitted.
+	 * 
+	 * @throws RejectedExecutionException once the engine is shut down
+	 */
+	private <T> CompletableFuture<T> convertAsync(Supplier<CompletableFuture<U>> uploader, DownloadHandler<T> handler) {
+		
+		if (shutdown) {
+			throw new RejectedExecutionException("Engine is shut down");
+		}
+		try {
+			admission.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			CompletableFuture<T> interrupted = new CompletableFuture<T>();
+			interrupted.completeExceptionally(new ConversionException("Interrupted waiting for admission", e));
+			return interrupted;
+		}
+		
+		CompletableFuture<U> uploaded = token.submit(() -> backend.token())
+				.thenCompose(t -> upload.submit(uploader));
+		uploaded.whenComplete((u, e) -> {
+			if (e != null) {
+				// nothing to clean up
+				admission.release();
+			}
+		});
+		return uploaded.thenCompose(u -> convert.submit(() -> backend.convert(u, handler))
+				.whenComplete((pdf, e) -> {
+					// whether or not the conversion worked
+					cleanup.submit(() -> backend.cleanup(u)).whenComplete((r, e2) -> {
+						admission.release();
+						if (e2 != null) {
+							log.warn("Cleanup failed: " + e2.getMessage());
+						}
+					});
+				}));
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] bytes, String ext) {
+		return convertAsync(bytes, ext, DownloadHandler.toByteArray());
+	}
+
+	@Override
+	public byte[] convert(byte[] bytes, String ext) throws ConversionException {
+		return AbstractOpenXmlToPDF.await(convertAsync(bytes, ext));
+	}
+
+	@Override
+	public byte[] convert(InputStream is, String ext) throws ConversionException, IOException {
+		return convert(IOUtils.toByteArray(is), ext);
+	}
+
+	@Override
+	public long convert(byte[] bytes, String ext, OutputStream sink) throws ConversionException {
+		return AbstractOpenXmlToPDF.await(convertAsync(bytes, ext, DownloadHandler.to(sink)));
+	}
+
+	@Override
+	public long convert(InputStream is, String ext, OutputStream sink) throws ConversionException, IOException {
+		return convert(IOUtils.toByteArray(is), ext, sink);
+	}
+
+	@Override
+	public long convert(byte[] bytes, String ext, WritableByteChannel sink) throws ConversionException {
+		return convert(bytes, ext, Channels.newOutputStream(sink));
+	}
+
+	@Override
+	public long convert(InputStream is, String ext, WritableByteChannel sink) throws ConversionException, IOException {
+		return convert(is, ext, Channels.newOutputStream(sink));
+	}
+
+	/**
+	 * The document is uploaded from the file, and the PDF written
+	 * straight to the output file.
+	 */
+	@Override
+	public long convert(File in, File out) throws ConversionException, IOException {
+		
+		String ext = AbstractOpenXmlToPDF.extension(in);
+		try (FileChannel channel = FileChannel.open(out.toPath(), StandardOpenOption.CREATE, 
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			return AbstractOpenXmlToPDF.await(convertAsync(in, ext, DownloadHandler.to(Channels.newOutputStream(channel))));
+		} catch (ConversionException | IOException e) {
+			FileUtils.deleteQuietly(out);
+			throw e;
+		}
+	}
+	
+	/**
+	 * The stages upload a byte[], so the document is generated into memory first.
+	 */
+	@Override
+	public byte[] convert(IOConsumer<OutputStream> writer, String ext) throws ConversionException, IOException {
+		
+		ByteArrayOutputStream doc = new ByteArrayOutputStream();
+		writer.accept(doc);
+		return convert(doc.toByteArray(), ext);
+	}
+	
+	/**
+	 * Stop accepting conversions; those already admitted still run.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		token.shutdown();
+		upload.shutdown();
+		convert.shutdown();
+		cleanup.shutdown();
+	}
+
+}
@@ -0,0 +1,408 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.throttle;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.plutext.msgraph.convert.AuthConfig;
+import org.plutext.msgraph.convert.ConversionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits how many conversions run at once, adapting the limit to what Graph will take.
+ * 
+ * The limit grows additively (by about one per limit's worth of successes) while latency 
+ * stays near its baseline, and shrinks multiplicatively when Graph throttles us 
+ * (429/503) or latency climbs to more than latencyTolerance times the baseline.
+ * 
+ * Since a conversion's latency depends mostly on the size of the document, latency 
+ * is judged as a gradient: the typical (geometric mean) latency of the last few dozen 
+ * conversions against that of the last few hundred.  So a mix of sizes doesn't look 
+ * like overload, but everything getting slower does; and the baseline follows gradual 
+ * changes in the workload.  After backing off for latency, it waits for a short window 
+ * of fresh samples before judging again.
+ * 
+ * Conversions over the limit are queued; if the queue is full, or a conversion 
+ * waits longer than maxWait, it fails with a ConversionException, rather than
+ * piling onto Graph.
+ * 
+ * A conversion which is throttled part way through, and waits to retry, can tell the 
+ * limiter via its Permit: the limit backs off straight away, the conversion's slot goes 
+ * to another while it waits, and the wait isn't counted as latency.
+ * 
+ * @author jharrop
+ *
+ */
+public class AdaptiveLimiter {
+	
+	private static final Logger log = LoggerFactory.getLogger(AdaptiveLimiter.class);
+	
+	private static final ConcurrentMap<String, AdaptiveLimiter> SHARED = new ConcurrentHashMap<String, AdaptiveLimiter>();
+	
+	private static final ScheduledExecutorService TIMEOUTS = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "graph-limiter-timeout");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	private static final AtomicInteger STARTER_THREAD_NUMBER = new AtomicInteger();
+	
+	/**
+	 * Starts queued conversions, so they don't run on (and hold up) the thread 
+	 * which completed the previous one
+	 */
+	private static final ExecutorService STARTER = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "graph-limiter-start-" + STARTER_THREAD_NUMBER.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	});
+	
+	private static final int SHORT_WINDOW = 20;
+	private static final int LONG_WINDOW = 500;
+	private static final double BACKOFF_RATIO = 0.7;
+	private static final double LATENCY_BACKOFF_RATIO = 0.9;
+	
+	/**
+	 * The limiter for conversions by this app registration against this site, 
+	 * shared by all converters.  (Graph throttles per app and per site.)
+	 */
+	public static AdaptiveLimiter shared(AuthConfig authConfig) {
+		return SHARED.computeIfAbsent(authConfig.graphEndpoint() + "/" + authConfig.tenant() + "/" + authConfig.apiKey() 
+				+ "/" + authConfig.site(), 
+				k -> new AdaptiveLimiter());
+	}
+	
+	public AdaptiveLimiter() {
+		this(4, 1, 64, 1000, TimeUnit.MINUTES.toMillis(5));
+	}
+	
+	/**
+	 * @param initialLimit
+	 * @param minLimit
+	 * @param maxLimit
+	 * @param maxQueue conversions waiting beyond this many are rejected
+	 * @param maxWaitMillis conversions waiting longer than this are rejected 
+	 */
+	public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, int maxQueue, long maxWaitMillis) {
+		this(initialLimit, minLimit, maxLimit, maxQueue, maxWaitMillis, System::nanoTime);
+	}
+	
+	/**
+	 * @param clock in place of System.nanoTime(), for tests
+	 */
+	AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, int maxQueue, long maxWaitMillis, LongSupplier clock) {
+		this.clock = clock;
+		this.limit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.maxQueue = maxQueue;
+		this.maxWaitMillis = maxWaitMillis;
+	}
+	
+	private final int minLimit;
+	private final int maxLimit;
+	private final int maxQueue;
+	private final long maxWaitMillis;
+	private final LongSupplier clock;
+	
+	private volatile double latencyTolerance = 2.0;
+	
+	// guarded by this
+	private double limit;
+	private int inFlight;
+	private final Deque<Waiter> queue = new ArrayDeque<Waiter>();
+	private long samples;
+	// moving averages of log(latency)
+	private double shortLogNanos;
+	private double longLogNanos;
+	private int cooldown;
+	
+	/**
+	 * Typical latency above this multiple of the baseline is taken as a sign of overload.
+	 */
+	public void setLatencyTolerance(double latencyTolerance) {
+		this.latencyTolerance = latencyTolerance;
+	}
+	
+	public synchronized int getLimit() {
+		return (int)limit;
+	}
+	
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+	
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+	
+	/**
+	 * Run the task once there is room under the limit.
+	 */
+	public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+		return submit(permit -> task.get());
+	}
+	
+	/**
+	 * Run the task once there is room under the limit, passing it its Permit.
+	 */
+	public <T> CompletableFuture<T> submit(Function<Permit, CompletableFuture<T>> task) {
+		
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		Waiter waiter = new Waiter(() -> run(task, result), result);
+		
+		synchronized (this) {
+			if (inFlight < (int)limit && queue.isEmpty()) {
+				inFlight++;
+			} else if (queue.size() >= maxQueue) {
+				result.completeExceptionally(new ConversionException(
+						"Rejected: " + queue.size() + " conversions already waiting (limit " + (int)limit + ")"));
+				return result;
+			} else {
+				queue.addLast(waiter);
+				waiter.timeout = TIMEOUTS.schedule(() -> timeout(waiter), maxWaitMillis, TimeUnit.MILLISECONDS);
+				return result;
+			}
+		}
+		waiter.start.run();
+		return result;
+	}
+	
+	private <T> void run(Function<Permit, CompletableFuture<T>> task, CompletableFuture<T> result) {
+		
+		Permit permit = new Permit(clock.getAsLong());
+		CompletableFuture<T> running;
+		try {
+			running = task.apply(permit);
+		} catch (RuntimeException e) {
+			running = new CompletableFuture<T>();
+			running.completeExceptionally(e);
+		}
+		running.whenComplete((value, e) -> {
+			
+			// the caller's next phase comes before the next queued conversion
+			long end = clock.getAsLong();
+			if (e == null) {
+				result.complete(value);
+			} else {
+				result.completeExceptionally(e);
+			}
+			release(permit, end, e);
+		});
+	}
+	
+	/**
+	 * A running conversion's slot.
+	 */
+	public final class Permit {
+		
+		private Permit(long start) {
+			this.start = start;
+		}
+		
+		private final long start;
+		
+		// guarded by the limiter
+		private long pausedNanos;
+		private long pausedAt = -1; // while the slot is given up
+		
+		/**
+		 * The conversion was throttled, and is waiting to retry: back off, 
+		 * and let another conversion have its slot meanwhile.
+		 */
+		public void pause(ThrottledException throttled) {
+			AdaptiveLimiter.this.pause(this, throttled);
+		}
+		
+		/**
+		 * @return completes when the conversion has a slot again; a conversion 
+		 * resuming goes ahead of those yet to start
+		 */
+		public CompletableFuture<Void> resume() {
+			return AdaptiveLimiter.this.resume(this);
+		}
+	}
+	
+	private void pause(Permit permit, ThrottledException throttled) {
+		
+		Waiter next;
+		synchronized (this) {
+			if (permit.pausedAt >= 0) {
+				return;
+			}
+			permit.pausedAt = clock.getAsLong();
+			inFlight--;
+			backOff(throttled);
+			next = next();
+		}
+		if (next != null) {
+			STARTER.execute(next.start);
+		}
+	}
+	
+	private CompletableFuture<Void> resume(Permit permit) {
+		
+		CompletableFuture<Void> resumed = new CompletableFuture<Void>();
+		synchronized (this) {
+			if (permit.pausedAt >= 0) {
+				if (inFlight < (int)limit) {
+					inFlight++;
+					resumed(permit);
+				} else {
+					queue.addFirst(new Waiter(() -> {
+						synchronized (this) {
+							resumed(permit);
+						}
+						resumed.complete(null);
+					}, resumed));
+					return resumed;
+				}
+			}
+		}
+		resumed.complete(null);
+		return resumed;
+	}
+	
+	// guarded by this
+	private void resumed(Permit permit) {
+		permit.pausedNanos += clock.getAsLong() - permit.pausedAt;
+		permit.pausedAt = -1;
+	}
+	
+	private void timeout(Waiter waiter) {
+		
+		boolean removed;
+		synchronized (this) {
+			removed = queue.remove(waiter);
+		}
+		if (removed) {
+			waiter.result.completeExceptionally(new ConversionException(
+					"Rejected: waited more than " + maxWaitMillis + "ms for a slot"));
+		}
+	}
+	
+	private void release(Permit permit, long end, Throwable failure) {
+		
+		Waiter next;
+		synchronized (this) {
+			
+			if (permit.pausedAt >= 0) {
+				// failed while waiting to retry, so its slot is already given up
+				permit.pausedNanos += end - permit.pausedAt;
+				permit.pausedAt = -1;
+			} else {
+				inFlight--;
+			}
+			adjust(end - permit.start - permit.pausedNanos, failure);
+			next = next();
+		}
+		if (next != null) {
+			STARTER.execute(next.start);
+		}
+	}
+	
+	/**
+	 * @return the waiter to start, if there is one and room for it, counted as in flight
+	 */
+	// guarded by this
+	private Waiter next() {
+		
+		if (inFlight >= (int)limit || queue.isEmpty()) {
+			return null;
+		}
+		Waiter next = queue.pollFirst();
+		inFlight++;
+		if (next.timeout != null) {
+			next.timeout.cancel(false);
+		}
+		return next;
+	}
+	
+	// guarded by this
+	private void backOff(ThrottledException throttled) {
+		
+		double before = limit;
+		limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+		if ((int)before != (int)limit) {
+			log.debug("Concurrency limit now " + (int)limit + " (throttled with HTTP " + throttled.getStatus() + ")");
+		}
+	}
+	
+	// guarded by this
+	private void adjust(long latencyNanos, Throwable failure) {
+		
+		if (failure != null) {
+			ThrottledException throttled = ThrottledException.in(failure);
+			if (throttled != null) {
+				backOff(throttled);
+			}
+			// other failures say nothing about load
+			return;
+		}
+		
+		double before = limit;
+		// until the windows fill, these are plain means
+		samples++;
+		double logNanos = Math.log(Math.max(1, latencyNanos));
+		shortLogNanos += (logNanos - shortLogNanos) / Math.min(samples, SHORT_WINDOW);
+		longLogNanos += (logNanos - longLogNanos) / Math.min(samples, LONG_WINDOW);
+		boolean overloaded = samples >= SHORT_WINDOW 
+				&& shortLogNanos - longLogNanos > Math.log(latencyTolerance);
+		
+		if (cooldown > 0) {
+			cooldown--;
+		}
+		if (!overloaded) {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		} else if (cooldown == 0) {
+			limit = Math.max(minLimit, limit * LATENCY_BACKOFF_RATIO);
+			cooldown = SHORT_WINDOW;
+		}
+		if ((int)before != (int)limit) {
+			log.debug("Concurrency limit now " + (int)limit);
+		}
+	}
+	
+	private static class Waiter {
+		
+		Waiter(Runnable start, CompletableFuture<?> result) {
+			this.start = start;
+			this.result = result;
+		}
+		
+		final Runnable start;
+		final CompletableFuture<?> result;
+		ScheduledFuture<?> timeout;
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.throttle;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+import org.plutext.msgraph.convert.ConversionException;
+
+/**
+ * Graph said 429 (Too Many Requests) or 503 (Service Unavailable).
+ * 
+ * @author jharrop
+ *
+ */
+@SuppressWarnings("serial")
+public class ThrottledException extends ConversionException {
+
+	/**
+	 * @param status
+	 * @param retryAfterMillis from the Retry-After header, or -1 if there wasn't one 
+	 * @param msg
+	 */
+	public ThrottledException(int status, long retryAfterMillis, String msg) {
+		super(msg);
+		this.status = status;
+		this.retryAfterMillis = retryAfterMillis;
+	}
+	
+	public ThrottledException(int status, long retryAfterMillis, String msg, Throwable cause) {
+		super(msg, cause);
+		this.status = status;
+		this.retryAfterMillis = retryAfterMillis;
+	}
+	
+	private final int status;
+	private final long retryAfterMillis;
+
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return how long Graph asked us to wait, or -1 if it didn't say
+	 */
+	public long getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+	
+	/**
+	 * @return the ThrottledException in t's cause chain (eg under a CompletionException), or null
+	 */
+	public static ThrottledException in(Throwable t) {
+		
+		while (t != null) {
+			if (t instanceof ThrottledException) {
+				return (ThrottledException)t;
+			}
+			t = t.getCause();
+		}
+		return null;
+	}
+	
+	public static boolean isThrottled(int status) {
+		return status == 429 || status == 503;
+	}
+	
+	/**
+	 * @param retryAfter the Retry-After header: delay-seconds, or an HTTP-date
+	 * @return millis, or -1 if missing or unparseable
+	 */
+	public static long parseRetryAfter(String retryAfter) {
+		
+		if (retryAfter == null || retryAfter.trim().isEmpty()) {
+			return -1;
+		}
+		retryAfter = retryAfter.trim();
+		try {
+			return Math.max(0, Long.parseLong(retryAfter) * 1000);
+		} catch (NumberFormatException e) {
+			// try the date form
+		}
+		try {
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			return Math.max(0, format.parse(retryAfter).getTime() - System.currentTimeMillis());
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+	
+}
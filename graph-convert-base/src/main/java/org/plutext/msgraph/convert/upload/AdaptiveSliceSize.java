@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.upload;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tunes the slice size of a single upload to the connection.
+ * 
+ * Small slices mean one round trip per 320 KiB, so while a bigger slice 
+ * gives better throughput than the last, the size is doubled (up to maxSize).  
+ * Once it stops helping, the size drops back and holds, probing upwards again 
+ * every few slices.  A slice whose connection dropped halves the size (down to minSize); 
+ * a throttled one doesn't, since that is Graph's load, not the network.
+ * 
+ * Not thread safe; use one per upload.
+ * 
+ * @author jharrop
+ *
+ */
+public class AdaptiveSliceSize implements SliceSizer {
+	
+	private static final Logger log = LoggerFactory.getLogger(AdaptiveSliceSize.class);
+	
+	/**
+	 * A bigger slice must improve throughput by this much to count.
+	 */
+	private static final double IMPROVEMENT = 1.1;
+	
+	private static final int PROBE_INTERVAL = 8;
+	
+	/**
+	 * From 1.25 MB up to 20 MB, starting at 5 MB
+	 */
+	public AdaptiveSliceSize() {
+		this(16 * StreamingUploader.SLICE_UNIT, 4 * StreamingUploader.SLICE_UNIT, 64 * StreamingUploader.SLICE_UNIT);
+	}
+
+	/**
+	 * @param initialSize
+	 * @param minSize
+	 * @param maxSize Graph recommends no more than 60 MiB
+	 */
+	public AdaptiveSliceSize(int initialSize, int minSize, int maxSize) {
+		
+		StreamingUploader.checkSliceSize(initialSize);
+		StreamingUploader.checkSliceSize(minSize);
+		StreamingUploader.checkSliceSize(maxSize);
+		if (minSize > initialSize || initialSize > maxSize) {
+			throw new IllegalArgumentException("Need minSize <= initialSize <= maxSize");
+		}
+		this.size = initialSize;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+	}
+	
+	private final int minSize;
+	private final int maxSize;
+	
+	private int size;
+	private int previousSize;
+	private double previousThroughput;
+	private boolean growing = true;
+	private int steady;
+
+	@Override
+	public int nextSize() {
+		return size;
+	}
+
+	@Override
+	public void succeeded(int bytes, long nanos) {
+		
+		if (bytes < size) {
+			// the last slice; says nothing about throughput
+			return;
+		}
+		double throughput = bytes / (double)Math.max(nanos, 1);
+		
+		if (growing) {
+			if (previousSize == 0 || throughput > previousThroughput * IMPROVEMENT) {
+				previousSize = size;
+				previousThroughput = throughput;
+				resize(Math.min(maxSize, size * 2));
+				growing = size > previousSize;
+			} else {
+				// no better; go back to the last size, and stay there for a while
+				resize(previousSize);
+				growing = false;
+			}
+			steady = 0;
+			
+		} else if (++steady >= PROBE_INTERVAL && size < maxSize) {
+			previousSize = size;
+			previousThroughput = throughput;
+			resize(Math.min(maxSize, size * 2));
+			growing = true;
+			steady = 0;
+		}
+	}
+
+	@Override
+	public void failed() {
+		
+		resize(Math.max(minSize, unitMultiple(size / 2)));
+		previousSize = 0;
+		growing = false;
+		steady = 0;
+	}
+	
+	private void resize(int newSize) {
+		
+		if (newSize != size) {
+			log.debug("Slice size " + size + " -> " + newSize);
+			size = newSize;
+		}
+	}
+	
+	private static int unitMultiple(int n) {
+		return Math.max(1, n / StreamingUploader.SLICE_UNIT) * StreamingUploader.SLICE_UNIT;
+	}
+
+}
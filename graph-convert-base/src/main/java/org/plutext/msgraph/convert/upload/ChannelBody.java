@@ -0,0 +1,65 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+package org.plutext.msgraph.convert.upload;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes a region of a file to a request body straight from its FileChannel, 
+ * so the document is never held on the heap (neither in full, nor a slice at a time).
+ * 
+ * FileChannel.transferTo lets the JDK pick how to copy: mapped, or through 
+ * a small direct buffer.
+ * 
+ * @author jharrop
+ *
+ */
+public class ChannelBody {
+	
+	private ChannelBody() {}
+
+	/**
+	 * Write bytes [position, position + count) of the channel to os, which is not closed.
+	 * 
+	 * @param channel
+	 * @param position
+	 * @param count
+	 * @param os
+	 * @throws EOFException if the file is shorter than expected (eg it was truncated while uploading)
+	 * @throws IOException
+	 */
+	public static void transferTo(FileChannel channel, long position, long count, OutputStream os) throws IOException {
+		
+		WritableByteChannel target = Channels.newChannel(os);
+		long end = position + count;
+		while (position < end) {
+			long n = channel.transferTo(position, end - position, target);
+			if (n <= 0) {
+				throw new EOFException("File ended at " + position + ", expected " + end + " bytes");
+			}
+			position += n;
+		}
+		os.flush();
+	}
+
+}
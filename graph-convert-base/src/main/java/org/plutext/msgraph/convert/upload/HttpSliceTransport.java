@@ -0,0 +1,154 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.plutext.msgraph.convert.HttpClientConfig;
+import org.plutext.msgraph.convert.throttle.ThrottledException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SliceTransport using the JDK's HttpURLConnection, so it works the same
+ * whichever HTTP library the backend uses for everything else.
+ * 
+ * @author jharrop
+ *
+ */
+public class HttpSliceTransport implements SliceTransport {
+	
+	private static final Logger log = LoggerFactory.getLogger(HttpSliceTransport.class);
+	
+	/**
+	 * With the default timeouts
+	 */
+	public HttpSliceTransport() {
+		this(new HttpClientConfig());
+	}
+	
+	/**
+	 * @param httpClientConfig for its connect and read timeouts
+	 */
+	public HttpSliceTransport(HttpClientConfig httpClientConfig) {
+		this.httpClientConfig = httpClientConfig;
+	}
+	
+	private final HttpClientConfig httpClientConfig;
+
+	@Override
+	public SliceResponse put(String uploadUrl, byte[] buf, int length, String contentRange) throws IOException {
+		return put(uploadUrl, length, contentRange, os -> os.write(buf, 0, length));
+	}
+	
+	/**
+	 * The slice is sent straight from the channel, without copying it into an array.
+	 */
+	@Override
+	public SliceResponse put(String uploadUrl, FileChannel channel, long position, int length, String contentRange) 
+			throws IOException {
+		return put(uploadUrl, length, contentRange, os -> ChannelBody.transferTo(channel, position, length, os));
+	}
+	
+	private interface Body {
+		void writeTo(OutputStream os) throws IOException;
+	}
+	
+	private SliceResponse put(String uploadUrl, int length, String contentRange, Body content) throws IOException {
+		
+		HttpURLConnection conn = (HttpURLConnection)new URL(uploadUrl).openConnection();
+		httpClientConfig.configure(conn);
+		try {
+			conn.setRequestMethod("PUT");
+			conn.setDoOutput(true);
+			conn.setFixedLengthStreamingMode(length);
+			conn.setRequestProperty("Content-Range", contentRange);
+			
+			try (OutputStream os = conn.getOutputStream()) {
+				content.writeTo(os);
+			}
+			
+			int code = conn.getResponseCode();
+			log.debug(contentRange + " --> " + code);
+			
+			// drain the body, so the connection can be reused
+			InputStream is = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+			if (is != null) {
+				try {
+					String body = IOUtils.toString(is, "UTF-8");
+					if (code >= 400) {
+						log.error(body);
+					}
+				} finally {
+					is.close();
+				}
+			}
+			return new SliceResponse(code, ThrottledException.parseRetryAfter(conn.getHeaderField("Retry-After")));
+			
+		} catch (IOException e) {
+			conn.disconnect();
+			throw e;
+		}
+	}
+	
+	private static final Pattern NEXT_EXPECTED = Pattern.compile("\"nextExpectedRanges\"\\s*:\\s*\\[\\s*\"(\\d+)-");
+
+	@Override
+	public long nextExpectedOffset(String uploadUrl) throws IOException {
+		
+		HttpURLConnection conn = (HttpURLConnection)new URL(uploadUrl).openConnection();
+		httpClientConfig.configure(conn);
+		try {
+			int code = conn.getResponseCode();
+			if (code != 200) {
+				log.warn("Upload session status --> " + code);
+				InputStream es = conn.getErrorStream();
+				if (es != null) {
+					es.close();
+				}
+				return -1;
+			}
+			try (InputStream is = conn.getInputStream()) {
+				return parseNextExpectedOffset(IOUtils.toString(is, "UTF-8"));
+			}
+		} catch (IOException e) {
+			conn.disconnect();
+			throw e;
+		}
+	}
+	
+	/**
+	 * @param json the upload session, eg {"expirationDateTime":"..","nextExpectedRanges":["327680-"]}
+	 * @return the start of the first expected range, or -1
+	 */
+	static long parseNextExpectedOffset(String json) {
+		
+		Matcher m = NEXT_EXPECTED.matcher(json);
+		return m.find() ? Long.parseLong(m.group(1)) : -1;
+	}
+
+}
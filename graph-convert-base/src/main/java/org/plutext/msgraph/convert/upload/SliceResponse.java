@@ -0,0 +1,53 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.upload;
+
+/**
+ * What the upload session said to a slice: the HTTP status, and for 429/503,
+ * how long Graph asked us to wait.
+ * 
+ * @author jharrop
+ *
+ */
+public class SliceResponse {
+	
+	/**
+	 * @param status
+	 * @param retryAfterMillis from the Retry-After header, or -1 if there wasn't one
+	 */
+	public SliceResponse(int status, long retryAfterMillis) {
+		this.status = status;
+		this.retryAfterMillis = retryAfterMillis;
+	}
+	
+	private final int status;
+	private final long retryAfterMillis;
+
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return how long Graph asked us to wait, or -1 if it didn't say
+	 */
+	public long getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+	
+}
@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.upload;
+
+/**
+ * Decides how big each slice of an upload session is.  
+ * 
+ * Each StreamingUploader asks for the size of its next slice, and reports how 
+ * each slice went, so an implementation can tune the size as the upload proceeds.
+ * 
+ * @author jharrop
+ *
+ */
+public interface SliceSizer {
+	
+	/**
+	 * @return the size of the next slice; a multiple of 320 KiB
+	 */
+	public abstract int nextSize();
+	
+	/**
+	 * @param bytes in the slice
+	 * @param nanos it took to send
+	 */
+	public abstract void succeeded(int bytes, long nanos);
+	
+	/**
+	 * The slice's connection failed (not when it was throttled, which says 
+	 * nothing about the network).
+	 */
+	public abstract void failed();
+	
+	/**
+	 * The same size for every slice.
+	 */
+	public static SliceSizer fixed(int sliceSize) {
+		
+		StreamingUploader.checkSliceSize(sliceSize);
+		return new SliceSizer() {
+
+			@Override
+			public int nextSize() {
+				return sliceSize;
+			}
+
+			@Override
+			public void succeeded(int bytes, long nanos) {}
+
+			@Override
+			public void failed() {}
+		};
+	}
+
+}
@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.upload;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sends one slice of an upload session to its uploadUrl.
+ * 
+ * The uploadUrl is pre-authenticated, so no bearer token is needed
+ * (and Graph says not to send one).
+ * 
+ * @author jharrop
+ *
+ */
+public interface SliceTransport {
+
+	/**
+	 * PUT bytes [0, length) of buf as the given range of the file.
+	 * 
+	 * @param uploadUrl
+	 * @param buf
+	 * @param length
+	 * @param contentRange eg "bytes 0-327679/*" or "bytes 327680-400000/400001"
+	 * @return the HTTP status code, and any Retry-After
+	 * @throws IOException
+	 */
+	public abstract SliceResponse put(String uploadUrl, byte[] buf, int length, String contentRange) throws IOException;
+	
+	/**
+	 * PUT bytes [position, position + length) of the file as the given range.
+	 * 
+	 * This default reads the region into an array and sends that; override it 
+	 * to send straight from the channel (as HttpSliceTransport does).
+	 * 
+	 * @param uploadUrl
+	 * @param channel
+	 * @param position
+	 * @param length
+	 * @param contentRange
+	 * @return the HTTP status code, and any Retry-After
+	 * @throws IOException
+	 */
+	public default SliceResponse put(String uploadUrl, FileChannel channel, long position, int length, String contentRange) 
+			throws IOException {
+		
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) == -1) {
+				throw new EOFException("File ended at " + (position + buf.position()));
+			}
+		}
+		return put(uploadUrl, buf.array(), length, contentRange);
+	}
+	
+	/**
+	 * Ask the upload session where to carry on from, after a slice failed 
+	 * part way (eg the connection dropped).
+	 * 
+	 * @param uploadUrl
+	 * @return the start of the session's first nextExpectedRanges entry, or -1 if unknown 
+	 * (in which case the upload can't be resumed)
+	 * @throws IOException
+	 */
+	public default long nextExpectedOffset(String uploadUrl) throws IOException {
+		return -1;
+	}
+	
+}
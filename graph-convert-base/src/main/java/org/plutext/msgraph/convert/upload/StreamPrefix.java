@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.upload;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+
+/**
+ * The first part of a stream of unknown length, read to find out whether 
+ * the whole thing is small enough for a single PUT.
+ * 
+ * @author jharrop
+ *
+ */
+public class StreamPrefix {
+	
+	/**
+	 * The buffer starts this big, and doubles as bytes arrive
+	 */
+	private static final int INITIAL_SIZE = 8 * 1024;
+	
+	/**
+	 * Read up to limit bytes (and one more, to find out whether that's all).
+	 * 
+	 * The buffer grows as bytes arrive, so a small document doesn't cost 
+	 * the whole limit.
+	 * 
+	 * @param in
+	 * @param limit
+	 * @return
+	 * @throws IOException
+	 */
+	public static StreamPrefix read(InputStream in, int limit) throws IOException {
+		
+		byte[] buf = new byte[Math.min(INITIAL_SIZE, limit + 1)];
+		int total = 0;
+		while (true) {
+			if (total == buf.length) {
+				if (total == limit + 1) {
+					return new StreamPrefix(in, buf, false);
+				}
+				buf = Arrays.copyOf(buf, (int)Math.min(2L * buf.length, limit + 1));
+			}
+			int n = in.read(buf, total, buf.length - total);
+			if (n == -1) {
+				return new StreamPrefix(in, total == buf.length ? buf : Arrays.copyOf(buf, total), true);
+			}
+			total += n;
+		}
+	}
+	
+	private StreamPrefix(InputStream rest, byte[] prefix, boolean complete) {
+		this.rest = rest;
+		this.prefix = prefix;
+		this.complete = complete;
+	}
+	
+	private final InputStream rest;
+	private final byte[] prefix;
+	private final boolean complete;
+
+	/**
+	 * @return true if the stream ended within the limit, so bytes() is all of it
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+	
+	public byte[] bytes() {
+		return prefix;
+	}
+	
+	/**
+	 * @return the whole stream, starting with the bytes already read;
+	 * closing it closes the original stream
+	 */
+	public InputStream stream() {
+		return complete ? new ByteArrayInputStream(prefix) 
+				: new SequenceInputStream(new ByteArrayInputStream(prefix), rest);
+	}
+
+}
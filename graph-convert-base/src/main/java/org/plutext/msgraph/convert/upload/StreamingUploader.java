@@ -0,0 +1,468 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.retry.Deadline;
+import org.plutext.msgraph.convert.retry.RetryPolicy;
+import org.plutext.msgraph.convert.throttle.ThrottledException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Upload an InputStream of unknown length to an upload session, 
+ * one slice at a time.  
+ * 
+ * Each slice is sent as soon as it is full; until EOF is reached the
+ * total size is given as "*".  We peek one byte past a full slice to 
+ * find out whether it is the last, so the final range carries the real total.
+ * 
+ * Heap use is one slice (the largest the SliceSizer asks for), whatever the 
+ * size of the document.
+ * 
+ * A file can instead be uploaded from its FileChannel, in which case each slice 
+ * is sent straight from the file (see SliceTransport), and the total is known from the start.
+ * 
+ * If the connection drops during a slice, the upload resumes from the 
+ * session's nextExpectedRanges, rather than starting over.  A throttled slice 
+ * is sent again, per the RetryPolicy, without holding a thread while it waits.
+ * 
+ * @author jharrop
+ *
+ */
+public class StreamingUploader {
+	
+	private static final Logger log = LoggerFactory.getLogger(StreamingUploader.class);
+	
+	/**
+	 * Slices must be a multiple of 320 KiB
+	 */
+	public static final int SLICE_UNIT = 320 * 1024;
+	
+	/**
+	 * Graph won't take more than this in a single PUT; use an upload session instead.
+	 */
+	public static final int SINGLE_PUT_LIMIT = 4 * 1024 * 1024;
+	
+	public StreamingUploader(SliceTransport transport) {
+		this(transport, SLICE_UNIT);
+	}
+	
+	public StreamingUploader(SliceTransport transport, int sliceSize) {
+		this(transport, SliceSizer.fixed(sliceSize));
+	}
+	
+	/**
+	 * @param transport
+	 * @param sizer eg an AdaptiveSliceSize, to tune the slice size as the upload proceeds
+	 */
+	public StreamingUploader(SliceTransport transport, SliceSizer sizer) {
+		this.transport = transport;
+		this.sizer = sizer;
+	}
+	
+	static void checkSliceSize(int sliceSize) {
+		if (sliceSize <= 0 || sliceSize % SLICE_UNIT != 0) {
+			throw new IllegalArgumentException("Slice size must be a multiple of 320 KiB, not " + sliceSize);
+		}
+	}
+	
+	private final SliceTransport transport;
+	private final SliceSizer sizer;
+	
+	private int maxResumes = 3;
+	
+	/**
+	 * How many times to resume a slice whose connection failed, 
+	 * from where the session's nextExpectedRanges says; default 3.
+	 */
+	public void setMaxResumes(int maxResumes) {
+		this.maxResumes = maxResumes;
+	}
+
+	/**
+	 * Upload the stream, which is read to EOF but not closed.
+	 * 
+	 * @param uploadUrl from the upload session
+	 * @param is
+	 * @return the number of bytes uploaded
+	 * @throws ConversionException if Graph rejects a slice
+	 * @throws IOException
+	 */
+	public long upload(String uploadUrl, InputStream is) throws ConversionException, IOException {
+		
+		// with no retries, this runs entirely on the calling thread
+		return await(uploadAsync(uploadUrl, is, RetryPolicy.NONE, Deadline.NONE, Runnable::run));
+	}
+	
+	/**
+	 * As above, but a throttled slice is sent again (rather than starting over), 
+	 * per the retry policy.
+	 * 
+	 * The stream is read, and each slice sent, on the executor (typically the converter's 
+	 * I/O executor), since they block.  While a throttled slice waits to be sent again, 
+	 * no thread is held.
+	 * 
+	 * @return the number of bytes uploaded, or ConversionException if Graph rejects a slice
+	 */
+	public CompletableFuture<Long> uploadAsync(String uploadUrl, InputStream is, RetryPolicy retryPolicy, Deadline deadline, 
+			Executor executor) {
+		return new StreamUpload(uploadUrl, is, retryPolicy, deadline, executor).start();
+	}
+	
+	/**
+	 * Upload the whole file from its channel, which is not closed.
+	 * 
+	 * @param uploadUrl from the upload session
+	 * @param channel
+	 * @return the number of bytes uploaded
+	 * @throws ConversionException if Graph rejects a slice
+	 * @throws IOException
+	 */
+	public long upload(String uploadUrl, FileChannel channel) throws ConversionException, IOException {
+		return await(uploadAsync(uploadUrl, channel, RetryPolicy.NONE, Deadline.NONE, Runnable::run));
+	}
+	
+	/**
+	 * As above, but a throttled slice is sent again (rather than starting over), 
+	 * per the retry policy, on the executor.
+	 * 
+	 * Each slice is sent straight from the file by the SliceTransport, so (with 
+	 * HttpSliceTransport) heap use doesn't grow with the slice size.
+	 */
+	public CompletableFuture<Long> uploadAsync(String uploadUrl, FileChannel channel, RetryPolicy retryPolicy, 
+			Deadline deadline, Executor executor) {
+		return new ChannelUpload(uploadUrl, channel, retryPolicy, deadline, executor).start();
+	}
+	
+	private static long await(CompletableFuture<Long> upload) throws ConversionException, IOException {
+		
+		try {
+			return upload.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ConversionException) {
+				throw (ConversionException)cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * One upload, a slice at a time.  Slices are sent on the executor until the upload 
+	 * is done, or one is throttled; that one is sent again once the retry policy's delay
+	 * has passed.
+	 */
+	private abstract class Upload {
+		
+		Upload(String uploadUrl, RetryPolicy retryPolicy, Deadline deadline, Executor executor) {
+			this.uploadUrl = uploadUrl;
+			this.retryPolicy = retryPolicy;
+			this.deadline = deadline;
+			this.executor = executor;
+		}
+		
+		final String uploadUrl;
+		private final RetryPolicy retryPolicy;
+		private final Deadline deadline;
+		private final Executor executor;
+		private final CompletableFuture<Long> result = new CompletableFuture<Long>();
+		
+		/**
+		 * Where the current slice starts
+		 */
+		long offset = 0;
+		
+		/**
+		 * The current slice: its length, whether it is the last, and (once the
+		 * connection has failed part way) the part of it the session still expects
+		 */
+		private int len;
+		boolean last;
+		private long start;
+		private int count;
+		
+		/**
+		 * Whether the current slice is yet to be sent, and how many times it has been tried
+		 */
+		private boolean sending;
+		private int attempts;
+		
+		/**
+		 * Get the next slice ready, setting last
+		 * @return its length
+		 */
+		abstract int next() throws ConversionException, IOException;
+		
+		/**
+		 * PUT count bytes of the current slice, starting at position start of the document
+		 */
+		abstract SliceResponse put(long start, int count) throws IOException;
+		
+		/**
+		 * The session has the first received bytes of what remains of the slice
+		 */
+		void resumed(int received, int count) {
+		}
+		
+		abstract String contentRange(long start, int count);
+		
+		CompletableFuture<Long> start() {
+			
+			try {
+				executor.execute(this::run);
+			} catch (RejectedExecutionException e) {
+				result.completeExceptionally(e);
+			}
+			return result;
+		}
+		
+		private void run() {
+			
+			try {
+				while (true) {
+					
+					if (!sending) {
+						len = next();
+						start = offset;
+						count = len;
+						sending = true;
+						attempts = 0;
+					}
+					attempts++;
+					
+					long started = System.nanoTime();
+					SliceResponse response = send();
+					int code = response.getStatus();
+					if (ThrottledException.isThrottled(code)) {
+						retryLater(code, response.getRetryAfterMillis());
+						return;
+					}
+					if (code < 200 || code >= 300) {
+						throw new ConversionException("Upload of " + contentRange(start, count) + " failed with HTTP " + code);
+					}
+					sizer.succeeded(len, System.nanoTime() - started);
+					
+					sending = false;
+					offset += len;
+					if (last) {
+						log.debug("Uploaded " + offset + " bytes");
+						result.complete(offset);
+						return;
+					}
+				}
+			} catch (ConversionException | IOException | RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		}
+		
+		/**
+		 * Send what remains of the slice.  If the connection fails part way, ask the 
+		 * session what it has, and send the rest of the slice from there.
+		 */
+		private SliceResponse send() throws IOException {
+			
+			for (int resumes = 0; ; resumes++) {
+				try {
+					return put(start, count);
+				} catch (IOException e) {
+					
+					if (resumes >= maxResumes) {
+						throw e;
+					}
+					long next = transport.nextExpectedOffset(uploadUrl);
+					if (next < start || next > start + count) {
+						// session is gone, or expects something we no longer hold
+						throw e;
+					}
+					if (next == start + count) {
+						if (last) {
+							// can't tell whether the file was created
+							throw e;
+						}
+						log.debug("Slice arrived after all; carrying on from " + next);
+						return new SliceResponse(202, -1);
+					}
+					log.info("Resuming upload at " + next + " after: " + e.getMessage());
+					sizer.failed();
+					int received = (int)(next - start);
+					resumed(received, count);
+					start = next;
+					count -= received;
+				}
+			}
+		}
+		
+		/**
+		 * Send the slice again once the retry policy's delay has passed, or give up
+		 */
+		private void retryLater(int code, long retryAfterMillis) {
+			
+			String range = contentRange(start, count);
+			ThrottledException throttled = new ThrottledException(code, retryAfterMillis, 
+					"Upload of " + range + " throttled with HTTP " + code);
+			long delay = retryPolicy.delayBeforeRetry(attempts, throttled, deadline.getNanos());
+			if (delay < 0) {
+				result.completeExceptionally(throttled);
+				return;
+			}
+			// not the network's fault, so the slice size stays; smaller slices would only mean more requests
+			log.info("Upload of " + range + " throttled; retrying in " + delay + "ms");
+			RetryPolicy.delay(delay, throttled, deadline, executor).whenComplete((v, rejected) -> {
+				if (rejected != null) {
+					result.completeExceptionally(rejected);
+				} else {
+					run();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Reads each slice into an array.  We peek one byte past a full slice to 
+	 * find out whether it is the last.
+	 */
+	private class StreamUpload extends Upload {
+		
+		StreamUpload(String uploadUrl, InputStream is, RetryPolicy retryPolicy, Deadline deadline, Executor executor) {
+			super(uploadUrl, retryPolicy, deadline, executor);
+			this.in = new PushbackInputStream(is, 1);
+		}
+		
+		private final PushbackInputStream in;
+		private byte[] slice = new byte[0];
+		
+		@Override
+		int next() throws ConversionException, IOException {
+			
+			int sliceSize = sizer.nextSize();
+			checkSliceSize(sliceSize);
+			if (slice.length < sliceSize) {
+				slice = new byte[sliceSize];
+			}
+			
+			int len = fill(in, slice, sliceSize);
+			last = len < sliceSize;
+			if (!last) {
+				int next = in.read();
+				if (next == -1) {
+					last = true;
+				} else {
+					in.unread(next);
+				}
+			}
+			
+			if (len == 0) {
+				// Only possible for an empty stream, since we peek past each full slice.
+				// Graph won't accept an empty range.
+				throw new ConversionException("Nothing to upload; stream is empty");
+			}
+			return len;
+		}
+		
+		@Override
+		SliceResponse put(long start, int count) throws IOException {
+			return transport.put(uploadUrl, slice, count, contentRange(start, count));
+		}
+		
+		@Override
+		void resumed(int received, int count) {
+			System.arraycopy(slice, received, slice, 0, count - received);
+		}
+		
+		@Override
+		String contentRange(long start, int count) {
+			
+			long end = start + count - 1;
+			return "bytes " + start + "-" + end + "/" + (last ? String.valueOf(end + 1) : "*");
+		}
+	}
+	
+	/**
+	 * Sends each slice straight from the file.  Nothing needs copying on a resume, 
+	 * since the rest of the slice is still in the file.
+	 */
+	private class ChannelUpload extends Upload {
+		
+		ChannelUpload(String uploadUrl, FileChannel channel, RetryPolicy retryPolicy, Deadline deadline, Executor executor) {
+			super(uploadUrl, retryPolicy, deadline, executor);
+			this.channel = channel;
+		}
+		
+		private final FileChannel channel;
+		private long size = -1;
+		
+		@Override
+		int next() throws ConversionException, IOException {
+			
+			if (size == -1) {
+				size = channel.size();
+				if (size == 0) {
+					// Graph won't accept an empty range
+					throw new ConversionException("Nothing to upload; file is empty");
+				}
+			}
+			int sliceSize = sizer.nextSize();
+			checkSliceSize(sliceSize);
+			int len = (int)Math.min(sliceSize, size - offset);
+			last = offset + len == size;
+			return len;
+		}
+		
+		@Override
+		SliceResponse put(long start, int count) throws IOException {
+			return transport.put(uploadUrl, channel, start, count, contentRange(start, count));
+		}
+		
+		@Override
+		String contentRange(long start, int count) {
+			return "bytes " + start + "-" + (start + count - 1) + "/" + size;
+		}
+	}
+	
+	/**
+	 * Read until size bytes are in buf, or EOF
+	 * @return the number of bytes read
+	 */
+	private static int fill(InputStream in, byte[] buf, int size) throws IOException {
+		
+		int total = 0;
+		while (total < size) {
+			int n = in.read(buf, total, size - total);
+			if (n == -1) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+}
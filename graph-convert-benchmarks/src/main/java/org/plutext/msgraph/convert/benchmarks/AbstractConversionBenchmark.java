@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.plutext.msgraph.convert.AuthConfig;
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.OpenXmlToPDF;
+import org.plutext.msgraph.convert.standin.StandInServer;
+
+/**
+ * One conversion (upload, convert/download, queue the delete) per operation, for a backend 
+ * and input size, against a loopback stand-in with no latency; so what's measured is the
+ * client side: the http client, auth, JSON and copying.
+ * 
+ * The stand-in's PDF is the same size as the input, so the download scales too.
+ * 
+ * Subclasses say which backends and sizes, as JMH params.
+ * 
+ * @author jharrop
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public abstract class AbstractConversionBenchmark {
+	
+	private StandInProcess standIn;
+	private OpenXmlToPDF converter;
+	private byte[] docx;
+	
+	protected abstract String backend();
+	
+	protected abstract int size();
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		
+		standIn = StandInProcess.start(size());
+		converter = converter(backend(), StandInServer.authConfig(standIn.getBaseUrl()));
+		
+		docx = new byte[size()];
+		new Random(42).nextBytes(docx);
+		
+		// first token fetch and connections
+		converter.convert(docx, ".docx", NullOutputStream.NULL_OUTPUT_STREAM);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		
+		// its executors and connection pool, so trials don't leave threads behind
+		if (converter instanceof AutoCloseable) {
+			((AutoCloseable)converter).close();
+		}
+		standIn.stop();
+	}
+	
+	@Benchmark
+	public long convert() throws ConversionException {
+		return converter.convert(docx, ".docx", NullOutputStream.NULL_OUTPUT_STREAM);
+	}
+	
+	static OpenXmlToPDF converter(String backend, AuthConfig authConfig) throws ConversionException {
+		
+		switch (backend) {
+		case "graphsdk":
+			return new org.plutext.msgraph.convert.graphsdk.DocxToPdfConverterLarge(authConfig);
+		case "core":
+			return new org.plutext.msgraph.convert.graphcore.DocxToPdfConverter(authConfig);
+		case "scribe":
+			return new org.plutext.msgraph.convert.scribe.DocxToPdfConverter(authConfig);
+		case "msal":
+			return new org.plutext.msgraph.convert.msal.DocxToPdfConverter(authConfig);
+		default:
+			throw new IllegalArgumentException("Unknown backend " + backend);
+		}
+	}
+
+}
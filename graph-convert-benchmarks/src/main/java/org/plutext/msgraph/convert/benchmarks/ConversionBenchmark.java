@@ -0,0 +1,58 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * The backends which use an upload session above 4 MB, so both the single PUT 
+ * path and the upload session path are covered.
+ * 
+ * Run with the GC profiler for bytes allocated per conversion (gc.alloc.rate.norm):
+ * 
+ *   mvn -P benchmarks package -pl graph-convert-benchmarks -am
+ *   java -jar graph-convert-benchmarks/target/benchmarks.jar -prof gc
+ * 
+ * or eg -p backend=scribe -p size=10240 for a subset.
+ * 
+ * @author jharrop
+ *
+ */
+public class ConversionBenchmark extends AbstractConversionBenchmark {
+	
+	@Param({"graphsdk", "scribe", "msal"})
+	public String backend;
+	
+	/**
+	 * 10 KB, 1 MB, 10 MB and 50 MB
+	 */
+	@Param({"10240", "1048576", "10485760", "52428800"})
+	public int size;
+
+	@Override
+	protected String backend() {
+		return backend;
+	}
+
+	@Override
+	protected int size() {
+		return size;
+	}
+
+}
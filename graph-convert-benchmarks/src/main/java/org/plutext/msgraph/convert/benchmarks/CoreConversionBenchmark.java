@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * The core-only backend, which only does a single PUT, so is limited to 4 MB
+ * (as Graph, and so the stand-in, is).
+ * 
+ * @author jharrop
+ *
+ */
+public class CoreConversionBenchmark extends AbstractConversionBenchmark {
+	
+	/**
+	 * 10 KB, 1 MB and 4 MB
+	 */
+	@Param({"10240", "1048576", "4194304"})
+	public int size;
+
+	@Override
+	protected String backend() {
+		return "core";
+	}
+
+	@Override
+	protected int size() {
+		return size;
+	}
+
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.plutext.msgraph.convert.standin.StandInServer;
+
+/**
+ * A StandInServer (with no latency) in a child JVM, so that its CPU and allocation
+ * don't count against the backend being measured.
+ * 
+ * @author jharrop
+ *
+ */
+class StandInProcess {
+	
+	private static final String BASE_URL = "Stand-in base url ";
+	
+	/**
+	 * @param pdfSize size of the stub PDF to serve
+	 */
+	static StandInProcess start(int pdfSize) throws IOException {
+		
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		Process process = new ProcessBuilder(java, "-Xmx512m", 
+				"-cp", System.getProperty("java.class.path"),
+				StandInServer.class.getName(), "0", "0", "0", "--no-latency", "--pdf-size", String.valueOf(pdfSize))
+				.redirectError(ProcessBuilder.Redirect.INHERIT)
+				.start();
+		
+		BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+		String line;
+		while ((line = out.readLine()) != null) {
+			if (line.startsWith(BASE_URL)) {
+				return new StandInProcess(process, line.substring(BASE_URL.length()).trim());
+			}
+		}
+		process.destroyForcibly();
+		throw new IOException("Stand-in exited with " + waitFor(process));
+	}
+	
+	private StandInProcess(Process process, String baseUrl) {
+		this.process = process;
+		this.baseUrl = baseUrl;
+	}
+	
+	private final Process process;
+	private final String baseUrl;
+	
+	String getBaseUrl() {
+		return baseUrl;
+	}
+	
+	void stop() {
+		process.destroy();
+		waitFor(process);
+	}
+	
+	private static int waitFor(Process process) {
+		
+		try {
+			if (process.waitFor(10, TimeUnit.SECONDS)) {
+				return process.exitValue();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		process.destroyForcibly();
+		return -1;
+	}
+
+}
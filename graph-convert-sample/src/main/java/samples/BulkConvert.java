@@ -0,0 +1,312 @@
+package samples;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.plutext.msgraph.convert.AbstractOpenXmlToPDF;
+import org.plutext.msgraph.convert.AuthConfig;
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.IOConsumer;
+import org.plutext.msgraph.convert.OpenXmlToPDF;
+import org.plutext.msgraph.convert.batch.BatchConverter;
+
+/**
+ * Convert every .docx, .pptx and .xlsx in a directory tree, writing each PDF to the
+ * same relative path under the output directory (eg a/b/c.docx to out/a/b/c.pdf).
+ *
+ * Usage: BulkConvert inputDir outputDir [options]
+ *
+ *   --parallelism n   documents in flight at once (default 16)
+ *   --backend name    graphsdk, core, msal or scribe (default graphsdk); the
+ *                     corresponding module must be uncommented in your pom
+ *   --report s        seconds between progress reports (default 5)
+ *   --skip-existing   don't convert a document whose PDF is already there,
+ *                     so an interrupted run can be resumed
+ *
+ * Progress (docs/sec, MB/sec of input, and latency percentiles) is printed as it runs.
+ * Failures are listed on stderr; the exit status is 1 if there were any.
+ *
+ * @author jharrop
+ *
+ */
+public class BulkConvert {
+
+	private static final String[] EXTENSIONS = {".docx", ".pptx", ".xlsx"};
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 2) {
+			usage("input and output directories are required");
+		}
+		Path inputDir = Paths.get(args[0]);
+		Path outputDir = Paths.get(args[1]);
+		int parallelism = BatchConverter.DEFAULT_DEPTH;
+		String backend = "graphsdk";
+		int reportSeconds = 5;
+		boolean skipExisting = false;
+
+		for (int i = 2; i < args.length; i++) {
+			switch (args[i]) {
+			case "--parallelism":
+				parallelism = Integer.parseInt(value(args, ++i));
+				break;
+			case "--backend":
+				backend = value(args, ++i);
+				break;
+			case "--report":
+				reportSeconds = Integer.parseInt(value(args, ++i));
+				break;
+			case "--skip-existing":
+				skipExisting = true;
+				break;
+			default:
+				usage("unknown option " + args[i]);
+			}
+		}
+		if (!Files.isDirectory(inputDir)) {
+			usage(inputDir + " is not a directory");
+		}
+
+		OpenXmlToPDF converter = new ByExtension(backend, new AuthConfigImpl());
+		Progress progress = new Progress();
+
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "bulk-convert-report");
+			t.setDaemon(true);
+			return t;
+		});
+		reporter.scheduleAtFixedRate(() -> System.out.println(progress.report()),
+				reportSeconds, reportSeconds, TimeUnit.SECONDS);
+
+		boolean skip = skipExisting;
+		try (Stream<Path> files = Files.walk(inputDir)) {
+
+			// walked lazily, so the whole tree is never listed in memory
+			Iterator<Path> inputs = files
+					.filter(Files::isRegularFile)
+					.filter(BulkConvert::isSupported)
+					.filter(p -> !(skip && Files.exists(output(inputDir, outputDir, p))))
+					.iterator();
+
+			// each PDF is written straight to disk, by the converter's convert(File, File)
+			new BatchConverter(converter, parallelism).convertAll(() -> inputs, 
+					input -> output(inputDir, outputDir, input), result -> {
+
+				Path input = result.getInput();
+				if (!result.isSuccess()) {
+					System.err.println(input + ": " + result.getFailure().getMessage());
+				}
+				progress.record(input.toFile().length(), result.getElapsedNanos(), result.isSuccess());
+			});
+		} finally {
+			reporter.shutdownNow();
+		}
+
+		System.out.println(progress.report());
+		System.out.println(progress.summary());
+		System.exit(progress.failed == 0 ? 0 : 1);
+	}
+
+	private static boolean isSupported(Path p) {
+
+		String name = p.getFileName().toString().toLowerCase(Locale.ROOT);
+		for (String ext : EXTENSIONS) {
+			if (name.endsWith(ext)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Path output(Path inputDir, Path outputDir, Path input) {
+
+		// the extension is replaced in the file's name, not a directory's
+		String name = input.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		return outputDir.resolve(inputDir.relativize(input)).resolveSibling((dot < 0 ? name : name.substring(0, dot)) + ".pdf");
+	}
+
+	private static String value(String[] args, int i) {
+
+		if (i >= args.length) {
+			usage(args[i - 1] + " needs a value");
+		}
+		return args[i];
+	}
+
+	private static void usage(String problem) {
+
+		System.err.println(problem);
+		System.err.println("Usage: BulkConvert inputDir outputDir [--parallelism n] [--backend graphsdk|core|msal|scribe] "
+				+ "[--report seconds] [--skip-existing]");
+		System.exit(2);
+	}
+
+	/**
+	 * Counts, updated from BatchConverter's callback (one at a time),
+	 * and read by the reporting thread.
+	 */
+	private static class Progress {
+
+		private final long startNanos = System.nanoTime();
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		private long succeeded;
+		private long failed;
+		private long bytes;
+
+		// as at the last report, for the rates over the interval
+		private long lastNanos = startNanos;
+		private long lastDone;
+		private long lastBytes;
+
+		synchronized void record(long inputBytes, long elapsedNanos, boolean success) {
+
+			if (success) {
+				succeeded++;
+			} else {
+				failed++;
+			}
+			bytes += inputBytes;
+			latency.record(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+		}
+
+		synchronized String report() {
+
+			long now = System.nanoTime();
+			long done = succeeded + failed;
+			double interval = Math.max(now - lastNanos, 1) / 1e9;
+			String line = String.format("%,d done (%,d failed) | %.1f docs/s, %.2f MB/s | latency ms p50 %d, p90 %d, p99 %d, max %d",
+					done, failed,
+					(done - lastDone) / interval, (bytes - lastBytes) / interval / (1024 * 1024),
+					latency.percentile(50), latency.percentile(90), latency.percentile(99), latency.max());
+			lastNanos = now;
+			lastDone = done;
+			lastBytes = bytes;
+			return line;
+		}
+
+		synchronized String summary() {
+
+			double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+			return String.format("Converted %,d of %,d in %.0f s: %.1f docs/s, %.2f MB/s overall",
+					succeeded, succeeded + failed, seconds,
+					(succeeded + failed) / seconds, bytes / seconds / (1024 * 1024));
+		}
+	}
+
+	/**
+	 * Some backends' converters are specific to one document type, so use
+	 * the Docx, Pptx or Xlsx converter according to the extension.
+	 *
+	 * The backend is chosen by name at runtime, so this compiles whichever
+	 * module your pom includes.
+	 */
+	private static class ByExtension implements OpenXmlToPDF {
+
+		private static final Map<String, String> PACKAGES = new HashMap<String, String>();
+		static {
+			PACKAGES.put("graphsdk", "org.plutext.msgraph.convert.graphsdk.%sToPdfConverterLarge");
+			PACKAGES.put("core", "org.plutext.msgraph.convert.graphcore.%sToPdfConverter");
+			PACKAGES.put("msal", "org.plutext.msgraph.convert.msal.%sToPdfConverter");
+			PACKAGES.put("scribe", "org.plutext.msgraph.convert.scribe.%sToPdfConverter");
+		}
+
+		private final Map<String, OpenXmlToPDF> converters = new HashMap<String, OpenXmlToPDF>();
+
+		ByExtension(String backend, AuthConfig authConfig) throws ConversionException {
+
+			String pattern = PACKAGES.get(backend);
+			if (pattern == null) {
+				usage("unknown backend " + backend);
+			}
+			converters.put(".docx", create(String.format(pattern, "Docx"), authConfig));
+			converters.put(".pptx", create(String.format(pattern, "Pptx"), authConfig));
+			converters.put(".xlsx", create(String.format(pattern, "Xlsx"), authConfig));
+		}
+
+		private static OpenXmlToPDF create(String className, AuthConfig authConfig) throws ConversionException {
+
+			try {
+				return (OpenXmlToPDF)Class.forName(className).getConstructor(AuthConfig.class).newInstance(authConfig);
+			} catch (ClassNotFoundException e) {
+				throw new ConversionException(className + " not found; is its module in your pom?", e);
+			} catch (InvocationTargetException e) {
+				throw new ConversionException("Couldn't create " + className + ": " + e.getCause().getMessage(), e.getCause());
+			} catch (ReflectiveOperationException e) {
+				throw new ConversionException("Couldn't create " + className + ": " + e.getMessage(), e);
+			}
+		}
+
+		private OpenXmlToPDF converter(String ext) {
+
+			OpenXmlToPDF converter = converters.get(ext.toLowerCase(Locale.ROOT));
+			if (converter == null) {
+				throw new IllegalArgumentException("Unsupported extension " + ext);
+			}
+			return converter;
+		}
+
+		@Override
+		public byte[] convert(byte[] bytes, String ext) throws ConversionException {
+			return converter(ext).convert(bytes, ext);
+		}
+
+		@Override
+		public byte[] convert(InputStream is, String ext) throws ConversionException, IOException {
+			return converter(ext).convert(is, ext);
+		}
+
+		@Override
+		public CompletableFuture<byte[]> convertAsync(byte[] bytes, String ext) {
+			return converter(ext).convertAsync(bytes, ext);
+		}
+
+		@Override
+		public long convert(byte[] bytes, String ext, OutputStream sink) throws ConversionException {
+			return converter(ext).convert(bytes, ext, sink);
+		}
+
+		@Override
+		public long convert(InputStream is, String ext, OutputStream sink) throws ConversionException, IOException {
+			return converter(ext).convert(is, ext, sink);
+		}
+
+		@Override
+		public long convert(byte[] bytes, String ext, WritableByteChannel sink) throws ConversionException {
+			return converter(ext).convert(bytes, ext, sink);
+		}
+
+		@Override
+		public long convert(InputStream is, String ext, WritableByteChannel sink) throws ConversionException, IOException {
+			return converter(ext).convert(is, ext, sink);
+		}
+
+		@Override
+		public long convert(File in, File out) throws ConversionException, IOException {
+			return converter(AbstractOpenXmlToPDF.extension(in)).convert(in, out);
+		}
+
+		@Override
+		public byte[] convert(IOConsumer<OutputStream> writer, String ext) throws ConversionException, IOException {
+			return converter(ext).convert(writer, ext);
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package samples;
+
+/**
+ * Latency percentiles over any number of samples in fixed memory: samples are counted
+ * in buckets 5% wide, so a percentile is accurate to within 5%.
+ *
+ * @author jharrop
+ *
+ */
+public class LatencyHistogram {
+
+	private static final double GROWTH = 1.05;
+
+	// 1.05^500 ms is well over a day
+	private final long[] counts = new long[500];
+	private long total;
+	private long maxMillis;
+
+	public synchronized void record(long millis) {
+
+		counts[bucket(millis)]++;
+		total++;
+		maxMillis = Math.max(maxMillis, millis);
+	}
+
+	public synchronized long count() {
+		return total;
+	}
+
+	public synchronized long max() {
+		return maxMillis;
+	}
+
+	/**
+	 * @param p eg 99 for the 99th percentile
+	 * @return the upper bound (in ms) of the bucket the pth percentile falls in, or 0 if there are no samples
+	 */
+	public synchronized long percentile(double p) {
+
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long)Math.ceil(p / 100 * total);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), maxMillis);
+			}
+		}
+		return maxMillis;
+	}
+
+	private static int bucket(long millis) {
+
+		if (millis <= 1) {
+			return 0;
+		}
+		int i = (int)Math.ceil(Math.log(millis) / Math.log(GROWTH));
+		return Math.min(i, 499);
+	}
+
+	private static long upperBound(int bucket) {
+		return (long)Math.ceil(Math.pow(GROWTH, bucket));
+	}
+
+}
@@ -0,0 +1,443 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.standin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A minimal HTTP/1.1 server (keep-alive; Content-Length or chunked request bodies).
+ * 
+ * Not the JDK's com.sun.net.httpserver, since that sends header names as eg "Content-type", 
+ * and the Graph SDK looks up "Content-Type" case sensitively (so it wouldn't parse our JSON).
+ * 
+ * @author jharrop
+ *
+ */
+class HttpListener {
+	
+	private static final Logger log = LoggerFactory.getLogger(HttpListener.class);
+	
+	interface Handler {
+		void handle(Exchange exchange) throws IOException;
+	}
+	
+	HttpListener(int port, Handler handler) throws IOException {
+		
+		this.serverSocket = new ServerSocket(port, 1000, InetAddress.getLoopbackAddress());
+		this.handler = handler;
+		
+		// handlers simulate latency by sleeping, so a thread per connection
+		AtomicInteger threadNumber = new AtomicInteger();
+		this.executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "stand-in-" + threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+	
+	private final ServerSocket serverSocket;
+	private final Handler handler;
+	private final ExecutorService executor;
+	
+	int getPort() {
+		return serverSocket.getLocalPort();
+	}
+	
+	void start() {
+		executor.execute(this::accept);
+	}
+	
+	void stop() {
+		
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			log.debug(e.getMessage());
+		}
+		executor.shutdownNow();
+	}
+	
+	private void accept() {
+		
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				executor.execute(() -> serve(socket));
+			} catch (SocketException e) {
+				// closed
+			} catch (IOException e) {
+				log.warn(e.getMessage());
+			}
+		}
+	}
+	
+	private void serve(Socket socket) {
+		
+		try (
+				Socket s = socket;
+				InputStream in = new BufferedInputStream(s.getInputStream());
+				OutputStream out = new BufferedOutputStream(s.getOutputStream())
+		) {
+			while (true) {
+				String requestLine = readLine(in);
+				if (requestLine == null) {
+					return;
+				}
+				if (requestLine.isEmpty()) {
+					continue;
+				}
+				String[] parts = requestLine.split(" ");
+				if (parts.length != 3) {
+					return;
+				}
+				Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+				String line;
+				while ((line = readLine(in)) != null && !line.isEmpty()) {
+					int colon = line.indexOf(':');
+					if (colon > 0) {
+						headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+					}
+				}
+				if ("100-continue".equalsIgnoreCase(headers.get("Expect"))) {
+					out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+					out.flush();
+				}
+				
+				Exchange exchange = new Exchange(parts[0], parts[1], headers, body(in, headers), out);
+				try {
+					handler.handle(exchange);
+				} finally {
+					exchange.finish();
+				}
+				out.flush();
+				
+				if ("close".equalsIgnoreCase(headers.get("Connection")) || parts[2].equals("HTTP/1.0")) {
+					return;
+				}
+			}
+		} catch (IOException e) {
+			log.debug("Connection closed: " + e.getMessage());
+		}
+	}
+	
+	private static InputStream body(InputStream in, Map<String, String> headers) {
+		
+		if ("chunked".equalsIgnoreCase(headers.get("Transfer-Encoding"))) {
+			return new ChunkedInputStream(in);
+		}
+		String length = headers.get("Content-Length");
+		return new BoundedInputStream(in, length == null ? 0 : Long.parseLong(length));
+	}
+	
+	/**
+	 * @return the line without its CRLF, or null at end of stream
+	 */
+	static String readLine(InputStream in) throws IOException {
+		
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n') {
+				break;
+			}
+			if (b != '\r') {
+				line.write(b);
+			}
+		}
+		if (b == -1 && line.size() == 0) {
+			return null;
+		}
+		return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * One request and its response
+	 */
+	static class Exchange {
+		
+		Exchange(String method, String target, Map<String, String> requestHeaders, InputStream requestBody, OutputStream out) {
+			
+			this.method = method;
+			int q = target.indexOf('?');
+			this.path = decode(q < 0 ? target : target.substring(0, q));
+			this.query = q < 0 ? null : target.substring(q + 1);
+			this.requestHeaders = requestHeaders;
+			this.requestBody = requestBody;
+			this.out = out;
+		}
+		
+		private final String method;
+		private final String path;
+		private final String query;
+		private final Map<String, String> requestHeaders;
+		private final InputStream requestBody;
+		private final OutputStream out;
+		
+		// sent with the case given
+		private final Map<String, String> responseHeaders = new LinkedHashMap<String, String>();
+		private boolean sent;
+		
+		String getMethod() {
+			return method;
+		}
+		
+		/**
+		 * @return the (decoded) path
+		 */
+		String getPath() {
+			return path;
+		}
+		
+		String getQuery() {
+			return query;
+		}
+		
+		String getRequestHeader(String name) {
+			return requestHeaders.get(name);
+		}
+		
+		InputStream getRequestBody() {
+			return requestBody;
+		}
+		
+		void setResponseHeader(String name, String value) {
+			responseHeaders.put(name, value);
+		}
+		
+		void send(int status, String contentType, byte[] body) throws IOException {
+			
+			responseHeaders.put("Content-Type", contentType);
+			write(status, body);
+		}
+		
+		void sendStatus(int status) throws IOException {
+			write(status, new byte[0]);
+		}
+		
+		/**
+		 * Announce the whole body, but send only the first count bytes and then drop the connection.
+		 * 
+		 * @throws IOException always, so the connection is closed
+		 */
+		void sendPartially(int status, String contentType, byte[] body, int count) throws IOException {
+			
+			responseHeaders.put("Content-Type", contentType);
+			write(status, body, count);
+			out.flush();
+			throw new IOException("Dropped the connection after " + count + " of " + body.length + " bytes");
+		}
+		
+		private void write(int status, byte[] body) throws IOException {
+			write(status, body, body.length);
+		}
+		
+		private void write(int status, byte[] body, int count) throws IOException {
+			
+			if (sent) {
+				throw new IllegalStateException("Response already sent");
+			}
+			sent = true;
+			
+			// the client may not read the response until it has sent the whole request
+			drain(requestBody);
+			
+			StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+			for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
+				head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+			}
+			if (status != 204) {
+				head.append("Content-Length: ").append(body.length).append("\r\n");
+			}
+			head.append("\r\n");
+			out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+			out.write(body, 0, count);
+		}
+		
+		void finish() throws IOException {
+			
+			if (!sent) {
+				sendStatus(500);
+			}
+		}
+		
+		private static String decode(String path) {
+			
+			try {
+				return new URI(path).getPath();
+			} catch (URISyntaxException e) {
+				return path;
+			}
+		}
+	}
+	
+	static long drain(InputStream in) throws IOException {
+		
+		byte[] buffer = new byte[64 * 1024];
+		long total = 0;
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			total += n;
+		}
+		return total;
+	}
+	
+	private static String reason(int status) {
+		
+		switch (status) {
+		case 200: return "OK";
+		case 201: return "Created";
+		case 202: return "Accepted";
+		case 204: return "No Content";
+		case 206: return "Partial Content";
+		case 302: return "Found";
+		case 400: return "Bad Request";
+		case 401: return "Unauthorized";
+		case 404: return "Not Found";
+		case 416: return "Requested Range Not Satisfiable";
+		case 429: return "Too Many Requests";
+		case 500: return "Internal Server Error";
+		case 503: return "Service Unavailable";
+		default: return "Status";
+		}
+	}
+	
+	/**
+	 * The request body, when its length is given
+	 */
+	private static class BoundedInputStream extends InputStream {
+		
+		BoundedInputStream(InputStream in, long length) {
+			this.in = in;
+			this.remaining = length;
+		}
+		
+		private final InputStream in;
+		private long remaining;
+
+		@Override
+		public int read() throws IOException {
+			
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b != -1) {
+				remaining--;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			
+			if (remaining <= 0) {
+				return -1;
+			}
+			int n = in.read(b, off, (int)Math.min(len, remaining));
+			if (n > 0) {
+				remaining -= n;
+			}
+			return n;
+		}
+		
+		@Override
+		public void close() {
+			// leave the connection open
+		}
+	}
+	
+	private static class ChunkedInputStream extends InputStream {
+		
+		ChunkedInputStream(InputStream in) {
+			this.in = in;
+		}
+		
+		private final InputStream in;
+		private long chunkRemaining;
+		private boolean eof;
+
+		@Override
+		public int read() throws IOException {
+			
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			
+			if (eof) {
+				return -1;
+			}
+			if (chunkRemaining == 0) {
+				String size = readLine(in);
+				if (size == null) {
+					throw new IOException("Truncated chunked body");
+				}
+				int semi = size.indexOf(';');
+				chunkRemaining = Long.parseLong((semi < 0 ? size : size.substring(0, semi)).trim(), 16);
+				if (chunkRemaining == 0) {
+					// trailers
+					String line;
+					while ((line = readLine(in)) != null && !line.isEmpty()) {
+						// ignore
+					}
+					eof = true;
+					return -1;
+				}
+			}
+			int n = in.read(b, off, (int)Math.min(len, chunkRemaining));
+			if (n == -1) {
+				throw new IOException("Truncated chunked body");
+			}
+			chunkRemaining -= n;
+			if (chunkRemaining == 0) {
+				readLine(in);  // the CRLF after the chunk
+			}
+			return n;
+		}
+		
+		@Override
+		public void close() {
+			// leave the connection open
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.standin;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How long the stand-in server takes over an operation.
+ * 
+ * @author jharrop
+ *
+ */
+public interface Latency {
+	
+	/**
+	 * @return the next delay, in milliseconds
+	 */
+	public abstract long nextMillis();
+	
+	public static final Latency NONE = () -> 0;
+	
+	public static Latency fixed(long millis) {
+		return () -> millis;
+	}
+	
+	/**
+	 * Uniformly distributed between min and max (inclusive)
+	 */
+	public static Latency uniform(long minMillis, long maxMillis) {
+		
+		if (maxMillis < minMillis) {
+			throw new IllegalArgumentException("max " + maxMillis + " is less than min " + minMillis);
+		}
+		return () -> ThreadLocalRandom.current().nextLong(minMillis, maxMillis + 1);
+	}
+	
+	/**
+	 * Log-normally distributed, which is the usual shape of service latencies:
+	 * most requests near the median, with a long tail.
+	 * 
+	 * @param medianMillis
+	 * @param sigma spread; eg 0.5 puts the 99th percentile at about 3 x the median 
+	 */
+	public static Latency logNormal(long medianMillis, double sigma) {
+		
+		double mu = Math.log(medianMillis);
+		return () -> {
+			Random random = ThreadLocalRandom.current();
+			return Math.round(Math.exp(mu + sigma * random.nextGaussian()));
+		};
+	}
+
+}
@@ -0,0 +1,51 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.standin;
+
+/**
+ * The requests the stand-in server handles, each with its own latency and counters.
+ * 
+ * @author jharrop
+ *
+ */
+public enum Operation {
+	
+	/** POST to the token endpoint */
+	TOKEN,
+	
+	/** PUT of a whole document */
+	PUT,
+	
+	CREATE_UPLOAD_SESSION,
+	
+	/** PUT (or GET, for the status) of an upload session slice */
+	UPLOAD_SLICE,
+	
+	/** GET ?format=pdf */
+	CONVERT,
+	
+	/** GET of the redirect target, for the PDF itself */
+	DOWNLOAD,
+	
+	DELETE,
+	
+	/** POST to $batch; its DELETEs are not counted separately */
+	BATCH
+
+}
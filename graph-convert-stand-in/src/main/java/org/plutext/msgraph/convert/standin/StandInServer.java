@@ -0,0 +1,759 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.standin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.plutext.msgraph.convert.AuthConfig;
+import org.plutext.msgraph.convert.upload.StreamingUploader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.plutext.msgraph.convert.standin.HttpListener.Exchange;
+
+/**
+ * A local stand-in for the token endpoint and the parts of Graph used for conversion
+ * (PUT, upload sessions, ?format=pdf, DELETE and $batch), so the converters can be 
+ * tested and benchmarked without a tenant.  Point a converter at it with authConfig().
+ * 
+ * The "PDF" is a stub (see setPdfSize); documents aren't kept, only their names and sizes.
+ * 
+ * Each operation can be given a Latency, and any Graph request can be throttled 
+ * (429 with Retry-After) or failed (500), at random or (for throttling) once more than 
+ * a given number of requests are in flight.
+ * 
+ *   StandInServer server = new StandInServer(0)
+ *   		.setLatency(Operation.CONVERT, Latency.logNormal(1500, 0.5))
+ *   		.setThrottleProbability(0.05)
+ *   		.start();
+ *   OpenXmlToPDF converter = new DocxToPdfConverterLarge(server.authConfig());
+ * 
+ * @author jharrop
+ *
+ */
+public class StandInServer {
+	
+	private static final Logger log = LoggerFactory.getLogger(StandInServer.class);
+	
+	public static final String TENANT = "stand-in-tenant";
+	public static final String SITE = "stand-in-site";
+	
+	private static final String VERSION = "/v1.0";
+	
+	private static final Pattern TOKEN_PATH = Pattern.compile("/[^/]+/oauth2(/v2\\.0)?/token");
+	private static final Pattern ITEM_PATH = Pattern.compile(VERSION + "/sites/([^/]+)/drive/items/(.+?)(/content|/createUploadSession|/microsoft\\.graph\\.createUploadSession)?");
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+	private static final Pattern BATCH_REQUEST = Pattern.compile("\\{[^{}]*\\}");
+	
+	/**
+	 * @param port or 0 for any free port
+	 */
+	public StandInServer(int port) {
+		this.port = port;
+		for (Operation op : Operation.values()) {
+			latencies.put(op, Latency.NONE);
+			requests.put(op, new AtomicLong());
+		}
+	}
+	
+	private final int port;
+	private HttpListener listener;
+	
+	private final Map<Operation, Latency> latencies = new EnumMap<Operation, Latency>(Operation.class);
+	private volatile double throttleProbability;
+	private final Map<Operation, Double> operationThrottleProbabilities = new ConcurrentHashMap<Operation, Double>();
+	private volatile double errorProbability;
+	private volatile int concurrencyLimit = Integer.MAX_VALUE;
+	private volatile int retryAfterSeconds = 1;
+	private volatile boolean redirectDownloads = true;
+	private volatile byte[] pdf = stubPdf(0);
+	private volatile int dropDownloadsAfter = -1;
+	
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final Map<Operation, AtomicLong> requests = new EnumMap<Operation, AtomicLong>(Operation.class);
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	
+	/** uploaded document sizes, by site and item path */
+	private final Map<String, Long> items = new ConcurrentHashMap<String, Long>();
+	private final Map<String, UploadSession> sessions = new ConcurrentHashMap<String, UploadSession>();
+	private final Map<String, String> downloads = new ConcurrentHashMap<String, String>();
+	private final Set<String> issuedTokens = ConcurrentHashMap.newKeySet();
+	private final Set<String> revokedTokens = ConcurrentHashMap.newKeySet();
+
+	public synchronized StandInServer setLatency(Operation op, Latency latency) {
+		latencies.put(op, latency);
+		return this;
+	}
+	
+	/**
+	 * Roughly what we see from Graph: conversion dominates, and the tail is long.
+	 */
+	public StandInServer setTypicalLatencies() {
+		
+		setLatency(Operation.TOKEN, Latency.logNormal(150, 0.3));
+		setLatency(Operation.PUT, Latency.logNormal(300, 0.5));
+		setLatency(Operation.CREATE_UPLOAD_SESSION, Latency.logNormal(200, 0.4));
+		setLatency(Operation.UPLOAD_SLICE, Latency.logNormal(150, 0.5));
+		setLatency(Operation.CONVERT, Latency.logNormal(1500, 0.6));
+		setLatency(Operation.DOWNLOAD, Latency.logNormal(50, 0.4));
+		setLatency(Operation.DELETE, Latency.logNormal(100, 0.4));
+		setLatency(Operation.BATCH, Latency.logNormal(200, 0.4));
+		return this;
+	}
+	
+	/**
+	 * The chance (0 to 1) that a Graph request (not the token request) gets a 429
+	 */
+	public StandInServer setThrottleProbability(double throttleProbability) {
+		this.throttleProbability = throttleProbability;
+		return this;
+	}
+	
+	/**
+	 * The chance (0 to 1) that this operation gets a 429, in place of the above
+	 */
+	public StandInServer setThrottleProbability(Operation op, double throttleProbability) {
+		operationThrottleProbabilities.put(op, throttleProbability);
+		return this;
+	}
+	
+	/**
+	 * The chance (0 to 1) that a Graph request (not the token request) gets a 500
+	 */
+	public StandInServer setErrorProbability(double errorProbability) {
+		this.errorProbability = errorProbability;
+		return this;
+	}
+	
+	/**
+	 * Throttle Graph requests beyond this many in flight at once (default unlimited)
+	 */
+	public StandInServer setConcurrencyLimit(int concurrencyLimit) {
+		this.concurrencyLimit = concurrencyLimit;
+		return this;
+	}
+	
+	/**
+	 * The Retry-After sent with a 429 (default 1 second)
+	 */
+	public StandInServer setRetryAfterSeconds(int retryAfterSeconds) {
+		this.retryAfterSeconds = retryAfterSeconds;
+		return this;
+	}
+	
+	/**
+	 * Like Graph, answer ?format=pdf with a 302 to the PDF itself (the default), 
+	 * rather than with the PDF.
+	 */
+	public StandInServer setRedirectDownloads(boolean redirectDownloads) {
+		this.redirectDownloads = redirectDownloads;
+		return this;
+	}
+	
+	/**
+	 * Cut the connection after this many bytes of each redirected download 
+	 * which doesn't ask for a Range, so clients have to resume it; default -1 (never).
+	 */
+	public StandInServer setDropDownloadsAfter(int bytes) {
+		this.dropDownloadsAfter = bytes;
+		return this;
+	}
+	
+	/**
+	 * Pad the stub PDF to about this many bytes (default is a few hundred)
+	 */
+	public StandInServer setPdfSize(int bytes) {
+		this.pdf = stubPdf(bytes);
+		return this;
+	}
+	
+	/**
+	 * Answer 401 to every token issued so far, as Graph does once they are revoked
+	 * (or the client secret is rotated); tokens issued from now on are accepted.
+	 */
+	public StandInServer revokeTokens() {
+		revokedTokens.addAll(issuedTokens);
+		return this;
+	}
+	
+	public StandInServer start() throws IOException {
+		
+		listener = new HttpListener(port, this::handle);
+		listener.start();
+		log.info("Graph stand-in listening on " + getBaseUrl());
+		return this;
+	}
+	
+	public void stop() {
+		
+		if (listener != null) {
+			listener.stop();
+			listener = null;
+		}
+	}
+	
+	/**
+	 * @return eg http://localhost:8080
+	 */
+	public String getBaseUrl() {
+		return "http://localhost:" + listener.getPort();
+	}
+	
+	/**
+	 * An AuthConfig whose token and Graph endpoints are this server.
+	 */
+	public AuthConfig authConfig() {
+		return authConfig(getBaseUrl());
+	}
+	
+	/**
+	 * An AuthConfig for a stand-in running elsewhere (eg in another process).
+	 * 
+	 * @param baseUrl eg http://localhost:8080
+	 */
+	public static AuthConfig authConfig(String baseUrl) {
+		
+		return new AuthConfig() {
+
+			@Override
+			public String apiKey() {
+				return "stand-in-client";
+			}
+
+			@Override
+			public String apiSecret() {
+				return "stand-in-secret";
+			}
+
+			@Override
+			public String tenant() {
+				return TENANT;
+			}
+
+			@Override
+			public String site() {
+				return SITE;
+			}
+			
+			@Override
+			public String graphEndpoint() {
+				return baseUrl + VERSION;
+			}
+			
+			@Override
+			public String loginEndpoint() {
+				return baseUrl;
+			}
+		};
+	}
+	
+	public long getRequestCount(Operation op) {
+		return requests.get(op).get();
+	}
+	
+	public long getThrottledCount() {
+		return throttled.get();
+	}
+	
+	public long getErrorCount() {
+		return errors.get();
+	}
+	
+	/**
+	 * @return documents uploaded but not (yet) deleted
+	 */
+	public int getItemCount() {
+		return items.size();
+	}
+	
+	private void handle(Exchange exchange) throws IOException {
+		
+		try {
+			route(exchange);
+		} catch (RuntimeException e) {
+			log.error(e.getMessage(), e);
+			sendJson(exchange, 500, error("generalException", String.valueOf(e.getMessage())));
+		}
+	}
+	
+	private void route(Exchange exchange) throws IOException {
+		
+		String method = exchange.getMethod();
+		String path = exchange.getPath();
+		
+		if (TOKEN_PATH.matcher(path).matches() && method.equals("POST")) {
+			token(exchange);
+		} else if (path.equals(VERSION + "/$batch") && method.equals("POST")) {
+			graph(exchange, Operation.BATCH, () -> batch(exchange));
+		} else if (path.startsWith("/upload/")) {
+			graph(exchange, Operation.UPLOAD_SLICE, () -> slice(exchange, path.substring("/upload/".length())));
+		} else if (path.startsWith("/download/") && method.equals("GET")) {
+			graph(exchange, Operation.DOWNLOAD, () -> sendPdf(exchange, path.substring("/download/".length())));
+		} else {
+			Matcher m = ITEM_PATH.matcher(path);
+			if (!m.matches()) {
+				notFound(exchange);
+				return;
+			}
+			String item = m.group(1) + "/" + m.group(2);
+			String suffix = m.group(3);
+			
+			if ("/content".equals(suffix) && method.equals("PUT")) {
+				graph(exchange, Operation.PUT, () -> put(exchange, item));
+			} else if ("/content".equals(suffix) && method.equals("GET")) {
+				graph(exchange, Operation.CONVERT, () -> convert(exchange, item));
+			} else if (suffix != null && suffix.endsWith("createUploadSession") && method.equals("POST")) {
+				graph(exchange, Operation.CREATE_UPLOAD_SESSION, () -> createUploadSession(exchange, item));
+			} else if (suffix == null && method.equals("DELETE")) {
+				graph(exchange, Operation.DELETE, () -> sendStatus(exchange, delete(item) ? 204 : 404));
+			} else {
+				notFound(exchange);
+			}
+		}
+	}
+	
+	private interface Handler {
+		void handle() throws IOException;
+	}
+	
+	/**
+	 * Common to every Graph request: authorization, latency, throttling and errors.
+	 */
+	private void graph(Exchange exchange, Operation op, Handler handler) throws IOException {
+		
+		requests.get(op).incrementAndGet();
+		int concurrent = inFlight.incrementAndGet();
+		try {
+			boolean preAuthenticated = op == Operation.UPLOAD_SLICE || op == Operation.DOWNLOAD;  // as in Graph
+			String authorization = exchange.getRequestHeader("Authorization");
+			if (!preAuthenticated && (authorization == null || !authorization.startsWith("Bearer "))) {
+				drain(exchange);
+				sendJson(exchange, 401, error("InvalidAuthenticationToken", "Access token is empty."));
+				return;
+			}
+			if (!preAuthenticated && revokedTokens.contains(authorization.substring("Bearer ".length()))) {
+				drain(exchange);
+				sendJson(exchange, 401, error("InvalidAuthenticationToken", "Access token has expired or is not yet valid."));
+				return;
+			}
+			
+			sleep(latency(op));
+			
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			if (concurrent > concurrencyLimit 
+					|| random.nextDouble() < operationThrottleProbabilities.getOrDefault(op, throttleProbability)) {
+				throttled.incrementAndGet();
+				drain(exchange);
+				exchange.setResponseHeader("Retry-After", String.valueOf(retryAfterSeconds));
+				sendJson(exchange, 429, error("TooManyRequests", "Please retry after " + retryAfterSeconds + " seconds."));
+				return;
+			}
+			if (random.nextDouble() < errorProbability) {
+				errors.incrementAndGet();
+				drain(exchange);
+				sendJson(exchange, 500, error("generalException", "Injected failure"));
+				return;
+			}
+			handler.handle();
+		} finally {
+			inFlight.decrementAndGet();
+		}
+	}
+	
+	private synchronized Latency latency(Operation op) {
+		return latencies.get(op);
+	}
+	
+	private void token(Exchange exchange) throws IOException {
+		
+		requests.get(Operation.TOKEN).incrementAndGet();
+		drain(exchange);
+		sleep(latency(Operation.TOKEN));
+		String token = "stand-in-" + UUID.randomUUID();
+		issuedTokens.add(token);
+		sendJson(exchange, 200, "{\"token_type\":\"Bearer\",\"expires_in\":3599,\"ext_expires_in\":3599,"
+				+ "\"access_token\":\"" + token + "\"}");
+	}
+	
+	private void put(Exchange exchange, String item) throws IOException {
+		
+		long size = drain(exchange);
+		if (size > StreamingUploader.SINGLE_PUT_LIMIT) {
+			// as Graph does; bigger documents need an upload session
+			sendJson(exchange, 413, error("requestEntityTooLarge", 
+					"A single PUT can be at most " + StreamingUploader.SINGLE_PUT_LIMIT + " bytes, not " + size));
+			return;
+		}
+		items.put(item, size);
+		sendJson(exchange, 201, driveItem(item, size));
+	}
+	
+	private void convert(Exchange exchange, String item) throws IOException {
+		
+		if (!items.containsKey(item)) {
+			sendJson(exchange, 404, error("itemNotFound", "The resource could not be found."));
+			return;
+		}
+		boolean toPdf = "format=pdf".equals(exchange.getQuery());
+		if (!toPdf) {
+			// we don't keep the document itself
+			sendJson(exchange, 400, error("invalidRequest", "The stand-in only supports ?format=pdf"));
+			return;
+		}
+		if (redirectDownloads) {
+			String id = UUID.randomUUID().toString();
+			downloads.put(id, item);
+			exchange.setResponseHeader("Location", getBaseUrl() + "/download/" + id);
+			sendStatus(exchange, 302);
+		} else {
+			send(exchange, 200, "application/pdf", pdf);
+		}
+	}
+	
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-");
+	
+	/**
+	 * Like Graph's download URLs, these can be fetched again (until the item is deleted), 
+	 * and honour a Range of the form "bytes=n-".
+	 */
+	private void sendPdf(Exchange exchange, String id) throws IOException {
+		
+		if (!downloads.containsKey(id)) {
+			notFound(exchange);
+			return;
+		}
+		byte[] body = pdf;
+		String range = exchange.getRequestHeader("Range");
+		if (range == null) {
+			if (dropDownloadsAfter >= 0 && dropDownloadsAfter < body.length) {
+				exchange.sendPartially(200, "application/pdf", body, dropDownloadsAfter);
+				return;
+			}
+			send(exchange, 200, "application/pdf", body);
+			return;
+		}
+		
+		Matcher m = RANGE.matcher(range);
+		int start = m.lookingAt() ? Integer.parseInt(m.group(1)) : -1;
+		if (start < 0 || start >= body.length) {
+			exchange.setResponseHeader("Content-Range", "bytes */" + body.length);
+			sendStatus(exchange, 416);
+			return;
+		}
+		exchange.setResponseHeader("Content-Range", "bytes " + start + "-" + (body.length - 1) + "/" + body.length);
+		send(exchange, 206, "application/pdf", Arrays.copyOfRange(body, start, body.length));
+	}
+	
+	/**
+	 * Move the item to the recycle bin, along with its download URLs
+	 * 
+	 * @return whether it was there
+	 */
+	private boolean delete(String item) {
+		
+		downloads.values().removeIf(item::equals);
+		return items.remove(item) != null;
+	}
+	
+	private void createUploadSession(Exchange exchange, String item) throws IOException {
+		
+		drain(exchange);
+		String id = UUID.randomUUID().toString();
+		sessions.put(id, new UploadSession(item));
+		sendJson(exchange, 200, "{\"uploadUrl\":\"" + getBaseUrl() + "/upload/" + id + "\","
+				+ "\"expirationDateTime\":\"" + Instant.now().plus(1, ChronoUnit.DAYS).truncatedTo(ChronoUnit.SECONDS) + "\","
+				+ "\"nextExpectedRanges\":[\"0-\"]}");
+	}
+	
+	private void slice(Exchange exchange, String id) throws IOException {
+		
+		UploadSession session = sessions.get(id);
+		if (session == null) {
+			drain(exchange);
+			sendJson(exchange, 404, error("itemNotFound", "Upload session not found"));
+			return;
+		}
+		String method = exchange.getMethod();
+		if (method.equals("GET")) {
+			sendJson(exchange, 200, session.status());
+			return;
+		}
+		if (method.equals("DELETE")) {
+			sessions.remove(id);
+			sendStatus(exchange, 204);
+			return;
+		}
+		
+		String range = exchange.getRequestHeader("Content-Range");
+		Matcher m = range == null ? null : CONTENT_RANGE.matcher(range);
+		if (m == null || !m.matches()) {
+			drain(exchange);
+			sendJson(exchange, 400, error("invalidRange", "Bad Content-Range: " + range));
+			return;
+		}
+		long from = Long.parseLong(m.group(1));
+		long to = Long.parseLong(m.group(2));
+		// * if the client doesn't know the total yet
+		long total = m.group(3).equals("*") ? -1 : Long.parseLong(m.group(3));
+		
+		synchronized (session) {
+			if (from != session.received) {
+				drain(exchange);
+				sendJson(exchange, 416, error("invalidRange", "Expected a slice starting at " + session.received));
+				return;
+			}
+			long read = drain(exchange);
+			if (read != to - from + 1) {
+				sendJson(exchange, 400, error("invalidRange", "Content-Range says " + (to - from + 1) + " bytes, but got " + read));
+				return;
+			}
+			session.received += read;
+			if (total < 0 || session.received < total) {
+				sendJson(exchange, 202, session.status());
+				return;
+			}
+		}
+		sessions.remove(id);
+		items.put(session.item, total);
+		sendJson(exchange, 201, driveItem(session.item, total));
+	}
+	
+	private void batch(Exchange exchange) throws IOException {
+		
+		String body = new String(read(exchange), StandardCharsets.UTF_8);
+		
+		// the requests are flat objects, so no need for a JSON library
+		StringBuilder responses = new StringBuilder();
+		Matcher requestMatcher = BATCH_REQUEST.matcher(body.substring(Math.max(body.indexOf('['), 0)));
+		while (requestMatcher.find()) {
+			
+			String request = requestMatcher.group();
+			String id = field(request, "id");
+			String method = field(request, "method");
+			String url = field(request, "url");
+			
+			int status;
+			Matcher m = url == null ? null : ITEM_PATH.matcher(VERSION + url);
+			if (!"DELETE".equals(method) || m == null || !m.matches() || m.group(3) != null) {
+				status = 400;
+			} else if (ThreadLocalRandom.current().nextDouble() < throttleProbability) {
+				throttled.incrementAndGet();
+				status = 429;
+			} else {
+				status = delete(m.group(1) + "/" + m.group(2)) ? 204 : 404;
+			}
+			if (responses.length() > 0) {
+				responses.append(',');
+			}
+			responses.append("{\"id\":\"").append(id).append("\",\"status\":").append(status);
+			if (status == 429) {
+				// as Graph does, each throttled request carries its own Retry-After
+				responses.append(",\"headers\":{\"Retry-After\":\"").append(retryAfterSeconds).append("\"}");
+			}
+			responses.append(",\"body\":{}}");
+		}
+		sendJson(exchange, 200, "{\"responses\":[" + responses + "]}");
+	}
+	
+	private static String field(String json, String name) {
+		
+		Matcher m = Pattern.compile("\"" + name + "\"\\s*:\\s*\"([^\"]*)\"").matcher(json);
+		return m.find() ? m.group(1) : null;
+	}
+	
+	private static String driveItem(String item, long size) {
+		
+		String name = item.substring(item.indexOf(":/") + 2);
+		if (name.endsWith(":")) {
+			name = name.substring(0, name.length() - 1);
+		}
+		return "{\"id\":\"" + UUID.randomUUID() + "\",\"name\":\"" + name + "\",\"size\":" + size 
+				+ ",\"file\":{},\"lastModifiedDateTime\":\"" + Instant.now().truncatedTo(ChronoUnit.SECONDS) + "\"}";
+	}
+	
+	private static String error(String code, String message) {
+		return "{\"error\":{\"code\":\"" + code + "\",\"message\":\"" + message.replace("\"", "'") + "\"}}";
+	}
+	
+	private static void notFound(Exchange exchange) throws IOException {
+		
+		drain(exchange);
+		sendJson(exchange, 404, error("itemNotFound", "No stand-in for " + exchange.getMethod() + " " 
+				+ exchange.getPath()));
+	}
+	
+	private static void sendJson(Exchange exchange, int status, String json) throws IOException {
+		send(exchange, status, "application/json", json.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private static void sendStatus(Exchange exchange, int status) throws IOException {
+		exchange.sendStatus(status);
+	}
+	
+	private static void send(Exchange exchange, int status, String contentType, byte[] body) throws IOException {
+		exchange.send(status, contentType, body);
+	}
+	
+	/**
+	 * Read and discard the request body
+	 * 
+	 * @return its length
+	 */
+	private static long drain(Exchange exchange) throws IOException {
+		return HttpListener.drain(exchange.getRequestBody());
+	}
+	
+	private static byte[] read(Exchange exchange) throws IOException {
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8 * 1024];
+		InputStream is = exchange.getRequestBody();
+		int n;
+		while ((n = is.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+	
+	private static void sleep(Latency latency) {
+		
+		long millis = latency.nextMillis();
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * A minimal one page PDF, padded with a comment to about size bytes.
+	 */
+	static byte[] stubPdf(int size) {
+		
+		String[] objects = {
+				"<< /Type /Catalog /Pages 2 0 R >>",
+				"<< /Type /Pages /Kids [3 0 R] /Count 1 >>",
+				"<< /Type /Page /Parent 2 0 R /MediaBox [0 0 595 842] >>"
+		};
+		StringBuilder pdf = new StringBuilder("%PDF-1.4\n");
+		int padding = size - 400;
+		if (padding > 0) {
+			// a comment, so the structure (and the offsets below) are unaffected
+			char[] pad = new char[padding];
+			Arrays.fill(pad, 'x');
+			pdf.append('%').append(pad).append('\n');
+		}
+		int[] offsets = new int[objects.length];
+		for (int i = 0; i < objects.length; i++) {
+			offsets[i] = pdf.length();
+			pdf.append(i + 1).append(" 0 obj\n").append(objects[i]).append("\nendobj\n");
+		}
+		int xref = pdf.length();
+		pdf.append("xref\n0 ").append(objects.length + 1).append("\n0000000000 65535 f \n");
+		for (int offset : offsets) {
+			pdf.append(String.format("%010d 00000 n \n", offset));
+		}
+		pdf.append("trailer\n<< /Size ").append(objects.length + 1).append(" /Root 1 0 R >>\nstartxref\n")
+				.append(xref).append("\n%%EOF\n");
+		return pdf.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	private static class UploadSession {
+		
+		UploadSession(String item) {
+			this.item = item;
+		}
+		
+		final String item;
+		long received;
+		
+		synchronized String status() {
+			return "{\"expirationDateTime\":\"" + Instant.now().plus(1, ChronoUnit.DAYS).truncatedTo(ChronoUnit.SECONDS) + "\","
+					+ "\"nextExpectedRanges\":[\"" + received + "-\"]}";
+		}
+	}
+	
+	/**
+	 * Run the stand-in until killed.
+	 * 
+	 * Usage: StandInServer [port] [throttleProbability] [errorProbability] [--no-latency] [--pdf-size bytes]
+	 * 
+	 * Port 0 picks a free port; the first line printed gives the base url.
+	 * Without --no-latency, the latencies are typical ones.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		
+		int port = 8080;
+		double throttleProbability = 0;
+		double errorProbability = 0;
+		boolean latency = true;
+		int pdfSize = 0;
+		
+		int positional = 0;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--no-latency")) {
+				latency = false;
+			} else if (args[i].equals("--pdf-size")) {
+				pdfSize = Integer.parseInt(args[++i]);
+			} else if (positional == 0) {
+				port = Integer.parseInt(args[i]);
+				positional++;
+			} else if (positional == 1) {
+				throttleProbability = Double.parseDouble(args[i]);
+				positional++;
+			} else {
+				errorProbability = Double.parseDouble(args[i]);
+			}
+		}
+		
+		StandInServer server = new StandInServer(port)
+				.setThrottleProbability(throttleProbability)
+				.setErrorProbability(errorProbability)
+				.setPdfSize(pdfSize);
+		if (latency) {
+			server.setTypicalLatencies();
+		}
+		server.start();
+		System.out.println("Stand-in base url " + server.getBaseUrl());
+		System.out.println("Graph endpoint " + server.getBaseUrl() + VERSION + ", login endpoint " + server.getBaseUrl() 
+				+ ", tenant " + TENANT + ", site " + SITE);
+		Thread.currentThread().join();
+	}
+
+}
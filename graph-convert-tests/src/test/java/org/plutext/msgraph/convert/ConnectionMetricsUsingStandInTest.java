@@ -0,0 +1,73 @@
+package org.plutext.msgraph.convert;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.plutext.msgraph.convert.graphcore.ConnectionMetrics;
+import org.plutext.msgraph.convert.graphcore.DocxToPdfConverter;
+import org.plutext.msgraph.convert.retry.RetryPolicy;
+import org.plutext.msgraph.convert.standin.Operation;
+import org.plutext.msgraph.convert.standin.StandInServer;
+
+/**
+ * The core-only backend against the local Graph stand-in, with throttling and
+ * failures injected: once the load has finished, no call is left in flight
+ * and no connection is left active (ie no response was leaked).
+ */
+public class ConnectionMetricsUsingStandInTest {
+
+	private StandInServer server;
+
+	@After
+	public void stop() {
+		server.stop();
+	}
+
+	@Test
+	public void testNoLeaksUnderLoad() throws IOException, InterruptedException {
+
+		server = new StandInServer(0).setThrottleProbability(0.2).setErrorProbability(0.1)
+				.setRetryAfterSeconds(0).start();
+		DocxToPdfConverter converter = new DocxToPdfConverter(server.authConfig());
+		// all at once, so they contend for connections, and retry quickly
+		converter.setLimiter(null);
+		converter.setRetryPolicy(new RetryPolicy(3, 10, 100, 30000));
+
+		List<CompletableFuture<byte[]>> conversions = new ArrayList<CompletableFuture<byte[]>>();
+		for (int i = 0; i < 200; i++) {
+			conversions.add(converter.convertAsync(new byte[10 * 1024], ".docx"));
+		}
+		// some fail, by design
+		CompletableFuture.allOf(conversions.toArray(new CompletableFuture[0])).handle((v, e) -> null).join();
+		Assert.assertTrue(converter.getCleanupQueue().shutdown(30, TimeUnit.SECONDS));
+
+		ConnectionMetrics metrics = converter.getConnectionMetrics();
+		Assert.assertEquals(metrics.toString(), 0, metrics.getCallsInFlight());
+		Assert.assertEquals(metrics.toString(), 0, metrics.getActiveConnections());
+		Assert.assertTrue(metrics.toString(), metrics.getIdleConnections() > 0);
+	}
+
+	@Test
+	public void testFailedUploadIsNotConverted() throws IOException {
+
+		server = new StandInServer(0).setErrorProbability(1.0).start();
+		DocxToPdfConverter converter = new DocxToPdfConverter(server.authConfig());
+
+		try {
+			converter.convert(new byte[10 * 1024], ".docx");
+			Assert.fail("Expected the upload to fail");
+		} catch (ConversionException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("upload failed"));
+		}
+		Assert.assertEquals(0, server.getRequestCount(Operation.CONVERT));
+		Assert.assertEquals(converter.getConnectionMetrics().toString(),
+				0, converter.getConnectionMetrics().getCallsInFlight());
+	}
+
+}
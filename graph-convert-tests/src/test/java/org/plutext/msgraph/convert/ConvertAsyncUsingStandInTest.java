@@ -0,0 +1,61 @@
+package org.plutext.msgraph.convert;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.plutext.msgraph.convert.standin.Latency;
+import org.plutext.msgraph.convert.standin.Operation;
+import org.plutext.msgraph.convert.standin.StandInServer;
+
+/**
+ * convertAsync with scribe's default (synchronous) JDKHttpClient, against the local
+ * Graph stand-in: it returns straight away, rather than once Graph has answered.
+ */
+public class ConvertAsyncUsingStandInTest {
+
+	private static final long UPLOAD_MILLIS = 1000;
+
+	private static StandInServer server;
+
+	@BeforeClass
+	public static void start() throws IOException {
+		server = new StandInServer(0).setLatency(Operation.PUT, Latency.fixed(UPLOAD_MILLIS)).start();
+	}
+
+	@AfterClass
+	public static void stop() {
+		server.stop();
+	}
+
+	@Test
+	public void testConversionScribeDefaultClient() throws Exception {
+		check(new org.plutext.msgraph.convert.scribe.DocxToPdfConverter(server.authConfig()));
+	}
+
+	@Test
+	public void testConversionMSAL4J() throws Exception {
+		check(new org.plutext.msgraph.convert.msal.DocxToPdfConverter(server.authConfig()));
+	}
+
+	private void check(AbstractOpenXmlToPDF converter) throws Exception {
+
+		// so only the upload is slow
+		converter.getTokenProvider().getAccessToken().join();
+
+		long start = System.nanoTime();
+		CompletableFuture<byte[]> pdf = converter.convertAsync(new byte[10 * 1024], ".docx");
+		long returnedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		Assert.assertTrue("convertAsync took " + returnedMillis + "ms", returnedMillis < UPLOAD_MILLIS / 2);
+		Assert.assertFalse(pdf.isDone());
+
+		byte[] pdfBytes = pdf.get(30, TimeUnit.SECONDS);
+		Assert.assertTrue("Not a PDF!", new String(pdfBytes, 0, 8).startsWith("%PDF"));
+	}
+
+}
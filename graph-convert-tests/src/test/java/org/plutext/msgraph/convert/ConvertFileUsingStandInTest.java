@@ -0,0 +1,101 @@
+package org.plutext.msgraph.convert;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.plutext.msgraph.convert.graphsdk.DocxToPdfConverterLarge;
+import org.plutext.msgraph.convert.standin.Operation;
+import org.plutext.msgraph.convert.standin.StandInServer;
+
+/**
+ * convert(File, File) against the local Graph stand-in, which drops the connection 
+ * part way through each download, so the download has to be resumed (without converting again).
+ */
+public class ConvertFileUsingStandInTest {
+	
+	private static StandInServer server;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void start() throws IOException {
+		server = new StandInServer(0).setPdfSize(1024 * 1024).setDropDownloadsAfter(300 * 1024).start();
+	}
+	
+	@AfterClass
+	public static void stop() {
+		server.stop();
+	}
+	
+	@Test
+	public void testConversionSdk() throws IOException, ConversionException {
+		check(new DocxToPdfConverterLarge(server.authConfig()), 9 * 1024 * 1024);
+	}
+
+	@Test
+	public void testConversionSdkCore() throws IOException, ConversionException {
+		// a single PUT, so within its limit
+		check(new org.plutext.msgraph.convert.graphcore.DocxToPdfConverter(server.authConfig()), 3 * 1024 * 1024);
+	}
+
+	@Test
+	public void testConversionScribeDefaultClient() throws IOException, ConversionException {
+		check(new org.plutext.msgraph.convert.scribe.DocxToPdfConverter(server.authConfig()), 9 * 1024 * 1024);
+	}
+	
+	@Test
+	public void testConversionMSAL4J() throws IOException, ConversionException {
+		check(new org.plutext.msgraph.convert.msal.DocxToPdfConverter(server.authConfig()), 9 * 1024 * 1024);
+	}
+	
+	@Test
+	public void testNoExtension() throws IOException, ConversionException {
+		
+		File docx = folder.newFile("document");
+		Files.write(docx.toPath(), new byte[10 * 1024]);
+		File pdf = new File(folder.getRoot(), "document.pdf");
+		
+		DocxToPdfConverter[] converters = {
+				new DocxToPdfConverterLarge(server.authConfig()),
+				new org.plutext.msgraph.convert.graphcore.DocxToPdfConverter(server.authConfig()),
+				new org.plutext.msgraph.convert.scribe.DocxToPdfConverter(server.authConfig()),
+				new org.plutext.msgraph.convert.msal.DocxToPdfConverter(server.authConfig())
+		};
+		for (DocxToPdfConverter converter : converters) {
+			try {
+				converter.convert(docx, pdf);
+				Assert.fail("Converted a file with no extension");
+			} catch (ConversionException e) {
+				Assert.assertTrue(e.getMessage(), e.getMessage().contains("no extension"));
+			}
+			Assert.assertFalse(pdf.exists());
+		}
+	}
+	
+	private void check(OpenXmlToPDF converter, int large) throws IOException, ConversionException {
+		
+		for (int size : new int[] {10 * 1024, large}) {
+			File docx = folder.newFile(size + ".docx");
+			Files.write(docx.toPath(), new byte[size]);
+			File pdf = new File(folder.getRoot(), size + ".pdf");
+			
+			long conversions = server.getRequestCount(Operation.CONVERT);
+			long written = converter.convert(docx, pdf);
+			
+			Assert.assertEquals("Converted again", conversions + 1, server.getRequestCount(Operation.CONVERT));
+			Assert.assertEquals(written, pdf.length());
+			byte[] pdfBytes = Files.readAllBytes(pdf.toPath());
+			Assert.assertTrue("Not a PDF!", new String(pdfBytes, 0, 8).startsWith("%PDF"));
+			Assert.assertTrue("Incomplete PDF", new String(pdfBytes, pdfBytes.length - 6, 6).contains("%%EOF"));
+		}
+	}
+	
+}
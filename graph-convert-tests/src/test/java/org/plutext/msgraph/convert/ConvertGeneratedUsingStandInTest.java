@@ -0,0 +1,99 @@
+package org.plutext.msgraph.convert;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.plutext.msgraph.convert.graphsdk.DocxToPdfConverterLarge;
+import org.plutext.msgraph.convert.standin.Operation;
+import org.plutext.msgraph.convert.standin.StandInServer;
+
+/**
+ * convert(IOConsumer, String) against the local Graph stand-in: the document is
+ * written by a generator while it is uploaded.  The large one is above the single
+ * PUT threshold, so (except with the core-only backend) it goes up in slices.
+ */
+public class ConvertGeneratedUsingStandInTest {
+
+	private static StandInServer server;
+
+	@BeforeClass
+	public static void start() throws IOException {
+		server = new StandInServer(0).start();
+	}
+
+	@AfterClass
+	public static void stop() {
+		server.stop();
+	}
+
+	@Test
+	public void testConversionSdk() throws IOException, ConversionException {
+		check(new DocxToPdfConverterLarge(server.authConfig()), true);
+	}
+
+	@Test
+	public void testConversionSdkCore() throws IOException, ConversionException {
+		check(new org.plutext.msgraph.convert.graphcore.DocxToPdfConverter(server.authConfig()), false);
+	}
+
+	@Test
+	public void testConversionScribeDefaultClient() throws IOException, ConversionException {
+		check(new org.plutext.msgraph.convert.scribe.DocxToPdfConverter(server.authConfig()), true);
+	}
+
+	@Test
+	public void testConversionMSAL4J() throws IOException, ConversionException {
+		check(new org.plutext.msgraph.convert.msal.DocxToPdfConverter(server.authConfig()), true);
+	}
+
+	@Test
+	public void testGeneratorFails() throws ConversionException {
+
+		OpenXmlToPDF converter = new DocxToPdfConverterLarge(server.authConfig());
+		IOException broken = new IOException("generator broke");
+		long conversions = server.getRequestCount(Operation.CONVERT);
+		try {
+			converter.convert(os -> {
+				generate(os, 6 * 1024 * 1024);
+				throw broken;
+			}, ".docx");
+			Assert.fail("Expected the generator's exception");
+		} catch (IOException e) {
+			Assert.assertSame(broken, e);
+		}
+		Assert.assertEquals("Converted anyway", conversions, server.getRequestCount(Operation.CONVERT));
+	}
+
+	private void check(OpenXmlToPDF converter, boolean sliced) throws IOException, ConversionException {
+
+		// without slices, it's a single PUT, so within its limit
+		int large = sliced ? 9 * 1024 * 1024 : 3 * 1024 * 1024;
+		for (int size : new int[] {10 * 1024, large}) {
+
+			long slices = server.getRequestCount(Operation.UPLOAD_SLICE);
+			byte[] pdfBytes = converter.convert(os -> generate(os, size), ".docx");
+
+			String sniffed = new String(pdfBytes, 0, 8);  // PDF?
+			Assert.assertTrue("Not a PDF!", sniffed.startsWith("%PDF"));
+			if (sliced && size > 4 * 1024 * 1024) {
+				Assert.assertTrue("Not uploaded in slices", server.getRequestCount(Operation.UPLOAD_SLICE) > slices);
+			}
+		}
+	}
+
+	/**
+	 * Write size bytes, a bit at a time, as a generator would
+	 */
+	private static void generate(OutputStream os, int size) throws IOException {
+
+		byte[] chunk = new byte[100 * 1000];
+		for (int written = 0; written < size; written += chunk.length) {
+			os.write(chunk, 0, Math.min(chunk.length, size - written));
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+package org.plutext.msgraph.convert;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.plutext.msgraph.convert.buffer.BufferPool;
+import org.plutext.msgraph.convert.buffer.PooledBytes;
+import org.plutext.msgraph.convert.graphsdk.DocxToPdfConverterLarge;
+import org.plutext.msgraph.convert.standin.StandInServer;
+import org.plutext.msgraph.convert.upload.StreamingUploader;
+
+/**
+ * convertPooled against the local Graph stand-in: the PDF is read into pooled
+ * buffers, and once released, the next conversion reuses them.
+ */
+public class ConvertPooledUsingStandInTest {
+
+	private static final int PDF_SIZE = 1024 * 1024;
+	private static final int MAX_POOLED = 64;
+
+	private static StandInServer server;
+
+	private static final byte[] small = new byte[10 * 1024];
+	private static final byte[] large = new byte[9 * 1024 * 1024];
+
+	// the core backend only does a single PUT; this fills the pool
+	private static final byte[] singlePut = new byte[StreamingUploader.SINGLE_PUT_LIMIT];
+
+	@BeforeClass
+	public static void start() throws IOException {
+		server = new StandInServer(0).setPdfSize(PDF_SIZE).start();
+	}
+
+	@AfterClass
+	public static void stop() {
+		server.stop();
+	}
+
+	@Test
+	public void testConversionSdk() throws IOException, ConversionException {
+		check(new DocxToPdfConverterLarge(server.authConfig()), false, large);
+	}
+
+	@Test
+	public void testConversionSdkCore() throws IOException, ConversionException {
+
+		org.plutext.msgraph.convert.graphcore.DocxToPdfConverter converter
+			= new org.plutext.msgraph.convert.graphcore.DocxToPdfConverter(server.authConfig());
+		check(converter, true, singlePut);
+
+		// the document is uploaded from pooled buffers too; once released, 
+		// the pool keeps as many as it is allowed
+		byte[] pdf = converter.convert(new ByteArrayInputStream(singlePut), ".docx");
+		Assert.assertTrue(pdf.length > 0);
+		Assert.assertEquals(MAX_POOLED, converter.getBufferPool().getPooledCount());
+	}
+
+	@Test
+	public void testConversionScribeDefaultClient() throws IOException, ConversionException {
+		check(new org.plutext.msgraph.convert.scribe.DocxToPdfConverter(server.authConfig()), false, large);
+	}
+
+	@Test
+	public void testConversionMSAL4J() throws IOException, ConversionException {
+		check(new org.plutext.msgraph.convert.msal.DocxToPdfConverter(server.authConfig()), true, large);
+	}
+
+	private void check(AbstractOpenXmlToPDF converter, boolean direct, byte[] large) throws IOException, ConversionException {
+
+		BufferPool pool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, MAX_POOLED, direct);
+		converter.setBufferPool(pool);
+
+		long allocated = 0;
+		for (byte[] docx : new byte[][] {small, large}) {
+			try (PooledBytes pdf = converter.convertPooled(docx, ".docx")) {
+
+				// the stand-in's PDF is roughly PDF_SIZE
+				Assert.assertTrue(pdf.size() > PDF_SIZE / 2);
+				byte[] sniffed = new byte[8];  // PDF?
+				try (InputStream is = pdf.newInputStream()) {
+					Assert.assertEquals(8, is.read(sniffed));
+				}
+				Assert.assertTrue("Not a PDF!", new String(sniffed).startsWith("%PDF"));
+				byte[] pdfBytes = pdf.toByteArray();
+				Assert.assertEquals(pdf.size(), pdfBytes.length);
+				Assert.assertTrue("Incomplete PDF", new String(pdfBytes, pdfBytes.length - 6, 6).contains("%%EOF"));
+			}
+			if (allocated == 0) {
+				allocated = pool.getAllocatedCount();
+			}
+		}
+
+		// the second PDF was read into the buffers the first released
+		Assert.assertEquals(allocated, pool.getAllocatedCount());
+		Assert.assertTrue(pool.getReusedCount() > 0);
+	}
+
+}
@@ -0,0 +1,83 @@
+package org.plutext.msgraph.convert;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.plutext.msgraph.convert.graphsdk.DocxToPdfConverterLarge;
+import org.plutext.msgraph.convert.standin.Operation;
+import org.plutext.msgraph.convert.standin.StandInServer;
+import org.plutext.msgraph.convert.upload.StreamingUploader;
+
+/**
+ * convert(InputStream, ..) against the local Graph stand-in, from a stream which
+ * arrives a little at a time: up to the single PUT threshold, the document goes
+ * in one PUT; one byte more, and it goes via an upload session.
+ */
+public class ConvertStreamUsingStandInTest {
+
+	private static StandInServer server;
+
+	@BeforeClass
+	public static void start() throws IOException {
+		server = new StandInServer(0).start();
+	}
+
+	@AfterClass
+	public static void stop() {
+		server.stop();
+	}
+
+	@Test
+	public void testConversionSdk() throws IOException, ConversionException {
+		check(new DocxToPdfConverterLarge(server.authConfig()));
+	}
+
+	@Test
+	public void testConversionScribeDefaultClient() throws IOException, ConversionException {
+		check(new org.plutext.msgraph.convert.scribe.DocxToPdfConverter(server.authConfig()));
+	}
+
+	@Test
+	public void testConversionMSAL4J() throws IOException, ConversionException {
+		check(new org.plutext.msgraph.convert.msal.DocxToPdfConverter(server.authConfig()));
+	}
+
+	private void check(AbstractOpenXmlToPDF converter) throws IOException, ConversionException {
+
+		int limit = StreamingUploader.SINGLE_PUT_LIMIT;
+		for (int size : new int[] {10 * 1024, limit, limit + 1, 9 * 1024 * 1024}) {
+
+			long puts = server.getRequestCount(Operation.PUT);
+			long sessions = server.getRequestCount(Operation.CREATE_UPLOAD_SESSION);
+
+			byte[] pdf = converter.convert(new Trickle(new byte[size]), ".docx");
+			Assert.assertTrue("Not a PDF!", new String(pdf, 0, 8).startsWith("%PDF"));
+
+			boolean single = size <= limit;
+			Assert.assertEquals(size + " bytes", puts + (single ? 1 : 0), server.getRequestCount(Operation.PUT));
+			Assert.assertEquals(size + " bytes", sessions + (single ? 0 : 1),
+					server.getRequestCount(Operation.CREATE_UPLOAD_SESSION));
+		}
+	}
+
+	/**
+	 * Returns at most 1000 bytes per read, as a socket might
+	 */
+	private static class Trickle extends ByteArrayInputStream {
+
+		Trickle(byte[] buf) {
+			super(buf);
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			return super.read(b, off, Math.min(len, 1000));
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+package org.plutext.msgraph.convert;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.plutext.msgraph.convert.graphsdk.DocxToPdfConverterLarge;
+import org.plutext.msgraph.convert.standin.StandInServer;
+
+/**
+ * Each implementation against the local Graph stand-in, so these run without a tenant.
+ * The input is above the single PUT threshold, so upload sessions are exercised too.
+ */
+public class ConvertUsingStandInTest {
+	
+	private static StandInServer server;
+	
+	private static final byte[] small = new byte[10 * 1024];
+	private static final byte[] large = new byte[9 * 1024 * 1024];
+	
+	// the core backend only does a single PUT
+	private static final byte[] singlePut = new byte[3 * 1024 * 1024];
+
+	@BeforeClass
+	public static void start() throws IOException {
+		server = new StandInServer(0).start();
+	}
+	
+	@AfterClass
+	public static void stop() {
+		server.stop();
+	}
+	
+	@Test
+	public void testConversionSdk() throws IOException, ConversionException {
+		check(new DocxToPdfConverterLarge(server.authConfig()));
+	}
+
+	@Test
+	public void testConversionSdkCore() throws IOException, ConversionException {
+		check(new org.plutext.msgraph.convert.graphcore.DocxToPdfConverter(server.authConfig()), small, singlePut);
+	}
+
+	@Test
+	public void testConversionSdkCoreTooLarge() {
+		
+		OpenXmlToPDF converter = new org.plutext.msgraph.convert.graphcore.DocxToPdfConverter(server.authConfig());
+		try {
+			converter.convert(large, ".docx");
+			Assert.fail("Converted a document too large for a single PUT");
+		} catch (ConversionException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("413"));
+		}
+	}
+
+	@Test
+	public void testConversionScribeDefaultClient() throws IOException, ConversionException {
+		check(new org.plutext.msgraph.convert.scribe.DocxToPdfConverter(server.authConfig()));
+	}
+	
+	@Test
+	public void testConversionMSAL4J() throws IOException, ConversionException {
+		check(new org.plutext.msgraph.convert.msal.DocxToPdfConverter(server.authConfig()));
+	}
+	
+	@Test
+	public void testConversionAfterCleanupShutdown() throws IOException, ConversionException, InterruptedException {
+		
+		AbstractOpenXmlToPDF converter = new org.plutext.msgraph.convert.graphcore.DocxToPdfConverter(server.authConfig());
+		converter.getCleanupQueue().shutdown(0, TimeUnit.SECONDS);
+		// the upload can't be deleted now, but that doesn't fail the conversion
+		check(converter, small, singlePut);
+	}
+	
+	private void check(OpenXmlToPDF converter) throws ConversionException {
+		check(converter, small, large);
+	}
+	
+	private void check(OpenXmlToPDF converter, byte[]... docs) throws ConversionException {
+		
+		for (byte[] docx : docs) {
+			byte[] pdfBytes = converter.convert(docx, ".docx");
+			
+			String sniffed = new String(pdfBytes, 0, 8);  // PDF?
+			Assert.assertTrue("Not a PDF!", sniffed.startsWith("%PDF"));
+		}
+	}
+	
+}
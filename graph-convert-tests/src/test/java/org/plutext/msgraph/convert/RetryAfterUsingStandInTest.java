@@ -0,0 +1,67 @@
+package org.plutext.msgraph.convert;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.plutext.msgraph.convert.graphsdk.DocxToPdfConverterLarge;
+import org.plutext.msgraph.convert.retry.RetryPolicy;
+import org.plutext.msgraph.convert.standin.Operation;
+import org.plutext.msgraph.convert.standin.StandInServer;
+import org.plutext.msgraph.convert.throttle.ThrottledException;
+
+/**
+ * Against the local Graph stand-in, which throttles one operation every time:
+ * the retry waits for the Retry-After, however short the policy's own backoff,
+ * and only our RetryPolicy retries.
+ */
+public class RetryAfterUsingStandInTest {
+
+	private static final int RETRY_AFTER_SECONDS = 1;
+
+	private StandInServer server;
+
+	@After
+	public void stop() {
+		server.stop();
+	}
+
+	@Test
+	public void testSdkUpload() throws IOException {
+
+		server = new StandInServer(0).setThrottleProbability(Operation.PUT, 1.0)
+				.setRetryAfterSeconds(RETRY_AFTER_SECONDS).start();
+		check(new DocxToPdfConverterLarge(server.authConfig()), new byte[10 * 1024], Operation.PUT);
+	}
+
+	@Test
+	public void testUploadSlices() throws IOException, ConversionException {
+
+		server = new StandInServer(0).setThrottleProbability(Operation.UPLOAD_SLICE, 1.0)
+				.setRetryAfterSeconds(RETRY_AFTER_SECONDS).start();
+		check(new org.plutext.msgraph.convert.scribe.DocxToPdfConverter(server.authConfig()),
+				new byte[9 * 1024 * 1024], Operation.UPLOAD_SLICE);
+	}
+
+	private void check(AbstractOpenXmlToPDF converter, byte[] docx, Operation throttled) {
+
+		converter.setLimiter(null);
+		converter.setRetryPolicy(new RetryPolicy(2, 10, 10, 60000));
+		converter.getTokenProvider().getAccessToken().join();
+
+		long start = System.nanoTime();
+		try {
+			converter.convert(docx, ".docx");
+			Assert.fail("Expected the upload to be throttled");
+		} catch (ConversionException e) {
+			Assert.assertNotNull(e.toString(), ThrottledException.in(e));
+		}
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		Assert.assertTrue("Retried after " + millis + "ms", millis >= TimeUnit.SECONDS.toMillis(RETRY_AFTER_SECONDS));
+		Assert.assertEquals(2, server.getRequestCount(throttled));
+	}
+
+}
@@ -0,0 +1,96 @@
+package org.plutext.msgraph.convert;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.plutext.msgraph.convert.graphsdk.DocxToPdfConverterLarge;
+import org.plutext.msgraph.convert.standin.Operation;
+import org.plutext.msgraph.convert.standin.StandInServer;
+
+/**
+ * Against the local Graph stand-in, which revokes the cached token before each
+ * conversion: Graph's 401 makes the converter fetch a new token (just the one),
+ * and the conversion succeeds.
+ */
+public class RevokedTokenUsingStandInTest {
+
+	private static StandInServer server;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void start() throws IOException {
+		server = new StandInServer(0).start();
+	}
+
+	@AfterClass
+	public static void stop() {
+		server.stop();
+	}
+
+	@Test
+	public void testConversionSdk() throws Exception {
+		check(new DocxToPdfConverterLarge(server.authConfig()), 9 * 1024 * 1024);
+	}
+
+	@Test
+	public void testConversionSdkCore() throws Exception {
+		// a single PUT, so within its limit
+		check(new org.plutext.msgraph.convert.graphcore.DocxToPdfConverter(server.authConfig()), 3 * 1024 * 1024);
+	}
+
+	@Test
+	public void testConversionScribeDefaultClient() throws Exception {
+		check(new org.plutext.msgraph.convert.scribe.DocxToPdfConverter(server.authConfig()), 9 * 1024 * 1024);
+	}
+
+	@Test
+	public void testConversionMSAL4J() throws Exception {
+		check(new org.plutext.msgraph.convert.msal.DocxToPdfConverter(server.authConfig()), 9 * 1024 * 1024);
+	}
+
+	private void check(AbstractOpenXmlToPDF converter, int large) throws Exception {
+
+		converter.getTokenProvider().getAccessToken().join();
+
+		for (int size : new int[] {10 * 1024, large}) {
+
+			revoke(converter);
+			long tokens = server.getRequestCount(Operation.TOKEN);
+			byte[] pdfBytes = converter.convert(new byte[size], ".docx");
+			Assert.assertTrue("Not a PDF!", new String(pdfBytes, 0, 8).startsWith("%PDF"));
+			Assert.assertEquals(tokens + 1, server.getRequestCount(Operation.TOKEN));
+
+			File docx = folder.newFile(size + ".docx");
+			Files.write(docx.toPath(), new byte[size]);
+			File pdf = new File(folder.getRoot(), size + ".pdf");
+
+			revoke(converter);
+			tokens = server.getRequestCount(Operation.TOKEN);
+			long written = converter.convert(docx, pdf);
+			Assert.assertEquals(written, pdf.length());
+			Assert.assertTrue("Not a PDF!", new String(Files.readAllBytes(pdf.toPath()), 0, 8).startsWith("%PDF"));
+			Assert.assertEquals(tokens + 1, server.getRequestCount(Operation.TOKEN));
+		}
+	}
+
+	/**
+	 * Once the last conversion's delete is done, so it doesn't see the 401 first
+	 */
+	private void revoke(AbstractOpenXmlToPDF converter) throws InterruptedException {
+
+		for (int i = 0; i < 100 && converter.getCleanupQueue().pending() > 0; i++) {
+			Thread.sleep(100);
+		}
+		server.revokeTokens();
+	}
+
+}
@@ -0,0 +1,112 @@
+package org.plutext.msgraph.convert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * An OpenXmlToPDF which doesn't go to Graph: every variant goes through
+ * convertAsync, whose result the test decides, and which counts its calls.
+ * By default the "PDF" is a %PDF header followed by the document.
+ */
+public class StubConverter implements OpenXmlToPDF {
+
+	public static final byte[] HEADER = "%PDF-1.7\n".getBytes();
+
+	public StubConverter() {
+		this(bytes -> CompletableFuture.completedFuture(pdf(bytes)));
+	}
+
+	public StubConverter(Function<byte[], CompletableFuture<byte[]>> conversion) {
+		this.conversion = conversion;
+	}
+
+	private final Function<byte[], CompletableFuture<byte[]>> conversion;
+
+	private final AtomicInteger calls = new AtomicInteger();
+
+	/**
+	 * @return how many conversions were asked for
+	 */
+	public int calls() {
+		return calls.get();
+	}
+
+	public static byte[] pdf(byte[] doc) {
+
+		byte[] pdf = new byte[HEADER.length + doc.length];
+		System.arraycopy(HEADER, 0, pdf, 0, HEADER.length);
+		System.arraycopy(doc, 0, pdf, HEADER.length, doc.length);
+		return pdf;
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] bytes, String ext) {
+		calls.incrementAndGet();
+		return conversion.apply(bytes);
+	}
+
+	@Override
+	public byte[] convert(byte[] bytes, String ext) throws ConversionException {
+		return AbstractOpenXmlToPDF.await(convertAsync(bytes, ext));
+	}
+
+	@Override
+	public byte[] convert(InputStream is, String ext) throws ConversionException, IOException {
+		return convert(IOUtils.toByteArray(is), ext);
+	}
+
+	@Override
+	public long convert(byte[] bytes, String ext, OutputStream sink) throws ConversionException {
+
+		byte[] pdf = convert(bytes, ext);
+		try {
+			sink.write(pdf);
+		} catch (IOException e) {
+			throw new ConversionException(e.getMessage(), e);
+		}
+		return pdf.length;
+	}
+
+	@Override
+	public long convert(InputStream is, String ext, OutputStream sink) throws ConversionException, IOException {
+		return convert(IOUtils.toByteArray(is), ext, sink);
+	}
+
+	@Override
+	public long convert(byte[] bytes, String ext, WritableByteChannel sink) throws ConversionException {
+		return convert(bytes, ext, Channels.newOutputStream(sink));
+	}
+
+	@Override
+	public long convert(InputStream is, String ext, WritableByteChannel sink) throws ConversionException, IOException {
+		return convert(is, ext, Channels.newOutputStream(sink));
+	}
+
+	@Override
+	public long convert(File in, File out) throws ConversionException, IOException {
+
+		byte[] pdf = convert(Files.readAllBytes(in.toPath()), AbstractOpenXmlToPDF.extension(in));
+		Files.write(out.toPath(), pdf);
+		return pdf.length;
+	}
+
+	@Override
+	public byte[] convert(IOConsumer<OutputStream> writer, String ext) throws ConversionException, IOException {
+
+		ByteArrayOutputStream doc = new ByteArrayOutputStream();
+		writer.accept(doc);
+		return convert(doc.toByteArray(), ext);
+	}
+
+}
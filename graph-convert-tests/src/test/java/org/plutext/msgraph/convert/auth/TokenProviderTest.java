@@ -0,0 +1,82 @@
+package org.plutext.msgraph.convert.auth;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Invalidation by the rejected token, and fetches which never finish.
+ */
+public class TokenProviderTest {
+
+	/**
+	 * Each fetch is a future the test completes
+	 */
+	private final List<CompletableFuture<AccessToken>> fetches = new CopyOnWriteArrayList<CompletableFuture<AccessToken>>();
+
+	private final TokenProvider provider = new TokenProvider(() -> {
+		CompletableFuture<AccessToken> fetch = new CompletableFuture<AccessToken>();
+		fetches.add(fetch);
+		return fetch;
+	});
+
+	@Test
+	public void testLate401DoesNotDiscardNewToken() throws Exception {
+
+		CompletableFuture<String> first = provider.getAccessToken();
+		fetches.get(0).complete(AccessToken.expiringIn("old", 3600));
+		Assert.assertEquals("old", first.get());
+
+		// the first request sent with the old token to get a 401 gets a new one
+		provider.invalidate("old");
+		CompletableFuture<String> second = provider.getAccessToken();
+		fetches.get(1).complete(AccessToken.expiringIn("new", 3600));
+		Assert.assertEquals("new", second.get());
+
+		// others sent with the old token get their 401s after that
+		provider.invalidate("old");
+		Assert.assertEquals("new", provider.getAccessToken().get());
+		Assert.assertEquals(2, fetches.size());
+
+		provider.invalidate("new");
+		provider.getAccessToken();
+		Assert.assertEquals(3, fetches.size());
+	}
+
+	@Test
+	public void testStuckFetchTimesOut() throws Exception {
+
+		provider.setFetchTimeout(200, TimeUnit.MILLISECONDS);
+		CompletableFuture<String> stuck = provider.getAccessToken();
+		// single flight
+		CompletableFuture<String> waiting = provider.getAccessToken();
+		Assert.assertEquals(1, fetches.size());
+
+		for (CompletableFuture<String> token : Arrays.asList(stuck, waiting)) {
+			try {
+				token.get(10, TimeUnit.SECONDS);
+				Assert.fail("Got a token from a fetch which never finished");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof TimeoutException);
+			}
+		}
+
+		// the next request tries again
+		CompletableFuture<String> retried = provider.getAccessToken();
+		Assert.assertEquals(2, fetches.size());
+		fetches.get(1).complete(AccessToken.expiringIn("token", 3600));
+		Assert.assertEquals("token", retried.get(10, TimeUnit.SECONDS));
+
+		// and the stuck fetch finishing late doesn't clear the one in flight
+		fetches.get(0).complete(AccessToken.expiringIn("late", 3600));
+		Assert.assertEquals(2, fetches.size());
+	}
+
+}
@@ -0,0 +1,230 @@
+package org.plutext.msgraph.convert.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.StubConverter;
+import org.plutext.msgraph.convert.graphsdk.DocxToPdfConverterLarge;
+import org.plutext.msgraph.convert.standin.Operation;
+import org.plutext.msgraph.convert.standin.StandInServer;
+
+/**
+ * A batch against the local Graph stand-in; and, with a stub converter whose conversions
+ * the test finishes, the order results are delivered in, the depth bound, and closing early.
+ */
+public class BatchConverterTest {
+
+	private static StandInServer server;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * The stub's conversions, as they start
+	 */
+	private final BlockingQueue<Pending> pending = new LinkedBlockingQueue<Pending>();
+
+	private final StubConverter stub = new StubConverter(bytes -> {
+		CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+		pending.add(new Pending(new String(bytes, StandardCharsets.US_ASCII), future));
+		return future;
+	});
+
+	@BeforeClass
+	public static void start() throws IOException {
+		server = new StandInServer(0).start();
+	}
+
+	@AfterClass
+	public static void stop() {
+		server.stop();
+	}
+
+	@Test
+	public void testConvertAllUsingStandIn() throws Exception {
+
+		List<Path> inputs = documents(6);
+		Path noExtension = folder.newFile("document").toPath();
+		inputs.add(3, noExtension);
+		File out = folder.newFolder("out");
+
+		long conversions = server.getRequestCount(Operation.CONVERT);
+		List<BatchResult> results = new ArrayList<BatchResult>();
+		int failures = new BatchConverter(new DocxToPdfConverterLarge(server.authConfig()), 3).convertAll(inputs,
+				input -> new File(out, input.getFileName() + ".pdf").toPath(), results::add);
+
+		Assert.assertEquals(1, failures);
+		Assert.assertEquals(inputs.size(), results.size());
+		Assert.assertEquals(conversions + 6, server.getRequestCount(Operation.CONVERT));
+		for (BatchResult result : results) {
+			if (result.getInput().equals(noExtension)) {
+				Assert.assertFalse(result.isSuccess());
+				Assert.assertTrue(result.getFailure() instanceof ConversionException);
+			} else {
+				Assert.assertTrue(String.valueOf(result.getFailure()), result.isSuccess());
+				byte[] pdf = Files.readAllBytes(result.getOutput());
+				Assert.assertTrue("Not a PDF!", new String(pdf, 0, 8).startsWith("%PDF"));
+			}
+		}
+
+		// and into memory, through the iterator
+		int succeeded = 0;
+		try (BatchResults iterator = new BatchConverter(new DocxToPdfConverterLarge(server.authConfig()), 3).results(inputs)) {
+			while (iterator.hasNext()) {
+				BatchResult result = iterator.next();
+				if (result.isSuccess()) {
+					succeeded++;
+					Assert.assertTrue("Not a PDF!", new String(result.getPdf(), 0, 8).startsWith("%PDF"));
+				}
+			}
+		}
+		Assert.assertEquals(6, succeeded);
+	}
+
+	@Test
+	public void testCompletionOrderAndDepth() throws Exception {
+
+		List<Path> inputs = documents(5);
+		List<String> delivered = new CopyOnWriteArrayList<String>();
+		BatchConverter batch = new BatchConverter(stub, 3);
+		CompletableFuture<Integer> failures = CompletableFuture.supplyAsync(() -> {
+			try {
+				return batch.convertAll(inputs, result -> delivered.add(name(result)));
+			} catch (InterruptedException e) {
+				throw new CompletionException(e);
+			}
+		});
+
+		// no more than depth at once
+		List<Pending> first = take(3);
+		Thread.sleep(200);
+		Assert.assertTrue(pending.isEmpty());
+
+		// finishing (or failing) one starts the next
+		first.get(2).succeed();
+		Pending fourth = take(1).get(0);
+		awaitSize(delivered, 1);
+		first.get(0).future.completeExceptionally(new ConversionException("Failed"));
+		Pending fifth = take(1).get(0);
+		awaitSize(delivered, 2);
+
+		fifth.succeed();
+		awaitSize(delivered, 3);
+		fourth.succeed();
+		awaitSize(delivered, 4);
+		Assert.assertFalse(failures.isDone());
+		first.get(1).succeed();
+
+		Assert.assertEquals(Integer.valueOf(1), failures.get(10, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList(first.get(2).name, first.get(0).name, fifth.name, fourth.name, first.get(1).name),
+				delivered);
+		Assert.assertEquals(5, stub.calls());
+	}
+
+	@Test
+	public void testCloseStopsBatch() throws Exception {
+
+		BatchResults results = new BatchConverter(stub, 2).results(documents(10));
+		List<Pending> first = take(2);
+		first.get(1).succeed();
+		Assert.assertTrue(results.hasNext());
+		Assert.assertEquals(first.get(1).name, name(results.next()));
+
+		// taking it made room for one more
+		Pending third = take(1).get(0);
+		results.close();
+		awaitDriverStopped();
+		Assert.assertFalse(results.hasNext());
+
+		first.get(0).succeed();
+		third.succeed();
+		Thread.sleep(200);
+		Assert.assertTrue(pending.isEmpty());
+		Assert.assertEquals(3, stub.calls());
+	}
+
+	private List<Path> documents(int n) throws IOException {
+
+		List<Path> documents = new ArrayList<Path>();
+		for (int i = 0; i < n; i++) {
+			Path docx = folder.newFile(i + ".docx").toPath();
+			// the stub knows each document by its content
+			Files.write(docx, docx.toString().getBytes(StandardCharsets.US_ASCII));
+			documents.add(docx);
+		}
+		return documents;
+	}
+
+	private List<Pending> take(int n) throws InterruptedException {
+
+		List<Pending> taken = new ArrayList<Pending>();
+		for (int i = 0; i < n; i++) {
+			Pending next = pending.poll(10, TimeUnit.SECONDS);
+			Assert.assertNotNull("Conversion not started", next);
+			taken.add(next);
+		}
+		return taken;
+	}
+
+	/**
+	 * A result may be delivered on the worker thread, if its conversion finished before
+	 * the batch started waiting for it
+	 */
+	private static void awaitSize(List<String> delivered, int size) throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (delivered.size() < size && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(size, delivered.size());
+	}
+
+	private static String name(BatchResult result) {
+		return result.getInput().toString();
+	}
+
+	private static void awaitDriverStopped() throws InterruptedException {
+
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if ("graph-batch-driver".equals(thread.getName())) {
+				thread.join(10000);
+				Assert.assertFalse("Batch still running", thread.isAlive());
+			}
+		}
+	}
+
+	private static class Pending {
+
+		Pending(String name, CompletableFuture<byte[]> future) {
+			this.name = name;
+			this.future = future;
+		}
+
+		final String name;
+		final CompletableFuture<byte[]> future;
+
+		void succeed() {
+			future.complete(StubConverter.pdf(name.getBytes(StandardCharsets.US_ASCII)));
+		}
+	}
+
+}
@@ -0,0 +1,123 @@
+package org.plutext.msgraph.convert.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.StubConverter;
+
+/**
+ * Identical requests in flight at once share one conversion, whose result or
+ * failure reaches them all; over a stub converter whose conversions the test finishes.
+ */
+public class CoalescingConverterTest {
+
+	private static final byte[] DOC = "doc".getBytes();
+
+	/**
+	 * The stub's conversions, as they start
+	 */
+	private final List<CompletableFuture<byte[]>> pending = new CopyOnWriteArrayList<CompletableFuture<byte[]>>();
+
+	private final StubConverter stub = new StubConverter(bytes -> {
+		CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+		pending.add(future);
+		return future;
+	});
+
+	private final CoalescingConverter converter = new CoalescingConverter(stub);
+
+	@Test
+	public void testIdenticalInputsShareConversion() throws Exception {
+
+		List<CompletableFuture<byte[]>> requests = new ArrayList<CompletableFuture<byte[]>>();
+		for (int i = 0; i < 5; i++) {
+			requests.add(converter.convertAsync(DOC.clone(), ".docx"));
+		}
+		// not the same input
+		CompletableFuture<byte[]> pptx = converter.convertAsync(DOC, ".pptx");
+		CompletableFuture<byte[]> other = converter.convertAsync("other".getBytes(), ".docx");
+		Assert.assertEquals(3, stub.calls());
+		Assert.assertEquals(4, converter.coalesced());
+
+		pending.get(0).complete(StubConverter.pdf(DOC));
+		for (CompletableFuture<byte[]> request : requests) {
+			Assert.assertArrayEquals(StubConverter.pdf(DOC), request.get(10, TimeUnit.SECONDS));
+		}
+		// each gets its own copy
+		Assert.assertNotSame(requests.get(0).get(), requests.get(1).get());
+		Assert.assertFalse(pptx.isDone());
+		Assert.assertFalse(other.isDone());
+
+		// once it has finished, the same input is converted again
+		converter.convertAsync(DOC, ".docx");
+		Assert.assertEquals(4, stub.calls());
+	}
+
+	@Test
+	public void testConcurrentCallers() throws Exception {
+
+		int callers = 8;
+		ExecutorService threads = Executors.newFixedThreadPool(callers);
+		CountDownLatch ready = new CountDownLatch(callers);
+		List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+		for (int i = 0; i < callers; i++) {
+			results.add(threads.submit(() -> {
+				ready.countDown();
+				ready.await();
+				return converter.convert(DOC.clone(), ".docx");
+			}));
+		}
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (converter.coalesced() < callers - 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(callers - 1, converter.coalesced());
+		Assert.assertEquals(1, stub.calls());
+
+		pending.get(0).complete(StubConverter.pdf(DOC));
+		for (Future<byte[]> result : results) {
+			Assert.assertArrayEquals(StubConverter.pdf(DOC), result.get(10, TimeUnit.SECONDS));
+		}
+		threads.shutdown();
+	}
+
+	@Test
+	public void testFailureReachesEveryJoiner() throws Exception {
+
+		List<CompletableFuture<byte[]>> requests = new ArrayList<CompletableFuture<byte[]>>();
+		for (int i = 0; i < 4; i++) {
+			requests.add(converter.convertAsync(DOC, ".docx"));
+		}
+		Assert.assertEquals(1, stub.calls());
+
+		ConversionException failure = new ConversionException("Conversion failed");
+		pending.get(0).completeExceptionally(failure);
+		for (CompletableFuture<byte[]> request : requests) {
+			try {
+				request.get(10, TimeUnit.SECONDS);
+				Assert.fail("Joiner didn't see the failure");
+			} catch (ExecutionException e) {
+				Assert.assertSame(failure, e.getCause());
+			}
+		}
+
+		// and isn't remembered
+		CompletableFuture<byte[]> retried = converter.convertAsync(DOC, ".docx");
+		Assert.assertEquals(2, stub.calls());
+		pending.get(1).complete(StubConverter.pdf(DOC));
+		Assert.assertArrayEquals(StubConverter.pdf(DOC), retried.get(10, TimeUnit.SECONDS));
+	}
+
+}
@@ -0,0 +1,132 @@
+package org.plutext.msgraph.convert.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.plutext.msgraph.convert.StubConverter;
+
+/**
+ * Eviction by bytes, the per-entry cap, and hit/miss counts; directly, and through a CachingConverter.
+ */
+public class PdfCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testEvictsLeastRecentlyUsedByBytes() {
+
+		for (boolean offHeap : new boolean[] {false, true}) {
+
+			PdfCache cache = new PdfCache(1000, 400, offHeap);
+			ContentKey a = key("a"), b = key("b"), c = key("c");
+			cache.put(a, new byte[400]);
+			cache.put(b, new byte[300]);
+			Assert.assertEquals(700, cache.size());
+
+			// a is now more recently used than b
+			Assert.assertNotNull(cache.get(a));
+
+			cache.put(c, new byte[400]);
+			Assert.assertEquals(800, cache.size());
+			Assert.assertEquals(2, cache.entryCount());
+			Assert.assertNull("b should have been evicted", cache.get(b));
+			Assert.assertNotNull(cache.get(a));
+			Assert.assertNotNull(cache.get(c));
+
+			// replacing an entry counts only its new size
+			cache.put(c, new byte[100]);
+			Assert.assertEquals(500, cache.size());
+		}
+	}
+
+	@Test
+	public void testEntryCap() {
+
+		PdfCache cache = new PdfCache(1000, 400, false);
+		ContentKey small = key("small");
+		cache.put(small, new byte[100]);
+
+		// would fit in the cache, but not as one entry; and mustn't evict the rest
+		cache.put(key("big"), new byte[401]);
+		Assert.assertNull(cache.get(key("big")));
+		Assert.assertNotNull(cache.get(small));
+		Assert.assertEquals(100, cache.size());
+
+		Assert.assertEquals(1000 / PdfCache.DEFAULT_ENTRY_FRACTION, new PdfCache(1000, false).maxEntryBytes());
+		try {
+			new PdfCache(1000, 1001, false);
+			Assert.fail("maxEntryBytes > maxBytes");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testHitsAndMisses() throws Exception {
+
+		PdfCache cache = new PdfCache(1000, 400, true);
+		ContentKey a = key("a");
+		Assert.assertNull(cache.get(a));
+		cache.put(a, new byte[] {1, 2, 3});
+		Assert.assertArrayEquals(new byte[] {1, 2, 3}, cache.getBytes(a));
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		Assert.assertEquals(3, cache.writeTo(a, sink));
+		Assert.assertArrayEquals(new byte[] {1, 2, 3}, sink.toByteArray());
+		Assert.assertEquals(-1, cache.writeTo(key("b"), sink));
+
+		Assert.assertEquals(2, cache.hits());
+		Assert.assertEquals(2, cache.misses());
+	}
+
+	@Test
+	public void testCachingConverter() throws Exception {
+
+		StubConverter stub = new StubConverter();
+		CachingConverter converter = new CachingConverter(stub, 100 * 1024, 10 * 1024, false);
+		byte[] small = new byte[1024];
+		byte[] big = new byte[20 * 1024];
+
+		// byte[], then the streaming sink, then a file: each converts once, then hits
+		Assert.assertArrayEquals(StubConverter.pdf(small), converter.convert(small, ".docx"));
+		Assert.assertArrayEquals(StubConverter.pdf(small), converter.convert(small, ".docx"));
+		Assert.assertEquals(1, stub.calls());
+
+		byte[] other = new byte[2048];
+		for (int i = 0; i < 2; i++) {
+			ByteArrayOutputStream sink = new ByteArrayOutputStream();
+			Assert.assertEquals(StubConverter.pdf(other).length, converter.convert(other, ".docx", sink));
+			Assert.assertArrayEquals(StubConverter.pdf(other), sink.toByteArray());
+		}
+		Assert.assertEquals(2, stub.calls());
+
+		File docx = folder.newFile("in.docx");
+		Files.write(docx.toPath(), new byte[3072]);
+		File pdf = new File(folder.getRoot(), "out.pdf");
+		for (int i = 0; i < 2; i++) {
+			Assert.assertEquals(StubConverter.pdf(new byte[3072]).length, converter.convert(docx, pdf));
+			Assert.assertArrayEquals(StubConverter.pdf(new byte[3072]), Files.readAllBytes(pdf.toPath()));
+		}
+		Assert.assertEquals(3, stub.calls());
+
+		// over maxEntryBytes: streamed in full each time, but never cached
+		for (int i = 0; i < 2; i++) {
+			ByteArrayOutputStream sink = new ByteArrayOutputStream();
+			converter.convert(big, ".docx", sink);
+			Assert.assertArrayEquals(StubConverter.pdf(big), sink.toByteArray());
+		}
+		Assert.assertEquals(5, stub.calls());
+		Assert.assertEquals(3, converter.getCache().entryCount());
+		Assert.assertEquals(3, converter.getCache().hits());
+	}
+
+	private static ContentKey key(String doc) {
+		return ContentKey.of(doc.getBytes(), ".docx");
+	}
+
+}
@@ -0,0 +1,84 @@
+package org.plutext.msgraph.convert.graphsdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.plutext.msgraph.convert.AbstractOpenXmlToPDF;
+import org.plutext.msgraph.convert.AuthConfig;
+import org.plutext.msgraph.convert.HttpClientConfig;
+import org.plutext.msgraph.convert.standin.Operation;
+import org.plutext.msgraph.convert.standin.StandInServer;
+
+import com.microsoft.graph.core.DefaultClientConfig;
+import com.microsoft.graph.core.IClientConfig;
+import com.microsoft.graph.http.DefaultHttpProvider;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.requests.extensions.GraphServiceClient;
+
+/**
+ * Writing the PDF to a file with the SDK's older (HttpURLConnection) provider, against 
+ * the local Graph stand-in, which drops the connection part way through the download:
+ * the download is resumed from the redirect's Location, without converting again.
+ */
+public class ToFileUsingStandInTest {
+
+	private StandInServer server;
+	private ExecutorService io = AbstractOpenXmlToPDF.newIoExecutor(4);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void start() throws IOException {
+		server = new StandInServer(0).setPdfSize(1024 * 1024).setDropDownloadsAfter(300 * 1024).start();
+	}
+
+	@After
+	public void stop() {
+		server.stop();
+		io.shutdown();
+	}
+
+	@Test
+	public void testDefaultHttpProvider() throws Exception {
+
+		AuthConfig authConfig = server.authConfig();
+		TokenAuthenticationProvider authProvider 
+			= new TokenAuthenticationProvider(GraphClients.tokenProvider(authConfig));
+		IClientConfig defaults = DefaultClientConfig.createWithAuthenticationProvider(authProvider);
+		IGraphServiceClient graphClient = GraphServiceClient
+				.builder()
+				.authenticationProvider(authProvider)
+				.httpProvider(new DefaultHttpProvider(defaults.getSerializer(), authProvider, 
+						defaults.getExecutors(), defaults.getLogger()))
+				.serializer(defaults.getSerializer())
+				.executors(defaults.getExecutors())
+				.logger(defaults.getLogger())
+				.buildClient();
+		graphClient.setServiceRoot(authConfig.graphEndpoint());
+
+		String item = "root:/" + UUID.randomUUID().toString() + ".docx:";
+		GraphPhases.put(graphClient, authConfig.site(), item, new byte[10 * 1024]).get(30, TimeUnit.SECONDS);
+
+		File pdf = new File(folder.getRoot(), "out.pdf");
+		long written = GraphPhases.downloadPdf(graphClient, "/sites/" + authConfig.site() + "/drive/items/", item, 
+				pdf, new HttpClientConfig(), io).get(30, TimeUnit.SECONDS);
+
+		Assert.assertEquals(1, server.getRequestCount(Operation.CONVERT));
+		Assert.assertEquals(written, pdf.length());
+		byte[] pdfBytes = Files.readAllBytes(pdf.toPath());
+		Assert.assertTrue("Not a PDF!", new String(pdfBytes, 0, 8).startsWith("%PDF"));
+		Assert.assertTrue("Incomplete PDF", new String(pdfBytes, pdfBytes.length - 6, 6).contains("%%EOF"));
+	}
+
+}
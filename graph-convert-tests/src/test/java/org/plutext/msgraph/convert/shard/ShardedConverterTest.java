@@ -0,0 +1,175 @@
+package org.plutext.msgraph.convert.shard;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.StubConverter;
+import org.plutext.msgraph.convert.throttle.ThrottledException;
+
+/**
+ * Picking a shard, draining a throttled one, and trying another, over stub converters.
+ */
+public class ShardedConverterTest {
+
+	private static final byte[] DOC = "doc".getBytes();
+
+	@Test
+	public void testPicksLeastLoadedPerWeight() {
+
+		ShardedConverter sharded = new ShardedConverter(
+				Arrays.asList(new StubConverter(), new StubConverter()), new int[] {1, 3});
+		Shard light = sharded.getShards().get(0);
+		Shard heavy = sharded.getShards().get(1);
+
+		Assert.assertSame(light, sharded.pick(new HashSet<Shard>()));
+		light.started();
+		// 1/1 vs 0/3
+		Assert.assertSame(heavy, sharded.pick(new HashSet<Shard>()));
+		heavy.started();
+		heavy.started();
+		// 1/1 vs 2/3
+		Assert.assertSame(heavy, sharded.pick(new HashSet<Shard>()));
+		heavy.started();
+		heavy.started();
+		// 1/1 vs 4/3
+		Assert.assertSame(light, sharded.pick(new HashSet<Shard>()));
+
+		// one already tried is skipped, however idle
+		Assert.assertSame(heavy, sharded.pick(Collections.singleton(light)));
+	}
+
+	@Test
+	public void testDrainsWithBackOff() {
+
+		ShardedConverter sharded = new ShardedConverter(
+				Arrays.asList(new StubConverter(), new StubConverter()));
+		Shard first = sharded.getShards().get(0);
+		Shard second = sharded.getShards().get(1);
+
+		long start = System.currentTimeMillis();
+		first.throttled(new ThrottledException(429, -1, "throttled"));
+		Assert.assertTrue(first.isDrained());
+		assertDrainedFor(first, start, 5000);
+		// busier, but not drained
+		second.started();
+		Assert.assertSame(second, sharded.pick(new HashSet<Shard>()));
+
+		// doubles each time it's throttled again
+		start = System.currentTimeMillis();
+		first.throttled(new ThrottledException(429, -1, "throttled"));
+		assertDrainedFor(first, start, 10000);
+		// unless Graph's Retry-After is longer
+		start = System.currentTimeMillis();
+		first.throttled(new ThrottledException(503, 45000, "throttled"));
+		assertDrainedFor(first, start, 45000);
+
+		// all drained: the one available soonest
+		second.throttled(new ThrottledException(429, -1, "throttled"));
+		Assert.assertSame(second, sharded.pick(new HashSet<Shard>()));
+
+		// a success resets the back-off
+		first.finished(null);
+		start = System.currentTimeMillis();
+		first.throttled(new ThrottledException(429, -1, "throttled"));
+		assertDrainedFor(first, start, 5000);
+	}
+
+	@Test
+	public void testThrottledConversionTriesAnotherShard() throws Exception {
+
+		StubConverter throttled = new StubConverter(bytes -> {
+			CompletableFuture<byte[]> failed = new CompletableFuture<byte[]>();
+			failed.completeExceptionally(new ThrottledException(429, -1, "throttled"));
+			return failed;
+		});
+		StubConverter ok = new StubConverter();
+
+		for (int i = 0; i < 2; i++) {
+
+			ShardedConverter sharded = new ShardedConverter(Arrays.asList(throttled, ok));
+			if (i == 0) {
+				Assert.assertArrayEquals(StubConverter.pdf(DOC), sharded.convert(DOC, ".docx"));
+			} else {
+				Assert.assertArrayEquals(StubConverter.pdf(DOC),
+						sharded.convertAsync(DOC, ".docx").get(10, TimeUnit.SECONDS));
+			}
+			Assert.assertTrue(sharded.getShards().get(0).isDrained());
+			Assert.assertFalse(sharded.getShards().get(1).isDrained());
+			Assert.assertEquals(0, sharded.getShards().get(0).getOutstanding());
+			Assert.assertEquals(0, sharded.getShards().get(1).getOutstanding());
+
+			// the next goes straight to the one not drained
+			sharded.convert(DOC, ".docx");
+			Assert.assertEquals(i + 1, throttled.calls());
+			Assert.assertEquals(2 * (i + 1), ok.calls());
+		}
+
+		// an InputStream can't be replayed, so isn't tried again
+		ShardedConverter sharded = new ShardedConverter(Arrays.asList(throttled, ok));
+		try {
+			sharded.convert(new ByteArrayInputStream(DOC), ".docx");
+			Assert.fail("Should have been throttled");
+		} catch (ThrottledException e) {
+			// expected
+		}
+		Assert.assertEquals(4, ok.calls());
+
+		// nor is anything once every shard has been tried
+		sharded = new ShardedConverter(Arrays.asList(throttled, throttled));
+		try {
+			sharded.convert(DOC, ".docx");
+			Assert.fail("Should have been throttled");
+		} catch (ThrottledException e) {
+			// expected
+		}
+		Assert.assertEquals(5, throttled.calls());
+	}
+
+	@Test
+	public void testCloseClosesEveryShard() {
+
+		ClosingStub first = new ClosingStub(true);
+		ClosingStub second = new ClosingStub(true);
+		ClosingStub third = new ClosingStub(false);
+		ShardedConverter sharded = new ShardedConverter(Arrays.asList(first, second, third));
+		try {
+			sharded.close();
+			Assert.fail("Two shards failed to close");
+		} catch (ConversionException e) {
+			Assert.assertEquals(1, e.getSuppressed().length);
+		}
+		Assert.assertTrue(first.closed && second.closed && third.closed);
+	}
+
+	private static void assertDrainedFor(Shard shard, long start, long millis) {
+
+		long drain = shard.getDrainedUntil() - start;
+		Assert.assertTrue("Drained for " + drain, drain >= millis && drain < millis + 1000);
+	}
+
+	private static class ClosingStub extends StubConverter implements AutoCloseable {
+
+		ClosingStub(boolean fail) {
+			this.fail = fail;
+		}
+
+		private final boolean fail;
+		private volatile boolean closed;
+
+		@Override
+		public void close() throws Exception {
+			closed = true;
+			if (fail) {
+				throw new IllegalStateException("Failed to close");
+			}
+		}
+	}
+
+}
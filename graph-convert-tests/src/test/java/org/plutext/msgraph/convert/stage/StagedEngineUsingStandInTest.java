@@ -0,0 +1,190 @@
+package org.plutext.msgraph.convert.stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.DownloadHandler;
+import org.plutext.msgraph.convert.graphsdk.DocxToPdfConverterLarge;
+import org.plutext.msgraph.convert.standin.StandInServer;
+
+/**
+ * More conversions than the engine admits at once, some failing at upload and some
+ * at convert, against the local Graph stand-in: all finish, the pipeline never holds
+ * more than it admits, and each stage's counts add up.
+ */
+public class StagedEngineUsingStandInTest {
+
+	private static final int ADMITTED = 4;
+	private static final int CONVERSIONS = 24;
+
+	private static StandInServer server;
+
+	@BeforeClass
+	public static void start() throws IOException {
+		server = new StandInServer(0).start();
+	}
+
+	@AfterClass
+	public static void stop() {
+		server.stop();
+	}
+
+	@Test
+	public void testAdmission() throws Exception {
+
+		Stage token = new Stage("token", 1, ADMITTED, 2);
+		Stage upload = new Stage("upload", 2, ADMITTED, 2);
+		Stage convert = new Stage("convert", 2, ADMITTED, 2);
+		StagedEngine<String> engine = new StagedEngine<String>(
+				new FailingStages(new DocxToPdfConverterLarge(server.authConfig()).stages()),
+				token, upload, convert, new Stage("cleanup", 1, 100, 2));
+
+		// watch the pipeline while it runs; later stages first, so a conversion
+		// moving on between snapshots isn't counted twice
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicInteger mostInPipeline = new AtomicInteger();
+		Thread watcher = new Thread(() -> {
+			while (running.get()) {
+				int inPipeline = 0;
+				for (Stage stage : new Stage[] {convert, upload, token}) {
+					StageMetrics metrics = stage.metrics();
+					inPipeline += metrics.getQueued() + metrics.getInFlight();
+				}
+				mostInPipeline.accumulateAndGet(inPipeline, Math::max);
+				Thread.yield();
+			}
+		});
+		watcher.start();
+
+		// more callers than are admitted, so some block
+		ExecutorService callers = Executors.newFixedThreadPool(8);
+		List<Future<byte[]>> conversions = new ArrayList<Future<byte[]>>();
+		for (int i = 0; i < CONVERSIONS; i++) {
+			byte[] doc = new byte[] {(byte)(i % 4)};
+			conversions.add(callers.submit(() -> engine.convertAsync(doc, ".docx").get(30, TimeUnit.SECONDS)));
+		}
+
+		int converted = 0;
+		int failed = 0;
+		for (Future<byte[]> conversion : conversions) {
+			try {
+				byte[] pdf = conversion.get(60, TimeUnit.SECONDS);
+				Assert.assertTrue("Not a PDF!", new String(pdf, 0, 8).startsWith("%PDF"));
+				converted++;
+			} catch (ExecutionException e) {
+				failed++;
+			}
+		}
+		callers.shutdown();
+
+		Assert.assertEquals(CONVERSIONS / 2, converted);
+		Assert.assertEquals(CONVERSIONS / 2, failed);
+
+		// cleanup may still be finishing
+		long deadline = System.currentTimeMillis() + 30000;
+		while (engine.metrics().get(3).getCompleted() < CONVERSIONS * 3 / 4
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		running.set(false);
+		watcher.join();
+
+		Assert.assertTrue("Pipeline held " + mostInPipeline.get(), mostInPipeline.get() <= ADMITTED);
+
+		List<StageMetrics> metrics = engine.metrics();
+		assertCounts(metrics.get(0), CONVERSIONS, 0);
+		// a quarter fail at upload, and a quarter at convert
+		assertCounts(metrics.get(1), CONVERSIONS * 3 / 4, CONVERSIONS / 4);
+		assertCounts(metrics.get(2), CONVERSIONS / 2, CONVERSIONS / 4);
+		// those which got as far as convert are cleaned up either way
+		assertCounts(metrics.get(3), CONVERSIONS * 3 / 4, 0);
+		Assert.assertEquals(0, server.getItemCount());
+
+		engine.shutdown();
+	}
+
+	private static void assertCounts(StageMetrics stage, long completed, long failed) {
+
+		Assert.assertEquals(stage.toString(), completed, stage.getCompleted());
+		Assert.assertEquals(stage.toString(), failed, stage.getFailed());
+		Assert.assertEquals(stage.toString(), 0, stage.getQueued());
+		Assert.assertEquals(stage.toString(), 0, stage.getInFlight());
+	}
+
+	/**
+	 * Documents starting with 1 fail to upload; those starting with 2 upload, but fail to convert.
+	 */
+	private static class FailingStages implements ConversionStages<String> {
+
+		FailingStages(ConversionStages<String> backend) {
+			this.backend = backend;
+		}
+
+		private final ConversionStages<String> backend;
+
+		private final Set<String> failConvert = ConcurrentHashMap.newKeySet();
+
+		@Override
+		public CompletableFuture<?> token() {
+			return backend.token();
+		}
+
+		@Override
+		public CompletableFuture<String> upload(byte[] bytes, String ext) {
+
+			if (bytes[0] == 1) {
+				return failed("Upload failed");
+			}
+			return backend.upload(bytes, ext).thenApply(item -> {
+				if (bytes[0] == 2) {
+					failConvert.add(item);
+				}
+				return item;
+			});
+		}
+
+		@Override
+		public CompletableFuture<String> upload(File file, String ext) {
+			return backend.upload(file, ext);
+		}
+
+		@Override
+		public <T> CompletableFuture<T> convert(String uploaded, DownloadHandler<T> handler) {
+
+			if (failConvert.contains(uploaded)) {
+				return failed("Convert failed");
+			}
+			return backend.convert(uploaded, handler);
+		}
+
+		@Override
+		public CompletableFuture<?> cleanup(String uploaded) {
+			return backend.cleanup(uploaded);
+		}
+
+		private static <T> CompletableFuture<T> failed(String msg) {
+
+			CompletableFuture<T> failed = new CompletableFuture<T>();
+			failed.completeExceptionally(new ConversionException(msg));
+			return failed;
+		}
+	}
+
+}
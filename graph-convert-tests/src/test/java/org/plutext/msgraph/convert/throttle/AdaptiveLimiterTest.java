@@ -0,0 +1,122 @@
+package org.plutext.msgraph.convert.throttle;
+
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The limiter driven with a simulated clock: latencies which vary with document size,
+ * 429s, and a sustained slowdown.
+ */
+public class AdaptiveLimiterTest {
+
+	private final AtomicLong now = new AtomicLong();
+	private final AdaptiveLimiter limiter = new AdaptiveLimiter(4, 1, 64, 1000, 60000, now::get);
+	private final Random random = new Random(42);
+
+	@Test
+	public void testMixedLatenciesThenThrottlingThenSlowdown() {
+
+		// documents of all sizes: 1 to 20 seconds each
+		for (int i = 0; i < 1000; i++) {
+			convert(TimeUnit.MILLISECONDS.toNanos((long)(1000 * Math.pow(20, random.nextDouble()))), null);
+		}
+		int mixed = limiter.getLimit();
+		Assert.assertTrue("Limit " + mixed + " after a mix of sizes", mixed > 30);
+
+		for (int i = 0; i < 3; i++) {
+			convert(TimeUnit.SECONDS.toNanos(1), new ThrottledException(429, 1000, "throttled"));
+		}
+		int throttled = limiter.getLimit();
+		Assert.assertTrue("Limit " + throttled + " after 3 429s", throttled <= mixed * 0.7 * 0.7 * 0.7 + 1);
+
+		// recovers
+		for (int i = 0; i < 100; i++) {
+			convert(TimeUnit.MILLISECONDS.toNanos((long)(1000 * Math.pow(20, random.nextDouble()))), null);
+		}
+		int recovered = limiter.getLimit();
+		Assert.assertTrue("Limit " + recovered + " didn't recover", recovered > throttled);
+
+		// then everything gets 4 times slower
+		for (int i = 0; i < 100; i++) {
+			convert(TimeUnit.MILLISECONDS.toNanos((long)(4000 * Math.pow(20, random.nextDouble()))), null);
+		}
+		int slowed = limiter.getLimit();
+		Assert.assertTrue("Limit " + slowed + " after a slowdown", slowed < recovered);
+	}
+
+	@Test
+	public void testResultCompletesBeforeNextStarts() throws InterruptedException {
+
+		AdaptiveLimiter one = new AdaptiveLimiter(1, 1, 1, 10, 60000);
+		CompletableFuture<String> first = new CompletableFuture<String>();
+		AtomicBoolean secondStarted = new AtomicBoolean();
+		CountDownLatch started = new CountDownLatch(1);
+
+		CompletableFuture<String> firstResult = one.submit(() -> first);
+		one.submit(() -> {
+			secondStarted.set(true);
+			started.countDown();
+			return new CompletableFuture<String>();
+		});
+		Assert.assertEquals(1, one.getQueued());
+
+		AtomicBoolean startedFirst = new AtomicBoolean(true);
+		firstResult.thenRun(() -> startedFirst.set(secondStarted.get()));
+		first.complete("pdf");
+
+		Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+		Assert.assertFalse("The next conversion started before the caller saw the result", startedFirst.get());
+	}
+
+	@Test
+	public void testPausedConversionGivesUpItsSlot() throws InterruptedException {
+
+		AdaptiveLimiter one = new AdaptiveLimiter(1, 1, 1, 10, 60000);
+		AtomicReference<AdaptiveLimiter.Permit> permit = new AtomicReference<AdaptiveLimiter.Permit>();
+		one.submit(p -> {
+			permit.set(p);
+			return new CompletableFuture<String>();
+		});
+		CompletableFuture<String> second = new CompletableFuture<String>();
+		CountDownLatch started = new CountDownLatch(1);
+		one.submit(() -> {
+			started.countDown();
+			return second;
+		});
+		Assert.assertEquals(1, one.getQueued());
+
+		// the first is throttled, and waits to retry
+		permit.get().pause(new ThrottledException(429, 1000, "throttled"));
+		Assert.assertTrue("The waiting conversion didn't get the slot", started.await(10, TimeUnit.SECONDS));
+
+		CompletableFuture<Void> resumed = permit.get().resume();
+		Assert.assertFalse("Resumed over the limit", resumed.isDone());
+		second.complete("pdf");
+		Assert.assertNull(resumed.join());
+		Assert.assertEquals(1, one.getInFlight());
+	}
+
+	/**
+	 * One conversion, taking latencyNanos, and failing if failure isn't null
+	 */
+	private void convert(long latencyNanos, Exception failure) {
+
+		CompletableFuture<Void> running = new CompletableFuture<Void>();
+		limiter.submit(() -> running);
+		now.addAndGet(latencyNanos);
+		if (failure == null) {
+			running.complete(null);
+		} else {
+			running.completeExceptionally(failure);
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+package org.plutext.msgraph.convert.upload;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The slice size driven with made-up throughputs (bytes per nanosecond).
+ */
+public class AdaptiveSliceSizeTest {
+
+	private static final int UNIT = StreamingUploader.SLICE_UNIT;
+
+	private final AdaptiveSliceSize sizer = new AdaptiveSliceSize(8 * UNIT, 2 * UNIT, 64 * UNIT);
+
+	@Test
+	public void testDoublesWhileThroughputImproves() {
+
+		send(1.0);
+		Assert.assertEquals(16 * UNIT, sizer.nextSize());
+		send(1.2);
+		Assert.assertEquals(32 * UNIT, sizer.nextSize());
+		send(1.45);
+		Assert.assertEquals(64 * UNIT, sizer.nextSize());
+
+		// never past maxSize
+		for (int i = 0; i < 20; i++) {
+			send(2.0 + i);
+			Assert.assertEquals(64 * UNIT, sizer.nextSize());
+		}
+	}
+
+	@Test
+	public void testFallsBackAndHoldsThenProbes() {
+
+		send(1.0);
+		Assert.assertEquals(16 * UNIT, sizer.nextSize());
+
+		// less than 10% better isn't worth the bigger slice
+		send(1.05);
+		Assert.assertEquals(8 * UNIT, sizer.nextSize());
+
+		// holds, however fast, until it probes on the 8th slice
+		for (int i = 0; i < 7; i++) {
+			send(5.0);
+			Assert.assertEquals(8 * UNIT, sizer.nextSize());
+		}
+		send(1.0);
+		Assert.assertEquals(16 * UNIT, sizer.nextSize());
+
+		// the probe helped, so it keeps growing
+		send(1.2);
+		Assert.assertEquals(32 * UNIT, sizer.nextSize());
+	}
+
+	@Test
+	public void testFailureHalvesDownToMinSize() {
+
+		sizer.failed();
+		Assert.assertEquals(4 * UNIT, sizer.nextSize());
+		sizer.failed();
+		Assert.assertEquals(2 * UNIT, sizer.nextSize());
+		sizer.failed();
+		Assert.assertEquals(2 * UNIT, sizer.nextSize());
+
+		// then holds, and probes upwards again
+		for (int i = 0; i < 7; i++) {
+			send(1.0);
+			Assert.assertEquals(2 * UNIT, sizer.nextSize());
+		}
+		send(1.0);
+		Assert.assertEquals(4 * UNIT, sizer.nextSize());
+	}
+
+	@Test
+	public void testIgnoresLastSlice() {
+
+		send(1.0);
+		Assert.assertEquals(16 * UNIT, sizer.nextSize());
+
+		// a short (last) slice, however slow, says nothing
+		sizer.succeeded(UNIT, Long.MAX_VALUE / 2);
+		Assert.assertEquals(16 * UNIT, sizer.nextSize());
+
+		send(1.2);
+		Assert.assertEquals(32 * UNIT, sizer.nextSize());
+	}
+
+	@Test
+	public void testRejectsBadSizes() {
+
+		try {
+			new AdaptiveSliceSize(8 * UNIT, 16 * UNIT, 64 * UNIT);
+			Assert.fail("minSize > initialSize");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new AdaptiveSliceSize(8 * UNIT + 1, 2 * UNIT, 64 * UNIT);
+			Assert.fail("Not a multiple of 320 KiB");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * A full slice at the given throughput
+	 */
+	private void send(double bytesPerNano) {
+
+		int bytes = sizer.nextSize();
+		sizer.succeeded(bytes, (long)(bytes / bytesPerNano));
+	}
+
+}
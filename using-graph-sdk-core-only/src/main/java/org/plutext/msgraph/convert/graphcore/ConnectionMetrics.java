@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.graphcore;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.Protocol;
+
+/**
+ * The state of a converter's OkHttp connection pool, so you can check 
+ * (eg after a load test) that no connection or response is leaked.
+ * 
+ * OkHttp only counts a call as ended once its response body has been closed, 
+ * so an unclosed response shows up as a call in flight which never ends, 
+ * and as a connection which stays active.  Once everything has finished, 
+ * getCallsInFlight() and getActiveConnections() should both be 0.
+ * 
+ * @author jharrop
+ *
+ */
+public class ConnectionMetrics extends EventListener {
+	
+	private final ConnectionPool pool;
+	private final Dispatcher dispatcher;
+	
+	private final AtomicLong opened = new AtomicLong();
+	private final AtomicLong callsStarted = new AtomicLong();
+	private final AtomicLong callsEnded = new AtomicLong();
+	private final AtomicLong callsFailed = new AtomicLong();
+	
+	ConnectionMetrics(ConnectionPool pool, Dispatcher dispatcher) {
+		this.pool = pool;
+		this.dispatcher = dispatcher;
+	}
+	
+	/**
+	 * @return connections in the pool waiting to be reused
+	 */
+	public int getIdleConnections() {
+		return pool.idleConnectionCount();
+	}
+	
+	/**
+	 * @return connections in the pool carrying a request (or an unclosed response)
+	 */
+	public int getActiveConnections() {
+		return Math.max(pool.connectionCount() - pool.idleConnectionCount(), 0);
+	}
+	
+	/**
+	 * @return connections opened so far
+	 */
+	public long getOpenedConnections() {
+		return opened.get();
+	}
+	
+	/**
+	 * @return connections opened which have since left the pool: evicted once idle 
+	 * for longer than the keep alive (or beyond maxIdleConnections), or closed by the server
+	 */
+	public long getEvictedConnections() {
+		return Math.max(opened.get() - pool.connectionCount(), 0);
+	}
+	
+	/**
+	 * @return calls started whose response hasn't been closed (or which haven't failed) yet
+	 */
+	public long getCallsInFlight() {
+		return callsStarted.get() - callsEnded.get() - callsFailed.get();
+	}
+	
+	public long getCallsFailed() {
+		return callsFailed.get();
+	}
+	
+	/**
+	 * @return calls waiting for the dispatcher (see HttpClientConfig.setMaxRequests)
+	 */
+	public int getQueuedCalls() {
+		return dispatcher.queuedCallsCount();
+	}
+	
+	@Override
+	public void callStart(Call call) {
+		callsStarted.incrementAndGet();
+	}
+
+	@Override
+	public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+		opened.incrementAndGet();
+	}
+
+	@Override
+	public void callEnd(Call call) {
+		callsEnded.incrementAndGet();
+	}
+
+	@Override
+	public void callFailed(Call call, IOException ioe) {
+		callsFailed.incrementAndGet();
+	}
+	
+	@Override
+	public String toString() {
+		return "Connections: " + getIdleConnections() + " idle, " + getActiveConnections() + " active, " 
+				+ getEvictedConnections() + " evicted (of " + getOpenedConnections() + " opened); calls: " 
+				+ getCallsInFlight() + " in flight, " + getQueuedCalls() + " queued, " + getCallsFailed() + " failed";
+	}
+
+}
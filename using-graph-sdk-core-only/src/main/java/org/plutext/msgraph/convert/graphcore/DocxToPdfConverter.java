@@ -3,6 +3,7 @@ package org.plutext.msgraph.convert.graphcore;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 import okhttp3.MediaType;
 import okhttp3.RequestBody;
@@ -10,6 +11,7 @@ import okhttp3.RequestBody;
 
 import org.plutext.msgraph.convert.AuthConfig;
 import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.HttpClientConfig;
 
 public class DocxToPdfConverter extends PdfConverterCore implements org.plutext.msgraph.convert.DocxToPdfConverter {
 
@@ -17,6 +19,25 @@ public class DocxToPdfConverter extends PdfConverterCore implements org.plutext.
 		super(authConfig);
 	}
 
+	public DocxToPdfConverter(AuthConfig authConfig, HttpClientConfig httpClientConfig) {
+		super(authConfig, httpClientConfig);
+	}
+
+
+	@Override
+	protected String mediaType() {
+		return DOCX_MEDIA_TYPE;
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] docx) {
+		return convertAsync(docx, ".docx");
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(File inFile) {
+		return super.convertAsync(inFile);
+	}
 
 	@Override
 	public byte[] convert(InputStream docx) throws ConversionException, IOException {
@@ -25,8 +46,7 @@ public class DocxToPdfConverter extends PdfConverterCore implements org.plutext.
 	
 	public byte[] convert(File inFile) throws ConversionException, IOException {
 	
-		String filename = inFile.getName();
-		String ext = filename.substring(filename.lastIndexOf("."));
+		String ext = extension(inFile);
 				
 		MediaType mt = MediaType.parse(DOCX_MEDIA_TYPE);
 		// can create RequestBody from byte[] or FIle
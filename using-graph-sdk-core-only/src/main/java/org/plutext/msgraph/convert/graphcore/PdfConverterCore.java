@@ -21,29 +21,54 @@ package org.plutext.msgraph.convert.graphcore;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.io.IOUtils;
 import org.plutext.msgraph.convert.DocxToPdfConverter;
 import org.plutext.msgraph.convert.AbstractOpenXmlToPDF;
 import org.plutext.msgraph.convert.AuthConfig;
 import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.DownloadHandler;
+import org.plutext.msgraph.convert.HttpClientConfig;
+import org.plutext.msgraph.convert.auth.ClientCredentialsTokenSource;
+import org.plutext.msgraph.convert.auth.GsonTokenParser;
+import org.plutext.msgraph.convert.auth.TokenProvider;
+import org.plutext.msgraph.convert.auth.UnauthorizedException;
+import org.plutext.msgraph.convert.buffer.PooledBytes;
+import org.plutext.msgraph.convert.cleanup.BatchSender;
+import org.plutext.msgraph.convert.cleanup.BatchingDeleter;
+import org.plutext.msgraph.convert.cleanup.CleanupQueue;
+import org.plutext.msgraph.convert.cleanup.DeleteStatus;
+import org.plutext.msgraph.convert.cleanup.GsonBatchParser;
+import org.plutext.msgraph.convert.download.ResumableDownload;
+import org.plutext.msgraph.convert.retry.Deadline;
+import org.plutext.msgraph.convert.stage.ConversionStages;
+import org.plutext.msgraph.convert.throttle.ThrottledException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.microsoft.graph.auth.confidentialClient.ClientCredentialProvider;
-import com.microsoft.graph.auth.enums.NationalCloud;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.microsoft.graph.core.ClientException;
 import com.microsoft.graph.httpcore.HttpClients;
-import com.microsoft.graph.models.extensions.IGraphServiceClient;
-import com.microsoft.graph.requests.extensions.GraphServiceClient;
 
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.BufferedSink;
 
 /**
  * Demonstrate using the Graph SDK high level API for PDF Conversion.
@@ -56,19 +81,183 @@ import okhttp3.Response;
 public abstract class PdfConverterCore  extends AbstractOpenXmlToPDF {
 
 	public PdfConverterCore(AuthConfig authConfig) {
+		this(authConfig, new HttpClientConfig());
+	}
+
+	/**
+	 * @param authConfig
+	 * @param httpClientConfig connection pool, dispatcher and timeout settings for this converter's client
+	 * (the timeouts also apply to resumed downloads)
+	 */
+	public PdfConverterCore(AuthConfig authConfig, HttpClientConfig httpClientConfig) {
 		super(authConfig);
+		this.httpClientConfig = httpClientConfig;
+		
+		setTokenProvider(TokenProvider.shared(authConfig, 
+				executor -> new ClientCredentialsTokenSource(authConfig, GsonTokenParser::parse, executor, httpClientConfig)));
+		
+		Dispatcher dispatcher = new Dispatcher();
+		dispatcher.setMaxRequests(httpClientConfig.getMaxRequests());
+		dispatcher.setMaxRequestsPerHost(httpClientConfig.getMaxRequestsPerHost());
+		ConnectionPool pool = new ConnectionPool(httpClientConfig.getMaxIdleConnections(), 
+				httpClientConfig.getKeepAliveMillis(), TimeUnit.MILLISECONDS);
+		connectionMetrics = new ConnectionMetrics(pool, dispatcher);
+		client = createClient(pool, dispatcher, connectionMetrics, httpClientConfig);
+		noRedirectClient = client.newBuilder().followRedirects(false).build();
+		setCleanupQueue(new CleanupQueue(new BatchingDeleter(this::deleteBatch), 
+				2 * BatchSender.MAX_BATCH_SIZE, CleanupQueue.DEFAULT_MAX_ATTEMPTS));
+	}
+	
+	/**
+	 * One client per converter, shared by all conversions (and threads), 
+	 * so connections (and their TLS sessions) are reused.
+	 */
+	private final OkHttpClient client;
+	
+	/**
+	 * Shares the client's pool and dispatcher
+	 */
+	private final OkHttpClient noRedirectClient;
+	
+	private final ConnectionMetrics connectionMetrics;
+	
+	private final HttpClientConfig httpClientConfig;
+	
+	/**
+	 * Not HttpClients.createDefault: in graph-core 1.0, its RetryHandler and RedirectHandler 
+	 * send the next request without closing the previous response, so each redirect 
+	 * (ie every ?format=pdf) and each retried 429 leaks a connection until it is garbage collected.  
+	 * OkHttp follows redirects itself, closing each response first; throttled phases are 
+	 * retried by our RetryPolicy.
+	 * 
+	 * Nor graph-core's AuthenticationHandler, which would get the token on OkHttp's dispatcher 
+	 * thread, blocking it while a token is fetched; execute adds the token instead.
+	 */
+	static OkHttpClient createClient(ConnectionPool pool, Dispatcher dispatcher, EventListener eventListener, 
+			HttpClientConfig httpClientConfig) {
+		
+		return HttpClients.custom()
+				.connectTimeout(httpClientConfig.getConnectTimeoutMillis(), TimeUnit.MILLISECONDS)
+				.readTimeout(httpClientConfig.getReadTimeoutMillis(), TimeUnit.MILLISECONDS)
+				.followRedirects(true)
+				.connectionPool(pool)
+				.dispatcher(dispatcher)
+				.eventListener(eventListener)
+				.build();
+	}
+	
+	/**
+	 * Idle, active and evicted connections in this converter's pool, and calls in flight; 
+	 * see ConnectionMetrics
+	 */
+	public ConnectionMetrics getConnectionMetrics() {
+		return connectionMetrics;
 	}
 
 	private static final Logger log = LoggerFactory.getLogger(PdfConverterCore.class);
 	
 
+	/**
+	 * RequestBody can't handle an input stream directly, so the document is read 
+	 * into pooled buffers, which the RequestBody writes from.
+	 */
 	@Override
 	public byte[] convert(InputStream docx, String ext) throws ConversionException, IOException {
 		
-		// RequestBody can't handle an input stream directly
-		return convert( IOUtils.toByteArray(docx), ext );
+		try (PooledBytes bytes = getBufferPool().read(docx)) {
+			return convert(requestBody(bytes), ext);
+		}
 	}	
 	
+	@Override
+	public long convert(byte[] bytes, String ext, OutputStream sink) throws ConversionException {
+		
+		MediaType mt = MediaType.parse(mediaType());
+		return await(convertAsync(RequestBody.create(mt, bytes), ext, DownloadHandler.to(sink)));
+	}
+	
+	@Override
+	public long convert(InputStream is, String ext, OutputStream sink) throws ConversionException, IOException {
+		
+		try (PooledBytes bytes = getBufferPool().read(is)) {
+			return await(convertAsync(requestBody(bytes), ext, DownloadHandler.to(sink)));
+		}
+	}
+	
+	/**
+	 * @return the media type to send with the upload
+	 */
+	protected abstract String mediaType();
+	
+	/**
+	 * A RequestBody which can be written more than once (eg if OkHttp retries), 
+	 * as long as the bytes haven't been released.
+	 */
+	private RequestBody requestBody(PooledBytes bytes) {
+		
+		MediaType mt = MediaType.parse(mediaType());
+		return new RequestBody() {
+
+			@Override
+			public MediaType contentType() {
+				return mt;
+			}
+			
+			@Override
+			public long contentLength() {
+				return bytes.size();
+			}
+
+			@Override
+			public void writeTo(BufferedSink sink) throws IOException {
+				bytes.writeTo(sink);
+			}
+		};
+	}
+	
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] bytes, String ext) {
+		
+		MediaType mt = MediaType.parse(mediaType());
+		return convertAsync(RequestBody.create(mt, bytes), ext);
+	}
+	
+	@Override
+	public <T> CompletableFuture<T> convertAsync(byte[] bytes, String ext, DownloadHandler<T> handler) {
+		
+		MediaType mt = MediaType.parse(mediaType());
+		return convertAsync(RequestBody.create(mt, bytes), ext, handler);
+	}
+	
+	protected CompletableFuture<byte[]> convertAsync(File inFile) {
+		
+		String ext;
+		try {
+			ext = extension(inFile);
+		} catch (ConversionException e) {
+			return failed(e);
+		}
+		
+		MediaType mt = MediaType.parse(mediaType());
+		// can create RequestBody from byte[] or FIle
+		return convertAsync(RequestBody.create(mt, inFile), ext);
+	}
+	
+	/**
+	 * OkHttp streams the file up.
+	 */
+	@Override
+	public <T> CompletableFuture<T> convertAsync(File in, DownloadHandler<T> handler) {
+		
+		String ext;
+		try {
+			ext = extension(in);
+		} catch (ConversionException e) {
+			return failed(e);
+		}
+		return convertAsync(RequestBody.create(MediaType.parse(mediaType()), in), ext, handler);
+	}
+	
 	
 	/**
 	 * We can create RequestBody from byte[] or File
@@ -77,53 +266,303 @@ public abstract class PdfConverterCore  extends AbstractOpenXmlToPDF {
 	 * @throws IOException 
 	 */
 	public byte[] convert(RequestBody body, String ext) throws ConversionException, IOException {
+		return await(convertAsync(body, ext));
+	}
+	
+	/**
+	 * Each phase is enqueued on OkHttp's dispatcher, and the next is chained on
+	 * its completion, so no caller thread waits on Graph.
+	 * @param body
+	 * @param ext
+	 * @return
+	 */
+	public CompletableFuture<byte[]> convertAsync(RequestBody body, String ext) {
+		return convertAsync(body, ext, DownloadHandler.toByteArray());
+	}
+	
+	/**
+	 * As above, but the PDF is passed to the handler as it arrives, rather than
+	 * being buffered in memory.
+	 * @param body
+	 * @param ext
+	 * @param handler
+	 * @return
+	 */
+	public <T> CompletableFuture<T> convertAsync(RequestBody body, String ext, DownloadHandler<T> handler) {
 		
-    	List<String> scopes = new ArrayList<String>();
-    	scopes.add("https://graph.microsoft.com/.default");
-		ClientCredentialProvider authProvider = 
-				new ClientCredentialProvider(authConfig.apiKey(), scopes, authConfig.apiSecret(), 
-						authConfig.tenant(), NationalCloud.Global);	
-		
-//		Using msgraph-sdk-java
-		IGraphServiceClient graphClient = GraphServiceClient
-						.builder()
-						.authenticationProvider(authProvider)
-						.buildClient();
-
         String tmpFileName = UUID.randomUUID()+ ext; 
 		String item =  "root:/" + tmpFileName +":";	
-		String path = "https://graph.microsoft.com/v1.0/sites/" + authConfig.site() + "/drive/items/" + item + "/content";
-		
-		// Upload
-		OkHttpClient client = HttpClients.createDefault(authProvider);
-		Request request = new Request.Builder().url(path).put(body).build();
-		Response response = client.newCall(request).execute();
-//		System.out.println(response.body().string());
-
-
-		// Convert/download
-		request = new Request.Builder().url(path + "?format=pdf").build();
-		response = client.newCall(request).execute();
-		//System.out.println(response.body().string());
-		byte[] pdf = null;
-		try (
-				InputStream inputStream = response.body().byteStream()
-        ) {
+		
+		return limited(deadline -> upload(item, body, deadline).thenCompose(uploaded -> 
 			
-			pdf = IOUtils.toByteArray(inputStream);;
-        } catch (ClientException e) {
-        	throw new ConversionException(e.getMessage(), e);
-        } 		
+			// if this is throttled, only the download is retried
+			download(item, handler, deadline).whenComplete((pdf, e) -> {
+				
+				// Move temp file to recycle bin, in the background (whether or not the conversion worked)
+				getCleanupQueue().submit(itemPath(item));
+			})));
+
+	}
+	
+	private String itemPath(String item) {
+		return authConfig.graphEndpoint() + "/sites/" + authConfig.site() + "/drive/items/" + item;  // filename is easier than item id here
+	}
+	
+	private CompletableFuture<Integer> upload(String item, RequestBody body, Deadline deadline) {
 		
-		// Move temp file to recycle
-		path = "https://graph.microsoft.com/v1.0/sites/" + authConfig.site() + "/drive/items/" + item;  // filename is easier than item id here
-		request = new Request.Builder().url(path).delete().build();
-		response = client.newCall(request).execute();
-		log.debug("Delete? " + response.code());
-		log.debug(response.body().string());
+		Request upload = new Request.Builder().url(itemPath(item) + "/content").put(body).build();
+		return retry("upload", () -> execute(client, upload, response -> {
+			
+			// so a failed upload never gets as far as the download
+			if (!response.isSuccessful()) {
+				throw httpFailure(response, "upload");
+			}
+			return response.code();
+			
+		}), deadline);
+	}
+	
+	private <T> CompletableFuture<T> download(String item, DownloadHandler<T> handler, Deadline deadline) {
 		
-		return pdf;
+		Request download = new Request.Builder().url(itemPath(item) + "/content?format=pdf").build();
+		return retry("convert", () -> execute(client, download, response -> {
+			
+			if (!response.isSuccessful()) {
+				throw httpFailure(response, "download");
+			}
+			try {
+				return handler.handle(response.body().byteStream());
+	        } catch (ClientException | IOException e) {
+	        	throw new ConversionException(e.getMessage(), e);
+	        }
+			
+		}), deadline);
+	}
+	
+	@Override
+	public long convert(File in, File out) throws ConversionException, IOException {
+		return await(convertAsync(in, out));
+	}
+	
+	/**
+	 * The file is streamed up by OkHttp, and the PDF written straight to out; 
+	 * if the download's connection drops, it is resumed rather than converting again.
+	 * 
+	 * @return the size of the PDF
+	 */
+	public CompletableFuture<Long> convertAsync(File in, File out) {
+		
+		String item;
+		try {
+			item = "root:/" + UUID.randomUUID() + extension(in) + ":";
+		} catch (ConversionException e) {
+			return failed(e);
+		}
+		RequestBody body = RequestBody.create(MediaType.parse(mediaType()), in);
+		
+		return deleteOnFailure(limited(deadline -> upload(item, body, deadline).thenCompose(uploaded -> 
+			
+			downloadTo(item, out, deadline).whenComplete((size, e) -> {
+				
+				// Move temp file to recycle bin, in the background (whether or not the conversion worked)
+				getCleanupQueue().submit(itemPath(item));
+			}))), out);
+	}
+	
+	/**
+	 * Ask for ?format=pdf without following the redirect, then download 
+	 * the PDF from where it points, so the download can be resumed. 
+	 */
+	private CompletableFuture<Long> downloadTo(String item, File out, Deadline deadline) {
+		
+		Request download = new Request.Builder().url(itemPath(item) + "/content?format=pdf").build();
+		return retry("convert", () -> execute(noRedirectClient, download, response -> {
+			
+			if (response.isRedirect()) {
+				String location = response.header("Location");
+				// release this connection before fetching the PDF on another, off OkHttp's thread
+				response.close();
+				return downloadFrom(location, out);
+			}
+			if (!response.isSuccessful()) {
+				throw httpFailure(response, "download");
+			}
+			try (FileChannel channel = openOutput(out)) {
+				return CompletableFuture.completedFuture(
+						new ResumableDownload(channel, httpClientConfig).from(response.body().byteStream()));
+			} catch (IOException e) {
+				throw new ConversionException(e.getMessage(), e);
+			}
+			
+		}).thenCompose(pdf -> pdf), deadline);
+	}
+	
+	/**
+	 * Fetch the PDF from the download URL on the I/O executor, since 
+	 * ResumableDownload blocks (as GraphPhases.downloadPdf does).
+	 */
+	private CompletableFuture<Long> downloadFrom(String location, File out) {
+		
+		CompletableFuture<Long> future = new CompletableFuture<Long>();
+		try {
+			executeIo(() -> {
+				try (FileChannel channel = openOutput(out)) {
+					future.complete(new ResumableDownload(channel, httpClientConfig).from(location));
+				} catch (IOException e) {
+					future.completeExceptionally(new ConversionException(e.getMessage(), e));
+				} catch (RuntimeException e) {
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	
+	/**
+	 * This converter's phases, for a StagedEngine.
+	 * The uploaded document is identified by its item path. 
+	 */
+	public ConversionStages<String> stages() {
+		
+		return new ConversionStages<String>() {
+
+			@Override
+			public CompletableFuture<?> token() {
+				return getTokenProvider().getAccessToken();
+			}
+
+			@Override
+			public CompletableFuture<String> upload(byte[] bytes, String ext) {
+				
+				String item =  "root:/" + UUID.randomUUID() + ext + ":";
+				RequestBody body = RequestBody.create(MediaType.parse(mediaType()), bytes);
+				return limited(deadline -> PdfConverterCore.this.upload(item, body, deadline)).thenApply(code -> item);
+			}
+
+			@Override
+			public CompletableFuture<String> upload(File file, String ext) {
+				
+				String item =  "root:/" + UUID.randomUUID() + ext + ":";
+				RequestBody body = RequestBody.create(MediaType.parse(mediaType()), file);
+				return limited(deadline -> PdfConverterCore.this.upload(item, body, deadline)).thenApply(code -> item);
+			}
+
+			@Override
+			public <T> CompletableFuture<T> convert(String item, DownloadHandler<T> handler) {
+				return limited(deadline -> download(item, handler, deadline));
+			}
+
+			@Override
+			public CompletableFuture<?> cleanup(String item) {
+				return getCleanupQueue().submit(itemPath(item));
+			}
+		};
+	}
+	
+	/**
+	 * @return a ThrottledException for 429/503 (so the AdaptiveLimiter backs off),
+	 * otherwise a ConversionException 
+	 */
+	private static ConversionException httpFailure(Response response, String phase) {
+		
+		if (ThrottledException.isThrottled(response.code())) {
+			return new ThrottledException(response.code(), 
+					ThrottledException.parseRetryAfter(response.header("Retry-After")),
+					phase + " throttled with HTTP " + response.code());
+		}
+		return new ConversionException(phase + " failed with HTTP " + response.code());
+	}
+	
+	private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+	
+	/**
+	 * Delete up to 20 items in a single JSON $batch request; used by the CleanupQueue.
+	 * 
+	 * @param itemPaths
+	 * @return the status for each item, in order
+	 */
+	protected CompletableFuture<List<DeleteStatus>> deleteBatch(List<String> itemPaths) {
+		
+		JsonArray requests = new JsonArray();
+		for (int i = 0; i < itemPaths.size(); i++) {
+			JsonObject request = new JsonObject();
+			request.addProperty("id", String.valueOf(i));
+			request.addProperty("method", "DELETE");
+			request.addProperty("url", BatchSender.relativeUrl(authConfig.graphEndpoint(), itemPaths.get(i)));
+			requests.add(request);
+		}
+		JsonObject batch = new JsonObject();
+		batch.add("requests", requests);
+		
+		Request post = new Request.Builder().url(BatchSender.batchUrl(authConfig.graphEndpoint()))
+				.post(RequestBody.create(JSON, batch.toString())).build();
+		return execute(client, post, response -> {
+			
+			if (!response.isSuccessful()) {
+				throw httpFailure(response, "$batch");
+			}
+			return GsonBatchParser.parse(new JsonParser().parse(response.body().string()).getAsJsonObject(), 
+					itemPaths.size());
+		});
+	}
+	
+	/**
+	 * What to make of a response.  It should check the status before reading the body.
+	 */
+	@FunctionalInterface
+	protected interface ResponseHandler<T> {
+		
+		public abstract T handle(Response response) throws ConversionException, IOException;
+	}
+	
+	/**
+	 * Once there is an access token, add it to the request, and enqueue that, 
+	 * completing the returned future from OkHttp's callback with what the handler 
+	 * makes of the response.  (So OkHttp's dispatcher threads never wait for a token.)
+	 * 
+	 * The response is closed as soon as the handler returns (or throws), whatever 
+	 * happens to the future, so its connection always goes back to the pool; and 
+	 * before the future completes, so the next phase can reuse that connection.
+	 * 
+	 * A 401 isn't handed to the handler: the token is invalidated, and the future 
+	 * fails with an UnauthorizedException, so a retry gets a new token.
+	 */
+	protected <T> CompletableFuture<T> execute(OkHttpClient client, Request request, ResponseHandler<T> handler) {
+		
+		return getTokenProvider().getAccessToken().thenCompose(token -> enqueue(client, 
+				request.newBuilder().header("Authorization", "Bearer " + token).build(), handler));
+	}
+	
+	private <T> CompletableFuture<T> enqueue(OkHttpClient client, Request request, ResponseHandler<T> handler) {
+		
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		client.newCall(request).enqueue(new Callback() {
+
+			@Override
+			public void onFailure(Call call, IOException e) {
+				future.completeExceptionally(e);
+			}
 
+			@Override
+			public void onResponse(Call call, Response response) {
+				
+				T result;
+				try (Response r = response) {
+					if (r.code() == 401) {
+						getTokenProvider().invalidate(TokenProvider.bearerToken(request.header("Authorization")));
+						throw new UnauthorizedException(request.method() + " unauthorized");
+					}
+					result = handler.handle(r);
+				} catch (ConversionException | IOException | RuntimeException e) {
+					future.completeExceptionally(e);
+					return;
+				}
+				future.complete(result);
+			}
+		});
+		return future;
 	}
 	
 
@@ -3,6 +3,7 @@ package org.plutext.msgraph.convert.graphcore;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 import okhttp3.MediaType;
 import okhttp3.RequestBody;
@@ -10,6 +11,7 @@ import okhttp3.RequestBody;
 
 import org.plutext.msgraph.convert.AuthConfig;
 import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.HttpClientConfig;
 
 public class PptxToPdfConverter extends PdfConverterCore implements org.plutext.msgraph.convert.PptxToPdfConverter {
 
@@ -18,6 +20,25 @@ public class PptxToPdfConverter extends PdfConverterCore implements org.plutext.
 		super(authConfig);
 	}
 
+	public PptxToPdfConverter(AuthConfig authConfig, HttpClientConfig httpClientConfig) {
+		super(authConfig, httpClientConfig);
+	}
+
+
+	@Override
+	protected String mediaType() {
+		return PPTX_MEDIA_TYPE;
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] pptx) {
+		return convertAsync(pptx, ".pptx");
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(File inFile) {
+		return super.convertAsync(inFile);
+	}
 
 	@Override
 	public byte[] convert(InputStream pptx) throws ConversionException, IOException {
@@ -26,8 +47,7 @@ public class PptxToPdfConverter extends PdfConverterCore implements org.plutext.
 	
 	public byte[] convert(File inFile) throws ConversionException, IOException {
 	
-	String filename = inFile.getName();
-	String ext = filename.substring(filename.lastIndexOf("."));
+	String ext = extension(inFile);
 			
 	MediaType mt = MediaType.parse(PPTX_MEDIA_TYPE);
 	// can create RequestBody from byte[] or FIle
@@ -3,6 +3,7 @@ package org.plutext.msgraph.convert.graphcore;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 import okhttp3.MediaType;
 import okhttp3.RequestBody;
@@ -10,6 +11,7 @@ import okhttp3.RequestBody;
 
 import org.plutext.msgraph.convert.AuthConfig;
 import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.HttpClientConfig;
 
 public class XlsxToPdfConverter extends PdfConverterCore implements org.plutext.msgraph.convert.XlsxToPdfConverter {
 
@@ -18,6 +20,25 @@ public class XlsxToPdfConverter extends PdfConverterCore implements org.plutext.
 		super(authConfig);
 	}
 
+	public XlsxToPdfConverter(AuthConfig authConfig, HttpClientConfig httpClientConfig) {
+		super(authConfig, httpClientConfig);
+	}
+
+
+	@Override
+	protected String mediaType() {
+		return XLSX_MEDIA_TYPE;
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] xlsx) {
+		return convertAsync(xlsx, ".xlsx");
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(File inFile) {
+		return super.convertAsync(inFile);
+	}
 
 	@Override
 	public byte[] convert(InputStream xlsx) throws ConversionException, IOException {
@@ -26,8 +47,7 @@ public class XlsxToPdfConverter extends PdfConverterCore implements org.plutext.
 	
 	public byte[] convert(File inFile) throws ConversionException, IOException {
 	
-		String filename = inFile.getName();
-		String ext = filename.substring(filename.lastIndexOf("."));
+		String ext = extension(inFile);
 				
 		MediaType mt = MediaType.parse(XLSX_MEDIA_TYPE);
 		// can create RequestBody from byte[] or FIle
@@ -3,8 +3,10 @@ package org.plutext.msgraph.convert.graphsdk;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 import org.plutext.msgraph.convert.AuthConfig;
+import org.plutext.msgraph.convert.HttpClientConfig;
 import org.plutext.msgraph.convert.ConversionException;
 import org.plutext.msgraph.convert.DocxToPdfConverter;
 
@@ -14,11 +16,20 @@ public class DocxToPdfConverterLarge extends PdfConverterLarge implements DocxTo
 		super(authConfig);
 	}
 
+	public DocxToPdfConverterLarge(AuthConfig authConfig, HttpClientConfig httpClientConfig) {
+		super(authConfig, httpClientConfig);
+	}
+
 	@Override
 	public byte[] convert(byte[] docx) throws ConversionException {
 		return convert(docx, ".docx");
 	}
 
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] docx) {
+		return convertAsync(docx, ".docx");
+	}
+
 	@Override
 	public byte[] convert(InputStream docx) throws ConversionException, IOException {
 		return convert(docx, ".docx");
@@ -27,6 +38,10 @@ public class DocxToPdfConverterLarge extends PdfConverterLarge implements DocxTo
 	public byte[] convert(File docx) throws ConversionException, IOException {
 		return super.convert(docx);
 	}
+
+	public CompletableFuture<byte[]> convertAsync(File docx) {
+		return super.convertAsync(docx);
+	}
 	
 
 }
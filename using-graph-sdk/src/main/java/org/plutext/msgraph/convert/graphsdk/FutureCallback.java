@@ -0,0 +1,75 @@
+package org.plutext.msgraph.convert.graphsdk;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.plutext.msgraph.convert.auth.UnauthorizedException;
+import org.plutext.msgraph.convert.throttle.ThrottledException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.graph.concurrency.IProgressCallback;
+import com.microsoft.graph.core.ClientException;
+import com.microsoft.graph.http.GraphServiceException;
+
+/**
+ * Completes a CompletableFuture when the Graph SDK calls back, so the phases 
+ * of a conversion can be chained rather than waited on.
+ * 
+ * @author jharrop
+ *
+ */
+class FutureCallback<T> implements IProgressCallback<T> {
+	
+	private static final Logger log = LoggerFactory.getLogger(FutureCallback.class);
+	
+	final CompletableFuture<T> future = new CompletableFuture<T>();			
+
+	@Override
+	public void success(T result) {
+		future.complete(result);
+	}
+
+	@Override
+	public void failure(ClientException ex) {
+		
+		if (ex instanceof GraphServiceException
+				&& ThrottledException.isThrottled(((GraphServiceException)ex).getResponseCode())) {
+			// our RetryPolicy retries it (the client has no RetryHandler; see GraphClients)
+			int code = ((GraphServiceException)ex).getResponseCode();
+			future.completeExceptionally(new ThrottledException(code, retryAfterMillis((GraphServiceException)ex), 
+					"Throttled with HTTP " + code, ex));
+			return;
+		}
+		if (ex instanceof GraphServiceException && ((GraphServiceException)ex).getResponseCode() == 401) {
+			// GraphClients has invalidated the token
+			future.completeExceptionally(new UnauthorizedException("Unauthorized", ex));
+			return;
+		}
+		future.completeExceptionally(ex);
+	}
+
+	private static final Pattern RETRY_AFTER = Pattern.compile("(?im)^Retry-After\\s*:\\s*(.+)$");
+	
+	/**
+	 * The SDK only exposes the response headers in its verbose message, 
+	 * one "Name : value" per line.
+	 * 
+	 * @return as per ThrottledException.parseRetryAfter
+	 */
+	static long retryAfterMillis(GraphServiceException ex) {
+		
+		Matcher m = RETRY_AFTER.matcher(ex.getMessage(true));
+		return m.find() ? ThrottledException.parseRetryAfter(m.group(1)) : -1;
+	}
+
+    @Override
+    // Called after each slice of the file is uploaded
+    public void progress(final long current, final long max) {
+        log.debug(
+            String.format("Uploaded %d bytes of %d total bytes", current, max)
+        );
+    }
+	
+}
@@ -0,0 +1,127 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.graphsdk;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+import org.plutext.msgraph.convert.AuthConfig;
+import org.plutext.msgraph.convert.HttpClientConfig;
+import org.plutext.msgraph.convert.auth.ClientCredentialsTokenSource;
+import org.plutext.msgraph.convert.auth.GsonTokenParser;
+import org.plutext.msgraph.convert.auth.TokenProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.graph.core.DefaultClientConfig;
+import com.microsoft.graph.core.IClientConfig;
+import com.microsoft.graph.http.CoreHttpProvider;
+import com.microsoft.graph.httpcore.AuthenticationHandler;
+import com.microsoft.graph.httpcore.HttpClients;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.requests.extensions.GraphServiceClient;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * Builds the long-lived IGraphServiceClient each converter owns.
+ * 
+ * CoreHttpProvider creates its OkHttpClient lazily, with no way to configure
+ * the connection pool, so we set it reflectively.  If that fails (eg a different 
+ * SDK version), the SDK's default client is used; since the IGraphServiceClient 
+ * is long-lived, its connections are still reused.
+ * 
+ * @author jharrop
+ *
+ */
+class GraphClients {
+	
+	private static final Logger log = LoggerFactory.getLogger(GraphClients.class);
+	
+	private GraphClients() {}
+
+	/**
+	 * The TokenProvider shared by the converters (and their clients) for authConfig
+	 */
+	static TokenProvider tokenProvider(AuthConfig authConfig) {
+		return TokenProvider.shared(authConfig, 
+				executor -> new ClientCredentialsTokenSource(authConfig, GsonTokenParser::parse, executor));
+	}
+
+	static IGraphServiceClient create(AuthConfig authConfig, HttpClientConfig httpClientConfig) {
+		
+		TokenProvider tokenProvider = tokenProvider(authConfig);
+		TokenAuthenticationProvider authProvider = new TokenAuthenticationProvider(tokenProvider);
+		
+		IClientConfig defaults = DefaultClientConfig.createWithAuthenticationProvider(authProvider);
+		CoreHttpProvider httpProvider = new CoreHttpProvider(defaults.getSerializer(), authProvider, 
+				defaults.getExecutors(), defaults.getLogger());
+		
+		Dispatcher dispatcher = new Dispatcher();
+		dispatcher.setMaxRequests(httpClientConfig.getMaxRequests());
+		dispatcher.setMaxRequestsPerHost(httpClientConfig.getMaxRequestsPerHost());
+		
+		// The bearer token is added by authProvider (as an IAuthenticationProvider), 
+		// so the OkHttp-level authentication handler is a no-op, as in CoreHttpProvider itself.
+		// Not createDefault: graph-core's RetryHandler and RedirectHandler leak responses 
+		// (see PdfConverterCore.createClient), and would retry 429s behind our RetryPolicy's back.
+		// OkHttp follows the redirect to the PDF itself, closing each response first; 
+		// throttling is left to the RetryPolicy.
+		OkHttpClient okHttpClient = HttpClients.custom()
+				.addInterceptor(new AuthenticationHandler(request -> request))
+				.connectTimeout(httpClientConfig.getConnectTimeoutMillis(), TimeUnit.MILLISECONDS)
+				.readTimeout(httpClientConfig.getReadTimeoutMillis(), TimeUnit.MILLISECONDS)
+				.followRedirects(true)
+				.retryOnConnectionFailure(false)
+				.connectionPool(new ConnectionPool(httpClientConfig.getMaxIdleConnections(), 
+						httpClientConfig.getKeepAliveMillis(), TimeUnit.MILLISECONDS))
+				.dispatcher(dispatcher)
+				.addInterceptor(chain -> {
+					// Graph refused the token, so a retry should get a new one
+					Response response = chain.proceed(chain.request());
+					if (response.code() == 401) {
+						tokenProvider.invalidate(TokenProvider.bearerToken(chain.request().header("Authorization")));
+					}
+					return response;
+				})
+				.build();
+		try {
+			Field f = CoreHttpProvider.class.getDeclaredField("corehttpClient");
+			f.setAccessible(true);
+			f.set(httpProvider, okHttpClient);
+		} catch (NoSuchFieldException | IllegalAccessException | RuntimeException e) {
+			log.warn("Can't configure the SDK's connection pool; using its default. " + e.getMessage());
+		}
+		
+		IGraphServiceClient graphClient = GraphServiceClient
+						.builder()
+						.authenticationProvider(authProvider)
+						.httpProvider(httpProvider)
+						.serializer(defaults.getSerializer())
+						.executors(defaults.getExecutors())
+						.logger(defaults.getLogger())
+						.buildClient();
+		graphClient.setServiceRoot(authConfig.graphEndpoint());
+		return graphClient;
+	}
+	
+}
@@ -0,0 +1,308 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.graphsdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.DownloadHandler;
+import org.plutext.msgraph.convert.HttpClientConfig;
+import org.plutext.msgraph.convert.auth.UnauthorizedException;
+import org.plutext.msgraph.convert.cleanup.CleanupQueue;
+import org.plutext.msgraph.convert.cleanup.DeleteStatus;
+import org.plutext.msgraph.convert.cleanup.GsonBatchParser;
+import org.plutext.msgraph.convert.download.ResumableDownload;
+import org.plutext.msgraph.convert.retry.Deadline;
+import org.plutext.msgraph.convert.retry.RetryPolicy;
+import org.plutext.msgraph.convert.throttle.ThrottledException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.http.CustomRequest;
+import com.microsoft.graph.http.HttpMethod;
+import com.microsoft.graph.http.IConnection;
+import com.microsoft.graph.http.IHttpRequest;
+import com.microsoft.graph.http.IStatefulResponseHandler;
+import com.microsoft.graph.logger.ILogger;
+import com.microsoft.graph.models.extensions.DriveItem;
+import com.microsoft.graph.models.extensions.IGraphServiceClient;
+import com.microsoft.graph.serializer.ISerializer;
+
+import okhttp3.Response;
+
+/**
+ * The convert/download and delete phases, shared by Limited4MB and PdfConverterLarge
+ * once the upload has completed.
+ * 
+ * @author jharrop
+ *
+ */
+class GraphPhases {
+	
+	private static final Logger log = LoggerFactory.getLogger(GraphPhases.class);
+	
+	private GraphPhases() {}
+	
+	static <T> CompletableFuture<T> downloadPdf(IGraphServiceClient graphClient, String convertPathPrefix, String item,
+			DownloadHandler<T> handler) {
+		
+//		Option format = new PdfOption("format", "pdf");
+//		List<Option> requestOptions = new ArrayList<Option>();
+//		requestOptions.add(format);
+		
+		// The SDK hands back a BufferedInputStream (not a Stream) whenever the response isn't json,
+		// so ask for InputStream.class; asking for Stream.class only works with a cast on the sync API.
+		FutureCallback<InputStream> callback = new FutureCallback<InputStream>();
+		graphClient.customRequest(convertPathPrefix + item+ "/content?format=pdf", InputStream.class)
+				.buildRequest()
+				.get(callback);
+				
+				// Both the following ignores format option!
+//				BufferedInputStream inputStream = (BufferedInputStream)graphClient.customRequest(convertPathPrefix + item+ "/content", Stream.class)
+//				.buildRequest(requestOptions)
+//				.get();
+				// customRequest request works, but the following is neater
+//				BufferedInputStream inputStream = (BufferedInputStream)graphClient.sites(siteId).drive().items(item).content()
+//					.buildRequest( requestOptions ).get();
+		
+		return callback.future.thenApply(stream -> {
+			try (
+					InputStream inputStream = stream
+			) {
+				return handler.handle(inputStream);
+			} catch (IOException e) {
+	        	log.error(e.getMessage(), e);
+				throw new CompletionException(new ConversionException(e.getMessage(), e));
+			}			
+		});
+	}
+	
+	/**
+	 * Ask for ?format=pdf, and write the PDF straight to the file; the client follows 
+	 * the redirect, and if the download drops part way, it is resumed from where the 
+	 * redirect led (see ResumableDownload).
+	 * 
+	 * The http provider only hands us the raw response via a stateful response 
+	 * handler, which is synchronous, so this runs on the executor.
+	 * 
+	 * @param httpClientConfig for the timeouts of the download from where the redirect led
+	 * @param executor the converter's I/O executor
+	 * @return the size of the PDF
+	 */
+	static CompletableFuture<Long> downloadPdf(IGraphServiceClient graphClient, String convertPathPrefix, String item,
+			File out, HttpClientConfig httpClientConfig, Executor executor) {
+		
+		CustomRequest<InputStream> request = graphClient.customRequest(convertPathPrefix + item+ "/content?format=pdf", 
+				InputStream.class).buildRequest();
+		request.setHttpMethod(HttpMethod.GET);
+		
+		CompletableFuture<Long> future = new CompletableFuture<Long>();
+		try {
+			executor.execute(() -> {
+				try {
+					future.complete(graphClient.getHttpProvider().send(request, Long.class, null, new ToFile(out, httpClientConfig)));
+				} catch (RuntimeException e) {
+					// the provider wraps what ToFile throws in a ClientException
+					Throwable cause = e;
+					while (!(cause instanceof ConversionException) && cause.getCause() != null) {
+						cause = cause.getCause();
+					}
+					future.completeExceptionally(cause instanceof ConversionException ? cause 
+							: new ConversionException(e.getMessage(), e));
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	
+	/**
+	 * Writes the PDF to the file, with either of the SDK's http providers
+	 */
+	private static class ToFile implements IStatefulResponseHandler<Long, Object> {
+		
+		ToFile(File out, HttpClientConfig httpClientConfig) {
+			this.out = out;
+			this.httpClientConfig = httpClientConfig;
+		}
+		
+		private final File out;
+		private final HttpClientConfig httpClientConfig;
+
+		@Override
+		public void configConnection(IConnection connection) {
+			// so we get the download URL, and can resume from it
+			connection.setFollowRedirects(false);
+		}
+
+		@Override
+		public void configConnection(Response response) {
+		}
+
+		/**
+		 * The SDK's older provider, on HttpURLConnection
+		 */
+		@Override
+		public Long generateResult(IHttpRequest request, IConnection connection, ISerializer serializer, ILogger logger)
+				throws Exception {
+			
+			int code = connection.getResponseCode();
+			Map<String, String> headers = connection.getHeaders();
+			String location = header(headers, "Location");
+			if (code >= 300 && code < 400 && location != null) {
+				try (FileChannel channel = open()) {
+					return new ResumableDownload(channel, httpClientConfig).from(location);
+				}
+			}
+			if (code < 200 || code >= 300) {
+				throw failure(code, header(headers, "Retry-After"));
+			}
+			try (FileChannel channel = open(); 
+					InputStream body = connection.getInputStream()) {
+				return new ResumableDownload(channel, httpClientConfig).from(body);
+			}
+		}
+
+		@Override
+		public Long generateResult(IHttpRequest request, Response response, ISerializer serializer, ILogger logger)
+				throws Exception {
+			
+			if (!response.isSuccessful()) {
+				throw failure(response.code(), response.header("Retry-After"));
+			}
+			try (FileChannel channel = open()) {
+				
+				ResumableDownload pdf = new ResumableDownload(channel, httpClientConfig);
+				if (response.priorResponse() != null) {
+					// followed Graph's redirect, so this can be resumed from the download URL
+					return pdf.from(response.body().byteStream(), response.body().contentLength(), 
+							response.request().url().toString());
+				}
+				return pdf.from(response.body().byteStream());
+			}
+		}
+		
+		private FileChannel open() throws IOException {
+			return FileChannel.open(out.toPath(), StandardOpenOption.CREATE, 
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		
+		private static ConversionException failure(int code, String retryAfter) {
+			
+			if (ThrottledException.isThrottled(code)) {
+				return new ThrottledException(code, ThrottledException.parseRetryAfter(retryAfter),
+						"convert throttled with HTTP " + code);
+			}
+			if (code == 401) {
+				return new UnauthorizedException("convert unauthorized");
+			}
+			return new ConversionException("convert failed with HTTP " + code);
+		}
+		
+		/**
+		 * HttpURLConnection's header names are as the server sent them
+		 */
+		private static String header(Map<String, String> headers, String name) {
+			
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				if (name.equalsIgnoreCase(header.getKey())) {
+					return header.getValue();
+				}
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * Upload in a single PUT (4MB max)
+	 */
+	static CompletableFuture<DriveItem> put(IGraphServiceClient graphClient, String site, String item, byte[] bytes) {
+		
+        // Note the obscure code
+		FutureCallback<DriveItem> uploaded = new FutureCallback<DriveItem>();
+		graphClient.sites(site).drive().items(item).content().buildRequest()
+		.put(bytes, uploaded );
+		return uploaded.future;
+	}
+	
+	/**
+	 * Delete up to 20 items in a single JSON $batch request.
+	 * 
+	 * @return the status for each item, in order
+	 */
+	static CompletableFuture<List<DeleteStatus>> deleteBatch(IGraphServiceClient graphClient, String site, List<String> items) {
+		
+		JsonArray requests = new JsonArray();
+		for (int i = 0; i < items.size(); i++) {
+			JsonObject request = new JsonObject();
+			request.addProperty("id", String.valueOf(i));
+			request.addProperty("method", "DELETE");
+			request.addProperty("url", "/sites/" + site + "/drive/items/" + items.get(i));
+			requests.add(request);
+		}
+		JsonObject batch = new JsonObject();
+		batch.add("requests", requests);
+		
+		FutureCallback<JsonObject> callback = new FutureCallback<JsonObject>();
+		graphClient.customRequest("/$batch")
+				.buildRequest()
+				.post(batch, callback);
+		
+		return callback.future.thenApply(json -> GsonBatchParser.parse(json, items.size()));
+	}
+	
+	/**
+	 * Download the PDF (retrying just the download if it is throttled), then queue 
+	 * the uploaded item for deletion (whether or not the conversion worked).
+	 */
+	static <T> CompletableFuture<T> downloadThenCleanup(IGraphServiceClient graphClient, String convertPathPrefix, String item,
+			DownloadHandler<T> handler, CleanupQueue cleanupQueue, RetryPolicy retryPolicy, Deadline deadline, Executor executor) {
+		
+		return retryPolicy.execute("convert", () -> downloadPdf(graphClient, convertPathPrefix, item, handler), deadline, 
+				executor)
+				.whenComplete((pdf, e) -> cleanupQueue.submit(item));
+	}
+
+	/**
+	 * As above, writing the PDF straight to the file
+	 */
+	static CompletableFuture<Long> downloadThenCleanup(IGraphServiceClient graphClient, String convertPathPrefix, String item,
+			File out, HttpClientConfig httpClientConfig, CleanupQueue cleanupQueue, RetryPolicy retryPolicy, 
+			Deadline deadline, Executor executor) {
+		
+		return retryPolicy.execute("convert", () -> downloadPdf(graphClient, convertPathPrefix, item, out, 
+				httpClientConfig, executor), 
+				deadline, executor)
+				.whenComplete((size, e) -> cleanupQueue.submit(item));
+	}
+
+}
@@ -18,16 +18,12 @@
 
 package org.plutext.msgraph.convert.graphsdk;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.OutputStream;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -36,16 +32,17 @@ import org.plutext.msgraph.convert.OpenXmlToPDF;
 import org.plutext.msgraph.convert.AbstractOpenXmlToPDF;
 import org.plutext.msgraph.convert.AuthConfig;
 import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.DownloadHandler;
+import org.plutext.msgraph.convert.HttpClientConfig;
+import org.plutext.msgraph.convert.cleanup.BatchSender;
+import org.plutext.msgraph.convert.cleanup.BatchingDeleter;
+import org.plutext.msgraph.convert.cleanup.CleanupQueue;
+import org.plutext.msgraph.convert.retry.Deadline;
+import org.plutext.msgraph.convert.upload.StreamingUploader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.microsoft.graph.auth.confidentialClient.ClientCredentialProvider;
-import com.microsoft.graph.auth.enums.NationalCloud;
-import com.microsoft.graph.concurrency.ICallback;
-import com.microsoft.graph.core.ClientException;
-import com.microsoft.graph.models.extensions.DriveItem;
 import com.microsoft.graph.models.extensions.IGraphServiceClient;
-import com.microsoft.graph.requests.extensions.GraphServiceClient;
 
 /**
  * Demonstrate using the Graph SDK high level API for PDF Conversion.
@@ -61,133 +58,105 @@ import com.microsoft.graph.requests.extensions.GraphServiceClient;
 public class Limited4MB extends AbstractOpenXmlToPDF {
 
 	public Limited4MB(AuthConfig authConfig) {
+		this(authConfig, new HttpClientConfig());
+	}
+
+	/**
+	 * @param authConfig
+	 * @param httpClientConfig connection pool settings for this converter's client
+	 */
+	public Limited4MB(AuthConfig authConfig, HttpClientConfig httpClientConfig) {
 		super(authConfig);
+		graphClient = GraphClients.create(authConfig, httpClientConfig);
+		setTokenProvider(GraphClients.tokenProvider(authConfig));
+		setCleanupQueue(new CleanupQueue(
+				new BatchingDeleter(items -> GraphPhases.deleteBatch(graphClient, authConfig.site(), items)), 
+				2 * BatchSender.MAX_BATCH_SIZE, CleanupQueue.DEFAULT_MAX_ATTEMPTS));
 	}
+	
+	/**
+	 * One client per converter, shared by all conversions (and threads), 
+	 * so connections (and their TLS sessions) are reused.
+	 */
+	private final IGraphServiceClient graphClient;
 
 	private static final Logger log = LoggerFactory.getLogger(Limited4MB.class);
 			
 	@Override
 	public byte[] convert(byte[] bytes, String ext) throws ConversionException {
+		return await(convertAsync(bytes, ext));
+	}
+	
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] bytes, String ext) {
+		return convertAsync(bytes, ext, DownloadHandler.toByteArray());
+	}
+	
+	@Override
+	public long convert(byte[] bytes, String ext, OutputStream sink) throws ConversionException {
+		return await(convertAsync(bytes, ext, DownloadHandler.to(sink)));
+	}
+	
+	@Override
+	public <T> CompletableFuture<T> convertAsync(byte[] bytes, String ext, DownloadHandler<T> handler) {
 		
-		
-    	List<String> scopes = new ArrayList<String>();
-    	scopes.add("https://graph.microsoft.com/.default");
-		ClientCredentialProvider authProvider = 
-				new ClientCredentialProvider(authConfig.apiKey(), scopes, authConfig.apiSecret(), 
-						authConfig.tenant(), NationalCloud.Global);	
-		
-//		Using msgraph-sdk-java
-		IGraphServiceClient graphClient = GraphServiceClient
-						.builder()
-						.authenticationProvider(authProvider)
-						.buildClient();
-
 		// path = "https://graph.microsoft.com/v1.0/sites/" + siteId + "/drive/items/";
 		
 		
-        String tmpFileName = UUID.randomUUID().toString() + ".docx"; // an extension is required  
+        String tmpFileName = UUID.randomUUID().toString() + ext; // an extension is required  
         
 //        String requestUrl = path +"root:/" + tmpFileName + ":/content";		
 		String convertPathPrefix = "/sites/" + authConfig.site() + "/drive/items/";
 		String item =  "root:/" + tmpFileName +":";	
 		// or better, use buildRequest( requestOptions )
 
-        // Note the obscure code
-		MyCallback myCallback = new MyCallback(graphClient, convertPathPrefix, authConfig.site(), item);
-		graphClient.sites(authConfig.site()).drive().items(item).content().buildRequest()
-		.put(bytes, myCallback );
-		
-		// wait
-		try {
-			myCallback.ft.get();
-		} catch (Exception e) {
-			throw new ConversionException(e.getMessage(), e);
-		}
-		return myCallback.pdf;
+		return limited(deadline -> retry("upload", () -> GraphPhases.put(graphClient, authConfig.site(), item, bytes), deadline)
+				.thenCompose(result -> GraphPhases.downloadThenCleanup(graphClient, convertPathPrefix, item, handler, 
+						getCleanupQueue(), getRetryPolicy(), deadline, this::executeIo)));
 		
 	}
 
 	public byte[] convert(File docx) throws ConversionException, IOException {
 		
-		String filename = docx.getName();
-		String ext = filename.substring(filename.lastIndexOf("."));
-		
+		String ext = extension(docx);
+		checkSize(docx);
 		return convert( FileUtils.readFileToByteArray(docx), ext);
 	}
 
+	public CompletableFuture<byte[]> convertAsync(File docx) {
+		
+		try {
+			String ext = extension(docx);
+			checkSize(docx);
+			return convertAsync( FileUtils.readFileToByteArray(docx), ext);
+		} catch (ConversionException | IOException e) {
+			return failed(e);
+		}
+	}
+	
+	/**
+	 * Graph would reject anything bigger in a single PUT, so don't read it into memory 
+	 * only to find that out.  Use PdfConverterLarge, which streams big files from disk.
+	 */
+	private static void checkSize(File docx) throws ConversionException {
+		
+		if (docx.length() > StreamingUploader.SINGLE_PUT_LIMIT) {
+			throw new ConversionException(docx.getName() + " is " + docx.length() 
+					+ " bytes; Limited4MB can't convert more than 4MB.  Use PdfConverterLarge instead.");
+		}
+	}
+
 	@Override
 	public byte[] convert(InputStream docx, String ext) throws ConversionException, IOException {
 		
 		return convert( IOUtils.toByteArray(docx), ext );
 	}	
 	
-	static class MyCallback implements ICallback<DriveItem> {
-
-		MyCallback(IGraphServiceClient graphClient, String convertPathPrefix, String site, String item) {
-			this.graphClient = graphClient;
-			this.convertPathPrefix = convertPathPrefix;
-			this.site = site;
-			this.item = item;
-		}
-		
-		String convertPathPrefix;
-		String site;		
-		String item;
-		IGraphServiceClient graphClient;
-		
-		byte[] pdf;
-
-		final FutureTask<Object> ft = new FutureTask<Object>(() -> {}, new Object());			
-		
-		@Override
-		public void success(DriveItem result) {
-						
-//			Option format = new PdfOption("format", "pdf");
-//			List<Option> requestOptions = new ArrayList<Option>();
-//			requestOptions.add(format);
-			
-			try (
-					BufferedInputStream inputStream = (BufferedInputStream)graphClient.customRequest(convertPathPrefix + item+ "/content?format=pdf", Stream.class)
-					.buildRequest()
-					.get();
-					
-					// Both the following ignores format option!
-//					BufferedInputStream inputStream = (BufferedInputStream)graphClient.customRequest(convertPathPrefix + item+ "/content", Stream.class)
-//					.buildRequest(requestOptions)
-//					.get();
-					// customRequest request works, but the following is neater
-//					BufferedInputStream inputStream = (BufferedInputStream)graphClient.sites(siteId).drive().items(item).content()
-//						.buildRequest( requestOptions ).get();
-			
-	        ) {
-				pdf = IOUtils.toByteArray(inputStream);
-
-	        } catch (ClientException e) {
-	        	log.error(e.getMessage(), e);
-	        	throw new RuntimeException(e.getMessage(), e);
-			} catch (IOException e) {
-	        	log.error(e.getMessage(), e);
-	        	throw new RuntimeException(e.getMessage(), e);
-			}			
-						
-			// Move to recycle bin
-			graphClient.sites(site).drive().items(item)
-					.buildRequest().delete();
-			
-			ft.run(); // so we can know this callback has been finished
-			
-		}
-
-		@Override
-		public void failure(ClientException ex) {
-			log.error("Conversion failed", ex);
-			
-		}
-
+	@Override
+	public long convert(InputStream is, String ext, OutputStream sink) throws ConversionException, IOException {
 		
+		return convert( IOUtils.toByteArray(is), ext, sink );
 	}
-
-
 	
 
 }
@@ -2,8 +2,10 @@ package org.plutext.msgraph.convert.graphsdk;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 import org.plutext.msgraph.convert.AuthConfig;
+import org.plutext.msgraph.convert.HttpClientConfig;
 import org.plutext.msgraph.convert.ConversionException;
 import org.plutext.msgraph.convert.DocxToPdfConverter;
 
@@ -13,11 +15,20 @@ public class Limited4MBDocxToPDF extends Limited4MB implements DocxToPdfConverte
 		super(authConfig);
 	}
 
+	public Limited4MBDocxToPDF(AuthConfig authConfig, HttpClientConfig httpClientConfig) {
+		super(authConfig, httpClientConfig);
+	}
+
 	@Override
 	public byte[] convert(byte[] docx) throws ConversionException {
 		return convert(docx, ".docx");
 	}
 
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] docx) {
+		return convertAsync(docx, ".docx");
+	}
+
 	@Override
 	public byte[] convert(InputStream docx) throws ConversionException, IOException {
 		return convert(docx, ".docx");
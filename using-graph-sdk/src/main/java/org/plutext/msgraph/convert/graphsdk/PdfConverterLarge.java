@@ -18,43 +18,51 @@
 
 package org.plutext.msgraph.convert.graphsdk;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.plutext.msgraph.convert.AbstractOpenXmlToPDF;
 import org.plutext.msgraph.convert.AuthConfig;
 import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.DownloadHandler;
+import org.plutext.msgraph.convert.HttpClientConfig;
+import org.plutext.msgraph.convert.auth.TokenProvider;
+import org.plutext.msgraph.convert.cleanup.BatchSender;
+import org.plutext.msgraph.convert.cleanup.BatchingDeleter;
+import org.plutext.msgraph.convert.cleanup.CleanupQueue;
+import org.plutext.msgraph.convert.retry.Deadline;
+import org.plutext.msgraph.convert.stage.ConversionStages;
+import org.plutext.msgraph.convert.upload.AdaptiveSliceSize;
+import org.plutext.msgraph.convert.upload.HttpSliceTransport;
+import org.plutext.msgraph.convert.upload.SliceSizer;
+import org.plutext.msgraph.convert.upload.SliceTransport;
+import org.plutext.msgraph.convert.upload.StreamPrefix;
+import org.plutext.msgraph.convert.upload.StreamingUploader;
 import org.plutext.msgraph.convert.DocxToPdfConverter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.microsoft.graph.auth.confidentialClient.ClientCredentialProvider;
-import com.microsoft.graph.auth.enums.NationalCloud;
-import com.microsoft.graph.concurrency.ChunkedUploadProvider;
-import com.microsoft.graph.concurrency.IProgressCallback;
-import com.microsoft.graph.core.ClientException;
-import com.microsoft.graph.models.extensions.DriveItem;
 import com.microsoft.graph.models.extensions.DriveItemUploadableProperties;
 import com.microsoft.graph.models.extensions.IGraphServiceClient;
 import com.microsoft.graph.models.extensions.UploadSession;
-import com.microsoft.graph.requests.extensions.GraphServiceClient;
 
 /**
  * Demonstrate using the Graph SDK high level API for PDF Conversion.
  * 
  * Supports converting large files, but won't update your TOC before doing so!
  * 
+ * Small documents (see setSinglePutThreshold) are uploaded in a single PUT, 
+ * saving the round trip to create an upload session.
+ * 
  * Vote for this enhancement at 
  * https://microsoftgraph.uservoice.com/forums/920506-microsoft-graph-feature-requests/suggestions/41235295-docx-to-pdf-file-conversion-update-table-of-conte 
  * 
@@ -64,26 +72,138 @@ import com.microsoft.graph.requests.extensions.GraphServiceClient;
 public class PdfConverterLarge  extends AbstractOpenXmlToPDF {
 
 	public PdfConverterLarge(AuthConfig authConfig) {
+		this(authConfig, new HttpClientConfig());
+	}
+
+	/**
+	 * @param authConfig
+	 * @param httpClientConfig connection pool settings and timeouts for this converter's clients
+	 */
+	public PdfConverterLarge(AuthConfig authConfig, HttpClientConfig httpClientConfig) {
 		super(authConfig);
+		this.httpClientConfig = httpClientConfig;
+		graphClient = GraphClients.create(authConfig, httpClientConfig);
+		sliceTransport = new HttpSliceTransport(httpClientConfig);
+		setTokenProvider(GraphClients.tokenProvider(authConfig));
+		setCleanupQueue(new CleanupQueue(
+				new BatchingDeleter(items -> GraphPhases.deleteBatch(graphClient, authConfig.site(), items)), 
+				2 * BatchSender.MAX_BATCH_SIZE, CleanupQueue.DEFAULT_MAX_ATTEMPTS));
 	}
+	
+	/**
+	 * One client per converter, shared by all conversions (and threads), 
+	 * so connections (and their TLS sessions) are reused.
+	 */
+	private final IGraphServiceClient graphClient;
+	
+	/**
+	 * For the JDK connections (upload slices, and downloads from where Graph redirects)
+	 */
+	private final HttpClientConfig httpClientConfig;
 
 
 	private static final Logger log = LoggerFactory.getLogger(PdfConverterLarge.class);
 			
 
-	public byte[] convert(InputStream fileStream, long streamSize, String ext) throws ConversionException, IOException {
+	private CompletableFuture<UploadSession> createUploadSession(String item) {
 		
-    	List<String> scopes = new ArrayList<String>();
-    	scopes.add("https://graph.microsoft.com/.default");
-		ClientCredentialProvider authProvider = 
-				new ClientCredentialProvider(authConfig.apiKey(), scopes, authConfig.apiSecret(), 
-						authConfig.tenant(), NationalCloud.Global);	
+		FutureCallback<UploadSession> sessionCreated = new FutureCallback<UploadSession>();
+		graphClient
+				.sites(authConfig.site()).drive().items(item)
+		    .createUploadSession(new DriveItemUploadableProperties())
+		    .buildRequest()
+		    .post(sessionCreated);
+		return sessionCreated.future;
+	}
+	
+	private SliceTransport sliceTransport;
+	
+	/**
+	 * How slices are sent to the upload session; defaults to HttpSliceTransport
+	 */
+	public void setSliceTransport(SliceTransport sliceTransport) {
+		this.sliceTransport = sliceTransport;
+	}
+	
+	private int initialSliceSize = 16 * StreamingUploader.SLICE_UNIT;
+	private int minSliceSize = 4 * StreamingUploader.SLICE_UNIT;
+	private int maxSliceSize = 64 * StreamingUploader.SLICE_UNIT;
+	
+	/**
+	 * Use this slice size for every slice, rather than tuning it; must be a multiple of 320 KiB.  
+	 * This is also the heap used per upload.
+	 */
+	public void setSliceSize(int sliceSize) {
+		setSliceSizes(sliceSize, sliceSize, sliceSize);
+	}
+	
+	/**
+	 * The slice size starts at initial, and is tuned (see AdaptiveSliceSize) between min and max,
+	 * which must all be multiples of 320 KiB.  Defaults are 5 MB, 1.25 MB and 20 MB.
+	 * The heap used per upload is up to max.
+	 */
+	public void setSliceSizes(int initial, int min, int max) {
+		
+		// validate now, rather than on the next upload
+		new AdaptiveSliceSize(initial, min, max);
+		this.initialSliceSize = initial;
+		this.minSliceSize = min;
+		this.maxSliceSize = max;
+	}
+	
+	protected SliceSizer newSliceSizer() {
+		return new AdaptiveSliceSize(initialSliceSize, minSliceSize, maxSliceSize);
+	}
+
+	/**
+	 * Create an upload session, then stream to it a slice at a time.
+	 * The upload runs on the I/O executor once the session has been created.
+	 */
+	private CompletableFuture<Long> uploadLarge(String item, InputStream fileStream, Deadline deadline) {
 		
-//		Using msgraph-sdk-java
-		IGraphServiceClient graphClient = GraphServiceClient
-						.builder()
-						.authenticationProvider(authProvider)
-						.buildClient();
+		// Rather than ChunkedUploadProvider, which sends fixed size slices, 
+		// so the slice size can be tuned as the upload proceeds
+		return retry("upload session", () -> createUploadSession(item), deadline).thenCompose(uploadSession -> 
+				new StreamingUploader(sliceTransport, newSliceSizer()).uploadAsync(uploadSession.uploadUrl, fileStream,
+						getRetryPolicy(), deadline, this::executeIo));
+	}
+
+	/**
+	 * As above, but each slice is sent straight from the file's channel (which is not closed).
+	 */
+	private CompletableFuture<Long> uploadLarge(String item, FileChannel channel, Deadline deadline) {
+		
+		return retry("upload session", () -> createUploadSession(item), deadline).thenCompose(uploadSession -> 
+				new StreamingUploader(sliceTransport, newSliceSizer()).uploadAsync(uploadSession.uploadUrl, channel,
+						getRetryPolicy(), deadline, this::executeIo));
+	}
+
+	public byte[] convert(InputStream fileStream, long streamSize, String ext) throws ConversionException, IOException {
+		return await(convertAsync(fileStream, streamSize, ext));
+	}
+	
+	/**
+	 * Note that the upload is synchronous; it runs on the I/O executor 
+	 * once the upload session has been created.
+	 */
+	public CompletableFuture<byte[]> convertAsync(InputStream fileStream, long streamSize, String ext) {
+		return convertAsync(fileStream, streamSize, ext, DownloadHandler.toByteArray());
+	}
+	
+	public long convert(InputStream fileStream, long streamSize, String ext, OutputStream sink) throws ConversionException, IOException {
+		return await(convertAsync(fileStream, streamSize, ext, DownloadHandler.to(sink)));
+	}
+	
+	public <T> CompletableFuture<T> convertAsync(InputStream fileStream, long streamSize, String ext, DownloadHandler<T> handler) {
+		
+		if (streamSize <= getSinglePutThreshold()) {
+			// not worth an upload session
+			try {
+				return putThenConvert(IOUtils.toByteArray(fileStream, streamSize), ext, handler);
+			} catch (IOException e) {
+				return failed(e);
+			}
+		}
 
 		// path = "https://graph.microsoft.com/v1.0/sites/" + siteId + "/drive/items/";
 		
@@ -97,149 +217,234 @@ public class PdfConverterLarge  extends AbstractOpenXmlToPDF {
 		
 		// support more than 4MB, using large file uploader; see https://docs.microsoft.com/en-us/graph/sdks/large-file-upload?tabs=java
 
-		// Create an upload session
-		UploadSession uploadSession = graphClient
-				.sites(authConfig.site()).drive().items(item)
-		    .createUploadSession(new DriveItemUploadableProperties())
-		    .buildRequest()
-		    .post();
+		return limited(deadline -> uploadLarge(item, fileStream, deadline).thenCompose(size -> {
+			
+			if (size != streamSize) {
+				log.warn("Expected " + streamSize + " bytes, but uploaded " + size);
+			}
+			return GraphPhases.downloadThenCleanup(graphClient, convertPathPrefix, item, handler, getCleanupQueue(),
+					getRetryPolicy(), deadline, this::executeIo);
+		}));
+		
+	}	
+	
+
+	/**
+	 * For documents no bigger than the single PUT threshold, which don't need an upload session.
+	 */
+	private <T> CompletableFuture<T> putThenConvert(byte[] bytes, String ext, DownloadHandler<T> handler) {
+		
+        String tmpFileName = UUID.randomUUID().toString() + ext;
+		String convertPathPrefix = "/sites/" + authConfig.site() + "/drive/items/";
+		String item =  "root:/" + tmpFileName +":";	
+		
+		return limited(deadline -> retry("upload", () -> GraphPhases.put(graphClient, authConfig.site(), item, bytes), deadline)
+				.thenCompose(result -> GraphPhases.downloadThenCleanup(graphClient, convertPathPrefix, item, handler, 
+						getCleanupQueue(), getRetryPolicy(), deadline, this::executeIo)));
+	}
 
-		ChunkedUploadProvider<DriveItem> chunkedUploadProvider =
-		    new ChunkedUploadProvider<DriveItem>
-		        (uploadSession, graphClient, fileStream, streamSize, DriveItem.class);
+	@Override
+	public byte[] convert(byte[] docx, String ext) throws ConversionException {
+		return await(convertAsync(docx, ext));
+	}
 
-		// Config parameter is an array of integers
-		// customConfig[0] indicates the max slice size
-		// Max slice size must be a multiple of 320 KiB
-		int[] customConfig = { 320 * 1024 };
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] docx, String ext) {
+		
+		InputStream fileStream = new ByteArrayInputStream(docx);
+		return convertAsync( fileStream,  docx.length, ext);
+	}
 
-		// Do the upload
-		MyCallback myCallback = new  MyCallback(graphClient, convertPathPrefix, authConfig.site(), item);
+	/**
+	 * A document no bigger than the single PUT threshold is PUT as is, without copying it.
+	 */
+	@Override
+	public <T> CompletableFuture<T> convertAsync(byte[] docx, String ext, DownloadHandler<T> handler) {
 		
-		chunkedUploadProvider.upload(
-				myCallback, 
-				customConfig);
+		if (docx.length <= getSinglePutThreshold()) {
+			return putThenConvert(docx, ext, handler);
+		}
+		return convertAsync(new ByteArrayInputStream(docx), docx.length, ext, handler);
+	}
+
+	public byte[] convert(File docx) throws ConversionException, IOException {
+		return await(convertAsync(docx));
+	}
+	
+	/**
+	 * A file bigger than the single PUT threshold is sent to an upload session
+	 * a slice at a time, straight from its FileChannel, so it is never read into memory.
+	 * (A smaller one is read for the single PUT, since the SDK only PUTs a byte[].) 
+	 */
+	public CompletableFuture<byte[]> convertAsync(File docx) {
+		return convertAsync(docx, DownloadHandler.toByteArray());
+	}
+	
+	@Override
+	public <T> CompletableFuture<T> convertAsync(File docx, DownloadHandler<T> handler) {
 		
-		// wait
+		String convertPathPrefix = "/sites/" + authConfig.site() + "/drive/items/";
+		String item;
 		try {
-			myCallback.ft.get();
-		} catch (Exception e) {
-			throw new ConversionException(e.getMessage(), e);
+			item = "root:/" + UUID.randomUUID().toString() + extension(docx) + ":";
+		} catch (ConversionException e) {
+			return failed(e);
 		}
-		return myCallback.pdf;
 		
-	}	
+		return limited(deadline -> upload(docx, item, deadline).thenCompose(uploaded -> 
+				GraphPhases.downloadThenCleanup(graphClient, convertPathPrefix, item, handler, 
+						getCleanupQueue(), getRetryPolicy(), deadline, this::executeIo)));
+	}
 	
-
 	@Override
-	public byte[] convert(byte[] docx, String ext) throws ConversionException {
+	public long convert(File in, File out) throws ConversionException, IOException {
+		return await(convertAsync(in, out));
+	}
+	
+	/**
+	 * As above, but the PDF is written straight to out; if the download's connection
+	 * drops, it is resumed rather than converting again.
+	 * 
+	 * @return the size of the PDF
+	 */
+	public CompletableFuture<Long> convertAsync(File in, File out) {
 		
-		InputStream fileStream = new ByteArrayInputStream(docx);
-
+		String convertPathPrefix = "/sites/" + authConfig.site() + "/drive/items/";
+		String item;
 		try {
-			return convert( fileStream,  docx.length, ext);
-		} catch (IOException e) {
-			throw new ConversionException(e.getMessage(), e);
+			item = "root:/" + UUID.randomUUID().toString() + extension(in) + ":";
+		} catch (ConversionException e) {
+			return failed(e);
 		}
 		
+		return deleteOnFailure(limited(deadline -> upload(in, item, deadline).thenCompose(uploaded -> 
+				GraphPhases.downloadThenCleanup(graphClient, convertPathPrefix, item, out, httpClientConfig, 
+						getCleanupQueue(), getRetryPolicy(), deadline, this::executeIo))), out);
 	}
-
-	public byte[] convert(File docx) throws ConversionException, IOException {
+	
+	/**
+	 * A single PUT for a small file, otherwise an upload session, sent from the file's channel
+	 */
+	private CompletableFuture<?> upload(File file, String item, Deadline deadline) {
 		
-		String filename = docx.getName();
-		String ext = filename.substring(filename.lastIndexOf("."));
+		try {
+			if (file.length() <= getSinglePutThreshold()) {
+				byte[] bytes = FileUtils.readFileToByteArray(file);
+				return retry("upload", () -> GraphPhases.put(graphClient, authConfig.site(), item, bytes), deadline);
+			}
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			return uploadLarge(item, channel, deadline).whenComplete((size, e) -> close(channel));
+		} catch (IOException e) {
+			return failed(e);
+		}
+	}
+	
+	/**
+	 * Close the file once its upload is done; the upload's own outcome stands
+	 */
+	private static void close(FileChannel channel) {
 		
-		return convert( FileUtils.readFileToByteArray(docx), ext);
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warn("Closing upload: " + e.getMessage());
+		}
 	}
 	
 	@Override
 	public byte[] convert(InputStream docx, String ext) throws ConversionException, IOException {
-		// inefficient, but we need length
-		return convert( IOUtils.toByteArray(docx), ext );
+		return await(convertAsync(docx, ext, DownloadHandler.toByteArray()));
 	}	
 	
+	@Override
+	public long convert(byte[] docx, String ext, OutputStream sink) throws ConversionException {
+		
+		InputStream fileStream = new ByteArrayInputStream(docx);
+		return await(convertAsync( fileStream,  docx.length, ext, DownloadHandler.to(sink)));
+	}
 	
-	static class MyCallback implements IProgressCallback<DriveItem> {
-
-		MyCallback(IGraphServiceClient graphClient, String convertPathPrefix, String site, String item) {
-			this.graphClient = graphClient;
-			this.convertPathPrefix = convertPathPrefix;
-			this.site = site;
-			this.item = item;
-		}
+	@Override
+	public long convert(InputStream docx, String ext, OutputStream sink) throws ConversionException, IOException {
+		return await(convertAsync(docx, ext, DownloadHandler.to(sink)));
+	}
+	
+	/**
+	 * For a stream whose length isn't known up front (eg a servlet request body).
+	 * 
+	 * If the stream turns out to be no bigger than the single PUT threshold, it is uploaded
+	 * in one request.  Otherwise, it is read and sent one slice at a time by StreamingUploader, 
+	 * so it is never held in full; the upload runs on the I/O executor.
+	 * 
+	 * The stream is read to EOF but not closed.
+	 */
+	public <T> CompletableFuture<T> convertAsync(InputStream fileStream, String ext, DownloadHandler<T> handler) {
 		
-		String convertPathPrefix;
-		String site;
-		String item;
-		IGraphServiceClient graphClient;
+		StreamPrefix prefix;
+		try {
+			prefix = StreamPrefix.read(fileStream, getSinglePutThreshold());
+		} catch (IOException e) {
+			return failed(e);
+		}
+		if (prefix.isComplete()) {
+			return putThenConvert(prefix.bytes(), ext, handler);
+		}
 		
-		byte[] pdf;
-
-		final FutureTask<Object> ft = new FutureTask<Object>(() -> {}, new Object());			
+        String tmpFileName = UUID.randomUUID().toString() + ext;
+		String convertPathPrefix = "/sites/" + authConfig.site() + "/drive/items/";
+		String item =  "root:/" + tmpFileName +":";	
 		
-		@Override
-		public void success(DriveItem result) {
-	        log.debug(
-		            String.format("Uploaded file with ID: %s", result.id)
-		        );
-	        log.debug(""+result.size);
+		return limited(deadline -> uploadLarge(item, prefix.stream(), deadline).thenCompose(size -> {
 			
-			//         String requestUrl = path + fileId + "/content?format=" + targetFormat;
-//			graphClient.sites(siteId).drive().items("root:/" +tmpFileName+":")..content()..buildRequest()
+			log.debug("Uploaded " + size + " bytes");
+			return GraphPhases.downloadThenCleanup(graphClient, convertPathPrefix, item, handler, getCleanupQueue(),
+					getRetryPolicy(), deadline, this::executeIo);
+		}));
+	}
+	
+	/**
+	 * This converter's phases, for a StagedEngine.
+	 * The uploaded document is identified by its item path (relative to the drive). 
+	 */
+	public ConversionStages<String> stages() {
+		
+		return new ConversionStages<String>() {
 
-//			Option format = new PdfOption("format", "pdf");
-//			List<Option> requestOptions = new ArrayList<Option>();
-//			requestOptions.add(format);
-			
-			try (
-					BufferedInputStream inputStream = (BufferedInputStream)graphClient.customRequest(convertPathPrefix + item+ "/content?format=pdf", Stream.class)
-					.buildRequest()
-					.get();
-					
-					// Both the following ignores format option!
-//					BufferedInputStream inputStream = (BufferedInputStream)graphClient.customRequest(convertPathPrefix + item+ "/content", Stream.class)
-//					.buildRequest(requestOptions)
-//					.get();
-					// customRequest request works, but the following is neater
-//					BufferedInputStream inputStream = (BufferedInputStream)graphClient.sites(siteId).drive().items(item).content()
-//						.buildRequest( requestOptions ).get();
-			
-	        ) {
-				pdf = IOUtils.toByteArray(inputStream);
-	        } catch (ClientException e) {
-	        	log.error(e.getMessage(), e);
-	        	throw new RuntimeException(e.getMessage(), e);
-			} catch (IOException e) {
-	        	log.error(e.getMessage(), e);
-	        	throw new RuntimeException(e.getMessage(), e);
-			}			
-						
-			// Move to recycle bin
-			graphClient.sites(site).drive().items(item)
-					.buildRequest().delete();
-			
-			ft.run(); // so we can know this callback has been finished
-			
-		}
+			@Override
+			public CompletableFuture<?> token() {
+				return getTokenProvider().getAccessToken();
+			}
 
+			@Override
+			public CompletableFuture<String> upload(byte[] bytes, String ext) {
+				
+				String item =  "root:/" + UUID.randomUUID().toString() + ext + ":";
+				return limited(deadline -> {
+					if (bytes.length <= getSinglePutThreshold()) {
+						return retry("upload", () -> GraphPhases.put(graphClient, authConfig.site(), item, bytes), deadline)
+								.thenApply(driveItem -> item);
+					}
+					return uploadLarge(item, new ByteArrayInputStream(bytes), deadline).thenApply(size -> item);
+				});
+			}
 
-	    public void failure(final ClientException ex) {
-	        log.error(
-	            String.format("Error uploading file: %s", ex.getMessage())
-	        );
-	    }
+			@Override
+			public CompletableFuture<String> upload(File file, String ext) {
+				
+				String item =  "root:/" + UUID.randomUUID().toString() + ext + ":";
+				return limited(deadline -> PdfConverterLarge.this.upload(file, item, deadline)).thenApply(uploaded -> item);
+			}
 
-	    @Override
-	    // Called after each slice of the file is uploaded
-	    public void progress(final long current, final long max) {
-	        log.debug(
-	            String.format("Uploaded %d bytes of %d total bytes", current, max)
-	        );
-	    }
+			@Override
+			public <T> CompletableFuture<T> convert(String item, DownloadHandler<T> handler) {
+				return limited(deadline -> retry("convert", () -> GraphPhases.downloadPdf(graphClient, 
+						"/sites/" + authConfig.site() + "/drive/items/", item, handler), deadline));
+			}
 
-		
+			@Override
+			public CompletableFuture<?> cleanup(String item) {
+				return getCleanupQueue().submit(item);
+			}
+		};
 	}
-
-
 	
 }
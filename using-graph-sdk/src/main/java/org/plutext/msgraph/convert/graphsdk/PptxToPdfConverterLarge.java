@@ -3,8 +3,10 @@ package org.plutext.msgraph.convert.graphsdk;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 import org.plutext.msgraph.convert.AuthConfig;
+import org.plutext.msgraph.convert.HttpClientConfig;
 import org.plutext.msgraph.convert.ConversionException;
 import org.plutext.msgraph.convert.PptxToPdfConverter;
 
@@ -14,11 +16,20 @@ public class PptxToPdfConverterLarge extends PdfConverterLarge implements PptxTo
 		super(authConfig);
 	}
 
+	public PptxToPdfConverterLarge(AuthConfig authConfig, HttpClientConfig httpClientConfig) {
+		super(authConfig, httpClientConfig);
+	}
+
 	@Override
 	public byte[] convert(byte[] pptx) throws ConversionException {
 		return convert(pptx, ".pptx");
 	}
 
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] pptx) {
+		return convertAsync(pptx, ".pptx");
+	}
+
 	@Override
 	public byte[] convert(InputStream pptx) throws ConversionException, IOException {
 		return convert(pptx, ".pptx");
@@ -27,6 +38,10 @@ public class PptxToPdfConverterLarge extends PdfConverterLarge implements PptxTo
 	public byte[] convert(File pptx) throws ConversionException, IOException {
 		return super.convert(pptx);
 	}
+
+	public CompletableFuture<byte[]> convertAsync(File pptx) {
+		return super.convertAsync(pptx);
+	}
 	
 
 }
@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.graphsdk;
+
+import java.util.concurrent.CompletionException;
+
+import org.plutext.msgraph.convert.auth.TokenProvider;
+
+import com.microsoft.graph.authentication.IAuthenticationProvider;
+import com.microsoft.graph.http.IHttpRequest;
+
+/**
+ * Adds the bearer token from a (shared) TokenProvider, in place of 
+ * a ClientCredentialProvider per conversion.
+ * 
+ * @author jharrop
+ *
+ */
+public class TokenAuthenticationProvider implements IAuthenticationProvider {
+
+	public TokenAuthenticationProvider(TokenProvider tokenProvider) {
+		this.tokenProvider = tokenProvider;
+	}
+	
+	private final TokenProvider tokenProvider;
+	
+	@Override
+	public void authenticateRequest(IHttpRequest request) {
+		
+		// Called on the SDK's executor; usually the token is cached, so this doesn't block
+		String token;
+		try {
+			token = tokenProvider.getAccessToken().join();
+		} catch (CompletionException e) {
+			throw new IllegalStateException("Couldn't get access token", e.getCause());
+		}
+		request.addHeader("Authorization", "Bearer " + token);
+	}
+
+}
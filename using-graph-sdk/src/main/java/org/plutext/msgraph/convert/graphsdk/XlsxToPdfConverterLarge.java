@@ -3,8 +3,10 @@ package org.plutext.msgraph.convert.graphsdk;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 import org.plutext.msgraph.convert.AuthConfig;
+import org.plutext.msgraph.convert.HttpClientConfig;
 import org.plutext.msgraph.convert.ConversionException;
 import org.plutext.msgraph.convert.XlsxToPdfConverter;
 
@@ -14,11 +16,20 @@ public class XlsxToPdfConverterLarge extends PdfConverterLarge implements XlsxTo
 		super(authConfig);
 	}
 
+	public XlsxToPdfConverterLarge(AuthConfig authConfig, HttpClientConfig httpClientConfig) {
+		super(authConfig, httpClientConfig);
+	}
+
 	@Override
 	public byte[] convert(byte[] xlsx) throws ConversionException {
 		return convert(xlsx, ".xlsx");
 	}
 
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] xlsx) {
+		return convertAsync(xlsx, ".xlsx");
+	}
+
 	@Override
 	public byte[] convert(InputStream xlsx) throws ConversionException, IOException {
 		return convert(xlsx, ".xlsx");
@@ -27,6 +38,10 @@ public class XlsxToPdfConverterLarge extends PdfConverterLarge implements XlsxTo
 	public byte[] convert(File xlsx) throws ConversionException, IOException {
 		return super.convert(xlsx);
 	}
+
+	public CompletableFuture<byte[]> convertAsync(File xlsx) {
+		return super.convertAsync(xlsx);
+	}
 	
 
 }
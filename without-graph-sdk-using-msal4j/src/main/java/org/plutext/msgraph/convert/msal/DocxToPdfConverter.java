@@ -3,16 +3,26 @@ package org.plutext.msgraph.convert.msal;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.io.IOUtils;
 import org.plutext.msgraph.convert.AuthConfig;
 import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.HttpClientConfig;
 
 public class DocxToPdfConverter extends PdfConverter implements org.plutext.msgraph.convert.DocxToPdfConverter {
 
 	public DocxToPdfConverter(AuthConfig authConfig) {
 		super(authConfig);
 	}
+	
+	/**
+	 * @param authConfig
+	 * @param httpClientConfig connect and read timeouts
+	 */
+	public DocxToPdfConverter(AuthConfig authConfig, HttpClientConfig httpClientConfig) {
+		super(authConfig, null, httpClientConfig);
+	}
 
 	private static final String DOCX_MIME_TYPE = "application/vnd.openxmlformats-officedocument.wordprocessingml.document";
 	
@@ -34,6 +44,21 @@ public class DocxToPdfConverter extends PdfConverter implements org.plutext.msgr
 		return convertMime(inFile, DOCX_MIME_TYPE);
 	}
 
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] docx) {
+		return convertMimeAsync(docx, DOCX_MIME_TYPE);
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] bytes, String ext) {
+		return convertMimeAsync(bytes, DOCX_MIME_TYPE);
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(File inFile) {
+		return convertMimeAsync(inFile, DOCX_MIME_TYPE);
+	}
+
 	@Override
 	public byte[] convert(InputStream docx) throws ConversionException, IOException {
 		return convert( IOUtils.toByteArray(docx) );
@@ -0,0 +1,60 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.msal;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.plutext.msgraph.convert.auth.AccessToken;
+import org.plutext.msgraph.convert.auth.TokenSource;
+
+import com.microsoft.aad.msal4j.ClientCredentialParameters;
+import com.microsoft.aad.msal4j.ConfidentialClientApplication;
+
+/**
+ * Client credentials grant via msal4j.
+ * 
+ * @author jharrop
+ *
+ */
+public class MsalTokenSource implements TokenSource {
+
+	public MsalTokenSource(ConfidentialClientApplication authenticationService) {
+		this.authenticationService = authenticationService;
+	}
+	
+    private final ConfidentialClientApplication authenticationService;
+
+	@Override
+	public CompletableFuture<AccessToken> fetch() {
+		
+    	Set<String> scopes = new HashSet<String>();
+    	scopes.add("https://graph.microsoft.com/.default"); // see https://stackoverflow.com/questions/51781898/aadsts70011-the-provided-value-for-the-input-parameter-scope-is-not-valid 
+//	    	not scopes.add("Files.ReadWrite.All"); 
+//	    	com.microsoft.aad.msal4j.MsalServiceException: AADSTS70011: The provided request must include a 'scope' input parameter. 
+//	    	The provided value for the input parameter 'scope' is not valid. 
+//	    	The scope openid profile offline_access Files.ReadWrite.All openid is not valid.
+    	ClientCredentialParameters ccParameters = ClientCredentialParameters.builder(scopes).build();
+    	
+    	return authenticationService.acquireToken(ccParameters)
+    			.thenApply(r -> new AccessToken(r.accessToken(), r.expiresOnDate().getTime()));
+	}
+
+}
@@ -19,16 +19,32 @@
 package org.plutext.msgraph.convert.msal;
 
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
-import org.apache.commons.io.IOUtils;
 import org.plutext.msgraph.convert.AbstractOpenXmlToPDF;
 import org.plutext.msgraph.convert.AuthConfig;
 import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.DownloadHandler;
+import org.plutext.msgraph.convert.HttpClientConfig;
+import org.plutext.msgraph.convert.auth.ClientCredentialsTokenSource;
+import org.plutext.msgraph.convert.auth.TokenProvider;
+import org.plutext.msgraph.convert.auth.TokenSource;
+import org.plutext.msgraph.convert.cleanup.BatchSender;
+import org.plutext.msgraph.convert.cleanup.BatchingDeleter;
+import org.plutext.msgraph.convert.cleanup.CleanupQueue;
+import org.plutext.msgraph.convert.retry.Deadline;
+import org.plutext.msgraph.convert.stage.ConversionStages;
+import org.plutext.msgraph.convert.upload.StreamPrefix;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,8 +62,7 @@ public abstract class PdfConverter  extends AbstractOpenXmlToPDF  {
 	 * @param authConfig
 	 */
 	public PdfConverter(AuthConfig authConfig) {
-		super(authConfig);
-		fs = new FileService(getConfidentialClientApplication()); 
+		this(authConfig, null, new HttpClientConfig());
 	}
 
 	/**
@@ -55,12 +70,38 @@ public abstract class PdfConverter  extends AbstractOpenXmlToPDF  {
 	 * @param authConfig
 	 */
 	public PdfConverter(AuthConfig authConfig, HttpClient httpClient) {
+		this(authConfig, httpClient, new HttpClientConfig());
+	}
+
+	/**
+	 * @param authConfig
+	 * @param httpClient or null for scribe's JDKHttpClient
+	 * @param httpClientConfig connect and read timeouts (for JDKHttpClient, and the requests 
+	 * made with HttpURLConnection)
+	 */
+	public PdfConverter(AuthConfig authConfig, HttpClient httpClient, HttpClientConfig httpClientConfig) {
 		super(authConfig);
-		fs = new FileService(getConfidentialClientApplication(), httpClient); 
+		setTokenProvider(TokenProvider.shared(authConfig, executor -> tokenSource(authConfig, executor, httpClientConfig)));
+		fs = new FileService(getTokenProvider(), httpClient, this::executeIo, httpClientConfig); 
+		fs.setGraphEndpoint(authConfig.graphEndpoint());
+		setCleanupQueue(new CleanupQueue(new BatchingDeleter(fs::deleteBatchAsync), 2 * BatchSender.MAX_BATCH_SIZE, CleanupQueue.DEFAULT_MAX_ATTEMPTS));
+	}
+	
+	/**
+	 * msal4j only accepts an https authority, so for a stand-in server on plain http 
+	 * (see AuthConfig.loginEndpoint), fetch the token without it.
+	 * 
+	 * Static, since the (shared) TokenProvider mustn't hold on to this converter.
+	 */
+	private static TokenSource tokenSource(AuthConfig authConfig, Executor executor, HttpClientConfig httpClientConfig) {
 		
+		if (authConfig.loginEndpoint().startsWith("https:")) {
+			return new MsalTokenSource(getConfidentialClientApplication(authConfig));
+		}
+		return new ClientCredentialsTokenSource(authConfig, FileService::parseToken, executor, httpClientConfig);
 	}
 	
-	private ConfidentialClientApplication getConfidentialClientApplication() {
+	private static ConfidentialClientApplication getConfidentialClientApplication(AuthConfig authConfig) {
 
 		// See https://docs.microsoft.com/en-us/azure/active-directory/azuread-dev/v1-oauth2-client-creds-grant-flow
     	ConfidentialClientApplication confidentialClientApp =null;
@@ -69,7 +110,9 @@ public abstract class PdfConverter  extends AbstractOpenXmlToPDF  {
 			          .builder(authConfig.apiKey(), 
 			        		  ClientCredentialFactory.createFromSecret(authConfig.apiSecret()))
 			          //.authority("https://login.microsoftonline.com/common/oauth2/token") 
-			          .authority("https://login.microsoftonline.com/" + authConfig.tenant() + "/oauth2/token")
+			          .authority(authConfig.loginEndpoint() + "/" + authConfig.tenant() + "/oauth2/token")
+			          // instance discovery would only recognise Microsoft's own login endpoints
+			          .validateAuthority(AuthConfig.LOGIN_ENDPOINT.equals(authConfig.loginEndpoint()))
 			          .build();
 		} catch (MalformedURLException e) {
 			// shouldn't happen
@@ -85,75 +128,229 @@ public abstract class PdfConverter  extends AbstractOpenXmlToPDF  {
 	
 
 	public byte[] convertMime(byte[] docx, String mimetype) throws ConversionException {
-		try {
-			
-			// Upload the file
-			// Let's work with a known filename.  This way we can ignore the returned itemid (which we need JSON parsing to read)
-	        String tmpFileName = UUID.randomUUID()+ mimeTypeToExt(mimetype); 
-			String item =  "root:/" + tmpFileName +":";	
-			String path = "https://graph.microsoft.com/v1.0/sites/" + authConfig.site() + "/drive/items/" + item + "/content";
-			
-			
-			// Upload the file
-			Boolean result = fs.uploadStreamAsync(path, docx, 
-					mimetype).get();
-			if (result==null || result.booleanValue()==false) {
-				throw new ConversionException("upload failed");
-			}
-			
-			// Convert
-			byte[] pdfBytes = fs.downloadConvertedFileAsync(path + "?format=pdf").get();
-			
-			// Move temp file to recycle bin
-			path = "https://graph.microsoft.com/v1.0/sites/" + authConfig.site() + "/drive/items/" + item;  // filename is easier than item id here			
-			boolean deleted = fs.deleteFileAsync(path).get();
-			log.debug(""+deleted);
-			
-			return pdfBytes;
+		return await(convertMimeAsync(docx, mimetype));
+	}
+	
+	public CompletableFuture<byte[]> convertMimeAsync(byte[] docx, String mimetype) {
+		return convertMimeAsync(docx, mimetype, DownloadHandler.toByteArray());
+	}
+	
+	public <T> CompletableFuture<T> convertMimeAsync(byte[] docx, String mimetype, DownloadHandler<T> handler) {
 			
-		} catch (Exception e) {
-			throw new ConversionException(e.getMessage(), e);			
-		}
+		// Upload the file
+		// Let's work with a known filename.  This way we can ignore the returned itemid (which we need JSON parsing to read)
+        String tmpFileName = UUID.randomUUID()+ mimeTypeToExt(mimetype); 
+		String item =  "root:/" + tmpFileName +":";	
+		String path = authConfig.graphEndpoint() + "/sites/" + authConfig.site() + "/drive/items/" + item + "/content";
+		
+		return limited(deadline -> convertUploaded(upload(item, path, docx, mimetype, deadline), item, path, handler, deadline));
 	}
 	
 	public byte[] convertMime(File inFile, String mimetype) throws ConversionException, IOException {
-
+		return await(convertMimeAsync(inFile, mimetype));
+	}
+	
+	public CompletableFuture<byte[]> convertMimeAsync(File inFile, String mimetype) {
+		return convertMimeAsync(inFile, mimetype, DownloadHandler.toByteArray());
+	}
+	
+	@Override
+	public <T> CompletableFuture<T> convertAsync(File in, DownloadHandler<T> handler) {
+		
 		try {
+			return convertMimeAsync(in, extToMimeType(extension(in)), handler);
+		} catch (ConversionException e) {
+			return failed(e);
+		}
+	}
+	
+	public <T> CompletableFuture<T> convertMimeAsync(File inFile, String mimetype, DownloadHandler<T> handler) {
 			
-			// Upload the file
-			// Let's work with a known filename.  This way we can ignore the returned itemid (which we need JSON parsing to read)
-	        String tmpFileName = UUID.randomUUID()+mimeTypeToExt(mimetype); 
-			String item =  "root:/" + tmpFileName +":";	
-			String path = "https://graph.microsoft.com/v1.0/sites/" + authConfig.site() + "/drive/items/" + item + "/content";
-			
+		// Upload the file
+		// Let's work with a known filename.  This way we can ignore the returned itemid (which we need JSON parsing to read)
+        String tmpFileName = UUID.randomUUID()+mimeTypeToExt(mimetype); 
+		String item =  "root:/" + tmpFileName +":";	
+		String path = authConfig.graphEndpoint() + "/sites/" + authConfig.site() + "/drive/items/" + item + "/content";
+		
+		return limited(deadline -> convertUploaded(upload(item, path, inFile, mimetype, deadline), item, path, handler, deadline));
+	}
+	
+	/**
+	 * Convert the file, writing the PDF straight to out; see OpenXmlToPDF.convert(File, File)
+	 * 
+	 * @return the size of the PDF
+	 */
+	public CompletableFuture<Long> convertMimeAsync(File inFile, String mimetype, File out) {
+		
+        String tmpFileName = UUID.randomUUID()+mimeTypeToExt(mimetype); 
+		String item =  "root:/" + tmpFileName +":";	
+		String path = authConfig.graphEndpoint() + "/sites/" + authConfig.site() + "/drive/items/" + item + "/content";
+		
+		return deleteOnFailure(limited(deadline -> convertUploaded(upload(item, path, inFile, mimetype, deadline), item, 
+				() -> fs.downloadConvertedFileAsync(path + "?format=pdf", out), deadline)), out);
+	}
+	
+	/**
+	 * Convert a stream of unknown length.  If it turns out to be no bigger than the 
+	 * single PUT threshold, it is uploaded in one request; otherwise via an upload session, 
+	 * a slice at a time, so it is never held in full.
+	 * 
+	 * The stream is read to EOF but not closed.
+	 */
+	public <T> CompletableFuture<T> convertMimeAsync(InputStream is, String mimetype, DownloadHandler<T> handler) {
+		
+		StreamPrefix prefix;
+		try {
+			prefix = StreamPrefix.read(is, getSinglePutThreshold());
+		} catch (IOException e) {
+			return failed(e);
+		}
+		if (prefix.isComplete()) {
+			return convertMimeAsync(prefix.bytes(), mimetype, handler);
+		}
+		
+        String tmpFileName = UUID.randomUUID()+mimeTypeToExt(mimetype); 
+		String item =  "root:/" + tmpFileName +":";	
+		String path = authConfig.graphEndpoint() + "/sites/" + authConfig.site() + "/drive/items/" + item + "/content";
+		
+		return limited(deadline -> convertUploaded(
+				fs.uploadLargeAsync(itemUrl(item), prefix.stream(), getRetryPolicy(), deadline).thenApply(size -> true), 
+				item, path, handler, deadline));
+	}
+	
+	private String itemUrl(String item) {
+		return authConfig.graphEndpoint() + "/sites/" + authConfig.site() + "/drive/items/" + item;
+	}
+	
+	/**
+	 * A single PUT, or an upload session if the document is over the single PUT threshold
+	 */
+	private CompletableFuture<Boolean> upload(String item, String path, byte[] docx, String mimetype, Deadline deadline) {
+		
+		if (docx.length > getSinglePutThreshold()) {
+			return fs.uploadLargeAsync(itemUrl(item), new ByteArrayInputStream(docx), getRetryPolicy(), deadline)
+					.thenApply(size -> true);
+		}
+		return retry("upload", () -> fs.uploadStreamAsync(path, docx, mimetype), deadline);
+	}
+	
+	private CompletableFuture<Boolean> upload(String item, String path, File inFile, String mimetype, Deadline deadline) {
+		
+		if (inFile.length() > getSinglePutThreshold()) {
+			return fs.uploadLargeAsync(itemUrl(item), inFile, getRetryPolicy(), deadline)
+					.thenApply(size -> true);
+		}
+		return retry("upload", () -> fs.uploadStreamAsync(path, inFile, mimetype), deadline);
+	}
+	
+	/**
+	 * Chain the convert/download phase onto the upload, queueing the delete.
+	 */
+	private <T> CompletableFuture<T> convertUploaded(CompletableFuture<Boolean> upload, String item, String path,
+			DownloadHandler<T> handler, Deadline deadline) {
+		return convertUploaded(upload, item, () -> fs.downloadConvertedFileAsync(path + "?format=pdf", handler), deadline);
+	}
+	
+	private <T> CompletableFuture<T> convertUploaded(CompletableFuture<Boolean> upload, String item,
+			Supplier<CompletableFuture<T>> download, Deadline deadline) {
+		
+		return upload.thenCompose(result -> {
 			
-			// Upload the file
-			Boolean result = fs.uploadStreamAsync(path, inFile, 
-					"mimetype").get();
 			if (result==null || result.booleanValue()==false) {
-				throw new ConversionException("upload failed");
+				return failed(new ConversionException("upload failed"));
 			}
 			
 			// Convert
-			byte[] pdfBytes = fs.downloadConvertedFileAsync(path + "?format=pdf").get();
-			
-			// Move temp file to recycle bin
-			path = "https://graph.microsoft.com/v1.0/sites/" + authConfig.site() + "/drive/items/" + item;  // filename is easier than item id here			
-			boolean deleted = fs.deleteFileAsync(path).get();
-			log.debug("" + deleted);
-			
-			return pdfBytes;
-			
-		} catch (Exception e) {
-			throw new ConversionException(e.getMessage(), e);			
-		}
+			// if this is throttled, only the download is retried; the uploaded file is still there
+			return retry("convert", download, deadline)
+					.whenComplete((pdf, e) -> {
+				
+				// Move temp file to recycle bin, in the background (whether or not the conversion worked)
+				String itemPath = authConfig.graphEndpoint() + "/sites/" + authConfig.site() + "/drive/items/" + item;  // filename is easier than item id here
+				getCleanupQueue().submit(itemPath);
+			});
+		});
 	}
 	
 	
 
+	/**
+	 * This converter's phases, for a StagedEngine.
+	 * The uploaded document is identified by its item path. 
+	 */
+	public ConversionStages<String> stages() {
+		
+		return new ConversionStages<String>() {
+
+			@Override
+			public CompletableFuture<?> token() {
+				return getTokenProvider().getAccessToken();
+			}
+
+			@Override
+			public CompletableFuture<String> upload(byte[] bytes, String ext) {
+				
+		        String tmpFileName = UUID.randomUUID() + ext; 
+				String item =  "root:/" + tmpFileName +":";	
+				return uploaded(item, limited(deadline -> PdfConverter.this.upload(item, itemUrl(item) + "/content", bytes, 
+						extToMimeType(ext), deadline)));
+			}
+
+			@Override
+			public CompletableFuture<String> upload(File file, String ext) {
+				
+		        String tmpFileName = UUID.randomUUID() + ext; 
+				String item =  "root:/" + tmpFileName +":";	
+				return uploaded(item, limited(deadline -> PdfConverter.this.upload(item, itemUrl(item) + "/content", file, 
+						extToMimeType(ext), deadline)));
+			}
+			
+			private CompletableFuture<String> uploaded(String item, CompletableFuture<Boolean> upload) {
+				
+				return upload.thenApply(result -> {
+					if (result==null || result.booleanValue()==false) {
+						throw new CompletionException(new ConversionException("upload failed"));
+					}
+					return item;
+				});
+			}
+
+			@Override
+			public <T> CompletableFuture<T> convert(String item, DownloadHandler<T> handler) {
+				return limited(deadline -> retry("convert", 
+						() -> fs.downloadConvertedFileAsync(itemUrl(item) + "/content?format=pdf", handler), deadline));
+			}
+
+			@Override
+			public CompletableFuture<?> cleanup(String item) {
+				return getCleanupQueue().submit(itemUrl(item));
+			}
+		};
+	}
+	
 	@Override
 	public byte[] convert(InputStream docx, String ext) throws ConversionException, IOException {
-		return convert( IOUtils.toByteArray(docx), ext );
+		return await(convertMimeAsync(docx, extToMimeType(ext), DownloadHandler.toByteArray()));
+	}
+
+	@Override
+	public <T> CompletableFuture<T> convertAsync(byte[] bytes, String ext, DownloadHandler<T> handler) {
+		return convertMimeAsync(bytes, extToMimeType(ext), handler);
+	}
+
+	@Override
+	public long convert(byte[] bytes, String ext, OutputStream sink) throws ConversionException {
+		return await(convertMimeAsync(bytes, extToMimeType(ext), DownloadHandler.to(sink)));
+	}
+
+	@Override
+	public long convert(InputStream is, String ext, OutputStream sink) throws ConversionException, IOException {
+		return await(convertMimeAsync(is, extToMimeType(ext), DownloadHandler.to(sink)));
+	}
+
+	@Override
+	public long convert(File in, File out) throws ConversionException, IOException {
+		return await(convertMimeAsync(in, extToMimeType(extension(in)), out));
 	}
 
 	
@@ -3,16 +3,26 @@ package org.plutext.msgraph.convert.msal;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.io.IOUtils;
 import org.plutext.msgraph.convert.AuthConfig;
 import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.HttpClientConfig;
 
 public class PptxToPdfConverter extends PdfConverter implements org.plutext.msgraph.convert.PptxToPdfConverter {
 
 	public PptxToPdfConverter(AuthConfig authConfig) {
 		super(authConfig);
 	}
+	
+	/**
+	 * @param authConfig
+	 * @param httpClientConfig connect and read timeouts
+	 */
+	public PptxToPdfConverter(AuthConfig authConfig, HttpClientConfig httpClientConfig) {
+		super(authConfig, null, httpClientConfig);
+	}
 
 	private static final String PPTX_MIME_TYPE = "application/vnd.openxmlformats-officedocument.presentationml.presentation"; 
 	
@@ -34,6 +44,21 @@ public class PptxToPdfConverter extends PdfConverter implements org.plutext.msgr
 		return convertMime(inFile, PPTX_MIME_TYPE);
 	}
 
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] pptx) {
+		return convertMimeAsync(pptx, PPTX_MIME_TYPE);
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] bytes, String ext) {
+		return convertMimeAsync(bytes, PPTX_MIME_TYPE);
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(File inFile) {
+		return convertMimeAsync(inFile, PPTX_MIME_TYPE);
+	}
+
 	@Override
 	public byte[] convert(InputStream pptx) throws ConversionException, IOException {
 		return convert( IOUtils.toByteArray(pptx) );
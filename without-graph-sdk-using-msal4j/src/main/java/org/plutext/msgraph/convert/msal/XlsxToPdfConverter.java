@@ -3,16 +3,26 @@ package org.plutext.msgraph.convert.msal;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.io.IOUtils;
 import org.plutext.msgraph.convert.AuthConfig;
 import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.HttpClientConfig;
 
 public class XlsxToPdfConverter extends PdfConverter implements org.plutext.msgraph.convert.XlsxToPdfConverter {
 
 	public XlsxToPdfConverter(AuthConfig authConfig) {
 		super(authConfig);
 	}
+	
+	/**
+	 * @param authConfig
+	 * @param httpClientConfig connect and read timeouts
+	 */
+	public XlsxToPdfConverter(AuthConfig authConfig, HttpClientConfig httpClientConfig) {
+		super(authConfig, null, httpClientConfig);
+	}
 
 	private static final String XLSX_MIME_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
 	
@@ -34,6 +44,21 @@ public class XlsxToPdfConverter extends PdfConverter implements org.plutext.msgr
 		return convertMime(inFile, XLSX_MIME_TYPE);
 	}
 
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] xlsx) {
+		return convertMimeAsync(xlsx, XLSX_MIME_TYPE);
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] bytes, String ext) {
+		return convertMimeAsync(bytes, XLSX_MIME_TYPE);
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(File inFile) {
+		return convertMimeAsync(inFile, XLSX_MIME_TYPE);
+	}
+
 	@Override
 	public byte[] convert(InputStream xlsx) throws ConversionException, IOException {
 		return convert( IOUtils.toByteArray(xlsx) );
@@ -3,11 +3,13 @@ package org.plutext.msgraph.convert.scribe;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.io.IOUtils;
 import org.plutext.msgraph.convert.AbstractOpenXmlToPDF;
 import org.plutext.msgraph.convert.AuthConfig;
 import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.HttpClientConfig;
 
 import com.github.scribejava.core.httpclient.HttpClient;
 
@@ -21,6 +23,11 @@ public class DocxToPdfConverter extends PdfConverter implements org.plutext.msgr
 		super(authConfig, httpClient);
 	}
 	
+	public DocxToPdfConverter(AuthConfig authConfig, HttpClient httpClient, HttpClientConfig httpClientConfig) 
+			throws ConversionException {
+		super(authConfig, httpClient, httpClientConfig);
+	}
+	
 	
 	@Override
 	public byte[] convert(byte[] docx) throws ConversionException {
@@ -39,6 +46,21 @@ public class DocxToPdfConverter extends PdfConverter implements org.plutext.msgr
 		return convertMime(inFile, DOCX_MIME_TYPE);
 	}
 
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] docx) {
+		return convertMimeAsync(docx, DOCX_MIME_TYPE);
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] bytes, String ext) {
+		return convertMimeAsync(bytes, DOCX_MIME_TYPE);
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(File inFile) {
+		return convertMimeAsync(inFile, DOCX_MIME_TYPE);
+	}
+
 	@Override
 	public byte[] convert(InputStream docx) throws ConversionException, IOException {
 		return convert( IOUtils.toByteArray(docx) );
@@ -19,24 +19,54 @@
 package org.plutext.msgraph.convert.scribe;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.function.Supplier;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.plutext.msgraph.convert.scribe.adaption.OurOAuth20ServiceBridge;
+import org.plutext.msgraph.convert.AbstractOpenXmlToPDF;
+import org.plutext.msgraph.convert.AuthConfig;
+import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.DownloadHandler;
+import org.plutext.msgraph.convert.HttpClientConfig;
+import org.plutext.msgraph.convert.auth.TokenProvider;
+import org.plutext.msgraph.convert.auth.UnauthorizedException;
+import org.plutext.msgraph.convert.cleanup.BatchSender;
+import org.plutext.msgraph.convert.cleanup.DeleteStatus;
+import org.plutext.msgraph.convert.download.ResumableDownload;
+import org.plutext.msgraph.convert.retry.Deadline;
+import org.plutext.msgraph.convert.retry.RetryPolicy;
+import org.plutext.msgraph.convert.throttle.ThrottledException;
+import org.plutext.msgraph.convert.upload.ChannelBody;
+import org.plutext.msgraph.convert.upload.HttpSliceTransport;
+import org.plutext.msgraph.convert.upload.SliceTransport;
+import org.plutext.msgraph.convert.upload.StreamingUploader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
 import com.github.scribejava.apis.MicrosoftAzureActiveDirectory20Api;
 import com.github.scribejava.core.httpclient.HttpClient;
 import com.github.scribejava.core.httpclient.jdk.JDKHttpClient;
 import com.github.scribejava.core.httpclient.jdk.JDKHttpClientConfig;
-import com.github.scribejava.core.model.OAuth2AccessToken;
 import com.github.scribejava.core.model.OAuthAsyncRequestCallback;
 import com.github.scribejava.core.model.OAuthRequest;
 import com.github.scribejava.core.model.Response;
@@ -49,111 +79,357 @@ public class FileService {
 
     public FileService(OAuth20Service authenticationService, MicrosoftAzureActiveDirectory20Api api)
     {
-        this.authenticationService = authenticationService;
-        this.api = api;
+        this(authenticationService, api, null);
     }
 
 	public FileService(OAuth20Service authenticationService, MicrosoftAzureActiveDirectory20Api api, HttpClient httpClient) {
-        this.authenticationService = authenticationService;
-        this.api = api;
+        this(authenticationService, api, httpClient, 
+        		AbstractOpenXmlToPDF.newIoExecutor(AbstractOpenXmlToPDF.DEFAULT_IO_THREADS));
+	}
+
+	private FileService(OAuth20Service authenticationService, MicrosoftAzureActiveDirectory20Api api, HttpClient httpClient,
+			Executor executor) {
+        this(new TokenProvider(new ScribeTokenSource(authenticationService, api, executor)), httpClient, executor);
+	}
+
+	/**
+	 * @param tokenProvider typically TokenProvider.shared(..), so the token is shared with other converters
+	 * @param httpClient or null for JDKHttpClient
+	 */
+	public FileService(TokenProvider tokenProvider, HttpClient httpClient) {
+        this(tokenProvider, httpClient, AbstractOpenXmlToPDF.newIoExecutor(AbstractOpenXmlToPDF.DEFAULT_IO_THREADS));
+	}
+
+	/**
+	 * @param tokenProvider typically TokenProvider.shared(..), so the token is shared with other converters
+	 * @param httpClient or null for JDKHttpClient
+	 * @param executor for requests which block (typically the converter's I/O executor)
+	 */
+	public FileService(TokenProvider tokenProvider, HttpClient httpClient, Executor executor) {
+        this(tokenProvider, httpClient, executor, new HttpClientConfig());
+	}
+
+	/**
+	 * @param tokenProvider typically TokenProvider.shared(..), so the token is shared with other converters
+	 * @param httpClient or null for JDKHttpClient
+	 * @param executor for requests which block (typically the converter's I/O executor)
+	 * @param httpClientConfig connect and read timeouts, for the default JDKHttpClient and 
+	 * the requests made with HttpURLConnection (single PUT of a file, upload slices, download) 
+	 */
+	public FileService(TokenProvider tokenProvider, HttpClient httpClient, Executor executor, 
+			HttpClientConfig httpClientConfig) {
+        this.tokenProvider = tokenProvider;
 		this.httpClient = httpClient;
+		this.executor = executor;
+		this.httpClientConfig = httpClientConfig;
+		this.sliceTransport = new HttpSliceTransport(httpClientConfig);
 	}
 
-    private final OAuth20Service authenticationService;
-    private final MicrosoftAzureActiveDirectory20Api api; 
+    private final TokenProvider tokenProvider;
     private HttpClient httpClient;
-    private String bearerToken = null;
+    private final Executor executor;
+    private final HttpClientConfig httpClientConfig;
+    
+    private String graphEndpoint = AuthConfig.GRAPH_ENDPOINT;
+    
+    /**
+     * Where $batch requests are sent; see AuthConfig.graphEndpoint()
+     */
+    public void setGraphEndpoint(String graphEndpoint) {
+    	this.graphEndpoint = graphEndpoint;
+    }
 	
-    private CompletableFuture<HttpClient> getHttpClient() {
-    	
-    	return CompletableFuture.supplyAsync(new Supplier<HttpClient>() {
-    		
-    		//@Override
-    		public HttpClient get() {
+    private synchronized HttpClient getHttpClient() {
 
-    	        if (httpClient != null) return httpClient;
-    	        
-    	        httpClient = new JDKHttpClient(JDKHttpClientConfig.defaultConfig()); // uses HttpURLConnection, but not async
-    	        return httpClient;
-    		}
-    	});
+        if (httpClient != null) return httpClient;
+        
+        JDKHttpClientConfig config = JDKHttpClientConfig.defaultConfig();
+        config.setConnectTimeout(httpClientConfig.getConnectTimeoutMillis());
+        config.setReadTimeout(httpClientConfig.getReadTimeoutMillis());
+        httpClient = new JDKHttpClient(config); // uses HttpURLConnection, but not async
+        return httpClient;
+    }
+    
+    /**
+     * Make the request, returning the callback's future.
+     * 
+     * JDKHttpClient's executeAsync isn't: it makes the request, and calls back, on the calling thread.
+     * So with it, the request is made on the executor instead, and the phase which 
+     * started it (or the caller of convertAsync) doesn't wait for Graph.
+     */
+    private <T> CompletableFuture<T> send(FutureCallback<T> callback, Consumer<HttpClient> request) {
     	
+    	HttpClient client = getHttpClient();
+    	if (!(client instanceof JDKHttpClient)) {
+    		request.accept(client);
+    		return callback.future;
+    	}
+    	try {
+    		executor.execute(() -> request.accept(client));
+    	} catch (RejectedExecutionException e) {
+    		callback.onThrowable(e);
+    	}
+    	return callback.future;
     }
     
     private CompletableFuture<String> getBearerToken() {
-    	
-    	return CompletableFuture.supplyAsync(new Supplier<String>() {
-    		
-    		public String get() {
-
-    	        if (bearerToken != null) return bearerToken;
-    	        
-    	        OAuth2AccessToken accessToken = null;
-				try {
-					OurOAuth20ServiceBridge bridge = new OurOAuth20ServiceBridge(authenticationService, api);
-					accessToken = bridge.getAccessTokenClientCredentialsGrant();
-				} catch (Exception e) {
-					throw new RuntimeException(e);
-				}
-    	        bearerToken = accessToken.getAccessToken();
-//    	        log.debug(bearerToken);
-    	        return bearerToken;
-    		}
-    	});
-    	
+    	return tokenProvider.getAccessToken();
     }
 
         
-    public Future<Boolean> uploadStreamAsync(String requestUrl, byte[] bodyContents, String contentType) throws InterruptedException, ExecutionException {
+    public CompletableFuture<Boolean> uploadStreamAsync(String requestUrl, byte[] bodyContents, String contentType) {
     	
-    	HttpClient client = getHttpClient().get();
-                
-        Map<String, String> headers = new HashMap<String, String>();
-        headers.put("ContentType",  contentType);
-        headers.put("Authorization",  "Bearer " + getBearerToken().get() );
-        // 'Accept':'application/json;odata.metadata=minimal'}
-        headers.put("Accept",  "application/json;odata.metadata=minimal");
-        
-        log.debug(requestUrl);
-        return client.executeAsync("ScribeJava", headers, Verb.PUT, requestUrl, bodyContents, 
-        		new UploadOAuthAsyncRequestCallback(), new UploadResponseConverter() );
-        		
+    	return getBearerToken().thenCompose(token -> {
+    		
+	        Map<String, String> headers = new HashMap<String, String>();
+	        headers.put("ContentType",  contentType);
+	        headers.put("Authorization",  "Bearer " + token );
+	        // 'Accept':'application/json;odata.metadata=minimal'}
+	        headers.put("Accept",  "application/json;odata.metadata=minimal");
+	        
+	        log.debug(requestUrl);
+	        FutureCallback<Boolean> callback = new FutureCallback<Boolean>("upload", token);
+	        return send(callback, http -> http.executeAsync("ScribeJava", headers, Verb.PUT, requestUrl, bodyContents, 
+	        		callback, new UploadResponseConverter() ));
+    	});
     }
 
-    public Future<Boolean> uploadStreamAsync(String requestUrl, File bodyContents, String contentType) throws InterruptedException, ExecutionException, IOException {
+    public CompletableFuture<Boolean> uploadStreamAsync(String requestUrl, File bodyContents, String contentType) {
     	    	
-    	HttpClient client = getHttpClient().get();
+    	HttpClient client = getHttpClient();
     	log.debug(client.getClass().getName());
         if (client.getClass().getName().equals("com.github.scribejava.core.httpclient.jdk.JDKHttpClient")) {
         	//java.lang.UnsupportedOperationException: JDKHttpClient does not support File payload for the moment
-        	log.debug( client.getClass().getName() + "does not support File payload; reading byte[] " ); 
-    		byte[] docxBytes = FileUtils.readFileToByteArray(bodyContents);
-    		return uploadStreamAsync(requestUrl, docxBytes, contentType);
+        	// so rather than reading it into a byte[], stream it from its FileChannel ourselves 
+        	log.debug( client.getClass().getName() + " does not support File payload; streaming it with HttpURLConnection" ); 
+        	return putFileAsync(requestUrl, bodyContents, contentType);
         }
     	
-        Map<String, String> headers = new HashMap<String, String>();
-        headers.put("ContentType",  contentType);
-        headers.put("Authorization",  "Bearer " + getBearerToken().get() );
-        // 'Accept':'application/json;odata.metadata=minimal'}
-        headers.put("Accept",  "application/json;odata.metadata=minimal");
-        
-        log.debug(requestUrl);
-        
-        return client.executeAsync("ScribeJava", headers, Verb.PUT, requestUrl, bodyContents, 
-        		new UploadOAuthAsyncRequestCallback(), new UploadResponseConverter() );
-        		
+    	return getBearerToken().thenCompose(token -> {
+    		
+	        Map<String, String> headers = new HashMap<String, String>();
+	        headers.put("ContentType",  contentType);
+	        headers.put("Authorization",  "Bearer " + token );
+	        // 'Accept':'application/json;odata.metadata=minimal'}
+	        headers.put("Accept",  "application/json;odata.metadata=minimal");
+	        
+	        log.debug(requestUrl);
+	        FutureCallback<Boolean> callback = new FutureCallback<Boolean>("upload", token);
+	        return send(callback, http -> http.executeAsync("ScribeJava", headers, Verb.PUT, requestUrl, bodyContents, 
+	        		callback, new UploadResponseConverter() ));
+    	});
     }
     
-    class UploadOAuthAsyncRequestCallback implements OAuthAsyncRequestCallback<Boolean> {
-
-		public void onCompleted(Boolean response) {
-			log.debug("UploadOAuthAsyncRequestCallback: " + response);  // fileid; its the response converter output
+    /**
+     * A single PUT of the file, sent straight from its FileChannel with HttpURLConnection 
+     * (as JDKHttpClient would), on the executor.
+     */
+    private CompletableFuture<Boolean> putFileAsync(String requestUrl, File file, String contentType) {
+    	
+    	return getBearerToken().thenApplyAsync(token -> {
+    		
+    		log.debug(requestUrl);
+    		HttpURLConnection conn = null;
+    		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+    			
+    			conn = (HttpURLConnection)new URL(requestUrl).openConnection();
+    			httpClientConfig.configure(conn);
+    			conn.setRequestMethod("PUT");
+    			conn.setDoOutput(true);
+    			conn.setFixedLengthStreamingMode(channel.size());
+    			conn.setRequestProperty("Content-Type",  contentType);
+    			conn.setRequestProperty("Authorization",  "Bearer " + token );
+    			conn.setRequestProperty("Accept",  "application/json;odata.metadata=minimal");
+    			
+    			try (OutputStream os = conn.getOutputStream()) {
+    				ChannelBody.transferTo(channel, 0, channel.size(), os);
+    			}
+    			
+    			int code = conn.getResponseCode();
+    			log.debug("response status code: " + code);
+    			if (ThrottledException.isThrottled(code)) {
+    				throw new CompletionException(new ThrottledException(code, 
+    						ThrottledException.parseRetryAfter(conn.getHeaderField("Retry-After")), 
+    						"upload throttled with HTTP " + code));
+    			}
+    			if (code == 401) {
+    				tokenProvider.invalidate(token);
+    				throw new CompletionException(new UnauthorizedException("upload unauthorized"));
+    			}
+    			
+    			// drain the body, so the connection can be reused
+    			InputStream is = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+    			if (is != null) {
+    				try {
+    					String body = IOUtils.toString(is, "UTF-8");
+    					if (code >= 400) {
+    						log.warn(body);
+    					}
+    				} finally {
+    					is.close();
+    				}
+    			}
+    			// as UploadResponseConverter
+    			return code < 400 ? true : null;
+    			
+    		} catch (IOException e) {
+    			if (conn != null) {
+    				conn.disconnect();
+    			}
+    			throw new CompletionException(e);
+    		}
+    	}, executor);
+    }
+    
+    private SliceTransport sliceTransport;
+    private int sliceSize = 10 * StreamingUploader.SLICE_UNIT;
+    
+    /**
+     * How slices are sent to an upload session; defaults to HttpSliceTransport
+     */
+    public void setSliceTransport(SliceTransport sliceTransport) {
+    	this.sliceTransport = sliceTransport;
+    }
+    
+    /**
+     * @param sliceSize for upload sessions; a multiple of 320 KiB (default 3.2 MB)
+     */
+    public void setSliceSize(int sliceSize) {
+    	if (sliceSize <= 0 || sliceSize % StreamingUploader.SLICE_UNIT != 0) {
+    		throw new IllegalArgumentException("Slice size must be a multiple of 320 KiB, not " + sliceSize);
+    	}
+    	this.sliceSize = sliceSize;
+    }
+    
+    /**
+     * Create an upload session, for files too big for a single PUT (more than 4MB).
+     * 
+     * @param itemUrl eg https://graph.microsoft.com/v1.0/sites/SITE/drive/items/root:/FILENAME:
+     * @return the session's (pre-authenticated) uploadUrl
+     */
+    public CompletableFuture<String> createUploadSessionAsync(String itemUrl) {
+    	
+    	return getBearerToken().thenCompose(token -> {
+    		
+	        Map<String, String> headers = new HashMap<String, String>();
+	        headers.put("Content-Type",  "application/json");
+	        headers.put("Authorization",  "Bearer " + token );
+	        
+	        String requestUrl = itemUrl + "/createUploadSession";
+	        log.debug(requestUrl);
+	        FutureCallback<String> callback = new FutureCallback<String>("upload session", token);
+	        return send(callback, http -> http.executeAsync("ScribeJava", headers, Verb.POST, requestUrl, UPLOAD_SESSION_BODY, 
+	        		callback, new UploadSessionResponseConverter() ));
+    	});
+    }
+    
+    private static final byte[] UPLOAD_SESSION_BODY = 
+    		"{\"item\":{\"@microsoft.graph.conflictBehavior\":\"replace\"}}".getBytes(StandardCharsets.UTF_8);
+    
+	static class UploadSessionResponseConverter implements OAuthRequest.ResponseConverter<String> {
+		
+		public String convert(Response response) throws IOException {
 			
+			try {
+				checkThrottled(response, "upload session");
+				checkAuthorized(response, "upload session");
+		        if (!response.isSuccessful()) {
+		        	throw new IOException("createUploadSession failed with HTTP " + response.getCode() + ": " + response.getBody());
+		        }
+		        String uploadUrl = MAPPER.readTree(response.getStream()).path("uploadUrl").asText(null);
+		        if (uploadUrl == null) {
+		        	throw new IOException("createUploadSession response has no uploadUrl");
+		        }
+		        return uploadUrl;
+			} finally {
+				response.close();
+			}
+		}
+	}
+    
+    /**
+     * Upload the stream via an upload session, one slice at a time, so it is never held in full.
+     * The slices are sent with sliceTransport, on the executor (they are synchronous).  
+     * If a slice's connection drops, the upload resumes from the session's nextExpectedRanges. 
+     * 
+     * The stream is read to EOF but not closed.
+     * 
+     * @param itemUrl as for createUploadSessionAsync
+     * @param is
+     * @param retryPolicy for throttled slices
+     * @param deadline
+     * @return the number of bytes uploaded
+     */
+    public CompletableFuture<Long> uploadLargeAsync(String itemUrl, InputStream is, RetryPolicy retryPolicy, Deadline deadline) {
+    	
+    	return retryPolicy.execute("upload session", () -> createUploadSessionAsync(itemUrl), deadline, executor)
+    			.thenCompose(uploadUrl -> new StreamingUploader(sliceTransport, sliceSize)
+    					.uploadAsync(uploadUrl, is, retryPolicy, deadline, executor));
+    }
+    
+    /**
+     * As above, sending each slice straight from the file's FileChannel, 
+     * so the file is never read onto the heap.
+     */
+    public CompletableFuture<Long> uploadLargeAsync(String itemUrl, File file, RetryPolicy retryPolicy, Deadline deadline) {
+    	
+    	return retryPolicy.execute("upload session", () -> createUploadSessionAsync(itemUrl), deadline, executor)
+    			.thenCompose(uploadUrl -> {
+    		
+			FileChannel channel;
+			try {
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+			return new StreamingUploader(sliceTransport, sliceSize).uploadAsync(uploadUrl, channel, retryPolicy, deadline, executor)
+					.whenComplete((size, e) -> close(channel));
+    	});
+    }
+    
+    private static void close(FileChannel channel) {
+    	
+    	try {
+    		channel.close();
+    	} catch (IOException e) {
+    		log.warn("Closing upload: " + e.getMessage());
+    	}
+    }
+
+    /**
+     * Completes a CompletableFuture when the http client calls back, so the phases of a 
+     * conversion can be chained rather than waited on.
+     * If Graph refused the token, it is invalidated, so a retry gets a new one.
+     */
+    class FutureCallback<T> implements OAuthAsyncRequestCallback<T> {
+    	
+    	/**
+    	 * @param token the bearer token the request was sent with
+    	 */
+    	FutureCallback(String phase, String token) {
+    		this.phase = phase;
+    		this.token = token;
+    	}
+    	
+    	final String phase;
+    	final String token;
+    	final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		public void onCompleted(T response) {
+			log.debug(phase + " callback completed: " + response);
+			future.complete(response);
 		}
 
 		public void onThrowable(Throwable t) {
-			throw new RuntimeException(t);
-			
+			if (t instanceof CompletionException && t.getCause() != null) {
+				// eg ThrottledException, from a ResponseConverter
+				t = t.getCause();
+			}
+			log.debug(phase + " callback failed: " + t.getMessage());
+			if (t instanceof UnauthorizedException) {
+				tokenProvider.invalidate(token);
+			}
+			future.completeExceptionally(t);
 		}
     	
     }
@@ -168,6 +444,8 @@ public class FileService {
 	            body = response.getBody();
 	            log.debug("response body: " + body);
 	        }
+	        checkThrottled(response, "upload");
+	        checkAuthorized(response, "upload");
 	        if (!response.isSuccessful() ) {
 	        	log.warn(response.getBody());
 		        response.close();
@@ -180,69 +458,218 @@ public class FileService {
 	}
 
 	
-    public Future<byte[]> downloadConvertedFileAsync(String requestUrl) throws InterruptedException, ExecutionException {
+    public CompletableFuture<byte[]> downloadConvertedFileAsync(String requestUrl) {
+    	return downloadConvertedFileAsync(requestUrl, DownloadHandler.toByteArray());
+    }
+	
+    /**
+     * Write the PDF straight to the file, resuming the download (rather than converting again) 
+     * if its connection drops; see ResumableDownload.  This is sent with HttpURLConnection 
+     * whatever the http client, since we need the redirect's Location.
+     * It runs on the executor (it is synchronous).
+     * 
+     * @param requestUrl
+     * @param out created, or overwritten
+     * @return the size of the PDF
+     */
+    public CompletableFuture<Long> downloadConvertedFileAsync(String requestUrl, File out) {
     	
-    	HttpClient client = getHttpClient().get();
-        
-        //String requestUrl = path + fileId + "/content?format=" + targetFormat;
-                
-        Map<String, String> headers = new HashMap<String, String>();
-//        headers.put("ContentType",  contentType);
-        headers.put("Authorization",  "Bearer " + getBearerToken().get() );
-        // 'Accept':'application/json;odata.metadata=minimal'}
-//        headers.put("Accept",  "application/json;odata.metadata=minimal");
-        
-		log.debug(requestUrl);
-		byte[] nullBytes = null;
-		return client.executeAsync("ScribeJava", headers, Verb.GET, requestUrl, nullBytes,
-        		new DownloadOAuthAsyncRequestCallback(), new DownloadResponseConverter() );
-        		
+    	return getBearerToken().thenApplyAsync(token -> {
+    		
+    		try (FileChannel channel = FileChannel.open(out.toPath(), StandardOpenOption.CREATE, 
+    				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+    			return ResumableDownload.fromConversion(requestUrl, token, channel, httpClientConfig);
+    		} catch (ConversionException | IOException e) {
+    			if (e instanceof UnauthorizedException) {
+    				tokenProvider.invalidate(token);
+    			}
+    			throw new CompletionException(e);
+    		}
+    	}, executor);
     }
-
-    class DownloadOAuthAsyncRequestCallback implements OAuthAsyncRequestCallback<byte[]> {
-
-		public void onCompleted(byte[] response) {
-			log.debug("callback oncompleted: downloaded " + response.length + " bytes");
-			
-			
-		}
-
-		public void onThrowable(Throwable t) {
-			throw new RuntimeException(t);
-			
-		}
+	
+    /**
+     * @param requestUrl
+     * @param handler receives the body of the response, for example to copy it to a sink
+     * @return
+     */
+    public <T> CompletableFuture<T> downloadConvertedFileAsync(String requestUrl, DownloadHandler<T> handler) {
     	
+    	return getBearerToken().thenCompose(token -> {
+        
+	        //String requestUrl = path + fileId + "/content?format=" + targetFormat;
+	                
+	        Map<String, String> headers = new HashMap<String, String>();
+//	        headers.put("ContentType",  contentType);
+	        headers.put("Authorization",  "Bearer " + token );
+	        // 'Accept':'application/json;odata.metadata=minimal'}
+//	        headers.put("Accept",  "application/json;odata.metadata=minimal");
+	        
+			log.debug(requestUrl);
+			byte[] nullBytes = null;
+	        FutureCallback<T> callback = new FutureCallback<T>("download", token);
+			return send(callback, http -> http.executeAsync("ScribeJava", headers, Verb.GET, requestUrl, nullBytes,
+	        		callback, new DownloadResponseConverter<T>(handler) ));
+    	});
     }
     
-	class DownloadResponseConverter implements OAuthRequest.ResponseConverter<byte[]> {
+	static class DownloadResponseConverter<T> implements OAuthRequest.ResponseConverter<T> {
 		
-		public byte[] convert(Response response) throws IOException {
+		DownloadResponseConverter(DownloadHandler<T> handler) {
+			this.handler = handler;
+		}
+		
+		private final DownloadHandler<T> handler;
+		
+		public T convert(Response response) throws IOException {
 	        log.debug("received response for download: " + response.getCode());
-	        byte[] bytes = IOUtils.toByteArray(response.getStream());
-	        response.close();
-	        return bytes;
+	        try {
+	        	checkThrottled(response, "download");
+	        	checkAuthorized(response, "download");
+	        	if (!response.isSuccessful()) {
+	        		// don't hand the error body to the handler as if it were the PDF
+	        		throw new IOException("Download failed with HTTP " + response.getCode());
+	        	}
+	        	return handler.handle(response.getStream());
+	        } finally {
+	        	response.close();
+	        }
 	    }
 	
 	}
 
-    public Future<Boolean> deleteFileAsync(String requestUrl) throws InterruptedException, ExecutionException {
+    /**
+     * Fail with a ThrottledException if Graph responded 429 or 503, so the 
+     * AdaptiveLimiter can back off. 
+     */
+    static void checkThrottled(Response response, String phase) throws IOException {
     	
-    	HttpClient client = getHttpClient().get();
-        
-                
-        Map<String, String> headers = new HashMap<String, String>();
-//        headers.put("ContentType",  contentType);
-        headers.put("Authorization",  "Bearer " + getBearerToken().get() );
-        // 'Accept':'application/json;odata.metadata=minimal'}
-//        headers.put("Accept",  "application/json;odata.metadata=minimal");
+    	if (ThrottledException.isThrottled(response.getCode())) {
+    		long retryAfter = ThrottledException.parseRetryAfter(response.getHeader("Retry-After"));
+    		response.close();
+    		throw new CompletionException(new ThrottledException(response.getCode(), retryAfter, 
+    				phase + " throttled with HTTP " + response.getCode()));
+    	}
+    }
+
+    /**
+     * Fail with an UnauthorizedException if Graph responded 401; the FutureCallback
+     * then invalidates the token. 
+     */
+    static void checkAuthorized(Response response, String phase) throws IOException {
+    	
+    	if (response.getCode() == 401) {
+    		response.close();
+    		throw new CompletionException(new UnauthorizedException(phase + " unauthorized"));
+    	}
+    }
+
+    public CompletableFuture<Boolean> deleteFileAsync(String requestUrl) {
+    	
+    	return getBearerToken().thenCompose(token -> {
         
-		log.debug(requestUrl);
-		byte[] nullBytes = new byte[0];
-		return client.executeAsync("ScribeJava", headers, Verb.DELETE, requestUrl, nullBytes, null,
-				new DeleteResponseConverter());
-        		
+	        Map<String, String> headers = new HashMap<String, String>();
+//	        headers.put("ContentType",  contentType);
+	        headers.put("Authorization",  "Bearer " + token );
+	        // 'Accept':'application/json;odata.metadata=minimal'}
+//	        headers.put("Accept",  "application/json;odata.metadata=minimal");
+	        
+			log.debug(requestUrl);
+			byte[] nullBytes = new byte[0];
+	        FutureCallback<Boolean> callback = new FutureCallback<Boolean>("delete", token);
+			return send(callback, http -> http.executeAsync("ScribeJava", headers, Verb.DELETE, requestUrl, nullBytes, callback,
+					new DeleteResponseConverter()));
+    	});
     }
 
+    /**
+     * Delete up to 20 items in a single JSON $batch request.
+     * 
+     * @param requestUrls as per deleteFileAsync
+     * @return the status for each item, in order
+     */
+    public CompletableFuture<List<DeleteStatus>> deleteBatchAsync(List<String> requestUrls) {
+    	
+    	ObjectNode batch = MAPPER.createObjectNode();
+    	ArrayNode requests = batch.putArray("requests");
+    	for (int i = 0; i < requestUrls.size(); i++) {
+    		requests.addObject()
+    			.put("id", String.valueOf(i))
+    			.put("method", "DELETE")
+    			.put("url", BatchSender.relativeUrl(graphEndpoint, requestUrls.get(i)));
+    	}
+    	byte[] bodyContents;
+		try {
+			bodyContents = MAPPER.writeValueAsBytes(batch);
+		} catch (IOException e) {
+			CompletableFuture<List<DeleteStatus>> failed = new CompletableFuture<List<DeleteStatus>>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+    	
+    	return getBearerToken().thenCompose(token -> {
+    		
+	        Map<String, String> headers = new HashMap<String, String>();
+	        headers.put("Content-Type",  "application/json");
+	        headers.put("Authorization",  "Bearer " + token );
+	        
+			log.debug(BatchSender.batchUrl(graphEndpoint) + " with " + requestUrls.size() + " deletes");
+	        FutureCallback<List<DeleteStatus>> callback = new FutureCallback<List<DeleteStatus>>("batch delete", token);
+			return send(callback, http -> http.executeAsync("ScribeJava", headers, Verb.POST, BatchSender.batchUrl(graphEndpoint), bodyContents, callback,
+					new BatchResponseConverter(requestUrls.size())));
+    	});
+    }
+    
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    
+	static class BatchResponseConverter implements OAuthRequest.ResponseConverter<List<DeleteStatus>> {
+		
+		BatchResponseConverter(int size) {
+			this.size = size;
+		}
+		
+		private final int size;
+		
+		public List<DeleteStatus> convert(Response response) throws IOException {
+			
+			try {
+				checkAuthorized(response, "batch delete");
+				checkThrottled(response, "batch delete");
+		        if (!response.isSuccessful()) {
+		        	throw new IOException("$batch failed with HTTP " + response.getCode() + ": " + response.getBody());
+		        }
+		        
+		        // responses may come back in any order
+		        DeleteStatus[] statuses = new DeleteStatus[size];
+		        for (JsonNode r : MAPPER.readTree(response.getStream()).path("responses")) {
+		        	int id = Integer.parseInt(r.path("id").asText());
+		        	if (id >= 0 && id < size) {
+		        		statuses[id] = DeleteStatus.of(r.path("status").asInt(), retryAfter(r.path("headers")));
+		        	}
+		        }
+		        return Arrays.asList(statuses);
+		        
+			} finally {
+				response.close();
+			}
+	    }
+		
+		/**
+		 * @return the Retry-After in a $batch item's headers (whatever its case), or null
+		 */
+		private static String retryAfter(JsonNode headers) {
+			
+			Iterator<Map.Entry<String, JsonNode>> fields = headers.fields();
+			while (fields.hasNext()) {
+				Map.Entry<String, JsonNode> header = fields.next();
+				if ("Retry-After".equalsIgnoreCase(header.getKey())) {
+					return header.getValue().asText();
+				}
+			}
+			return null;
+		}
+	}
+
 	class DeleteResponseConverter implements OAuthRequest.ResponseConverter<Boolean> {
 		
 		public Boolean convert(Response response) throws IOException {
@@ -3,10 +3,12 @@ package org.plutext.msgraph.convert.scribe;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.io.IOUtils;
 import org.plutext.msgraph.convert.AuthConfig;
 import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.HttpClientConfig;
 
 import com.github.scribejava.core.httpclient.HttpClient;
 
@@ -20,6 +22,11 @@ public class PptxToPdfConverter extends PdfConverter implements org.plutext.msgr
 		super(authConfig, httpClient);
 	}
 	
+	public PptxToPdfConverter(AuthConfig authConfig, HttpClient httpClient, HttpClientConfig httpClientConfig) 
+			throws ConversionException {
+		super(authConfig, httpClient, httpClientConfig);
+	}
+	
 	
 	@Override
 	public byte[] convert(byte[] pptx) throws ConversionException {
@@ -38,6 +45,21 @@ public class PptxToPdfConverter extends PdfConverter implements org.plutext.msgr
 		return convertMime(inFile, PPTX_MIME_TYPE);
 	}
 
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] pptx) {
+		return convertMimeAsync(pptx, PPTX_MIME_TYPE);
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] bytes, String ext) {
+		return convertMimeAsync(bytes, PPTX_MIME_TYPE);
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(File inFile) {
+		return convertMimeAsync(inFile, PPTX_MIME_TYPE);
+	}
+
 	@Override
 	public byte[] convert(InputStream pptx) throws ConversionException, IOException {
 		return convert( IOUtils.toByteArray(pptx) );
@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2020, Plutext Pty Ltd.
+ *   
+    This module is licensed under the Apache License, Version 2.0 (the "License"); 
+    you may not use this file except in compliance with the License. 
+
+    You may obtain a copy of the License at 
+
+        http://www.apache.org/licenses/LICENSE-2.0 
+
+    Unless required by applicable law or agreed to in writing, software 
+    distributed under the License is distributed on an "AS IS" BASIS, 
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+    See the License for the specific language governing permissions and 
+    limitations under the License.
+
+ */
+
+package org.plutext.msgraph.convert.scribe;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.plutext.msgraph.convert.auth.AccessToken;
+import org.plutext.msgraph.convert.auth.TokenSource;
+import org.plutext.msgraph.convert.scribe.adaption.OurOAuth20ServiceBridge;
+
+import com.github.scribejava.apis.MicrosoftAzureActiveDirectory20Api;
+import com.github.scribejava.core.model.OAuth2AccessToken;
+import com.github.scribejava.core.oauth.OAuth20Service;
+
+/**
+ * Client credentials grant via scribe (and our bridge).
+ * 
+ * @author jharrop
+ *
+ */
+public class ScribeTokenSource implements TokenSource {
+	
+	/**
+	 * Used if the response doesn't say (it always should)
+	 */
+	private static final int DEFAULT_EXPIRES_IN = 3599;
+
+	/**
+	 * @param authenticationService
+	 * @param api
+	 * @param executor where the (blocking) token request is made; typically the converter's I/O executor
+	 */
+	public ScribeTokenSource(OAuth20Service authenticationService, MicrosoftAzureActiveDirectory20Api api, 
+			Executor executor) {
+		this.bridge = new OurOAuth20ServiceBridge(authenticationService, api);
+		this.executor = executor;
+	}
+	
+	private final OurOAuth20ServiceBridge bridge;
+	private final Executor executor;
+	
+	@Override
+	public CompletableFuture<AccessToken> fetch() {
+		
+		return CompletableFuture.supplyAsync(() -> {
+			
+			OAuth2AccessToken accessToken;
+			try {
+				accessToken = bridge.getAccessTokenClientCredentialsGrant();
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+			Integer expiresIn = accessToken.getExpiresIn();
+			return AccessToken.expiringIn(accessToken.getAccessToken(), 
+					expiresIn == null ? DEFAULT_EXPIRES_IN : expiresIn);
+		}, executor);
+	}
+
+}
@@ -3,11 +3,13 @@ package org.plutext.msgraph.convert.scribe;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.io.IOUtils;
 import org.plutext.msgraph.convert.AbstractOpenXmlToPDF;
 import org.plutext.msgraph.convert.AuthConfig;
 import org.plutext.msgraph.convert.ConversionException;
+import org.plutext.msgraph.convert.HttpClientConfig;
 
 import com.github.scribejava.core.httpclient.HttpClient;
 
@@ -20,6 +22,11 @@ public class XlsxToPdfConverter extends org.plutext.msgraph.convert.scribe.PdfCo
 	public XlsxToPdfConverter(AuthConfig authConfig, HttpClient httpClient) throws ConversionException {
 		super(authConfig, httpClient);
 	}
+	
+	public XlsxToPdfConverter(AuthConfig authConfig, HttpClient httpClient, HttpClientConfig httpClientConfig) 
+			throws ConversionException {
+		super(authConfig, httpClient, httpClientConfig);
+	}
 		
 	@Override
 	public byte[] convert(byte[] xlsx) throws ConversionException {
@@ -38,6 +45,21 @@ public class XlsxToPdfConverter extends org.plutext.msgraph.convert.scribe.PdfCo
 		return convertMime(inFile, XLSX_MIME_TYPE);
 	}
 
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] xlsx) {
+		return convertMimeAsync(xlsx, XLSX_MIME_TYPE);
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(byte[] bytes, String ext) {
+		return convertMimeAsync(bytes, XLSX_MIME_TYPE);
+	}
+
+	@Override
+	public CompletableFuture<byte[]> convertAsync(File inFile) {
+		return convertMimeAsync(inFile, XLSX_MIME_TYPE);
+	}
+
 	@Override
 	public byte[] convert(InputStream xlsx) throws ConversionException, IOException {
 		return convert( IOUtils.toByteArray(xlsx) );
@@ -5,12 +5,33 @@ import com.github.scribejava.apis.MicrosoftAzureActiveDirectory20Api;
 public class OurMicrosoftAzureActiveDirectoryEndpoint extends MicrosoftAzureActiveDirectory20Api {
 	
     protected OurMicrosoftAzureActiveDirectoryEndpoint(String tenant) {
+        this(tenant, "https://login.microsoftonline.com");
+    }
+	
+    protected OurMicrosoftAzureActiveDirectoryEndpoint(String tenant, String loginEndpoint) {
         super(tenant);
+        this.tenant = tenant;
+        this.loginEndpoint = loginEndpoint;
     }
+    
+    private final String tenant;
+    private final String loginEndpoint;
 	
     public static MicrosoftAzureActiveDirectory20Api custom(String tenant) {
         return new OurMicrosoftAzureActiveDirectoryEndpoint(tenant);
     }
+	
+    /**
+     * @param loginEndpoint in place of https://login.microsoftonline.com (eg a stand-in server)
+     */
+    public static MicrosoftAzureActiveDirectory20Api custom(String tenant, String loginEndpoint) {
+        return new OurMicrosoftAzureActiveDirectoryEndpoint(tenant, loginEndpoint);
+    }
+
+    @Override
+    public String getAccessTokenEndpoint() {
+        return loginEndpoint + "/" + tenant + "/oauth2" + getEndpointVersionPath() + "/token";
+    }
 
     @Override
     protected String getEndpointVersionPath() {